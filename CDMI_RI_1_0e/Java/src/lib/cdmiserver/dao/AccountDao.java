@@ -30,6 +30,10 @@
  */
 package org.snia.cdmiserver.dao;
 
+import java.util.List;
+
+import org.snia.cdmiserver.exception.BadRequestException;
+import org.snia.cdmiserver.exception.ForbiddenException;
 import org.snia.cdmiserver.model.Account;
 
 /**
@@ -46,4 +50,65 @@ public interface AccountDao {
      */
     public Account findByObjectId(String objectId);
 
+    /**
+     * <p>
+     * Find and return the {@link Account} of the named domain, if any; otherwise, return
+     * <code>null</code>.
+     * </p>
+     * 
+     * @param name
+     *            Name of the domain, as in <code>/cdmi_domains/{name}/</code>
+     */
+    public Account findByName(String name);
+
+    /**
+     * <p>
+     * Return the names of all domains.
+     * </p>
+     */
+    public List<String> getNames();
+
+    /**
+     * <p>
+     * Create the named domain, or update its metadata (quotas included) if it exists.
+     * </p>
+     * 
+     * @exception BadRequestException
+     *                if the name or a quota is invalid
+     */
+    public Account createByName(String name, Account account);
+
+    /**
+     * <p>
+     * Return <code>true</code> if the domain with the specified URI exists.
+     * </p>
+     */
+    public boolean isDomain(String domainURI);
+
+    /**
+     * <p>
+     * Charge a change in usage to a domain, refusing growth beyond its quotas. Shrinking usage
+     * is always accepted.
+     * </p>
+     * 
+     * @param domainURI
+     *            URI of the domain
+     * @param bytes
+     *            Change in bytes of data object values
+     * @param objects
+     *            Change in number of data objects
+     * 
+     * @exception ForbiddenException
+     *                if the growth would exceed a quota of the domain
+     */
+    public void charge(String domainURI, long bytes, long objects);
+
+    /**
+     * <p>
+     * Charge a change in usage to a domain without checking its quotas, for changes already
+     * made.
+     * </p>
+     */
+    public void adjust(String domainURI, long bytes, long objects);
+
 }
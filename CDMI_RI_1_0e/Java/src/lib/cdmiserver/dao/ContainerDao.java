@@ -58,18 +58,25 @@ public interface ContainerDao {
 
     /**
      * <p>
-     * Delete the container at the specified path.
+     * Delete the container at the specified path. Large containers are deleted in the
+     * background; until that completes, {@link #findByPath(String)} reports the progress in the
+     * <code>completionStatus</code> and <code>percentComplete</code> fields.
      * </p>
      * 
      * @param path
      *            Path to the requested {@link Container}
      * 
+     * @return <code>true</code> if the container is gone, or <code>false</code> if the delete
+     *         continues in the background
+     * 
+     * @exception ConflictException
+     *                if another background operation is in progress on the container
      * @exception NotFoundException
      *                if the specified path does not identify a valid resource
      * @exception IllegalArgumentException
      *                if the specified path identifies a data object instead of a container
      */
-    public void deleteByPath(String path);
+    public boolean deleteByPath(String path);
 
     /**
      * <p>
@@ -97,6 +104,18 @@ public interface ContainerDao {
      */
     public Container findByPath(String path);
 
+    /**
+     * <p>
+     * Return the URI of the domain the container at the specified path belongs to. For a data
+     * object or queue, or a path that does not exist yet, this is the domain of the container
+     * holding it. The root container belongs to the default domain.
+     * </p>
+     * 
+     * @param path
+     *            Path to the container, data object or queue
+     */
+    public String findDomainURI(String path);
+
     //
     public boolean isContainer(String path);
     //
@@ -30,8 +30,11 @@
  */
 package org.snia.cdmiserver.dao;
 
+import java.util.List;
+
 import org.snia.cdmiserver.exception.ConflictException;
 import org.snia.cdmiserver.exception.NotFoundException;
+import org.snia.cdmiserver.model.BulkOperation;
 import org.snia.cdmiserver.model.DataObject;
 
 /**
@@ -46,11 +49,19 @@ public interface DataObjectDao {
      * Create a data object at the specified path. All intermediate containers must already exist.
      * </p>
      * 
+     * <p>
+     * If the request names an existing data object in its <code>move</code> field, that object
+     * is moved to the path, keeping its object ID. If it names one in its <code>copy</code> field,
+     * a new data object with the same value is created. Neither moves data through the client.
+     * </p>
+     * 
      * @param path
      *            Path to the new {@link DataObject}
      * 
      * @exception ConflictException
      *                if a container or data object at the specified path already exists
+     * @exception NotFoundException
+     *                if the data object to copy or move does not exist
      * @exception IllegalArgumentException
      *                if an intermediate container does not exist
      */
@@ -73,6 +84,36 @@ public interface DataObjectDao {
      */
     public void deleteByPath(String path);
 
+    /**
+     * <p>
+     * Update the data object at the specified path. A value, mimetype or metadata in the request
+     * replaces the corresponding part of the existing object; the object ID is kept.
+     * </p>
+     * 
+     * @param path
+     *            Path to the existing {@link DataObject}
+     * @param dObj
+     *            Requested changes
+     * 
+     * @exception NotFoundException
+     *                if the specified path does not identify an existing data object
+     */
+    public DataObject updateByPath(String path, DataObject dObj);
+
+    /**
+     * <p>
+     * Apply a batch of create, update and delete operations to data objects directly inside
+     * the container at the specified path. Operations are applied in order; the outcome of each
+     * one is recorded in it rather than thrown, so one failure does not abort the batch.
+     * </p>
+     * 
+     * @param containerPath
+     *            Path to the container holding the data objects
+     * @param operations
+     *            Operations to apply
+     */
+    public void applyBatch(String containerPath, List<BulkOperation> operations);
+
     /**
      * <p>
      * Find and return a {@link DataObject} by object id, if any; otherwise, return
@@ -94,4 +135,41 @@ public interface DataObjectDao {
      */
     public DataObject findByPath(String path);
 
+    /**
+     * <p>
+     * Return up to <code>length</code> bytes of the value of the data object at the specified
+     * path, starting at byte <code>offset</code>; fewer if the value ends first.
+     * </p>
+     * 
+     * @param path
+     *            Path to the requested {@link DataObject}
+     * @param offset
+     *            Offset of the first byte to return
+     * @param length
+     *            Maximum number of bytes to return
+     * 
+     * @exception NotFoundException
+     *                if the specified path does not identify an existing data object
+     */
+    public byte[] readValue(String path, long offset, int length);
+
+    /**
+     * <p>
+     * Complete a multipart upload: make the concatenated parts of the upload the value of the
+     * data object at the specified path, creating the object if it does not exist, and apply
+     * the mimetype and metadata given when the upload was started.
+     * </p>
+     * 
+     * @param path
+     *            Path to the {@link DataObject}
+     * @param uploadID
+     *            ID of the upload, as returned when it was started
+     * 
+     * @exception NotFoundException
+     *                if there is no such upload for the data object
+     * @exception ConflictException
+     *                if the upload is already being completed
+     */
+    public DataObject completeUpload(String path, String uploadID);
+
 }
@@ -30,15 +30,54 @@
  */
 package org.snia.cdmiserver.dao;
 
+import java.util.List;
+
+import org.snia.cdmiserver.exception.ConflictException;
+import org.snia.cdmiserver.exception.NotFoundException;
 import org.snia.cdmiserver.model.Queue;
 
 /**
  * <p>
- * DAO for manipulating CDMI <em>Container</em> instances.
+ * DAO for manipulating CDMI <em>Queue</em> instances.
  * </p>
  */
 public interface QueueDao {
 
+    /**
+     * <p>
+     * Create a queue at the specified path, or replace the metadata of the existing queue.
+     * </p>
+     * 
+     * @param path
+     *            Path to the new or existing {@link Queue}
+     * @param queue
+     *            Requested metadata
+     * 
+     * @exception ConflictException
+     *                if a data object or container already exists at the specified path
+     * @exception NotFoundException
+     *                if the parent container does not exist
+     */
+    public Queue createByPath(String path, Queue queue);
+
+    /**
+     * <p>
+     * Delete the queue at the specified path, with all of its values.
+     * </p>
+     * 
+     * @exception NotFoundException
+     *                if the specified path does not identify a queue
+     */
+    public void deleteByPath(String path);
+
+    /**
+     * <p>
+     * Find and return a {@link Queue} by path, without values, if any; otherwise, return
+     * <code>null</code>.
+     * </p>
+     */
+    public Queue findByPath(String path);
+
     /**
      * <p>
      * Find and return a {@link Queue} by object id, if any; otherwise, return <code>null</code>.
@@ -46,4 +85,57 @@ public interface QueueDao {
      */
     public Queue findByObjectId(String objectId);
 
+    /**
+     * <p>
+     * Append values to the tail of the queue at the specified path, and return the number of
+     * values now in the queue.
+     * </p>
+     * 
+     * @exception NotFoundException
+     *                if the specified path does not identify a queue
+     */
+    public long enqueue(String path, List<String> values);
+
+    /**
+     * <p>
+     * Return up to <code>count</code> values starting <code>offset</code> values after the
+     * head of the queue at the specified path. The values stay in the queue until they are
+     * acknowledged.
+     * </p>
+     * 
+     * @exception NotFoundException
+     *                if the specified path does not identify a queue
+     */
+    public List<String> dequeue(String path, int offset, int count);
+
+    /**
+     * <p>
+     * Remove up to <code>count</code> values from the head of the queue at the specified path,
+     * and return the number removed.
+     * </p>
+     * 
+     * @exception NotFoundException
+     *                if the specified path does not identify a queue
+     */
+    public int acknowledge(String path, int count);
+
+    /**
+     * <p>
+     * Register a callback to be run once, as soon as the queue at the specified path holds
+     * values; it is run right away if the queue already does. Callbacks are run on the thread
+     * that enqueues the values, so they must return quickly.
+     * </p>
+     * 
+     * @exception NotFoundException
+     *                if the specified path does not identify a queue
+     */
+    public void awaitValues(String path, Runnable waiter);
+
+    /**
+     * <p>
+     * Remove a callback registered with <code>awaitValues()</code> that has not run yet.
+     * </p>
+     */
+    public void cancelWait(String path, Runnable waiter);
+
 }
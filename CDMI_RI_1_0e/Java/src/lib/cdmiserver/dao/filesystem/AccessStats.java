@@ -0,0 +1,376 @@
+/*
+ * Copyright (c) 2010, Sun Microsystems, Inc.
+ * Copyright (c) 2010, The Storage Networking Industry Association.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ * Redistributions of source code must retain the above copyright notice, 
+ * this list of conditions and the following disclaimer.
+ *  
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ *  
+ * Neither the name of The Storage Networking Industry Association (SNIA) nor 
+ * the names of its contributors may be used to endorse or promote products 
+ * derived from this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF 
+ *  THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.snia.cdmiserver.dao.filesystem;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.snia.cdmiserver.dao.ChangeListener;
+import org.snia.cdmiserver.model.Change;
+import org.snia.cdmiserver.model.DataObject;
+import org.snia.cdmiserver.util.CdmiPath;
+import org.snia.cdmiserver.util.DaemonThreadFactory;
+import org.snia.cdmiserver.util.MediaTypes;
+
+/**
+ * <p>
+ * Write-behind store of the <code>cdmi_atime</code> and <code>cdmi_acount</code> metadata of
+ * data objects. A read only records its access in memory, in a {@link ConcurrentHashMap}
+ * striped <code>stripes</code> ways so concurrent readers rarely contend; every
+ * <code>flushIntervalSeconds</code>, or sooner once <code>maxPending</code> objects have
+ * accesses pending, the accesses of each object are coalesced into a single rewrite of its
+ * fields file. Reads report the persisted values plus the pending ones, so what clients see
+ * is exact even though it reaches the disk later.
+ * </p>
+ * 
+ * <p>
+ * An object's pending accesses are taken and written under its write lock, and recorded and
+ * reported under its read lock, so a reader never sees them twice or not at all. Accesses
+ * still pending when the server stops without {@link #shutdown()} are lost; they are
+ * statistics, and not worth a sync per read.
+ * </p>
+ */
+public class AccessStats implements ChangeListener {
+
+    // -------------------------------------------------------------- Properties
+    private String baseDirectoryName = null;
+
+    /**
+     * <p>
+     * Set the base directory name for our local storage.
+     * </p>
+     */
+    public void setBaseDirectoryName(String baseDirectoryName) {
+        this.baseDirectoryName = baseDirectoryName;
+    }
+
+    private PathLocks pathLocks = new PathLocks();
+
+    /**
+     * <p>
+     * Set the {@link PathLocks} shared with the data object DAO.
+     * </p>
+     */
+    public void setPathLocks(PathLocks pathLocks) {
+        this.pathLocks = pathLocks;
+    }
+
+    private int stripes = 64;
+
+    /**
+     * <p>
+     * Set how many ways the map of pending accesses is striped. Only takes effect before
+     * {@link #start()}. Default value is 64.
+     * </p>
+     */
+    public void setStripes(int stripes) {
+        this.stripes = stripes;
+    }
+
+    private int flushIntervalSeconds = 10;
+
+    /**
+     * <p>
+     * Set the time between flushes in seconds. Default value is 10.
+     * </p>
+     */
+    public void setFlushIntervalSeconds(int flushIntervalSeconds) {
+        this.flushIntervalSeconds = flushIntervalSeconds;
+    }
+
+    private int maxPending = 100000;
+
+    /**
+     * <p>
+     * Set how many objects may have accesses pending before a flush starts early. Default
+     * value is 100000.
+     * </p>
+     */
+    public void setMaxPending(int maxPending) {
+        this.maxPending = maxPending;
+    }
+
+    // ------------------------------------------------------------------ State
+    private volatile ConcurrentHashMap<String, Pending> pending =
+            new ConcurrentHashMap<String, Pending>(1024, 0.75f, 64);
+
+    private final AtomicBoolean flushQueued = new AtomicBoolean();
+
+    private final ScheduledExecutorService flusher =
+            Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("cdmi-access-"));
+
+    // ------------------------------------------------- ChangeListener Methods
+    @Override
+    public void changed(Change change) {
+        String operation = change.getOperation();
+        boolean container = MediaTypes.CONTAINER.equals(change.getObjectType());
+        if (Change.DELETE.equals(operation)) {
+            if (container) {
+                for (String path : below(change.getPath())) {
+                    take(path);
+                }
+            } else {
+                take(change.getPath());
+            }
+        } else if (Change.MOVE.equals(operation) && change.getSource() != null) {
+            // Accesses follow the objects moved, the contents of moved containers included
+            String source = change.getSource();
+            List<String> paths = container ? below(source) : Collections.singletonList(source);
+            for (String path : paths) {
+                Pending moved = take(path);
+                if (moved != null) {
+                    record(change.getPath() + path.substring(source.length()),
+                           moved.atime,
+                           moved.accesses);
+                }
+            }
+        }
+    }
+
+    // ---------------------------------------------------------- Public Methods
+
+    /**
+     * <p>
+     * Record a read of the data object at the specified normalized path, under its read
+     * lock, and return how many of its accesses, this one included, are not persisted yet.
+     * </p>
+     */
+    public long recordAccess(String path, long now) {
+        long accesses = record(path, now, 1);
+        if (pending.size() > maxPending && flushQueued.compareAndSet(false, true)) {
+            flusher.execute(new Runnable() {
+                public void run() {
+                    flushQuietly();
+                }
+            });
+        }
+        return accesses;
+    }
+
+    /**
+     * <p>
+     * Persist every pending access, one rewrite per object, in path order. Blocks until done.
+     * </p>
+     */
+    public void flush() {
+        flushQueued.set(false);
+        List<String> paths = new ArrayList<String>(pending.keySet());
+        if (paths.isEmpty()) {
+            return;
+        }
+        Collections.sort(paths);
+        File baseDirectory = new File(baseDirectoryName);
+        int written = 0;
+        for (String path : paths) {
+            pathLocks.writeLock(path).lock();
+            try {
+                Pending accesses = take(path);
+                if (accesses != null && write(CdmiPath.parse(path), baseDirectory, accesses)) {
+                    written++;
+                }
+            } finally {
+                pathLocks.writeLock(path).unlock();
+            }
+        }
+        System.out.println("Access statistics flushed for " + written + " objects");
+    }
+
+    /**
+     * <p>
+     * Schedule the flusher.
+     * </p>
+     */
+    public void start() {
+        pending = new ConcurrentHashMap<String, Pending>(1024, 0.75f, stripes);
+        flusher.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                flushQuietly();
+            }
+        }, flushIntervalSeconds, flushIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * <p>
+     * Stop the flusher, and persist the accesses still pending.
+     * </p>
+     */
+    public void shutdown() {
+        flusher.shutdownNow();
+        try {
+            flusher.awaitTermination(flushIntervalSeconds, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        flushQuietly();
+    }
+
+    // --------------------------------------------------------- Private Methods
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            System.out.println("Access statistics flush failed: " + ex);
+        }
+    }
+
+    // Paths with accesses pending in the container at the specified path
+    private List<String> below(String path) {
+        List<String> paths = new ArrayList<String>();
+        String prefix = path.length() == 0 ? "" : path + "/";
+        for (String pendingPath : pending.keySet()) {
+            if (pendingPath.startsWith(prefix)) {
+                paths.add(pendingPath);
+            }
+        }
+        return paths;
+    }
+
+    private long record(String path, long atime, long accesses) {
+        while (true) {
+            Pending entry = pending.get(path);
+            if (entry == null) {
+                entry = new Pending();
+                Pending existing = pending.putIfAbsent(path, entry);
+                if (existing != null) {
+                    entry = existing;
+                }
+            }
+            long total = entry.add(atime, accesses);
+            if (total >= 0) {
+                return total;
+            }
+            // Taken by a flush meanwhile
+            pending.remove(path, entry);
+        }
+    }
+
+    /**
+     * <p>
+     * Remove the pending accesses of a path, if any, so no more are added to them.
+     * </p>
+     */
+    private Pending take(String path) {
+        Pending entry = pending.remove(path);
+        if (entry != null) {
+            entry.close();
+        }
+        return entry;
+    }
+
+    /**
+     * <p>
+     * Add pending accesses to the fields file of a data object. Return <code>false</code> if
+     * the object does not exist any more.
+     * </p>
+     */
+    private static boolean write(CdmiPath path, File baseDirectory, Pending accesses) {
+        File metadataFile = path.getFieldsFile(baseDirectory);
+        if (!metadataFile.isFile() || !path.toFile(baseDirectory).isFile()) {
+            return false;
+        }
+        try {
+            DataObject dObj = new DataObject();
+            dObj.fromJson(FileUtils.readBytes(metadataFile), true);
+            Map<String, String> metadata = dObj.getMetadata();
+            SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+            metadata.put("cdmi_atime", sdf.format(new Date(accesses.atime)));
+            metadata.put("cdmi_acount", Long.toString(count(metadata.get("cdmi_acount"))
+                                                      + accesses.accesses));
+            FileUtils.replace(FileUtils.writeTemporary(metadataFile, dObj.metadataToJson()),
+                              metadataFile);
+            return true;
+        } catch (Exception ex) {
+            System.out.println("Cannot persist access statistics of '" + path + "': " + ex);
+            return false;
+        }
+    }
+
+    /**
+     * <p>
+     * Parse a persisted count, treating a missing or malformed one as 0.
+     * </p>
+     */
+    static long count(String value) {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException ex) {
+            return 0;
+        }
+    }
+
+    // ---------------------------------------------------------- Support Classes
+
+    /**
+     * <p>
+     * The accesses of one data object not persisted yet.
+     * </p>
+     */
+    private static final class Pending {
+
+        private long atime;
+        private long accesses;
+        private boolean closed;
+
+        /**
+         * <p>
+         * Add accesses and return the total pending, or -1 if these were taken by a flush.
+         * </p>
+         */
+        private synchronized long add(long time, long count) {
+            if (closed) {
+                return -1;
+            }
+            atime = Math.max(atime, time);
+            accesses += count;
+            return accesses;
+        }
+
+        private synchronized void close() {
+            closed = true;
+        }
+    }
+}
@@ -0,0 +1,416 @@
+/*
+ * Copyright (c) 2010, Sun Microsystems, Inc.
+ * Copyright (c) 2010, The Storage Networking Industry Association.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ * Redistributions of source code must retain the above copyright notice, 
+ * this list of conditions and the following disclaimer.
+ *  
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ *  
+ * Neither the name of The Storage Networking Industry Association (SNIA) nor 
+ * the names of its contributors may be used to endorse or promote products 
+ * derived from this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF 
+ *  THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.snia.cdmiserver.dao.filesystem;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.snia.cdmiserver.dao.AccountDao;
+import org.snia.cdmiserver.exception.BadRequestException;
+import org.snia.cdmiserver.exception.ForbiddenException;
+import org.snia.cdmiserver.model.Account;
+import org.snia.cdmiserver.util.DaemonThreadFactory;
+import org.snia.cdmiserver.util.MediaTypes;
+import org.snia.cdmiserver.util.ObjectID;
+
+/**
+ * <p>
+ * Concrete implementation of {@link AccountDao} keeping domains, their quotas and their usage
+ * in memory, checkpointed to a properties file.
+ * </p>
+ * 
+ * <p>
+ * Usage counters are striped: each thread adds to one of several cells, picked by thread,
+ * and a read sums the cells. Charging an object to a domain, and checking its quotas, thus
+ * costs the same however big the domain is. Only charges a quota applies to are serialized
+ * per domain, so that concurrent charges cannot together exceed a quota. Domains and their
+ * quotas are checkpointed as soon as they change, usage every
+ * <code>checkpointIntervalSeconds</code> and at shutdown; after a crash, usage is as of the
+ * last checkpoint.
+ * </p>
+ */
+public class AccountDaoImpl implements AccountDao {
+
+    /**
+     * <p>
+     * URI prefix of domains.
+     * </p>
+     */
+    public static final String DOMAINS = "/cdmi_domains/";
+
+    /**
+     * <p>
+     * Name of the domain containers belong to unless they say otherwise. It always exists.
+     * </p>
+     */
+    public static final String DEFAULT_DOMAIN = "default_domain";
+
+    // -------------------------------------------------------------- Properties
+    private String checkpointFileName = null;
+
+    /**
+     * <p>
+     * Set the file domains and usage are checkpointed to. It should be a "." file under the
+     * base directory, so container listings skip it.
+     * </p>
+     */
+    public void setCheckpointFileName(String checkpointFileName) {
+        this.checkpointFileName = checkpointFileName;
+    }
+
+    private int checkpointIntervalSeconds = 30;
+
+    /**
+     * <p>
+     * Set the time between checkpoints of usage in seconds. Default value is 30.
+     * </p>
+     */
+    public void setCheckpointIntervalSeconds(int checkpointIntervalSeconds) {
+        this.checkpointIntervalSeconds = checkpointIntervalSeconds;
+    }
+
+    private int stripes = 16;
+
+    /**
+     * <p>
+     * Set the number of cells each usage counter is striped over. Default value is 16.
+     * </p>
+     */
+    public void setStripes(int stripes) {
+        this.stripes = stripes;
+    }
+
+    // ------------------------------------------------------------------ State
+    private final ConcurrentMap<String, Domain> domains = new ConcurrentHashMap<String, Domain>();
+
+    private final ScheduledExecutorService checkpointer =
+            Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("cdmi-accounts-"));
+
+    // ------------------------------------------------------ AccountDao Methods
+
+    @Override
+    public Account findByObjectId(String objectId) {
+        for (Map.Entry<String, Domain> entry : domains.entrySet()) {
+            if (entry.getValue().objectID.equals(objectId)) {
+                return toAccount(entry.getKey(), entry.getValue());
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Account findByName(String name) {
+        Domain domain = domains.get(name);
+        return domain == null ? null : toAccount(name, domain);
+    }
+
+    @Override
+    public List<String> getNames() {
+        List<String> names = new ArrayList<String>(domains.keySet());
+        Collections.sort(names);
+        return names;
+    }
+
+    @Override
+    public Account createByName(String name, Account account) {
+        if (name == null
+            || name.length() == 0
+            || name.indexOf('/') >= 0
+            || name.startsWith(".")) {
+            throw new BadRequestException("Invalid domain name <" + name + ">");
+        }
+        // Validate the quotas before storing them
+        account.getQuota(Account.QUOTA_BYTES);
+        account.getQuota(Account.QUOTA_OBJECTS);
+        // Usage and the like are reported, not stored; only quotas are taken from cdmi_ keys
+        Map<String, String> metadata = new HashMap<String, String>();
+        for (Map.Entry<String, String> entry : account.getMetadata().entrySet()) {
+            String key = entry.getKey();
+            if (!key.startsWith("cdmi_")
+                || Account.QUOTA_BYTES.equals(key)
+                || Account.QUOTA_OBJECTS.equals(key)) {
+                metadata.put(key, entry.getValue().trim());
+            }
+        }
+        Domain domain = domain(name);
+        domain.metadata = metadata;
+        checkpoint();
+        return toAccount(name, domain);
+    }
+
+    @Override
+    public boolean isDomain(String domainURI) {
+        return domains.containsKey(name(domainURI));
+    }
+
+    @Override
+    public void charge(String domainURI, long bytes, long objects) {
+        String name = name(domainURI);
+        Domain domain = domain(name);
+        Map<String, String> metadata = domain.metadata;
+        if (!(bytes > 0 && metadata.containsKey(Account.QUOTA_BYTES))
+            && !(objects > 0 && metadata.containsKey(Account.QUOTA_OBJECTS))) {
+            domain.usage.add(bytes, objects);
+            return;
+        }
+        // Growth a quota applies to is checked and added under the domain's lock, so two
+        // charges cannot both pass the check and together exceed the quota
+        synchronized (domain) {
+            if (bytes > 0) {
+                check(name, domain, Account.QUOTA_BYTES, domain.usage.sum(0) + bytes);
+            }
+            if (objects > 0) {
+                check(name, domain, Account.QUOTA_OBJECTS, domain.usage.sum(1) + objects);
+            }
+            domain.usage.add(bytes, objects);
+        }
+    }
+
+    @Override
+    public void adjust(String domainURI, long bytes, long objects) {
+        domain(name(domainURI)).usage.add(bytes, objects);
+    }
+
+    // ---------------------------------------------------------- Public Methods
+
+    /**
+     * <p>
+     * Load the last checkpoint and schedule the next ones.
+     * </p>
+     */
+    public void start() throws IOException {
+        File file = new File(checkpointFileName);
+        if (file.isFile()) {
+            Properties properties = new Properties();
+            InputStream in = new FileInputStream(file);
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+            for (int i = 0; properties.getProperty(i + ".name") != null; i++) {
+                Domain domain = new Domain(properties.getProperty(i + ".objectID"), stripes);
+                String prefix = i + ".metadata.";
+                for (String key : properties.stringPropertyNames()) {
+                    if (key.startsWith(prefix)) {
+                        domain.metadata.put(key.substring(prefix.length()),
+                                            properties.getProperty(key));
+                    }
+                }
+                domain.usage.add(Long.parseLong(properties.getProperty(i + ".bytes", "0")),
+                                 Long.parseLong(properties.getProperty(i + ".objects", "0")));
+                domains.put(properties.getProperty(i + ".name"), domain);
+            }
+        }
+        domain(DEFAULT_DOMAIN);
+        if (checkpointIntervalSeconds > 0) {
+            checkpointer.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    checkpoint();
+                }
+            }, checkpointIntervalSeconds, checkpointIntervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * <p>
+     * Stop checkpointing, after a last checkpoint.
+     * </p>
+     */
+    public void shutdown() {
+        checkpointer.shutdownNow();
+        checkpoint();
+    }
+
+    /**
+     * <p>
+     * Write all domains and their usage to the checkpoint file, atomically.
+     * </p>
+     */
+    public synchronized void checkpoint() {
+        Properties properties = new Properties();
+        int i = 0;
+        for (Map.Entry<String, Domain> entry : domains.entrySet()) {
+            Domain domain = entry.getValue();
+            properties.setProperty(i + ".name", entry.getKey());
+            properties.setProperty(i + ".objectID", domain.objectID);
+            properties.setProperty(i + ".bytes", String.valueOf(domain.usage.sum(0)));
+            properties.setProperty(i + ".objects", String.valueOf(domain.usage.sum(1)));
+            for (Map.Entry<String, String> metadata : domain.metadata.entrySet()) {
+                properties.setProperty(i + ".metadata." + metadata.getKey(), metadata.getValue());
+            }
+            i++;
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            properties.store(out, "CDMI domains");
+            byte[] bytes = out.toByteArray();
+            FileUtils.writeAtomically(new File(checkpointFileName), bytes, 0, bytes.length);
+        } catch (IOException ex) {
+            System.out.println("Cannot checkpoint domains: " + ex);
+        }
+    }
+
+    // --------------------------------------------------------- Private Methods
+
+    /**
+     * <p>
+     * Return the name of the domain with the specified URI, or of the default domain for a
+     * <code>null</code> URI.
+     * </p>
+     */
+    static String name(String domainURI) {
+        if (domainURI == null) {
+            return DEFAULT_DOMAIN;
+        }
+        String name = domainURI.startsWith(DOMAINS) ? domainURI.substring(DOMAINS.length())
+                                                    : domainURI;
+        while (name.endsWith("/")) {
+            name = name.substring(0, name.length() - 1);
+        }
+        return name;
+    }
+
+    /**
+     * <p>
+     * Return the named domain, creating it without quotas if needed: usage charged to a domain
+     * nobody created (containers written before domains were accounted) is still counted.
+     * </p>
+     */
+    private Domain domain(String name) {
+        Domain domain = domains.get(name);
+        if (domain == null) {
+            Domain created = new Domain(ObjectID.getObjectID(10), stripes);
+            domain = domains.putIfAbsent(name, created);
+            if (domain == null) {
+                domain = created;
+            }
+        }
+        return domain;
+    }
+
+    private static void check(String name, Domain domain, String key, long total) {
+        String quota = domain.metadata.get(key);
+        if (quota != null && total > Long.parseLong(quota.trim())) {
+            throw new ForbiddenException("Domain <" + name + "> would exceed its " + key
+                                         + " of " + quota.trim());
+        }
+    }
+
+    private Account toAccount(String name, Domain domain) {
+        Account account = new Account();
+        account.setObjectType(MediaTypes.ACCOUNT);
+        account.setObjectID(domain.objectID);
+        account.setObjectURI(DOMAINS + name + "/");
+        account.setParentURI(DOMAINS);
+        account.getMetadata().putAll(domain.metadata);
+        account.getMetadata().put("cdmi_domain_enabled", "true");
+        account.setUsageBytes(domain.usage.sum(0));
+        account.setUsageObjects(domain.usage.sum(1));
+        return account;
+    }
+
+    // --------------------------------------------------------- Support Classes
+
+    private static final class Domain {
+
+        private final String objectID;
+        // Replaced as a whole on update, never modified in place
+        private volatile Map<String, String> metadata = new HashMap<String, String>();
+        private final StripedCounters usage;
+
+        Domain(String objectID, int stripes) {
+            this.objectID = objectID;
+            this.usage = new StripedCounters(2, stripes);
+        }
+
+    }
+
+    /**
+     * <p>
+     * A few counters, each spread over cells on separate cache lines so threads charging the
+     * same domain do not contend on one value.
+     * </p>
+     */
+    private static final class StripedCounters {
+
+        // Longs per cell: 8 longs fill a 64 byte cache line
+        private static final int PAD = 8;
+
+        private final int counters;
+        private final int stripes;
+        private final AtomicLongArray cells;
+
+        StripedCounters(int counters, int stripes) {
+            this.counters = counters;
+            this.stripes = Math.max(1, stripes);
+            this.cells = new AtomicLongArray((this.stripes + 1) * PAD * counters);
+        }
+
+        void add(long... deltas) {
+            int stripe = (int) (Thread.currentThread().getId() % stripes);
+            for (int counter = 0; counter < counters; counter++) {
+                if (deltas[counter] != 0) {
+                    cells.addAndGet(index(counter, stripe), deltas[counter]);
+                }
+            }
+        }
+
+        long sum(int counter) {
+            long sum = 0;
+            for (int stripe = 0; stripe < stripes; stripe++) {
+                sum += cells.get(index(counter, stripe));
+            }
+            return sum;
+        }
+
+        private int index(int counter, int stripe) {
+            return ((stripe + 1) * counters + counter) * PAD;
+        }
+
+    }
+
+}
@@ -30,6 +30,9 @@
  */
 package org.snia.cdmiserver.dao.filesystem;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 import org.snia.cdmiserver.dao.CapabilityDao;
 import org.snia.cdmiserver.model.Capability;
 import org.snia.cdmiserver.util.ObjectID;
@@ -53,6 +56,7 @@ public class CapabilityDaoImpl implements CapabilityDao {
     private String CONTAINERobjectID = ObjectID.getObjectID(8);
     private String DEFAULTobjectID = ObjectID.getObjectID(8);
     private String OBJECTobjectID = ObjectID.getObjectID(8);
+    private String QUEUEobjectID = ObjectID.getObjectID(8);
 
     public void setCapabilityDao(CapabilityDao capabilityDao) {
         this.capabilityDao = capabilityDao;
@@ -64,12 +68,50 @@ public class CapabilityDaoImpl implements CapabilityDao {
         throw new UnsupportedOperationException("CapabilityDaoImpl.findByObjectId()");
     }
 
+    /**
+     * <p>
+     * Capabilities are fixed for the lifetime of this DAO, so each one is built once and the same
+     * instance is returned on every request. This lets <code>CapabilityProvider</code> cache
+     * the encoded representation. Callers must not modify the returned instances.
+     * </p>
+     */
+    private final ConcurrentMap<String, Capability> capabilities =
+            new ConcurrentHashMap<String, Capability>();
+
     @Override
     public Capability findByPath(String path) {
-        Capability capability = new Capability();
-
         System.out.print("In Capability.findByPath, path is: ");
         System.out.println(path);
+        if (!"container/".equals(path)
+            && !"container/default/".equals(path)
+            && !"dataobject/".equals(path)
+            && !"queue/".equals(path)) {
+            path = ""; // Everything else is answered with the system capabilities
+        }
+        Capability capability = capabilities.get(path);
+        if (capability == null) {
+            capability = buildCapability(path);
+            Capability existing = capabilities.putIfAbsent(path, capability);
+            if (existing != null) {
+                capability = existing;
+            }
+        }
+        return capability;
+    }
+
+    // --------------------------------------------------------- Private Methods
+
+    /**
+     * <p>
+     * Build the {@link Capability} for the specified (already normalized) path.
+     * </p>
+     * 
+     * @param path
+     *            One of the capability paths recognized by <code>findByPath()</code>
+     */
+    private Capability buildCapability(String path) {
+        Capability capability = new Capability();
+
         if (path.equals("container/")) {
             System.out.println("Container Capabilities");
             // Container Capabilities
@@ -77,14 +119,20 @@ public class CapabilityDaoImpl implements CapabilityDao {
             // cdmi_list_children_range = unset until implemented
             // cdmi_read_metadata = true
             // cdmi_modify_metadata = true
-            // cdmi_snapshot = unset, stretch goal (filesystem support?)
-            // cdmi_serialize_container = unset until implemented
+            // cdmi_snapshot = true, hard-linked snapshots in cdmi_snapshots
+            // cdmi_compression = values compressed per the container's cdmi_compression
+            // cdmi_serialize_container = true, into a data object created with "serialize"
+            // cdmi_deserialize_container = true, from a data object named by "deserialize"
             // cdmi_create_dataobject = true
             // cdmi_post_dataobject = true
             // cdmi_create_container = true
             capability.getMetadata().put("cdmi_list_children", "true");
             capability.getMetadata().put("cdmi_read_metadata", "true");
             capability.getMetadata().put("cdmi_modify_metadata", "true");
+            capability.getMetadata().put("cdmi_snapshot", "true");
+            capability.getMetadata().put("cdmi_compression", "deflate,deflate_fast");
+            capability.getMetadata().put("cdmi_serialize_container", "true");
+            capability.getMetadata().put("cdmi_deserialize_container", "true");
             capability.getMetadata().put("cdmi_create_dataobject", "true");
             // capability.getMetadata().put("cdmi_post_dataobject", "true");
             capability.getMetadata().put("cdmi_create_container", "true");
@@ -115,21 +163,34 @@ public class CapabilityDaoImpl implements CapabilityDao {
             // cdmi_modify_value = true
             // cdmi_modify_value_range = unset until implemented
             // cdmi_modify_metadata = true
-            // cdmi_serialize_dataobject, cdmi_deserialize_dataobject = unset until implemented
+            // cdmi_serialize_dataobject = true
+            // cdmi_deserialize_dataobject = unset until implemented
             // cdmi_delete_dataobject = true
             capability.getMetadata().put("cdmi_read_value", "true");
             capability.getMetadata().put("cdmi_read_metadata", "true");
             capability.getMetadata().put("cdmi_modify_metadata", "true");
             capability.getMetadata().put("cdmi_modify_value", "true");
             capability.getMetadata().put("cdmi_delete_dataobject", "true");
+            capability.getMetadata().put("cdmi_serialize_dataobject", "true");
             capability.setObjectID(OBJECTobjectID);
             capability.setObjectType("application/cdmi-capability");
             capability.setParentURI("cdmi_capabilities/");
             capability.setParentID(ROOTobjectID);
+        } else if (path.equals("queue/")) {
+            // Queue Capabilities
+            System.out.println("Queue Capabilities");
+            capability.getMetadata().put("cdmi_read_value", "true");
+            capability.getMetadata().put("cdmi_read_metadata", "true");
+            capability.getMetadata().put("cdmi_modify_metadata", "true");
+            capability.getMetadata().put("cdmi_modify_value", "true");
+            capability.getMetadata().put("cdmi_delete_queue", "true");
+            capability.setObjectID(QUEUEobjectID);
+            capability.setObjectType("application/cdmi-capability");
+            capability.setParentURI("cdmi_capabilities/");
+            capability.setParentID(ROOTobjectID);
         } else {
             // System Capabilities
             System.out.println("System Capabilities");
-            // cdmi_domains = later version true
             // cdmi_export_occi_iscsi = true for demo?
             // cdmi_metadata_maxitems, cdmi_metadata_maxsize = TBD based on our limits
             // cdmi_notification, cdmi_query, cdmi_queues, cdmi_security_audit = exposed as
@@ -139,20 +200,23 @@ public class CapabilityDaoImpl implements CapabilityDao {
             // cdmi_security_immutability = as XAM SDK code is integrated
             // cdmi_security_sanitization = should we implement?
             // cdmi_serialization_json = propose using this form for RI
-            capability.getMetadata().put("domains", "false");
+            capability.getMetadata().put("cdmi_domains", "true");
             capability.getMetadata().put("cdmi_export_occi_iscsi", "true");
             capability.getMetadata().put("cdmi_metadata_maxitems", "1024");
             capability.getMetadata().put("cdmi_metadata_maxsize", "4096");
+            capability.getMetadata().put("cdmi_notification", "true");
+            capability.getMetadata().put("cdmi_query", "true");
+            capability.getMetadata().put("cdmi_queues", "true");
             // capability.getMetadata().put("cdmi_security_https_transport", "true");
             // capability.getMetadata().put("cdmi_serialization_json", "true");
             capability.getChildren().add("container");
             capability.getChildren().add("dataobject");
+            capability.getChildren().add("queue");
             capability.setObjectID(ROOTobjectID);
             capability.setObjectType("application/cdmi-capability");
             capability.setParentURI("/");
             capability.setParentID(ROOTobjectID);
         }
         return (capability);
-        // throw new UnsupportedOperationException("CapabilityDaoImpl.findByPath()");
     }
 }
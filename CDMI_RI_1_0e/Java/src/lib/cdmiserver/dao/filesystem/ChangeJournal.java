@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) 2010, Sun Microsystems, Inc.
+ * Copyright (c) 2010, The Storage Networking Industry Association.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ * Redistributions of source code must retain the above copyright notice, 
+ * this list of conditions and the following disclaimer.
+ *  
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ *  
+ * Neither the name of The Storage Networking Industry Association (SNIA) nor 
+ * the names of its contributors may be used to endorse or promote products 
+ * derived from this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF 
+ *  THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.snia.cdmiserver.dao.filesystem;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.snia.cdmiserver.dao.ChangeListener;
+import org.snia.cdmiserver.model.Change;
+
+/**
+ * <p>
+ * Journal of the changes made through the DAOs, kept in a {@link SegmentedLog}. The sequence
+ * number of a change is its position in the log, so sequence numbers grow monotonically but
+ * are not contiguous. Readers tail the journal by passing the sequence number returned by
+ * their previous read.
+ * </p>
+ * 
+ * <p>
+ * Segments older than the configured retention are deleted; a reader that falls further
+ * behind than that has to start over from a full listing.
+ * </p>
+ */
+public class ChangeJournal implements ChangeListener {
+
+    private static final int READ_BATCH = 256;
+
+    // -------------------------------------------------------------- Properties
+    private String directoryName = null;
+
+    /**
+     * <p>
+     * Set the directory holding the journal segments.
+     * </p>
+     */
+    public void setDirectoryName(String directoryName) {
+        this.directoryName = directoryName;
+    }
+
+    private int segmentSize = 16 * 1024 * 1024;
+
+    /**
+     * <p>
+     * Set the size in bytes of the journal segment files. Default value is 16MB.
+     * </p>
+     */
+    public void setSegmentSize(int segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
+    private long retainBytes = 1024L * 1024 * 1024;
+
+    /**
+     * <p>
+     * Set how many bytes of the most recent changes to keep. Default value is 1GB.
+     * </p>
+     */
+    public void setRetainBytes(long retainBytes) {
+        this.retainBytes = retainBytes;
+    }
+
+    private SegmentedLog log;
+
+    private final java.util.Queue<Runnable> waiters = new ConcurrentLinkedQueue<Runnable>();
+
+    // ------------------------------------------------- ChangeListener Methods
+    @Override
+    public void changed(Change change) {
+        try {
+            SegmentedLog log = log();
+            long sequence = log.append(encode(change));
+            change.setSequence(sequence);
+            if (sequence > retainBytes) {
+                log.truncateBefore(sequence - retainBytes);
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            System.out.println("Cannot journal change to " + change.getPath() + ": " + ex);
+            return;
+        }
+        releaseWaiters();
+    }
+
+    // ---------------------------------------------------------- Public Methods
+
+    /**
+     * <p>
+     * Read up to <code>max</code> changes at or after sequence number <code>since</code>,
+     * to objects at or below <code>prefix</code> (all objects if empty), into
+     * <code>changes</code>. Return the sequence number to pass to the next read.
+     * </p>
+     */
+    public long read(long since, String prefix, int max, List<Change> changes) throws IOException {
+        SegmentedLog log = log();
+        prefix = ChangeSupport.normalize(prefix);
+        List<byte[]> records = new ArrayList<byte[]>(READ_BATCH);
+        List<Long> positions = new ArrayList<Long>(READ_BATCH);
+        long position = since;
+        while (changes.size() < max) {
+            records.clear();
+            positions.clear();
+            int batch = Math.min(READ_BATCH, max - changes.size());
+            long next = log.read(position, records, positions, batch);
+            if (records.isEmpty()) {
+                break;
+            }
+            for (int i = 0; i < records.size(); i++) {
+                Change change = decode(records.get(i));
+                change.setSequence(positions.get(i));
+                if (matches(change, prefix)) {
+                    changes.add(change);
+                }
+            }
+            position = next;
+        }
+        return position;
+    }
+
+    /**
+     * <p>
+     * Return the sequence number of the oldest change still in the journal. Reads from an
+     * earlier sequence number have missed changes.
+     * </p>
+     */
+    public long getOldestSequence() throws IOException {
+        return log().getStartPosition();
+    }
+
+    /**
+     * <p>
+     * Return the sequence number the next change will get (or a smaller one).
+     * </p>
+     */
+    public long getNextSequence() throws IOException {
+        return log().getEndPosition();
+    }
+
+    /**
+     * <p>
+     * Register a callback to be run once, as soon as a change is journaled at or after
+     * sequence number <code>since</code>; it is run right away if one already is. Callbacks
+     * are run on the thread that journals the change, so they must return quickly.
+     * </p>
+     */
+    public void awaitChanges(long since, Runnable waiter) throws IOException {
+        SegmentedLog log = log();
+        waiters.add(waiter);
+        // A change may have been journaled before the waiter was added
+        if (log.getEndPosition() > since) {
+            releaseWaiters();
+        }
+    }
+
+    /**
+     * <p>
+     * Remove a callback registered with <code>awaitChanges()</code> that has not run yet.
+     * </p>
+     */
+    public void cancelWait(Runnable waiter) {
+        waiters.remove(waiter);
+    }
+
+    // --------------------------------------------------------- Private Methods
+
+    private void releaseWaiters() {
+        Runnable waiter;
+        while ((waiter = waiters.poll()) != null) {
+            try {
+                waiter.run();
+            } catch (RuntimeException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    private synchronized SegmentedLog log() throws IOException {
+        if (log == null) {
+            log = new SegmentedLog(new File(directoryName), segmentSize);
+        }
+        return log;
+    }
+
+    private static boolean matches(Change change, String prefix) {
+        return prefix.length() == 0
+            || isAtOrBelow(change.getPath(), prefix)
+            || (change.getSource() != null && isAtOrBelow(change.getSource(), prefix));
+    }
+
+    private static boolean isAtOrBelow(String path, String prefix) {
+        return path.startsWith(prefix)
+            && (path.length() == prefix.length() || path.charAt(prefix.length()) == '/');
+    }
+
+    private static byte[] encode(Change change) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(change.getOperation());
+        out.writeUTF(change.getObjectType());
+        out.writeUTF(change.getPath());
+        out.writeUTF(change.getSource() == null ? "" : change.getSource());
+        out.writeUTF(change.getObjectID() == null ? "" : change.getObjectID());
+        out.writeLong(change.getTime());
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static Change decode(byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        Change change = new Change();
+        change.setOperation(in.readUTF());
+        change.setObjectType(in.readUTF());
+        change.setPath(in.readUTF());
+        String source = in.readUTF();
+        change.setSource(source.length() == 0 ? null : source);
+        String objectID = in.readUTF();
+        change.setObjectID(objectID.length() == 0 ? null : objectID);
+        change.setTime(in.readLong());
+        return change;
+    }
+
+}
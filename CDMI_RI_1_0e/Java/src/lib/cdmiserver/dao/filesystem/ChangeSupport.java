@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2010, Sun Microsystems, Inc.
+ * Copyright (c) 2010, The Storage Networking Industry Association.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ * Redistributions of source code must retain the above copyright notice, 
+ * this list of conditions and the following disclaimer.
+ *  
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ *  
+ * Neither the name of The Storage Networking Industry Association (SNIA) nor 
+ * the names of its contributors may be used to endorse or promote products 
+ * derived from this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF 
+ *  THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.snia.cdmiserver.dao.filesystem;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.snia.cdmiserver.dao.ChangeListener;
+import org.snia.cdmiserver.model.Change;
+
+/**
+ * <p>
+ * Delivers the changes made by a DAO to its injected {@link ChangeListener}s. A failing
+ * listener is logged and skipped; it never fails the change itself.
+ * </p>
+ */
+final class ChangeSupport {
+
+    private volatile List<ChangeListener> listeners = Collections.emptyList();
+
+    void setListeners(List<ChangeListener> listeners) {
+        this.listeners = listeners;
+    }
+
+    /**
+     * <p>
+     * Report a change. Paths are reported without leading or trailing "/".
+     * </p>
+     */
+    void fire(
+            String operation,
+            String objectType,
+            String path,
+            String source,
+            String objectID,
+            Map<String, String> metadata) {
+        List<ChangeListener> current = listeners;
+        if (current.isEmpty()) {
+            return;
+        }
+        String from = source == null ? null : normalize(source);
+        Change change = new Change(operation, objectType, normalize(path), from);
+        change.setObjectID(objectID);
+        change.setMetadata(metadata);
+        for (ChangeListener listener : current) {
+            try {
+                listener.changed(change);
+            } catch (RuntimeException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    static String normalize(String path) {
+        int start = 0;
+        int end = path.length();
+        while (start < end && path.charAt(start) == '/') {
+            start++;
+        }
+        while (end > start && path.charAt(end - 1) == '/') {
+            end--;
+        }
+        return path.substring(start, end);
+    }
+
+}
@@ -0,0 +1,553 @@
+/*
+ * Copyright (c) 2010, Sun Microsystems, Inc.
+ * Copyright (c) 2010, The Storage Networking Industry Association.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ * Redistributions of source code must retain the above copyright notice, 
+ * this list of conditions and the following disclaimer.
+ *  
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ *  
+ * Neither the name of The Storage Networking Industry Association (SNIA) nor 
+ * the names of its contributors may be used to endorse or promote products 
+ * derived from this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF 
+ *  THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.snia.cdmiserver.dao.filesystem;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.snia.cdmiserver.dao.ChangeListener;
+import org.snia.cdmiserver.model.Change;
+import org.snia.cdmiserver.util.DaemonThreadFactory;
+import org.snia.cdmiserver.util.MediaTypes;
+
+/**
+ * <p>
+ * Content-addressed, deduplicating store for data object values. A value is split into
+ * content-defined chunks (see {@link Chunker}), each stored once under its SHA-1 digest; the
+ * object's value file then holds a small manifest listing the chunks. Uploading a value, or
+ * a region of one, that is already stored writes no chunk data, and copying an object only
+ * copies its manifest. Reads reassemble values through an LRU cache of chunks.
+ * </p>
+ * 
+ * <p>
+ * Manifests are linked into snapshots and copied by container copies that never look inside
+ * them, so chunks are not freed by counting references at write time. Instead a background
+ * collector counts them periodically, mark and sweep: it walks the tree (snapshots included)
+ * marking every chunk a manifest refers to, then deletes the chunks nobody marked that were
+ * neither written nor reused since shortly before the walk began. Writes refresh the
+ * modification time of every chunk they reuse for that reason. Objects copied or moved during
+ * the walk are marked again afterwards; a container copied, moved or snapshotted during the
+ * walk makes the collector give up until next time.
+ * </p>
+ */
+public class ChunkStore implements ChangeListener {
+
+    static final String MANIFEST_HEADER = "CDMI-CHUNKS 1\n";
+
+    private final Chunker chunker = new Chunker(4096, 16384, 131072);
+
+    // -------------------------------------------------------------- Properties
+    private String directoryName = null;
+
+    /**
+     * <p>
+     * Set the directory holding the chunks. It should be a "." directory under the base
+     * directory, so container listings skip it.
+     * </p>
+     */
+    public void setDirectoryName(String directoryName) {
+        this.directoryName = directoryName;
+    }
+
+    private String baseDirectoryName = null;
+
+    /**
+     * <p>
+     * Set the base directory name for our local storage, walked by the collector.
+     * </p>
+     */
+    public void setBaseDirectoryName(String baseDirectoryName) {
+        this.baseDirectoryName = baseDirectoryName;
+    }
+
+    private TreeJobManager treeJobManager;
+
+    /**
+     * <p>
+     * Injected {@link TreeJobManager} whose walker pool runs the collector.
+     * </p>
+     */
+    public void setTreeJobManager(TreeJobManager treeJobManager) {
+        this.treeJobManager = treeJobManager;
+    }
+
+    private int minValueSize = 65536;
+
+    /**
+     * <p>
+     * Set the smallest value stored as chunks; smaller values are written as they are.
+     * Default value is 65536.
+     * </p>
+     */
+    public void setMinValueSize(int minValueSize) {
+        this.minValueSize = minValueSize;
+    }
+
+    private long cacheBytes = 64L * 1024 * 1024;
+
+    /**
+     * <p>
+     * Set the size of the chunk cache in bytes. Default value is 64 MB.
+     * </p>
+     */
+    public void setCacheBytes(long cacheBytes) {
+        this.cacheBytes = cacheBytes;
+    }
+
+    private int collectIntervalMinutes = 1440;
+
+    /**
+     * <p>
+     * Set the time between collections in minutes, or 0 to never collect. Default value is
+     * 1440 (daily).
+     * </p>
+     */
+    public void setCollectIntervalMinutes(int collectIntervalMinutes) {
+        this.collectIntervalMinutes = collectIntervalMinutes;
+    }
+
+    private int graceSeconds = 3600;
+
+    /**
+     * <p>
+     * Set how long before a collection starts a chunk must have last been written or reused
+     * to be deleted. It must exceed the time between staging a value and publishing it.
+     * Default value is 3600.
+     * </p>
+     */
+    public void setGraceSeconds(int graceSeconds) {
+        this.graceSeconds = graceSeconds;
+    }
+
+    // ------------------------------------------------------------------ State
+    private final Map<String, byte[]> cache = new LinkedHashMap<String, byte[]>(256, 0.75f, true);
+
+    private long cachedBytes = 0;
+
+    private final AtomicLong storedChunks = new AtomicLong();
+
+    private final AtomicLong reusedChunks = new AtomicLong();
+
+    private final ScheduledExecutorService collector =
+            Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("cdmi-chunks-"));
+
+    // Changes the collector has to account for while it walks
+    private volatile boolean collecting = false;
+
+    private volatile boolean treeChanged = false;
+
+    private final Set<String> changedObjects =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    // Held shared while a chunk is looked up and touched or written, exclusively while the
+    // sweep checks a chunk's age and deletes it, so a chunk just reused is never deleted
+    private final ReadWriteLock sweepLock = new ReentrantReadWriteLock();
+
+    /**
+     * <p>
+     * Return the number of chunks written.
+     * </p>
+     */
+    public long getStoredChunks() {
+        return storedChunks.get();
+    }
+
+    /**
+     * <p>
+     * Return the number of chunks found already stored, and not written again.
+     * </p>
+     */
+    public long getReusedChunks() {
+        return reusedChunks.get();
+    }
+
+    // ------------------------------------------------- ChangeListener Methods
+    @Override
+    public void changed(Change change) {
+        if (!collecting) {
+            return;
+        }
+        String operation = change.getOperation();
+        if (MediaTypes.CONTAINER.equals(change.getObjectType())) {
+            if (Change.COPY.equals(operation)
+                || Change.MOVE.equals(operation)
+                || (Change.CREATE.equals(operation)
+                    && change.getPath().indexOf(Snapshots.DIRECTORY + "/") >= 0)) {
+                treeChanged = true;
+            }
+        } else if (Change.COPY.equals(operation) || Change.MOVE.equals(operation)) {
+            changedObjects.add(change.getPath());
+        }
+    }
+
+    // ---------------------------------------------------------- Public Methods
+
+    /**
+     * <p>
+     * Return <code>true</code> if a value of the specified size is stored as chunks.
+     * </p>
+     */
+    public boolean accepts(int size) {
+        return size >= minValueSize;
+    }
+
+    /**
+     * <p>
+     * Store the chunks of a value that are not stored yet, and return its manifest.
+     * </p>
+     */
+    public String store(byte[] data) throws IOException {
+        StringBuilder manifest = new StringBuilder(MANIFEST_HEADER);
+        long now = System.currentTimeMillis();
+        for (int offset = 0; offset < data.length; ) {
+            int length = chunker.next(data, offset, data.length - offset);
+            String digest = Chunker.digest(data, offset, length);
+            File chunk = chunkFile(digest);
+            sweepLock.readLock().lock();
+            try {
+                if (chunk.exists() && chunk.setLastModified(now)) {
+                    reusedChunks.incrementAndGet();
+                } else {
+                    File directory = chunk.getParentFile();
+                    if (!directory.isDirectory() && !directory.mkdirs()
+                        && !directory.isDirectory()) {
+                        throw new IOException("Cannot create '" + directory + "'");
+                    }
+                    FileUtils.writeAtomically(chunk, data, offset, length);
+                    storedChunks.incrementAndGet();
+                }
+            } finally {
+                sweepLock.readLock().unlock();
+            }
+            manifest.append(digest).append(' ').append(length).append('\n');
+            offset += length;
+        }
+        return manifest.toString();
+    }
+
+    /**
+     * <p>
+     * Reassemble the value described by a manifest.
+     * </p>
+     */
+    public byte[] load(String manifest) throws IOException {
+        String[] lines = parse(manifest);
+        int size = 0;
+        for (int i = 1; i < lines.length; i++) {
+            size += Integer.parseInt(lines[i].substring(lines[i].indexOf(' ') + 1));
+        }
+        byte[] value = new byte[size];
+        int offset = 0;
+        for (int i = 1; i < lines.length; i++) {
+            String digest = lines[i].substring(0, lines[i].indexOf(' '));
+            byte[] chunk = cacheGet(digest);
+            if (chunk == null) {
+                chunk = FileUtils.readBytes(chunkFile(digest));
+                cachePut(digest, chunk);
+            }
+            if (offset + chunk.length > size) {
+                throw new IOException("Chunk " + digest + " does not match its manifest");
+            }
+            System.arraycopy(chunk, 0, value, offset, chunk.length);
+            offset += chunk.length;
+        }
+        if (offset != size) {
+            throw new IOException("Chunks do not match their manifest");
+        }
+        return value;
+    }
+
+    /**
+     * <p>
+     * Return up to <code>length</code> bytes of the value described by a manifest, starting at
+     * <code>offset</code>, reading only the chunks they fall in.
+     * </p>
+     */
+    public byte[] load(String manifest, long offset, int length) throws IOException {
+        String[] lines = parse(manifest);
+        long total = 0;
+        for (int i = 1; i < lines.length; i++) {
+            total += Integer.parseInt(lines[i].substring(lines[i].indexOf(' ') + 1));
+        }
+        if (offset >= total || length <= 0) {
+            return new byte[0];
+        }
+        byte[] range = new byte[(int) Math.min(length, total - offset)];
+        long start = 0;
+        for (int i = 1; i < lines.length && start < offset + range.length; i++) {
+            int space = lines[i].indexOf(' ');
+            int size = Integer.parseInt(lines[i].substring(space + 1));
+            if (start + size > offset) {
+                String digest = lines[i].substring(0, space);
+                byte[] chunk = cacheGet(digest);
+                if (chunk == null) {
+                    chunk = FileUtils.readBytes(chunkFile(digest));
+                    cachePut(digest, chunk);
+                }
+                int from = (int) Math.max(0, offset - start);
+                int to = (int) Math.min(chunk.length, offset + range.length - start);
+                System.arraycopy(chunk, from, range, (int) (start + from - offset), to - from);
+            }
+            start += size;
+        }
+        return range;
+    }
+
+    /**
+     * <p>
+     * Schedule the collector, if enabled.
+     * </p>
+     */
+    public void start() {
+        if (collectIntervalMinutes > 0) {
+            collector.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    try {
+                        collect();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    } catch (Exception ex) {
+                        ex.printStackTrace();
+                        System.out.println("Chunk collection failed: " + ex);
+                    }
+                }
+            }, collectIntervalMinutes, collectIntervalMinutes, TimeUnit.MINUTES);
+        }
+    }
+
+    /**
+     * <p>
+     * Stop the collector.
+     * </p>
+     */
+    public void shutdown() {
+        collector.shutdownNow();
+    }
+
+    /**
+     * <p>
+     * Delete the chunks no manifest refers to, blocking until done. Return the number of
+     * chunks deleted, or -1 if the collection was abandoned.
+     * </p>
+     */
+    public long collect() throws IOException, InterruptedException {
+        final File baseDirectory = new File(baseDirectoryName).getAbsoluteFile();
+        final Set<String> marked =
+                Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        long cutoff = System.currentTimeMillis() - graceSeconds * 1000L;
+        changedObjects.clear();
+        treeChanged = false;
+        collecting = true;
+        try {
+            // Mark
+            treeJobManager.newWalker().walk(baseDirectory, new ParallelTreeWalker.Visitor() {
+                public boolean preVisitDirectory(File directory) {
+                    return directory.equals(baseDirectory) || !directory.getName().startsWith(".");
+                }
+
+                public void visitFile(File file) throws IOException {
+                    if (!file.getName().startsWith(".")) {
+                        mark(file, marked);
+                    }
+                }
+
+                public void postVisitDirectory(File directory) {
+                }
+            });
+            for (String path : changedObjects) {
+                mark(new File(baseDirectory, path), marked);
+            }
+            if (treeChanged) {
+                System.out.println("Chunk collection abandoned: containers changed meanwhile");
+                return -1;
+            }
+        } finally {
+            collecting = false;
+        }
+
+        // Sweep
+        long deleted = 0;
+        File[] directories = new File(directoryName).listFiles();
+        if (directories != null) {
+            for (File directory : directories) {
+                File[] chunks = directory.listFiles();
+                if (chunks == null) {
+                    continue;
+                }
+                for (File chunk : chunks) {
+                    if (marked.contains(chunk.getName())) {
+                        continue;
+                    }
+                    sweepLock.writeLock().lock();
+                    try {
+                        if (chunk.lastModified() < cutoff && chunk.delete()) {
+                            cacheRemove(chunk.getName());
+                            deleted++;
+                        }
+                    } finally {
+                        sweepLock.writeLock().unlock();
+                    }
+                }
+            }
+        }
+        System.out.println("Chunk collection kept " + marked.size() + " chunks, deleted "
+                           + deleted);
+        return deleted;
+    }
+
+    // --------------------------------------------------------- Private Methods
+
+    private File chunkFile(String digest) {
+        return new File(new File(directoryName, digest.substring(0, 2)), digest);
+    }
+
+    /**
+     * <p>
+     * Split a manifest into lines, checking its header.
+     * </p>
+     */
+    private static String[] parse(String manifest) throws IOException {
+        if (!manifest.startsWith(MANIFEST_HEADER)) {
+            throw new IOException("Not a chunk manifest");
+        }
+        return manifest.split("\n");
+    }
+
+    /**
+     * <p>
+     * Mark the chunks of a value file, if it is a manifest.
+     * </p>
+     */
+    private static void mark(File file, Set<String> marked) {
+        String[] lines = readManifest(file);
+        if (lines == null) {
+            return;
+        }
+        for (int i = 1; i < lines.length; i++) {
+            int space = lines[i].indexOf(' ');
+            if (space > 0) {
+                marked.add(lines[i].substring(0, space));
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Return the size of the value a value file holds: the size its manifest describes if it
+     * is one, the size a {@link TierStore} stub stands for if it is one of those, the size of
+     * the file otherwise. Values are charged to domains by this size.
+     * </p>
+     */
+    static long valueSize(File file) {
+        String[] lines = readManifest(file);
+        if (lines == null) {
+            long size = TierStore.stubSize(file);
+            return size < 0 ? file.length() : size;
+        }
+        long size = 0;
+        for (int i = 1; i < lines.length; i++) {
+            size += Long.parseLong(lines[i].substring(lines[i].indexOf(' ') + 1));
+        }
+        return size;
+    }
+
+    /**
+     * <p>
+     * Return the lines of a value file if it is a manifest, or <code>null</code> if it is not
+     * one, or cannot be read (deleted meanwhile, say). Only the header of other files is read.
+     * </p>
+     */
+    private static String[] readManifest(File file) {
+        try {
+            byte[] header = new byte[MANIFEST_HEADER.length()];
+            FileInputStream in = new FileInputStream(file);
+            try {
+                int count = 0;
+                while (count < header.length) {
+                    int n = in.read(header, count, header.length - count);
+                    if (n < 0) {
+                        return null;
+                    }
+                    count += n;
+                }
+            } finally {
+                in.close();
+            }
+            if (!MANIFEST_HEADER.equals(new String(header, "ISO-8859-1"))) {
+                return null;
+            }
+            return parse(FileUtils.readString(file));
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    private synchronized byte[] cacheGet(String digest) {
+        return cache.get(digest);
+    }
+
+    private synchronized void cachePut(String digest, byte[] chunk) {
+        if (chunk.length > cacheBytes) {
+            return;
+        }
+        byte[] previous = cache.put(digest, chunk);
+        if (previous != null) {
+            cachedBytes -= previous.length;
+        }
+        cachedBytes += chunk.length;
+        Iterator<byte[]> it = cache.values().iterator();
+        while (cachedBytes > cacheBytes && it.hasNext()) {
+            cachedBytes -= it.next().length;
+            it.remove();
+        }
+    }
+
+    private synchronized void cacheRemove(String digest) {
+        byte[] previous = cache.remove(digest);
+        if (previous != null) {
+            cachedBytes -= previous.length;
+        }
+    }
+
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2010, Sun Microsystems, Inc.
+ * Copyright (c) 2010, The Storage Networking Industry Association.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ * Redistributions of source code must retain the above copyright notice, 
+ * this list of conditions and the following disclaimer.
+ *  
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ *  
+ * Neither the name of The Storage Networking Industry Association (SNIA) nor 
+ * the names of its contributors may be used to endorse or promote products 
+ * derived from this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF 
+ *  THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.snia.cdmiserver.dao.filesystem;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+
+/**
+ * <p>
+ * Content-defined chunking with a gear rolling hash. Chunk boundaries depend only on the
+ * bytes around them, so an insertion or deletion changes the chunks next to the edit and
+ * leaves the rest of a value chunked the same way. Values that share regions therefore share
+ * chunks, whatever their offsets.
+ * </p>
+ */
+final class Chunker {
+
+    private static final long[] GEAR = new long[256];
+
+    static {
+        // Fixed seed: boundaries must be the same on every run
+        Random random = new Random(0x2f6b3c1d9e4a5087L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final int minSize;
+    private final int maxSize;
+    private final long mask;
+
+    /**
+     * <p>
+     * Create a chunker cutting chunks of at least <code>minSize</code> and at most
+     * <code>maxSize</code> bytes, <code>averageSize</code> (a power of two) on average
+     * beyond the minimum.
+     * </p>
+     */
+    Chunker(int minSize, int averageSize, int maxSize) {
+        if (Integer.bitCount(averageSize) != 1 || minSize < 1 || maxSize < minSize) {
+            throw new IllegalArgumentException("Invalid chunk sizes " + minSize + "/"
+                                               + averageSize + "/" + maxSize);
+        }
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        // Test the high bits, which depend on the last 64 bytes, not just the last few
+        int bits = Integer.numberOfTrailingZeros(averageSize);
+        this.mask = bits == 0 ? 0 : (-1L) << (64 - bits);
+    }
+
+    /**
+     * <p>
+     * Return the length of the chunk starting at <code>offset</code>, of the
+     * <code>length</code> bytes left in <code>data</code>.
+     * </p>
+     */
+    int next(byte[] data, int offset, int length) {
+        if (length <= minSize) {
+            return length;
+        }
+        int end = offset + Math.min(length, maxSize);
+        long hash = 0;
+        for (int i = offset + minSize; i < end; i++) {
+            hash = (hash << 1) + GEAR[data[i] & 0xff];
+            if ((hash & mask) == 0) {
+                return i + 1 - offset;
+            }
+        }
+        return end - offset;
+    }
+
+    /**
+     * <p>
+     * Return the hex SHA-1 digest of a chunk, which names it.
+     * </p>
+     */
+    static String digest(byte[] data, int offset, int length) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+        md.update(data, offset, length);
+        byte[] hash = md.digest();
+        char[] hex = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            hex[2 * i] = HEX[(hash[i] >> 4) & 0x0f];
+            hex[2 * i + 1] = HEX[hash[i] & 0x0f];
+        }
+        return new String(hex);
+    }
+
+}
@@ -0,0 +1,521 @@
+/*
+ * Copyright (c) 2010, Sun Microsystems, Inc.
+ * Copyright (c) 2010, The Storage Networking Industry Association.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ * Redistributions of source code must retain the above copyright notice, 
+ * this list of conditions and the following disclaimer.
+ *  
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ *  
+ * Neither the name of The Storage Networking Industry Association (SNIA) nor 
+ * the names of its contributors may be used to endorse or promote products 
+ * derived from this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF 
+ *  THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.snia.cdmiserver.dao.filesystem;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.snia.cdmiserver.exception.BadRequestException;
+import org.snia.cdmiserver.model.DataObject;
+
+/**
+ * <p>
+ * Streaming archive of a container tree, or of a single data object, as held by the value of
+ * a data object created with <code>serialize</code> and read back by a container created with
+ * <code>deserialize</code>.
+ * </p>
+ * 
+ * <p>
+ * The archive starts with a magic line and is followed by one record per container and data
+ * object: a type byte, the path relative to the serialized root, the length and bytes of the
+ * persisted fields and, for data objects, the length and bytes of the value. A container's
+ * record comes before the records of anything in it, and an end record closes the archive.
+ * Values are moved with {@link FileChannel#transferTo} in both directions, so neither side
+ * holds a value in memory; only values stored as chunks are decoded a slice at a time.
+ * </p>
+ * 
+ * <p>
+ * Serialization walks the tree with a {@link ParallelTreeWalker} and appends records as they
+ * are visited. Deserialization reads the records in order, creating containers as it goes,
+ * and hands data objects to a bounded number of parallel tasks that copy their values
+ * straight out of the archive.
+ * </p>
+ */
+final class ContainerArchive {
+
+    /**
+     * <p>
+     * Mimetype given to serialized data objects that do not ask for another one.
+     * </p>
+     */
+    static final String MIMETYPE = "application/x-cdmi-archive";
+
+    private static final String MAGIC = "CDMI-ARCHIVE 1\n";
+
+    private static final byte CONTAINER = 'C';
+
+    private static final byte DATA_OBJECT = 'D';
+
+    private static final byte END = 'E';
+
+    // Slice of a chunked value decoded at a time
+    private static final int SLICE_SIZE = 1024 * 1024;
+
+    /**
+     * <p>
+     * Receives the records of an archive being deserialized. Data objects are passed from
+     * several threads at once.
+     * </p>
+     */
+    interface Extractor {
+
+        /**
+         * <p>
+         * Create the container at <code>path</code>, relative to the root of the archive; the
+         * empty string for the root itself.
+         * </p>
+         */
+        void container(String path, byte[] fields) throws IOException;
+
+        /**
+         * <p>
+         * Create the data object at <code>path</code>, whose value is the <code>length</code>
+         * bytes of <code>archive</code> starting at <code>offset</code>.
+         * </p>
+         */
+        void dataObject(String path, byte[] fields, FileChannel archive, long offset, long length)
+                throws IOException;
+    }
+
+    /**
+     * <p>
+     * Private constructor to prohibit instantiation.
+     * </p>
+     */
+    private ContainerArchive() {}
+
+    // ------------------------------------------------------------- Serialization
+
+    /**
+     * <p>
+     * Write the container tree at <code>root</code>, or the data object whose value file it
+     * is, to <code>archive</code>.
+     * </p>
+     * 
+     * @param root
+     *            Directory of the container, or value file of the data object
+     * @param rootFields
+     *            "." file of <code>root</code>; <code>null</code> for the root container
+     * @param rootPath
+     *            Normalized path of <code>root</code>, used to lock the data objects read
+     * @param archive
+     *            File to write
+     * @param walker
+     *            Walker visiting the container tree
+     * @param pathLocks
+     *            Locks shared with the data object DAO
+     * @param chunkStore
+     *            Store holding the chunks of chunked values, if any
+     * @param tierStore
+     *            Store holding demoted values, if any
+     */
+    static void serialize(final File root,
+                          File rootFields,
+                          final String rootPath,
+                          File archive,
+                          ParallelTreeWalker walker,
+                          final PathLocks pathLocks,
+                          final ChunkStore chunkStore,
+                          final TierStore tierStore) throws IOException, InterruptedException {
+        FileOutputStream out = new FileOutputStream(archive);
+        try {
+            final FileChannel channel = out.getChannel();
+            write(channel, MAGIC.getBytes("ISO-8859-1"));
+            if (root.isFile()) {
+                writeDataObject(channel, "", root, rootFields, chunkStore, tierStore);
+            } else {
+                write(channel, header(CONTAINER, "", readFields(rootFields)));
+                final int prefixLength = root.getPath().length() + 1;
+                walker.walk(root, new ParallelTreeWalker.Visitor() {
+                    public boolean preVisitDirectory(File directory) throws IOException {
+                        if (directory.equals(root)) {
+                            return true;
+                        }
+                        String name = directory.getName();
+                        if (name.startsWith(".") || Snapshots.DIRECTORY.equals(name)) {
+                            return false; // Queues, versions and snapshots are not serialized
+                        }
+                        File fields = new File(directory.getParentFile(), "." + name);
+                        byte[] header = header(CONTAINER,
+                                               directory.getPath().substring(prefixLength),
+                                               readFields(fields));
+                        synchronized (channel) {
+                            write(channel, header);
+                        }
+                        return true;
+                    }
+
+                    public void visitFile(File file) throws IOException {
+                        String name = file.getName();
+                        File fields = new File(file.getParentFile(), "." + name);
+                        if (name.startsWith(".") || !fields.isFile()) {
+                            return; // Fields files, temporary files and orphaned values
+                        }
+                        String relative = file.getPath().substring(prefixLength);
+                        String path = rootPath.length() == 0 ? relative : rootPath + "/"
+                                                                          + relative;
+                        pathLocks.readLock(path).lock();
+                        try {
+                            writeDataObject(channel, relative, file, fields, chunkStore, tierStore);
+                        } finally {
+                            pathLocks.readLock(path).unlock();
+                        }
+                    }
+
+                    public void postVisitDirectory(File directory) {
+                    }
+                });
+            }
+            write(channel, new byte[] { END });
+        } finally {
+            out.close();
+        }
+    }
+
+    // ----------------------------------------------------------- Deserialization
+
+    /**
+     * <p>
+     * Return the fields of the root container of an archive.
+     * </p>
+     * 
+     * @exception BadRequestException
+     *                if the file is not an archive of a container
+     */
+    static byte[] readRootFields(File archive) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(
+                archive)));
+        try {
+            readMagic(in);
+            if (in.readByte() != CONTAINER || in.readUTF().length() != 0) {
+                throw new BadRequestException("Archive does not hold a container");
+            }
+            return readBytes(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * <p>
+     * Read an archive, passing its records to <code>extractor</code>. Containers are passed
+     * in order on the calling thread; data objects are passed to up to
+     * <code>maxPending</code> tasks running on <code>executor</code> at a time. Paths that
+     * would leave the tree, or name hidden files, are refused.
+     * </p>
+     */
+    static void deserialize(File archive,
+                            final Extractor extractor,
+                            Executor executor,
+                            int maxPending) throws IOException, InterruptedException {
+        final FileInputStream values = new FileInputStream(archive);
+        CountingInputStream counter =
+                new CountingInputStream(new BufferedInputStream(new FileInputStream(archive)));
+        DataInputStream in = new DataInputStream(counter);
+        final Semaphore pending = new Semaphore(maxPending);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        try {
+            readMagic(in);
+            while (failure.get() == null) {
+                byte type = in.readByte();
+                if (type == END) {
+                    break;
+                }
+                final String path = checkPath(in.readUTF());
+                final byte[] fields = readBytes(in);
+                if (type == CONTAINER) {
+                    extractor.container(path, fields);
+                } else if (type == DATA_OBJECT) {
+                    final long length = in.readLong();
+                    final long offset = counter.count;
+                    skipFully(in, length);
+                    pending.acquire();
+                    executor.execute(new Runnable() {
+                        public void run() {
+                            try {
+                                extractor.dataObject(path,
+                                                     fields,
+                                                     values.getChannel(),
+                                                     offset,
+                                                     length);
+                            } catch (Throwable t) {
+                                failure.compareAndSet(null, t);
+                            } finally {
+                                pending.release();
+                            }
+                        }
+                    });
+                } else {
+                    throw new IOException("Unknown record type " + type + " in archive");
+                }
+            }
+        } finally {
+            pending.acquireUninterruptibly(maxPending);
+            in.close();
+            values.close();
+        }
+        Throwable t = failure.get();
+        if (t instanceof IOException) {
+            throw (IOException) t;
+        } else if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        } else if (t != null) {
+            throw new IOException("Deserialization of " + archive + " failed: " + t);
+        }
+    }
+
+    // ----------------------------------------------------------- Private Methods
+
+    /**
+     * <p>
+     * Append the record of a data object. Values stored as chunks are decoded, and their
+     * fields no longer name a format, so the archive does not depend on this server's chunks.
+     * Demoted values are read from the capacity tier, and their fields lose its location.
+     * </p>
+     */
+    private static void writeDataObject(FileChannel channel,
+                                        String relative,
+                                        File value,
+                                        File fields,
+                                        ChunkStore chunkStore,
+                                        TierStore tierStore) throws IOException {
+        byte[] fieldBytes = readFields(fields);
+        String location = location(fieldBytes);
+        if (location != null) {
+            if (tierStore == null) {
+                throw new IOException("No tier store to read '" + value + "'");
+            }
+            value = tierStore.file(location);
+            fieldBytes = without(fieldBytes, DataObjectDaoImpl.VALUE_LOCATION);
+        }
+        FileInputStream in = new FileInputStream(value);
+        try {
+            String manifest = null;
+            long length = in.getChannel().size();
+            if (isChunked(fieldBytes)) {
+                if (chunkStore == null) {
+                    throw new IOException("No chunk store to read '" + value + "'");
+                }
+                manifest = FileUtils.readString(value);
+                length = ChunkStore.valueSize(value);
+                fieldBytes = without(fieldBytes, DataObjectDaoImpl.VALUE_FORMAT);
+            }
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            DataOutputStream header = new DataOutputStream(buffer);
+            header.write(header(DATA_OBJECT, relative, fieldBytes));
+            header.writeLong(length);
+            header.flush();
+            synchronized (channel) {
+                write(channel, buffer.toByteArray());
+                if (manifest == null) {
+                    FileUtils.transfer(in.getChannel(), 0, length, channel);
+                } else {
+                    for (long offset = 0; offset < length; offset += SLICE_SIZE) {
+                        write(channel, chunkStore.load(manifest, offset, SLICE_SIZE));
+                    }
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static boolean isChunked(byte[] fields) throws IOException {
+        // Cheap test first; the fields are only parsed for chunked values
+        return new String(fields, "ISO-8859-1").indexOf(DataObjectDaoImpl.CHUNKS) >= 0
+            && DataObjectDaoImpl.CHUNKS.equals(parse(fields).getMetadata().get(
+                    DataObjectDaoImpl.VALUE_FORMAT));
+    }
+
+    private static String location(byte[] fields) throws IOException {
+        if (new String(fields, "ISO-8859-1").indexOf(DataObjectDaoImpl.VALUE_LOCATION) < 0) {
+            return null;
+        }
+        return parse(fields).getMetadata().get(DataObjectDaoImpl.VALUE_LOCATION);
+    }
+
+    private static byte[] without(byte[] fields, String key) throws IOException {
+        DataObject dObj = parse(fields);
+        dObj.getMetadata().remove(key);
+        try {
+            return dObj.metadataToJson().getBytes();
+        } catch (IOException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new IOException("Cannot write fields: " + ex);
+        }
+    }
+
+    private static DataObject parse(byte[] fields) throws IOException {
+        DataObject dObj = new DataObject();
+        try {
+            dObj.fromJson(fields, true);
+        } catch (IOException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new IOException("Cannot read fields: " + ex);
+        }
+        return dObj;
+    }
+
+    private static byte[] header(byte type, String path, byte[] fields) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(fields.length + 64);
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeByte(type);
+        out.writeUTF(path);
+        out.writeInt(fields.length);
+        out.write(fields);
+        out.flush();
+        return buffer.toByteArray();
+    }
+
+    private static byte[] readFields(File fields) throws IOException {
+        if (fields == null || !fields.isFile()) {
+            return new byte[0];
+        }
+        return FileUtils.readBytes(fields);
+    }
+
+    private static void write(FileChannel channel, byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void readMagic(DataInputStream in) throws IOException {
+        byte[] magic = new byte[MAGIC.length()];
+        try {
+            in.readFully(magic);
+        } catch (EOFException ex) {
+            magic = new byte[0];
+        }
+        if (!MAGIC.equals(new String(magic, "ISO-8859-1"))) {
+            throw new BadRequestException("Not a serialized container or data object");
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("Corrupt archive record");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static void skipFully(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long n = in.skip(count);
+            if (n <= 0) {
+                throw new EOFException("Archive ends inside a value");
+            }
+            count -= n;
+        }
+    }
+
+    /**
+     * <p>
+     * Return the relative path of a record if every segment of it names an ordinary container
+     * or data object.
+     * </p>
+     */
+    private static String checkPath(String path) throws IOException {
+        if (path.length() == 0) {
+            return path;
+        }
+        for (String segment : path.split("/", -1)) {
+            if (segment.length() == 0
+                || segment.startsWith(".")
+                || FileUtils.isReservedName(segment)
+                || Snapshots.DIRECTORY.equals(segment)) {
+                throw new IOException("Invalid path '" + path + "' in archive");
+            }
+        }
+        return path;
+    }
+
+    /**
+     * <p>
+     * Stream that counts the bytes read or skipped through it.
+     * </p>
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+
+        private long count = 0;
+
+        private CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+
+    }
+
+}
@@ -30,19 +30,36 @@
  */
 package org.snia.cdmiserver.dao.filesystem;
 
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.snia.cdmiserver.dao.AccountDao;
+import org.snia.cdmiserver.dao.ChangeListener;
 import org.snia.cdmiserver.dao.ContainerDao;
 import org.snia.cdmiserver.exception.BadRequestException;
+import org.snia.cdmiserver.exception.ConflictException;
+import org.snia.cdmiserver.exception.ForbiddenException;
 import org.snia.cdmiserver.exception.NotFoundException;
+import org.snia.cdmiserver.model.Change;
 import org.snia.cdmiserver.model.Container;
+import org.snia.cdmiserver.model.DataObject;
+import org.snia.cdmiserver.model.Queue;
+import org.snia.cdmiserver.util.CdmiPath;
+import org.snia.cdmiserver.util.MediaTypes;
 import org.snia.cdmiserver.util.ObjectID;
 
 /**
@@ -52,6 +69,9 @@ import org.snia.cdmiserver.util.ObjectID;
  */
 public class ContainerDaoImpl implements ContainerDao {
 
+    static final String DEFAULT_DOMAIN_URI =
+            AccountDaoImpl.DOMAINS + AccountDaoImpl.DEFAULT_DOMAIN;
+
     //
     // Properties and Dependency Injection Methods
     //
@@ -85,6 +105,104 @@ public class ContainerDaoImpl implements ContainerDao {
         this.recreate = recreate;
     }
 
+    private TreeJobManager treeJobManager = null;
+
+    /**
+     * <p>
+     * Set the {@link TreeJobManager} running background operations on container trees. If none
+     * is injected, a private one is created on first use.
+     * </p>
+     * 
+     * @param treeJobManager
+     *            The new job manager
+     */
+    public void setTreeJobManager(TreeJobManager treeJobManager) {
+        this.treeJobManager = treeJobManager;
+    }
+
+    private int asyncDeleteThreshold = 1000;
+
+    /**
+     * <p>
+     * Set the number of entries above which a container is deleted in the background. Containers
+     * holding subcontainers are always deleted in the background. Default value is
+     * <code>1000</code>.
+     * </p>
+     * 
+     * @param asyncDeleteThreshold
+     *            The new threshold
+     */
+    public void setAsyncDeleteThreshold(int asyncDeleteThreshold) {
+        this.asyncDeleteThreshold = asyncDeleteThreshold;
+    }
+
+    private AccountDao accountDao = null;
+
+    /**
+     * <p>
+     * Injected {@link AccountDao} instance, checked for the domains of new containers and
+     * charged for the data objects in container trees copied, deserialized or deleted. Usage
+     * is not accounted if none is injected.
+     * </p>
+     */
+    public void setAccountDao(AccountDao accountDao) {
+        this.accountDao = accountDao;
+    }
+
+    private ObjectIdIndex objectIdIndex = new ObjectIdIndex();
+
+    /**
+     * <p>
+     * Injected {@link ObjectIdIndex}, shared with the other DAOs, that deleted trees are
+     * removed from. A private index is used if none is injected.
+     * </p>
+     */
+    public void setObjectIdIndex(ObjectIdIndex objectIdIndex) {
+        this.objectIdIndex = objectIdIndex;
+    }
+
+    private TierStore tierStore;
+
+    /**
+     * <p>
+     * Injected {@link TierStore} holding demoted values, read when deserializing an archive
+     * that was demoted.
+     * </p>
+     */
+    public void setTierStore(TierStore tierStore) {
+        this.tierStore = tierStore;
+    }
+
+    private StatCache statCache = StatCache.uncached();
+
+    /**
+     * <p>
+     * Injected {@link StatCache} answering existence checks. It must also be registered as a
+     * change listener of every DAO, or it goes stale; without one every check goes to disk.
+     * </p>
+     */
+    public void setStatCache(StatCache statCache) {
+        this.statCache = statCache;
+    }
+
+    // Domain URI per container path, checked against the fields file
+    private final ConcurrentMap<String, DomainEntry> domainURIs =
+            new ConcurrentHashMap<String, DomainEntry>();
+
+    private final ChangeSupport changes = new ChangeSupport();
+
+    /**
+     * <p>
+     * Set the {@link ChangeListener}s told about every change made through this DAO.
+     * </p>
+     * 
+     * @param changeListeners
+     *            The new listeners
+     */
+    public void setChangeListeners(List<ChangeListener> changeListeners) {
+        changes.setListeners(changeListeners);
+    }
+
     //
     // ContainerDao Methods invoked from PathResource
     //
@@ -96,9 +214,29 @@ public class ContainerDaoImpl implements ContainerDao {
         // passed Container in PathResource.putContainer()
         //
 
-        File directory = absoluteFile(path);
+        Snapshots.checkWritable(path);
+        FileUtils.checkName(path);
+        if (containerRequest.getMove() != null) {
+            Snapshots.checkWritable(containerRequest.getMove());
+        }
+
+        CdmiPath target = CdmiPath.parse(path);
 
-        File containerFieldsFile = getContainerFieldsFile(path);
+        File directory = absoluteFile(target);
+
+        File containerFieldsFile = getContainerFieldsFile(target);
+
+        if (containerRequest.getSnapshot() != null) { // Taking a snapshot
+            return snapshotContainer(target, directory, containerRequest.getSnapshot());
+        }
+
+        if (containerRequest.getCopy() != null) { // Copying a Container
+            return copyContainer(target, directory, containerFieldsFile, containerRequest);
+        }
+
+        if (containerRequest.getDeserialize() != null) { // Recreating a serialized Container
+            return deserializeContainer(target, directory, containerFieldsFile, containerRequest);
+        }
 
         if (containerRequest.getMove() == null) { // This is a normal Create or Update
 
@@ -113,7 +251,21 @@ public class ContainerDaoImpl implements ContainerDao {
             // Update.
             //
 
-            if (!directory.exists()) { // Creating Container
+            boolean creating = !directory.exists();
+
+            if (creating) { // Creating Container
+
+                //
+                // Containers belong to the domain of their parent unless they name one
+                //
+                if (containerRequest.getDomainURI() == null) {
+                    containerRequest.setDomainURI(findDomainURI(target.getParent().toString()));
+                }
+                if (accountDao != null && !accountDao.isDomain(containerRequest.getDomainURI())) {
+                    throw new BadRequestException("Domain <"
+                                                  + containerRequest.getDomainURI()
+                                                  + "> doesn't exist");
+                }
 
                 if (!directory.mkdir()) {
                     throw new IllegalArgumentException("Cannot create container '" + path + "'");
@@ -128,12 +280,6 @@ public class ContainerDaoImpl implements ContainerDao {
 
                 containerRequest.setCapabilitiesURI("/cdmi_capabilities/container/default");
 
-                //
-                // TODO: Use Parent Domain if not specified in create body
-                //
-                if (containerRequest.getDomainURI() == null)
-                    containerRequest.setDomainURI("/cdmi_domains/default_domain");
-
                 Map<String, Object> exports = containerRequest.getExports();
                 if (exports.containsKey("OCCI/NFS")) {
                     // Export this directory (OpenSolaris only so far)
@@ -160,8 +306,17 @@ public class ContainerDaoImpl implements ContainerDao {
                 containerRequest.setObjectID(currentContainer.getObjectID());
 
                 //
-                // TODO: Need to handle update of Domain
+                // The data objects below are charged to the domain; it cannot change
                 //
+                String domainURI = currentContainer.getDomainURI();
+                if (containerRequest.getDomainURI() == null) {
+                    containerRequest.setDomainURI(domainURI);
+                } else if (!AccountDaoImpl.name(containerRequest.getDomainURI()).equals(
+                        AccountDaoImpl.name(domainURI))) {
+                    throw new BadRequestException("Cannot move container <"
+                                                  + path
+                                                  + "> to another domain");
+                }
 
                 Map<String, Object> exports = containerRequest.getExports();
                 if (exports.containsKey("OCCI/NFS")) {
@@ -190,19 +345,14 @@ public class ContainerDaoImpl implements ContainerDao {
             // Write created or updated persisted fields out to the "." file
             //
 
-            try {
-                FileWriter fstream = new FileWriter(containerFieldsFile.getAbsolutePath());
-                BufferedWriter out = new BufferedWriter(fstream);
-                out.write(containerRequest.toJson(true)); // Save it
-                out.close();
-            } catch (Exception ex) {
-                ex.printStackTrace();
-                System.out.println("Exception while writing: " + ex);
-                throw new IllegalArgumentException("Cannot write container fields file @"
-                                                   + path
-                                                   + " error : "
-                                                   + ex);
-            }
+            writeContainerFields(containerFieldsFile, containerRequest, path);
+
+            changes.fire(creating ? Change.CREATE : Change.UPDATE,
+                         MediaTypes.CONTAINER,
+                         path,
+                         null,
+                         containerRequest.getObjectID(),
+                         containerRequest.getMetadata());
 
             //
             // Transient fields
@@ -213,7 +363,7 @@ public class ContainerDaoImpl implements ContainerDao {
             // Complete response with fields dynamically generated from directory info.
             //
 
-            return completeContainer(containerRequest, directory, path);
+            return completeContainer(containerRequest, directory, target);
 
         } else { // Moving a Container
 
@@ -225,7 +375,8 @@ public class ContainerDaoImpl implements ContainerDao {
                                                    + "'; Destination already exists");
             }
 
-            File sourceContainerFile = absoluteFile(containerRequest.getMove());
+            CdmiPath source = CdmiPath.parse(containerRequest.getMove());
+            File sourceContainerFile = absoluteFile(source);
 
             if (!sourceContainerFile.exists()) {
                 throw new NotFoundException("Path '"
@@ -248,10 +399,16 @@ public class ContainerDaoImpl implements ContainerDao {
             // Move Container's Metadata .file
             //
 
-            File sourceContainerFieldsFile = getContainerFieldsFile(containerRequest.getMove());
+            File sourceContainerFieldsFile = getContainerFieldsFile(source);
 
             sourceContainerFieldsFile.renameTo(containerFieldsFile);
 
+            //
+            // The objects below keep their IDs; only the paths they are found at change
+            //
+
+            objectIdIndex.moveBelow(source.toString(), target.toString());
+
             //
             // Get the containers field's to return in response
             //
@@ -282,22 +439,17 @@ public class ContainerDaoImpl implements ContainerDao {
                 // Write created or updated persisted fields out to the "." file
                 //
 
-                try {
-                    FileWriter fstream = new FileWriter(containerFieldsFile.getAbsolutePath());
-                    BufferedWriter out = new BufferedWriter(fstream);
-                    out.write(containerRequest.toJson(true)); // Save it
-                    out.close();
-                } catch (Exception ex) {
-                    ex.printStackTrace();
-                    System.out.println("Exception while writing: " + ex);
-                    throw new IllegalArgumentException("Cannot write container fields file @"
-                                                       + path
-                                                       + " error : "
-                                                       + ex);
-                }
+                writeContainerFields(containerFieldsFile, containerRequest, path);
 
             }
 
+            changes.fire(Change.MOVE,
+                         MediaTypes.CONTAINER,
+                         path,
+                         containerRequest.getMove(),
+                         movedContainer.getObjectID(),
+                         movedContainer.getMetadata());
+
             //
             // Transient fields
             //
@@ -308,34 +460,451 @@ public class ContainerDaoImpl implements ContainerDao {
             // Complete response with fields dynamically generated from directory info.
             //
 
-            return completeContainer(movedContainer, directory, path);
+            return completeContainer(movedContainer, directory, target);
         }
 
     }
 
+    /**
+     * <p>
+     * Create the container at <code>path</code> as a copy of the container named by the
+     * request's <code>copy</code> field. The new container and its fields are created right
+     * away; the contents are copied by a background {@link TreeJob}, and the returned container
+     * reports <code>completionStatus</code> "Processing" until the copy is done.
+     * </p>
+     */
+    private Container copyContainer(
+            CdmiPath path,
+            final File directory,
+            File containerFieldsFile,
+            Container containerRequest) {
+
+        if (directory.exists()) {
+            throw new IllegalArgumentException("Cannot copy container '"
+                                               + containerRequest.getCopy()
+                                               + "' to '"
+                                               + path
+                                               + "'; Destination already exists");
+        }
+
+        CdmiPath source = CdmiPath.parse(containerRequest.getCopy());
+        final File sourceDirectory = absoluteFile(source);
+
+        if (!sourceDirectory.exists()) {
+            throw new NotFoundException("Path '"
+                                        + sourceDirectory.getAbsolutePath()
+                                        + "' does not identify an existing container");
+        }
+        if (!sourceDirectory.isDirectory()) {
+            throw new IllegalArgumentException("Path '"
+                                               + sourceDirectory.getAbsolutePath()
+                                               + "' does not identify a container");
+        }
+        if ((directory.getAbsolutePath() + "/").startsWith(sourceDirectory.getAbsolutePath()
+                                                             + "/")) {
+            throw new BadRequestException("Cannot copy container '"
+                                          + containerRequest.getCopy()
+                                          + "' into itself");
+        }
+
+        //
+        // The copy is a new container: new object ID and times, the source's fields otherwise.
+        // A metadata field in the request replaces the source's user metadata.
+        //
+
+        Container copiedContainer =
+                getPersistedContainerFields(getContainerFieldsFile(source));
+
+        if (!containerRequest.getMetadata().isEmpty()) {
+            copiedContainer.setMetaData(containerRequest.getMetadata());
+        }
+
+        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+        copiedContainer.setObjectID(ObjectID.getObjectID(9));
+        copiedContainer.getMetadata().put("cdmi_ctime", sdf.format(new Date()));
+        copiedContainer.getMetadata().put("cdmi_mtime", "never");
+        copiedContainer.getMetadata().put("cdmi_atime", "never");
+        copiedContainer.getMetadata().put("cdmi_acount", "0");
+        copiedContainer.getMetadata().put("cdmi_mcount", "0");
+
+        //
+        // The contents are charged before the copy starts, so a copy over quota is refused;
+        // the charge is corrected by what was actually copied once the copy is done
+        //
+        final Map<String, long[]> charged = new HashMap<String, long[]>();
+        long entries = measureTree(sourceDirectory, charged);
+        charge(charged);
+
+        if (!directory.mkdir()) {
+            refund(charged);
+            throw new IllegalArgumentException("Cannot create container '" + path + "'");
+        }
+        writeContainerFields(containerFieldsFile, copiedContainer, path.toString());
+
+        //
+        // Reported before the contents, each of which is reported as created when copied
+        //
+        changes.fire(Change.COPY,
+                     MediaTypes.CONTAINER,
+                     path.toString(),
+                     containerRequest.getCopy(),
+                     copiedContainer.getObjectID(),
+                     copiedContainer.getMetadata());
+
+        final TreeJob job = new TreeJob(path.toString(), TreeJob.Operation.COPY);
+        job.addTotal(entries);
+        treeJobManager().start(job, new Runnable() {
+            public void run() {
+                parallelCopy(sourceDirectory, directory, job, charged);
+                statCache.invalidateAll();
+            }
+        });
+
+        copiedContainer.setCompletionStatus(job.getCompletionStatus());
+        copiedContainer.setPercentComplete(job.getPercentComplete());
+
+        return completeContainer(copiedContainer, directory, path);
+    }
+
+    /**
+     * <p>
+     * Create the container at <code>path</code> from the serialized container held by the
+     * data object named by the request's <code>deserialize</code> field; see
+     * {@link ContainerArchive}. The container is created right away with the serialized
+     * fields, a new object ID and the domain of its parent; its contents are recreated by a
+     * background {@link TreeJob}, and the returned container reports
+     * <code>completionStatus</code> "Processing" until they are.
+     * </p>
+     */
+    private Container deserializeContainer(
+            CdmiPath path,
+            final File directory,
+            File containerFieldsFile,
+            Container containerRequest) {
+
+        if (directory.exists()) {
+            throw new IllegalArgumentException("Cannot deserialize '"
+                                               + containerRequest.getDeserialize()
+                                               + "' to '"
+                                               + path
+                                               + "'; Destination already exists");
+        }
+
+        CdmiPath source = CdmiPath.parse(containerRequest.getDeserialize());
+        File archiveFile = absoluteFile(source);
+        File archiveFieldsFile = getContainerFieldsFile(source);
+
+        if (source.isRoot() || !archiveFile.isFile() || !archiveFieldsFile.isFile()) {
+            throw new NotFoundException("Path '"
+                                        + archiveFile.getAbsolutePath()
+                                        + "' does not identify an existing data object");
+        }
+
+        Container deserializedContainer = new Container();
+        try {
+            DataObject archiveFields = new DataObject();
+            archiveFields.fromJson(FileUtils.readBytes(archiveFieldsFile), true);
+            if (archiveFields.getMetadata().get(DataObjectDaoImpl.VALUE_FORMAT) != null) {
+                throw new BadRequestException("Data object <" + source
+                                              + "> does not hold a serialized container");
+            }
+            String location = archiveFields.getMetadata().get(DataObjectDaoImpl.VALUE_LOCATION);
+            if (location != null) {
+                if (tierStore == null) {
+                    throw new IOException("No tier store to read '" + location + "'");
+                }
+                archiveFile = tierStore.file(location);
+            }
+            byte[] rootFields = ContainerArchive.readRootFields(archiveFile);
+            if (rootFields.length > 0) {
+                deserializedContainer.fromJson(rootFields, true);
+            }
+        } catch (RuntimeException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new IllegalArgumentException("Cannot read serialized container '"
+                                               + source
+                                               + "' error : "
+                                               + ex);
+        }
+
+        if (!containerRequest.getMetadata().isEmpty()) {
+            deserializedContainer.setMetaData(containerRequest.getMetadata());
+        }
+
+        //
+        // The serialized domain may not exist here; the container joins its parent's
+        //
+        deserializedContainer.setDomainURI(containerRequest.getDomainURI() != null
+            ? containerRequest.getDomainURI()
+            : findDomainURI(path.getParent().toString()));
+        if (accountDao != null && !accountDao.isDomain(deserializedContainer.getDomainURI())) {
+            throw new BadRequestException("Domain <"
+                                          + deserializedContainer.getDomainURI()
+                                          + "> doesn't exist");
+        }
+
+        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+        deserializedContainer.setObjectID(ObjectID.getObjectID(9));
+        deserializedContainer.getMetadata().put("cdmi_ctime", sdf.format(new Date()));
+        deserializedContainer.getMetadata().put("cdmi_mtime", "never");
+        deserializedContainer.getMetadata().put("cdmi_atime", "never");
+        deserializedContainer.getMetadata().put("cdmi_acount", "0");
+        deserializedContainer.getMetadata().put("cdmi_mcount", "0");
+
+        //
+        // The archive length is charged before the contents are recreated, so an archive over
+        // quota is refused; the charge is corrected by what was actually recreated once done
+        //
+        final Map<String, long[]> charged = new HashMap<String, long[]>();
+        charged.put(deserializedContainer.getDomainURI(), new long[] { archiveFile.length(), 0 });
+        charge(charged);
+
+        if (!directory.mkdir()) {
+            refund(charged);
+            throw new IllegalArgumentException("Cannot create container '" + path + "'");
+        }
+        writeContainerFields(containerFieldsFile, deserializedContainer, path.toString());
+
+        //
+        // Reported before the contents, each of which is reported as created when recreated
+        //
+        changes.fire(Change.CREATE,
+                     MediaTypes.CONTAINER,
+                     path.toString(),
+                     null,
+                     deserializedContainer.getObjectID(),
+                     deserializedContainer.getMetadata());
+
+        final File archive = archiveFile;
+        final String domainURI = deserializedContainer.getDomainURI();
+        final TreeJob job = new TreeJob(path.toString(), TreeJob.Operation.DESERIALIZE);
+        treeJobManager().start(job, new Runnable() {
+            public void run() {
+                parallelDeserialize(archive, directory, domainURI, job, charged);
+                statCache.invalidateAll();
+            }
+        });
+
+        deserializedContainer.setCompletionStatus(job.getCompletionStatus());
+        deserializedContainer.setPercentComplete(job.getPercentComplete());
+
+        return completeContainer(deserializedContainer, directory, path);
+    }
+
+    /**
+     * <p>
+     * Take a snapshot of the container at <code>path</code>, named <code>name</code>. The
+     * snapshot is linked together by a background {@link TreeJob} in a hidden temporary
+     * directory and renamed into <code>cdmi_snapshots</code> once complete; the returned
+     * container reports <code>completionStatus</code> "Processing" until then. A snapshot
+     * request only takes the snapshot; the container's fields are left as they are.
+     * </p>
+     */
+    private Container snapshotContainer(final CdmiPath path, final File directory, String name) {
+        if (path.isRoot()) {
+            throw new BadRequestException("Cannot snapshot the root container");
+        }
+        if (!directory.isDirectory()) {
+            throw new NotFoundException("Path '"
+                                        + directory.getAbsolutePath()
+                                        + "' does not identify an existing container");
+        }
+        if (name.length() == 0 || name.indexOf('/') >= 0 || name.startsWith(".")) {
+            throw new BadRequestException("Invalid snapshot name '" + name + "'");
+        }
+
+        File snapshotsDirectory = new File(directory, Snapshots.DIRECTORY);
+        final File snapshotDirectory = new File(snapshotsDirectory, name);
+        final File temporary = new File(snapshotsDirectory, FileUtils.TEMPORARY_PREFIX + name);
+        if (snapshotDirectory.exists() || temporary.exists()) {
+            throw new ConflictException("Snapshot '" + name + "' of '" + path + "' exists");
+        }
+
+        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+        String now = sdf.format(new Date());
+        Container current = getPersistedContainerFields(getContainerFieldsFile(path));
+
+        //
+        // The cdmi_snapshots container is created with the first snapshot
+        //
+        File snapshotsFieldsFile = new File(directory, "." + Snapshots.DIRECTORY);
+        if (!snapshotsDirectory.isDirectory() && !snapshotsDirectory.mkdir()) {
+            throw new IllegalArgumentException("Cannot create '" + snapshotsDirectory + "'");
+        }
+        if (!snapshotsFieldsFile.exists()) {
+            Container snapshots = new Container();
+            snapshots.setObjectID(ObjectID.getObjectID(9));
+            snapshots.setCapabilitiesURI(current.getCapabilitiesURI());
+            snapshots.setDomainURI(current.getDomainURI());
+            snapshots.getMetadata().put("cdmi_ctime", now);
+            writeContainerFields(snapshotsFieldsFile, snapshots, path.toString());
+        }
+        if (!temporary.mkdir()) {
+            throw new ConflictException("Snapshot '" + name + "' of '" + path + "' exists");
+        }
+
+        //
+        // The snapshot is a new container with the fields the container has now
+        //
+        final Container snapshot = new Container();
+        snapshot.setObjectID(ObjectID.getObjectID(9));
+        snapshot.setCapabilitiesURI(current.getCapabilitiesURI());
+        snapshot.setDomainURI(current.getDomainURI());
+        snapshot.getMetadata().putAll(current.getMetadata());
+        snapshot.getMetadata().put("cdmi_snapshot_time", now);
+        final File snapshotFieldsFile = new File(snapshotsDirectory, "." + name);
+        final String snapshotPath = path + "/" + Snapshots.DIRECTORY + "/" + name;
+
+        final TreeJob job = new TreeJob(path.toString(), TreeJob.Operation.SNAPSHOT);
+        try {
+            treeJobManager().start(job, new Runnable() {
+                public void run() {
+                    try {
+                        linkSnapshot(directory, temporary);
+                        writeContainerFields(snapshotFieldsFile, snapshot, snapshotPath);
+                        if (!temporary.renameTo(snapshotDirectory)) {
+                            throw new IOException("Cannot rename '" + temporary + "'");
+                        }
+                    } catch (Exception ex) {
+                        recursivelyDelete(temporary);
+                        snapshotFieldsFile.delete();
+                        throw new IllegalArgumentException("Cannot snapshot '"
+                                                           + path
+                                                           + "' error : "
+                                                           + ex);
+                    }
+                    changes.fire(Change.CREATE,
+                                 MediaTypes.CONTAINER,
+                                 snapshotPath,
+                                 null,
+                                 snapshot.getObjectID(),
+                                 snapshot.getMetadata());
+                }
+            });
+        } catch (ConflictException ex) {
+            temporary.delete();
+            throw ex;
+        }
+
+        current.setCompletionStatus(job.getCompletionStatus());
+        current.setPercentComplete(job.getPercentComplete());
+        return completeContainer(current, directory, path);
+    }
+
+    /**
+     * <p>
+     * Hard link the contents of a container into a new snapshot directory, then remove what
+     * a snapshot leaves out further down the tree: temporary files, queues and the snapshots
+     * of child containers.
+     * </p>
+     */
+    private void linkSnapshot(File directory, final File snapshot)
+            throws IOException, InterruptedException {
+        Snapshots.link(directory, snapshot);
+        final List<File> excluded = Collections.synchronizedList(new ArrayList<File>());
+        treeJobManager().newWalker().walk(snapshot, new ParallelTreeWalker.Visitor() {
+            public boolean preVisitDirectory(File dir) {
+                if (dir.equals(snapshot)) {
+                    return true;
+                }
+                String name = dir.getName();
+                if (Snapshots.DIRECTORY.equals(name)
+                    || Snapshots.isQueue(dir.getParentFile(), name)) {
+                    excluded.add(dir);
+                    return false;
+                }
+                return true;
+            }
+
+            public void visitFile(File file) {
+                String name = file.getName();
+                if (FileUtils.isTemporary(file)
+                    || ("." + Snapshots.DIRECTORY).equals(name)
+                    || Snapshots.isQueue(file.getParentFile(), name)) {
+                    excluded.add(file);
+                }
+            }
+
+            public void postVisitDirectory(File dir) {
+            }
+        });
+        for (File file : excluded) {
+            if (file.isDirectory()) {
+                recursivelyDelete(file);
+            } else {
+                file.delete();
+            }
+        }
+    }
+
     //
-    // For now this method supports both Container and Object delete.
+    // Deletes containers only; data objects go through the DataObjectDao.
     //
     // Improper requests directed at the root container are not routed here by
     // PathResource.
     //
     @Override
-    public void deleteByPath(String path) {
-        File directoryOrFile = absoluteFile(path);
-
-        //
+    public boolean deleteByPath(final String path) {
+        if (!Snapshots.isSnapshot(path)) {
+            Snapshots.checkWritable(path);
+        }
+        final CdmiPath target = CdmiPath.parse(path);
+        final File directoryOrFile = absoluteFile(target);
+        final File containerFieldsFile = getContainerFieldsFile(target);
 
         if (directoryOrFile.isDirectory()) {
-            recursivelyDelete(directoryOrFile);
-        } else {
+            File[] entries = directoryOrFile.listFiles();
+            if (!isSmallTree(entries)) {
+                //
+                // Walk the tree in parallel on a background job. The "." file goes last, so
+                // the container keeps reporting its progress until it is really gone.
+                //
+                final TreeJob job = new TreeJob(target.toString(), TreeJob.Operation.DELETE);
+                treeJobManager().start(job, new Runnable() {
+                    public void run() {
+                        Map<String, long[]> usage = new HashMap<String, long[]>();
+                        try {
+                            parallelDelete(directoryOrFile, job, usage);
+                        } finally {
+                            refund(usage);
+                        }
+                        containerFieldsFile.delete();
+                        objectIdIndex.removeBelow(target.toString());
+                        statCache.invalidateAll();
+                    }
+                });
+                changes.fire(Change.DELETE, MediaTypes.CONTAINER, path, null, null, null);
+                return false;
+            }
+            Map<String, long[]> usage = new HashMap<String, long[]>();
+            for (File file : entries) {
+                long size = chargedSize(file);
+                if (file.delete() && size >= 0) {
+                    addUsage(usage, domainOf(directoryOrFile), size);
+                }
+            }
+            refund(usage);
             directoryOrFile.delete();
+            objectIdIndex.removeBelow(target.toString());
+            changes.fire(Change.DELETE, MediaTypes.CONTAINER, path, null, null, null);
+        } else if (directoryOrFile.exists()) {
+            // Data objects are deleted by the DataObjectDao, under their locks
+            throw new IllegalArgumentException("Path '"
+                                               + directoryOrFile.getAbsolutePath()
+                                               + "' does not identify a container");
+        } else {
+            throw new NotFoundException("Path '"
+                                        + directoryOrFile.getAbsolutePath()
+                                        + "' does not identify an existing container");
         }
 
         //
         // remove the "." file that contains the Container or Object's JSON-encoded
         // metadata
         //
-        getContainerFieldsFile(path).delete();
+        containerFieldsFile.delete();
+        return true;
     }
 
     //
@@ -346,6 +915,15 @@ public class ContainerDaoImpl implements ContainerDao {
         throw new UnsupportedOperationException("ContainerDaoImpl.findByObjectId()");
     }
 
+    @Override
+    public String findDomainURI(String path) {
+        File file = absoluteFile(path);
+        if (!file.isDirectory() && !file.equals(baseDirectory())) {
+            file = file.getParentFile();
+        }
+        return domainOf(file);
+    }
+
     //
     //
     //
@@ -354,14 +932,17 @@ public class ContainerDaoImpl implements ContainerDao {
 
         System.out.println("In ContainerDAO.findByPath : " + path);
 
-        File directory = absoluteFile(path);
+        CdmiPath target = CdmiPath.parse(path);
 
-        if (!directory.exists()) {
+        File directory = absoluteFile(target);
+
+        int kind = statCache.stat(directory);
+        if (kind == StatCache.MISSING) {
             throw new NotFoundException("Path '"
                                         + directory.getAbsolutePath()
                                         + "' does not identify an existing container");
         }
-        if (!directory.isDirectory()) {
+        if (kind != StatCache.DIRECTORY) {
             throw new IllegalArgumentException("Path '"
                                                + directory.getAbsolutePath()
                                                + "' does not identify a container");
@@ -369,12 +950,29 @@ public class ContainerDaoImpl implements ContainerDao {
 
         Container requestedContainer = new Container();
 
-        if (path != null) {
+        TreeJob job = treeJobManager().findJob(target.toString());
+        if (job != null && job.getOperation() == TreeJob.Operation.DELETE) {
+
+            //
+            // The container is being deleted in the background. Report the persisted fields
+            // and the progress, but do not list children that are on their way out.
+            //
+            File containerFieldsFile = getContainerFieldsFile(target);
+            if (containerFieldsFile.exists()) {
+                requestedContainer = getPersistedContainerFields(containerFieldsFile);
+            }
+            requestedContainer.setObjectType("application/cdmi-container");
+            requestedContainer.setCompletionStatus(job.getCompletionStatus());
+            requestedContainer.setPercentComplete(job.getPercentComplete());
+            return requestedContainer;
+        }
+
+        if (!target.isRoot()) {
 
             //
             // Read the persisted container fields from the "." file
             //
-            requestedContainer = getPersistedContainerFields(getContainerFieldsFile(path));
+            requestedContainer = getPersistedContainerFields(getContainerFieldsFile(target));
 
         } else {
 
@@ -384,10 +982,17 @@ public class ContainerDaoImpl implements ContainerDao {
             //
 
             requestedContainer.setCapabilitiesURI("/cdmi_capabilities/container/default");
-            requestedContainer.setDomainURI("/cdmi_domains/default_domain");
+            requestedContainer.setDomainURI(DEFAULT_DOMAIN_URI);
         }
 
-        return completeContainer(requestedContainer, directory, path);
+        requestedContainer = completeContainer(requestedContainer, directory, target);
+
+        if (job != null) { // A copy into or snapshot of this container is still running
+            requestedContainer.setCompletionStatus(job.getCompletionStatus());
+            requestedContainer.setPercentComplete(job.getPercentComplete());
+        }
+
+        return requestedContainer;
     }
 
     //
@@ -401,46 +1006,13 @@ public class ContainerDaoImpl implements ContainerDao {
      * @param path
      *            Path of the requested container.
      */
-    private File getContainerFieldsFile(String path) {
-        // path should be /<parent container name>/<container name>
-        String[] tokens = path.split("[/]+");
-        if (tokens.length < 1) {
+    private File getContainerFieldsFile(CdmiPath path) {
+        if (path.isRoot()) {
             throw new BadRequestException("No object name in path <" + path + ">");
         }
-        String containerName = tokens[tokens.length - 1];
-        String containerFieldsFileName = "." + containerName;
-        // piece together parent container name
-        // FIXME : This is the kludge way !
-        String parentContainerName = "";
-        for (int i = 0; i <= tokens.length - 2; i++) {
-            parentContainerName += tokens[i] + "/";
-        }
-        System.out.println("Path = " + path);
-        System.out.println("Parent Container Name = "
-                           + parentContainerName
-                           + " Container Name == "
-                           + containerName);
-
-
-        File baseDirectory1, parentContainerDirectory, containerFieldsFile;
-        try {
-            System.out.println("baseDirectory = " + baseDirectoryName);
-            baseDirectory1 = new File(baseDirectoryName + "/");
-            System.out
-                    .println("Base Directory Absolute Path = " + baseDirectory1.getAbsolutePath());
-            parentContainerDirectory = new File(baseDirectory1, parentContainerName);
-            //
-            System.out.println("Parent Container Absolute Path = "
-                               + parentContainerDirectory.getAbsolutePath());
-            //
-            containerFieldsFile = new File(parentContainerDirectory, containerFieldsFileName);
-            System.out.println("Container Metadata File Path = "
-                               + containerFieldsFile.getAbsolutePath());
-        } catch (Exception ex) {
-            ex.printStackTrace();
-            System.out.println("Exception while building File objects: " + ex);
-            throw new IllegalArgumentException("Cannot build Object @" + path + " error : " + ex);
-        }
+        File containerFieldsFile = path.getFieldsFile(baseDirectory());
+        System.out.println("Container Metadata File Path = "
+                           + containerFieldsFile.getAbsolutePath());
         return containerFieldsFile;
     }
 
@@ -486,11 +1058,18 @@ public class ContainerDaoImpl implements ContainerDao {
      *            Path of the requested file or directory.
      */
     public File absoluteFile(String path) {
-        if (path == null) {
-            return baseDirectory();
-        } else {
-            return new File(baseDirectory(), path);
-        }
+        return absoluteFile(CdmiPath.parse(path));
+    }
+
+    private File absoluteFile(CdmiPath path) {
+        return path.toFile(baseDirectory());
+    }
+
+    // Path of a file or directory below the base directory, as reported in changes
+    private String pathOf(File file) {
+        String base = baseDirectory().getAbsolutePath();
+        String absolute = file.getAbsolutePath();
+        return absolute.length() <= base.length() ? "" : absolute.substring(base.length() + 1);
     }
 
     private File baseDirectory = null;
@@ -536,7 +1115,7 @@ public class ContainerDaoImpl implements ContainerDao {
      * @exception IllegalArgumentException
      *                if the specified path identifies a data object instead of a container
      */
-    private Container completeContainer(Container container, File directory, String path) {
+    private Container completeContainer(Container container, File directory, CdmiPath path) {
         System.out.println("In ContainerDaoImpl.Container, path is: " + path);
 
         System.out.println("In ContainerDaoImpl.Container, absolute path is: "
@@ -551,21 +1130,16 @@ public class ContainerDaoImpl implements ContainerDao {
         // Derive ParentURI
         //
 
-        String parentURI = "/";
+        String parentURI = path.getParentURI();
 
-        if (path != null) {
-            String[] tokens = path.split("[/]+");
-            String containerName = tokens[tokens.length - 1];
-            // FIXME : This is the kludge way !
-            for (int i = 0; i <= tokens.length - 2; i++) {
-                parentURI += tokens[i] + "/";
-            }
+        if (!path.isRoot()) {
+            String containerName = path.getName();
             System.out.println("In ContainerDaoImpl.Container, ParentURI = "
                                + parentURI
                                + " Container Name = "
                                + containerName);
             // Check for illegal top level container names
-            if (parentURI.matches("/") && containerName.startsWith("cdmi")) {
+            if (parentURI.equals("/") && containerName.startsWith("cdmi")) {
                 throw new BadRequestException("Root container names must not start with cdmi");
             }
         }
@@ -582,7 +1156,13 @@ public class ContainerDaoImpl implements ContainerDao {
         for (File file : directory.listFiles()) {
             String name = file.getName();
             if (file.isDirectory()) {
-                children.add(name + "/");
+                if (!name.startsWith(".")) {
+                    children.add(name + "/");
+                } else if (name.endsWith(QueueDaoImpl.QUEUE_SUFFIX)) {
+                    // Queues are listed by name; their values are kept in ".name.queue"
+                    children.add(name.substring(1, name.length()
+                                                   - QueueDaoImpl.QUEUE_SUFFIX.length()));
+                }
             } else {
                 if (!file.getName().startsWith(".")) {
                     children.add(name);
@@ -590,6 +1170,13 @@ public class ContainerDaoImpl implements ContainerDao {
             }
         }
 
+        if (!path.isRoot()) {
+            String prefix = "/" + path + "/" + Snapshots.DIRECTORY + "/";
+            for (String snapshot : Snapshots.list(directory)) {
+                container.getSnapshots().add(prefix + snapshot + "/");
+            }
+        }
+
         if (children.size() > 0) {
             // has children - set the range
             int lastindex = children.size() - 1;
@@ -609,14 +1196,607 @@ public class ContainerDaoImpl implements ContainerDao {
      *            {@link File} identifying the directory to be deleted
      */
     private void recursivelyDelete(File directory) {
-        for (File file : directory.listFiles()) {
-            if (file.isDirectory()) {
-                recursivelyDelete(file);
+        if (directory.exists()) {
+            parallelDelete(directory, new TreeJob(null, TreeJob.Operation.DELETE), null);
+        }
+    }
+
+    /**
+     * <p>
+     * Delete the specified directory tree with a {@link ParallelTreeWalker}: one pass to count
+     * the entries for progress reporting, then one pass deleting files and, bottom-up, the
+     * directories that held them. The counting pass also sums up the data objects per domain
+     * into <code>usage</code>, if one is given.
+     * </p>
+     * 
+     * @param directory
+     *            {@link File} identifying the directory to be deleted
+     * @param job
+     *            {@link TreeJob} receiving progress updates
+     * @param usage
+     *            Bytes and objects per domain URI to add the deleted data objects to, or
+     *            <code>null</code>
+     * 
+     * @exception IllegalArgumentException
+     *                if an entry cannot be deleted
+     */
+    private void parallelDelete(
+            File directory,
+            final TreeJob job,
+            final Map<String, long[]> usage) {
+        ParallelTreeWalker walker = treeJobManager().newWalker();
+        try {
+            walker.walk(directory, new ParallelTreeWalker.Visitor() {
+                public boolean preVisitDirectory(File dir) {
+                    return true;
+                }
+
+                public void visitFile(File file) {
+                    if (usage != null) {
+                        long size = chargedSize(file);
+                        if (size >= 0) {
+                            String domainURI = domainOf(file.getParentFile());
+                            synchronized (usage) {
+                                addUsage(usage, domainURI, size);
+                            }
+                        }
+                    }
+                    job.addTotal(1);
+                }
+
+                public void postVisitDirectory(File dir) {
+                    job.addTotal(1);
+                }
+            });
+            walker.walk(directory, new ParallelTreeWalker.Visitor() {
+                public boolean preVisitDirectory(File dir) {
+                    return true;
+                }
+
+                public void visitFile(File file) throws IOException {
+                    if (!file.delete() && file.exists()) {
+                        throw new IOException("Cannot delete '" + file + "'");
+                    }
+                    job.addDone(1);
+                }
+
+                public void postVisitDirectory(File dir) throws IOException {
+                    if (!dir.delete() && dir.exists()) {
+                        throw new IOException("Cannot delete '" + dir + "'");
+                    }
+                    job.addDone(1);
+                }
+            });
+        } catch (IOException ex) {
+            throw new IllegalArgumentException("Cannot delete '" + directory + "' error : " + ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalArgumentException("Delete of '" + directory + "' interrupted");
+        }
+    }
+
+    /**
+     * <p>
+     * Copy the tree below <code>source</code> into the existing directory <code>target</code>
+     * with a {@link ParallelTreeWalker}: one pass to count the entries, then one pass creating
+     * directories and cloning files. Value files are cloned with
+     * {@link FileUtils#cloneFile(File, File)}; the "." files holding the fields of contained
+     * containers and data objects are rewritten, since every copied object needs its own object
+     * ID.
+     * </p>
+     * 
+     * @param source
+     *            Directory to copy from
+     * @param target
+     *            Directory to copy into
+     * @param job
+     *            {@link TreeJob} receiving progress updates, whose total was set from
+     *            {@link #measureTree(File, Map)}
+     * @param charged
+     *            Usage charged for the copy up front, by domain, corrected once it is done
+     * 
+     * @exception IllegalArgumentException
+     *                if an entry cannot be copied
+     */
+    private void parallelCopy(File source,
+                              File target,
+                              final TreeJob job,
+                              Map<String, long[]> charged) {
+        final String sourcePrefix = source.getAbsolutePath();
+        final String targetPrefix = target.getAbsolutePath();
+        final Map<String, long[]> copied = new HashMap<String, long[]>();
+        ParallelTreeWalker walker = treeJobManager().newWalker();
+        try {
+            walker.walk(source, new ParallelTreeWalker.Visitor() {
+                public boolean preVisitDirectory(File dir) throws IOException {
+                    if (Snapshots.DIRECTORY.equals(dir.getName())) {
+                        return false; // Snapshots are not copied
+                    }
+                    File copy = new File(targetPrefix
+                                         + dir.getAbsolutePath().substring(sourcePrefix.length()));
+                    if (!copy.isDirectory() && !copy.mkdir()) {
+                        throw new IOException("Cannot create '" + copy + "'");
+                    }
+                    return true;
+                }
+
+                public void visitFile(File file) throws IOException {
+                    File copy = new File(targetPrefix
+                                         + file.getAbsolutePath().substring(sourcePrefix.length()));
+                    if (FileUtils.isTemporary(file)) {
+                        // Write in progress in the source; not part of the copy
+                    } else if (("." + Snapshots.DIRECTORY).equals(file.getName())) {
+                        // Fields of the snapshots, which are not copied
+                    } else if (file.getName().startsWith(".")) {
+                        copyFieldsFile(file, copy);
+                    } else {
+                        FileUtils.cloneFile(file, copy);
+                        long size = chargedSize(copy);
+                        if (size >= 0) {
+                            String domainURI = domainOf(file.getParentFile());
+                            synchronized (copied) {
+                                addUsage(copied, domainURI, size);
+                            }
+                        }
+                    }
+                    job.addDone(1);
+                }
+
+                public void postVisitDirectory(File dir) {
+                    job.addDone(1);
+                }
+            });
+        } catch (IOException ex) {
+            throw new IllegalArgumentException("Cannot copy '"
+                                               + source
+                                               + "' to '"
+                                               + target
+                                               + "' error : "
+                                               + ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalArgumentException("Copy of '" + source + "' interrupted");
+        } finally {
+            reconcile(charged, copied);
+        }
+    }
+
+    /**
+     * <p>
+     * Walk the tree a copy of <code>source</code> would copy, adding the usage of its data
+     * objects to <code>usage</code> by domain, and return the number of entries the copy
+     * visits.
+     * </p>
+     * 
+     * @exception IllegalArgumentException
+     *                if the tree cannot be read
+     */
+    private long measureTree(File source, final Map<String, long[]> usage) {
+        final AtomicLong entries = new AtomicLong();
+        ParallelTreeWalker walker = treeJobManager().newWalker();
+        try {
+            walker.walk(source, new ParallelTreeWalker.Visitor() {
+                public boolean preVisitDirectory(File dir) {
+                    return !Snapshots.DIRECTORY.equals(dir.getName());
+                }
+
+                public void visitFile(File file) {
+                    entries.incrementAndGet();
+                    long size = chargedSize(file);
+                    if (size >= 0) {
+                        String domainURI = domainOf(file.getParentFile());
+                        synchronized (usage) {
+                            addUsage(usage, domainURI, size);
+                        }
+                    }
+                }
+
+                public void postVisitDirectory(File dir) {
+                    entries.incrementAndGet();
+                }
+            });
+        } catch (IOException ex) {
+            throw new IllegalArgumentException("Cannot read '" + source + "' error : " + ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalArgumentException("Copy of '" + source + "' interrupted");
+        }
+        return entries.get();
+    }
+
+    /**
+     * <p>
+     * Recreate the contents of a serialized container below <code>target</code>, which must
+     * already exist. Containers and data objects get new object IDs and the domain of the
+     * target, as in a copy; progress is counted in archive bytes. The usage
+     * <code>charged</code> up front is corrected by what was actually recreated.
+     * </p>
+     * 
+     * @exception IllegalArgumentException
+     *                if the archive cannot be read or an entry cannot be created
+     */
+    private void parallelDeserialize(File archive,
+                                     final File target,
+                                     final String domainURI,
+                                     final TreeJob job,
+                                     Map<String, long[]> charged) {
+        job.addTotal(archive.length());
+        final Map<String, long[]> recreated = new HashMap<String, long[]>();
+        try {
+            ContainerArchive.deserialize(archive, new ContainerArchive.Extractor() {
+                public void container(String path, byte[] fields) throws IOException {
+                    job.addDone(fields.length);
+                    if (path.length() == 0) {
+                        return; // The target itself
+                    }
+                    File directory = new File(target, path);
+                    if (!directory.isDirectory() && !directory.mkdir()) {
+                        throw new IOException("Cannot create '" + directory + "'");
+                    }
+                    Container container = new Container();
+                    try {
+                        if (fields.length > 0) {
+                            container.fromJson(fields, true);
+                        }
+                    } catch (Exception ex) {
+                        throw new IOException("Cannot read fields of '" + path + "': " + ex);
+                    }
+                    container.setObjectID(ObjectID.getObjectID(9));
+                    container.setDomainURI(domainURI);
+                    File fieldsFile = new File(directory.getParentFile(), "." + directory.getName());
+                    writeContainerFields(fieldsFile, container, directory.getPath());
+                    changes.fire(Change.CREATE,
+                                 MediaTypes.CONTAINER,
+                                 pathOf(directory),
+                                 null,
+                                 container.getObjectID(),
+                                 container.getMetadata());
+                }
+
+                public void dataObject(String path,
+                                       byte[] fields,
+                                       FileChannel archive,
+                                       long offset,
+                                       long length) throws IOException {
+                    File value = new File(target, path);
+                    File fieldsFile = new File(value.getParentFile(), "." + value.getName());
+                    DataObject dObj = new DataObject();
+                    try {
+                        dObj.fromJson(fields, true);
+                    } catch (Exception ex) {
+                        throw new IOException("Cannot read fields of '" + path + "': " + ex);
+                    }
+                    //
+                    // The archive comes from a client: the value is always in the archive, and
+                    // only a compressed value, checked below, is taken as it is
+                    //
+                    dObj.getMetadata().remove(DataObjectDaoImpl.VALUE_LOCATION);
+                    String format = dObj.getMetadata().get(DataObjectDaoImpl.VALUE_FORMAT);
+                    if (format != null && !DataObjectDaoImpl.DEFLATE.equals(format)) {
+                        throw new IOException("Unsupported value format '" + format + "' of '"
+                                              + path + "'");
+                    }
+                    dObj.setObjectID(ObjectID.getObjectID(8));
+                    dObj.setMetadata("fileName", value.getAbsolutePath());
+                    dObj.setMetadata("metadataFileName", fieldsFile.getAbsolutePath());
+
+                    File temporary = FileUtils.temporaryFile(value);
+                    try {
+                        FileOutputStream out = new FileOutputStream(temporary);
+                        try {
+                            FileUtils.transfer(archive, offset, length, out.getChannel());
+                        } finally {
+                            out.close();
+                        }
+                        if (format != null) {
+                            ValueCompressor.validate(temporary);
+                        }
+                        FileUtils.replace(temporary, value);
+                        FileUtils.writeAtomically(fieldsFile, dObj.metadataToJson());
+                    } catch (IOException ex) {
+                        throw ex;
+                    } catch (Exception ex) {
+                        throw new IOException("Cannot write fields of '" + path + "': " + ex);
+                    } finally {
+                        temporary.delete();
+                    }
+                    long size = chargedSize(value);
+                    if (size >= 0) {
+                        synchronized (recreated) {
+                            addUsage(recreated, domainURI, size);
+                        }
+                    }
+                    String objectPath = pathOf(value);
+                    objectIdIndex.put(dObj.getObjectID(), objectPath);
+                    changes.fire(Change.CREATE,
+                                 MediaTypes.DATA_OBJECT,
+                                 objectPath,
+                                 null,
+                                 dObj.getObjectID(),
+                                 dObj.getMetadata());
+                    job.addDone(fields.length + length);
+                }
+            }, treeJobManager().walkerExecutor(), 64);
+        } catch (IOException ex) {
+            throw new IllegalArgumentException("Cannot deserialize '"
+                                               + archive
+                                               + "' to '"
+                                               + target
+                                               + "' error : "
+                                               + ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalArgumentException("Deserialization of '" + archive + "' interrupted");
+        } finally {
+            reconcile(charged, recreated);
+        }
+    }
+
+    /**
+     * <p>
+     * Copy the "." file holding the fields of a container, data object or queue, giving the
+     * copy a new object ID, and report the copy as created. A data object's fields also record
+     * the absolute paths of its files, which are pointed at the copy.
+     * </p>
+     * 
+     * @param source
+     *            "." file to copy from
+     * @param target
+     *            "." file to create
+     */
+    private void copyFieldsFile(File source, File target) throws IOException {
+        String name = source.getName().substring(1);
+        String path = pathOf(new File(target.getParentFile(), name));
+        try {
+            if (new File(source.getParentFile(), name).isDirectory()) {
+                Container container = getPersistedContainerFields(source);
+                container.setObjectID(ObjectID.getObjectID(9));
+                writeContainerFields(target, container, target.getPath());
+                changes.fire(Change.CREATE,
+                             MediaTypes.CONTAINER,
+                             path,
+                             null,
+                             container.getObjectID(),
+                             container.getMetadata());
+            } else if (new File(source.getParentFile(), source.getName()
+                                                        + QueueDaoImpl.QUEUE_SUFFIX).isDirectory()) {
+                Queue queue = new Queue();
+                queue.fromJson(FileUtils.readString(source).getBytes(), true);
+                queue.setObjectID(ObjectID.getObjectID(8));
+                FileUtils.writeAtomically(target, queue.metadataToJson());
+                objectIdIndex.put(queue.getObjectID(), path);
+                changes.fire(Change.CREATE,
+                             MediaTypes.QUEUE,
+                             path,
+                             null,
+                             queue.getObjectID(),
+                             queue.getMetadata());
             } else {
-                file.delete();
+                FileInputStream in = new FileInputStream(source);
+                DataObject dObj = new DataObject();
+                try {
+                    dObj.fromJson(in, true);
+                } finally {
+                    in.close();
+                }
+                dObj.setObjectID(ObjectID.getObjectID(8));
+                dObj.setMetadata("fileName", new File(target.getParentFile(), name)
+                        .getAbsolutePath());
+                dObj.setMetadata("metadataFileName", target.getAbsolutePath());
+                FileWriter out = new FileWriter(target);
+                try {
+                    out.write(dObj.metadataToJson());
+                } finally {
+                    out.close();
+                }
+                objectIdIndex.put(dObj.getObjectID(), path);
+                changes.fire(Change.CREATE,
+                             MediaTypes.DATA_OBJECT,
+                             path,
+                             null,
+                             dObj.getObjectID(),
+                             dObj.getMetadata());
+            }
+        } catch (IOException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new IOException("Cannot copy fields file '" + source + "' error : " + ex);
+        }
+    }
+
+    /**
+     * <p>
+     * Write the persisted fields of a container to its "." file. The file is replaced, not
+     * rewritten, so snapshots linking the old file keep it.
+     * </p>
+     * 
+     * @exception IllegalArgumentException
+     *                if the file cannot be written
+     */
+    private void writeContainerFields(File containerFieldsFile, Container container, String path) {
+        try {
+            FileUtils.writeAtomically(containerFieldsFile, container.toJson(true));
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            System.out.println("Exception while writing: " + ex);
+            throw new IllegalArgumentException("Cannot write container fields file @"
+                                               + path
+                                               + " error : "
+                                               + ex);
+        }
+    }
+
+    /**
+     * <p>
+     * Return the size a file is charged to its domain with, or -1 if it is not the value file
+     * of a data object: the fields files, temporary files, the contents of queues and of the
+     * versions kept for data objects, and everything in snapshots are not charged.
+     * </p>
+     */
+    private long chargedSize(File file) {
+        File parent = file.getParentFile();
+        if (file.getName().startsWith(".")
+            || parent.getName().startsWith(".")
+            || !file.isFile()
+            || (file.getAbsolutePath() + "/").indexOf("/" + Snapshots.DIRECTORY + "/") >= 0) {
+            return -1;
+        }
+        return ChunkStore.valueSize(file);
+    }
+
+    private static void addUsage(Map<String, long[]> usage, String domainURI, long size) {
+        long[] total = usage.get(domainURI);
+        if (total == null) {
+            total = new long[2];
+            usage.put(domainURI, total);
+        }
+        total[0] += size;
+        total[1]++;
+    }
+
+    /**
+     * <p>
+     * Charge usage to each domain, refusing it all if a domain would exceed a quota.
+     * </p>
+     * 
+     * @exception ForbiddenException
+     *                if the usage would exceed a quota of one of the domains
+     */
+    private void charge(Map<String, long[]> usage) {
+        if (accountDao == null) {
+            return;
+        }
+        Map<String, long[]> done = new HashMap<String, long[]>();
+        try {
+            for (Map.Entry<String, long[]> entry : usage.entrySet()) {
+                accountDao.charge(entry.getKey(), entry.getValue()[0], entry.getValue()[1]);
+                done.put(entry.getKey(), entry.getValue());
             }
+        } catch (RuntimeException ex) {
+            refund(done);
+            throw ex;
         }
-        directory.delete();
+    }
+
+    /**
+     * <p>
+     * Correct usage charged up front by the usage actually added.
+     * </p>
+     */
+    private void reconcile(Map<String, long[]> charged, Map<String, long[]> actual) {
+        if (accountDao == null) {
+            return;
+        }
+        Map<String, long[]> difference = new HashMap<String, long[]>();
+        for (Map.Entry<String, long[]> entry : actual.entrySet()) {
+            difference.put(entry.getKey(), entry.getValue().clone());
+        }
+        for (Map.Entry<String, long[]> entry : charged.entrySet()) {
+            long[] total = difference.get(entry.getKey());
+            if (total == null) {
+                total = new long[2];
+                difference.put(entry.getKey(), total);
+            }
+            total[0] -= entry.getValue()[0];
+            total[1] -= entry.getValue()[1];
+        }
+        for (Map.Entry<String, long[]> entry : difference.entrySet()) {
+            long[] total = entry.getValue();
+            if (total[0] != 0 || total[1] != 0) {
+                accountDao.adjust(entry.getKey(), total[0], total[1]);
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Give the usage of deleted data objects back to their domains.
+     * </p>
+     */
+    private void refund(Map<String, long[]> usage) {
+        if (accountDao == null) {
+            return;
+        }
+        for (Map.Entry<String, long[]> entry : usage.entrySet()) {
+            accountDao.adjust(entry.getKey(), -entry.getValue()[0], -entry.getValue()[1]);
+        }
+    }
+
+    /**
+     * <p>
+     * Return the domain URI of the container in <code>directory</code>, read from its fields
+     * file and cached until that file changes.
+     * </p>
+     */
+    private String domainOf(File directory) {
+        if (directory.equals(baseDirectory())) {
+            return DEFAULT_DOMAIN_URI;
+        }
+        File fieldsFile = new File(directory.getParentFile(), "." + directory.getName());
+        long lastModified = fieldsFile.lastModified();
+        if (lastModified == 0L) {
+            return DEFAULT_DOMAIN_URI;
+        }
+        String key = directory.getAbsolutePath();
+        DomainEntry entry = domainURIs.get(key);
+        if (entry != null && entry.lastModified == lastModified) {
+            return entry.domainURI;
+        }
+        String domainURI = DEFAULT_DOMAIN_URI;
+        try {
+            Container fields = new Container();
+            fields.fromJson(FileUtils.readBytes(fieldsFile), true);
+            if (fields.getDomainURI() != null) {
+                domainURI = fields.getDomainURI();
+            }
+        } catch (Exception ex) {
+            // Deleted or being rewritten meanwhile; not cached
+            return domainURI;
+        }
+        domainURIs.put(key, new DomainEntry(lastModified, domainURI));
+        return domainURI;
+    }
+
+    private static final class DomainEntry {
+        final long lastModified;
+        final String domainURI;
+
+        DomainEntry(long lastModified, String domainURI) {
+            this.lastModified = lastModified;
+            this.domainURI = domainURI;
+        }
+    }
+
+    /**
+     * <p>
+     * Return <code>true</code> if a directory with the specified entries is cheap enough to
+     * delete on the request thread: no subdirectories and at most
+     * <code>asyncDeleteThreshold</code> entries.
+     * </p>
+     */
+    private boolean isSmallTree(File[] entries) {
+        if (entries == null || entries.length > asyncDeleteThreshold) {
+            return false;
+        }
+        for (File entry : entries) {
+            if (entry.isDirectory()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * <p>
+     * Return the {@link TreeJobManager} for background operations, creating a private one if
+     * none was injected.
+     * </p>
+     */
+    private synchronized TreeJobManager treeJobManager() {
+        if (treeJobManager == null) {
+            treeJobManager = new TreeJobManager();
+        }
+        return treeJobManager;
     }
 
     //
@@ -624,7 +1804,7 @@ public class ContainerDaoImpl implements ContainerDao {
     @Override
     public boolean isContainer(String path) {
         File directoryOrFile = absoluteFile(path);
-        if (directoryOrFile.isDirectory()) {
+        if (statCache.isDirectory(directoryOrFile)) {
             return true;
         } else {
             return false;
@@ -30,18 +30,35 @@
  */
 package org.snia.cdmiserver.dao.filesystem;
 
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileWriter;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+import org.snia.cdmiserver.dao.AccountDao;
+import org.snia.cdmiserver.dao.ChangeListener;
 import org.snia.cdmiserver.dao.ContainerDao;
 import org.snia.cdmiserver.dao.DataObjectDao;
 import org.snia.cdmiserver.exception.BadRequestException;
+import org.snia.cdmiserver.exception.CdmiException;
 import org.snia.cdmiserver.exception.ConflictException;
+import org.snia.cdmiserver.exception.ForbiddenException;
+import org.snia.cdmiserver.exception.NotFoundException;
+import org.snia.cdmiserver.model.BulkOperation;
+import org.snia.cdmiserver.model.Change;
 import org.snia.cdmiserver.model.DataObject;
+import org.snia.cdmiserver.util.CdmiPath;
+import org.snia.cdmiserver.util.MediaTypes;
 import org.snia.cdmiserver.util.ObjectID;
 
 /**
@@ -51,13 +68,27 @@ import org.snia.cdmiserver.util.ObjectID;
  */
 public class DataObjectDaoImpl implements DataObjectDao {
 
+    // Metadata key recording how the value file holds the value, absent if it holds it as is
+    static final String VALUE_FORMAT = "valueFormat";
+
+    static final String CHUNKS = "chunks";
+
+    static final String DEFLATE = "deflate";
+
+    // Metadata key naming the file of a value demoted to the capacity tier of the TierStore;
+    // absent if the value file holds the value
+    static final String VALUE_LOCATION = "valueLocation";
+
     // -------------------------------------------------------------- Properties
     private String baseDirectoryName = null;
 
+    private File baseDirectory = null;
+
     //
 
     public void setBaseDirectoryName(String baseDirectoryName) {
         this.baseDirectoryName = baseDirectoryName;
+        this.baseDirectory = new File(baseDirectoryName);
         System.out.println("******* Base Directory = " + baseDirectoryName);
     }
 
@@ -74,65 +105,210 @@ public class DataObjectDaoImpl implements DataObjectDao {
         this.containerDao = containerDao;
     }
 
+    private ObjectIdIndex objectIdIndex = new ObjectIdIndex();
+
+    /**
+     * <p>
+     * Set the {@link ObjectIdIndex} mapping object IDs to paths. A private index is used if none
+     * is injected.
+     * </p>
+     */
+    public void setObjectIdIndex(ObjectIdIndex objectIdIndex) {
+        this.objectIdIndex = objectIdIndex;
+    }
+
+    private boolean syncBulkWrites = true;
+
+    /**
+     * <p>
+     * Set whether bulk operations sync the files they write before publishing them. Default value
+     * is <code>true</code>.
+     * </p>
+     */
+    public void setSyncBulkWrites(boolean syncBulkWrites) {
+        this.syncBulkWrites = syncBulkWrites;
+    }
+
+    private PathLocks pathLocks = new PathLocks();
+
+    /**
+     * <p>
+     * Set the {@link PathLocks} guarding the files of each object. Private locks are used if none
+     * are injected.
+     * </p>
+     */
+    public void setPathLocks(PathLocks pathLocks) {
+        this.pathLocks = pathLocks;
+    }
+
+    private VersionStore versionStore;
+
+    /**
+     * <p>
+     * Set the {@link VersionStore} keeping previous values of objects in versioned
+     * containers. Objects are not versioned if none is injected.
+     * </p>
+     */
+    public void setVersionStore(VersionStore versionStore) {
+        this.versionStore = versionStore;
+    }
+
+    private ChunkStore chunkStore;
+
+    /**
+     * <p>
+     * Set the {@link ChunkStore} large values are stored in. Values are written to their value
+     * files as they are if none is injected.
+     * </p>
+     */
+    public void setChunkStore(ChunkStore chunkStore) {
+        this.chunkStore = chunkStore;
+    }
+
+    private ValueCompressor valueCompressor;
+
+    /**
+     * <p>
+     * Set the {@link ValueCompressor} compressing values in containers that ask for it. Values
+     * are not compressed if none is injected.
+     * </p>
+     */
+    public void setValueCompressor(ValueCompressor valueCompressor) {
+        this.valueCompressor = valueCompressor;
+    }
+
+    private AccountDao accountDao;
+
+    /**
+     * <p>
+     * Set the {@link AccountDao} that data objects are charged to, by the domain of their
+     * container. Usage is not accounted if none is injected.
+     * </p>
+     */
+    public void setAccountDao(AccountDao accountDao) {
+        this.accountDao = accountDao;
+    }
+
+    private TreeJobManager treeJobManager;
+
+    /**
+     * <p>
+     * Set the {@link TreeJobManager} whose walker pool serializes containers. Containers
+     * cannot be serialized if none is injected.
+     * </p>
+     */
+    public void setTreeJobManager(TreeJobManager treeJobManager) {
+        this.treeJobManager = treeJobManager;
+    }
+
+    private UploadStore uploadStore;
+
+    /**
+     * <p>
+     * Set the {@link UploadStore} staging multipart uploads. Uploads are not supported if
+     * none is injected.
+     * </p>
+     */
+    public void setUploadStore(UploadStore uploadStore) {
+        this.uploadStore = uploadStore;
+    }
+
+    private TierStore tierStore;
+
+    /**
+     * <p>
+     * Set the {@link TierStore} cold values are demoted to, and told about reads. Values stay
+     * in their value files if none is injected.
+     * </p>
+     */
+    public void setTierStore(TierStore tierStore) {
+        this.tierStore = tierStore;
+    }
+
+    private AccessStats accessStats;
+
+    /**
+     * <p>
+     * Set the {@link AccessStats} persisting the access time and count of objects. Access
+     * times are reported but not persisted, and accesses are not counted, if none is injected.
+     * </p>
+     */
+    public void setAccessStats(AccessStats accessStats) {
+        this.accessStats = accessStats;
+    }
+
+    private StatCache statCache = StatCache.uncached();
+
+    /**
+     * <p>
+     * Set the {@link StatCache} answering the existence checks of lookups. Without one every
+     * check goes to disk.
+     * </p>
+     */
+    public void setStatCache(StatCache statCache) {
+        this.statCache = statCache;
+    }
+
+    private final ChangeSupport changes = new ChangeSupport();
+
+    /**
+     * <p>
+     * Set the {@link ChangeListener}s told about every change made through this DAO.
+     * </p>
+     */
+    public void setChangeListeners(List<ChangeListener> changeListeners) {
+        changes.setListeners(changeListeners);
+    }
+
     // ---------------------------------------------------- ContainerDao Methods
-    // utility function
-    // given a path, find out metadata file name and container directory
-    String getmetadataFileName(String path) {
-        // Make sure we have a file name for the object
-        // check for file name
-        // path should be <container name>/<file name>
-        // Split path into path and filename
-        String[] tokens = path.split("/");
-        if (tokens.length < 1) {
+
+    /**
+     * <p>
+     * Parse the path of a data object; paths are parsed once, on the way in, and the
+     * normalized form is used for locks and change events from there on.
+     * </p>
+     * 
+     * @exception BadRequestException
+     *                if the path is invalid, or names the root container
+     */
+    private static CdmiPath parseObjectPath(String path) {
+        CdmiPath parsed = CdmiPath.parse(path);
+        if (parsed.isRoot()) {
             throw new BadRequestException("No object name in path <" + path + ">");
         }
-        String fileName = tokens[tokens.length - 1];
-        return "." + fileName;
+        return parsed;
     }
 
-    //
-    String getcontainerName(String path) {
-        // Make sure we have a file name for the object
-        // check for file name
-        // path should be <container name>/<file name>
-        // Split path into path and filename
-        String[] tokens = path.split("/");
-        if (tokens.length < 1) {
-            throw new BadRequestException("No object name in path <" + path + ">");
-        }
-        String fileName = tokens[tokens.length - 1];
-        String containerName = "";
-        for (int i = 0; i <= tokens.length - 2; i++) {
-            containerName += tokens[i] + "/";
-        }
-        return containerName;
+    // Path of the container holding the data object at a normalized path
+    private static String containerPath(String path) {
+        int slash = path.lastIndexOf('/');
+        return slash < 0 ? "" : path.substring(0, slash);
     }
 
     @Override
     public DataObject createByPath(String path, DataObject dObj) throws Exception {
-        //
-        String metadataFileName = getmetadataFileName(path);
-        String containerName = getcontainerName(path);
-        //
-        File objFile, baseDirectory, containerDirectory, metadataFile;
-        try {
-            System.out.println("baseDirectory = " + baseDirectoryName);
-            baseDirectory = new File(baseDirectoryName + "/");
-            System.out.println("Base Directory Absolute Path = " + baseDirectory.getAbsolutePath());
-            containerDirectory = new File(baseDirectory, containerName);
-            // File directory = absoluteFile(path);
-            System.out.println("Container Absolute Path = " + containerDirectory.getAbsolutePath());
-            //
-            metadataFile = new File(containerDirectory, metadataFileName);
-            System.out.println("Metadada File Path = " + metadataFile.getAbsolutePath());
-            objFile = new File(baseDirectory, path);
-            // File directory = absoluteFile(path);
-            System.out.println("Object Absolute Path = " + objFile.getAbsolutePath());
-        } catch (Exception ex) {
-            ex.printStackTrace();
-            System.out.println("Exception while writing: " + ex);
-            throw new IllegalArgumentException("Cannot write Object @" + path + " error : " + ex);
+        Snapshots.checkWritable(path);
+        FileUtils.checkName(path);
+        if (dObj.getMove() != null) {
+            Snapshots.checkWritable(dObj.getMove());
+            return moveByPath(dObj.getMove(), path, dObj);
+        }
+        if (dObj.getCopy() != null) {
+            return copyByPath(dObj.getCopy(), path, dObj);
         }
+        if (dObj.getSerialize() != null) {
+            return serializeByPath(dObj.getSerialize(), path, dObj);
+        }
+        if (dObj.getDeserialize() != null) {
+            throw new UnsupportedOperationException("DataObjectDaoImpl.deserialize");
+        }
+        //
+        CdmiPath target = parseObjectPath(path);
+        path = target.toString();
+        File containerDirectory = target.getParentFile(baseDirectory);
+        File metadataFile = target.getFieldsFile(baseDirectory);
+        File objFile = target.toFile(baseDirectory);
+        System.out.println("Object Absolute Path = " + objFile.getAbsolutePath());
         // check for container
         if (!containerDirectory.exists()) {
             throw new ConflictException("Container <"
@@ -143,48 +319,53 @@ public class DataObjectDaoImpl implements DataObjectDao {
             throw new ConflictException("Object File <" + objFile.getAbsolutePath() + "> exists");
         }
         try {
-            // dObj.setObjectURI(path); // TBD Correct
-            // Make object ID
+            initializeNewObject(dObj, objFile, metadataFile, new Date());
             String objectID = dObj.getObjectID();
-            if (objectID == null) {
-                objectID = ObjectID.getObjectID(8);//System.nanoTime()+"";
-                dObj.setObjectID(objectID);
-            }
-            // dObj.setObjectURI(directory.getAbsolutePath()+"/"+objectID);
-            dObj.setCapabilitiesURI("/cdmi_capabilities/dataobject");
-            // Add metadata
-            String val = "" + dObj.getValue();
-            dObj.setMetadata("cdmi_size", val.length() + "");
-            // ISO-8601 Date
-            Date now = new Date();
-            SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
-            dObj.setMetadata("cdmi_ctime", sdf.format(now));
-            dObj.setMetadata("cdmi_atime", "never");
-            // dObj.setMetadata("cdmi_acount", "0");
-            // dObj.setMetadata("cdmi_mcount", "0");
-            // Create file
-            dObj.setMetadata("fileName", objFile.getAbsolutePath());
-            dObj.setMetadata("metadataFileName", metadataFile.getAbsolutePath());
-            String mimeType = dObj.getMimetype();
-            if (mimeType == null) {
-                mimeType = "text/plain";
-                dObj.setMimetype(mimeType);
-            }
-            dObj.setMetadata("mimetype", mimeType);
             //
-            FileWriter fstream = new FileWriter(objFile.getAbsolutePath());
-            BufferedWriter out = new BufferedWriter(fstream);
-            out.write(dObj.getValue()); // Save Only the value
-            // Close the output stream
-            out.close();
-            // write metadata file
-            System.out.println("metadataFile : " + metadataFileName);
-            fstream = new FileWriter(metadataFile.getAbsolutePath());
-            out = new BufferedWriter(fstream);
-            out.write(dObj.metadataToJson()); // Save it
-            // Close the output stream
-            out.close();
+            // Write value and metadata to temporary files, then move both into place.
+            // The value goes first, so a reader that finds the metadata file always
+            // finds the value too.
+            //
+            File valueTemp = FileUtils.writeTemporary(objFile, encodeValue(path, dObj));
+            System.out.println("metadataFile : " + metadataFile.getName());
+            File metadataTemp = FileUtils.writeTemporary(metadataFile, dObj.metadataToJson());
+            pathLocks.writeLock(path).lock();
+            try {
+                if (objFile.exists()) {
+                    valueTemp.delete();
+                    metadataTemp.delete();
+                    throw new ConflictException("Object File <"
+                                                + objFile.getAbsolutePath()
+                                                + "> exists");
+                }
+                long size = ChunkStore.valueSize(valueTemp);
+                try {
+                    charge(path, size, 1);
+                } catch (ForbiddenException ex) {
+                    valueTemp.delete();
+                    metadataTemp.delete();
+                    throw ex;
+                }
+                try {
+                    FileUtils.replace(valueTemp, objFile);
+                    FileUtils.replace(metadataTemp, metadataFile);
+                } catch (IOException ex) {
+                    adjust(path, -size, -1);
+                    throw ex;
+                }
+            } finally {
+                pathLocks.writeLock(path).unlock();
+            }
+            objectIdIndex.put(objectID, path);
+            changes.fire(Change.CREATE,
+                         MediaTypes.DATA_OBJECT,
+                         path,
+                         null,
+                         objectID,
+                         dObj.getMetadata());
             //
+        } catch (CdmiException ex) {
+            throw ex;
         } catch (Exception ex) {
             ex.printStackTrace();
             System.out.println("Exception while writing: " + ex);
@@ -200,43 +381,88 @@ public class DataObjectDaoImpl implements DataObjectDao {
 
     @Override
     public void deleteByPath(String path) {
-        throw new UnsupportedOperationException("DataObjectDaoImpl.deleteByPath()");
+        Snapshots.checkWritable(path);
+        CdmiPath target = parseObjectPath(path);
+        deleteObject(target.toString(),
+                     target.toFile(baseDirectory),
+                     target.getFieldsFile(baseDirectory));
+    }
+
+    @Override
+    public DataObject updateByPath(String path, DataObject dObj) {
+        Snapshots.checkWritable(path);
+        CdmiPath target = parseObjectPath(path);
+        StagedObject object = new StagedObject(null,
+                                               target.toString(),
+                                               target.toFile(baseDirectory),
+                                               target.getFieldsFile(baseDirectory));
+        object.request = dObj;
+        List<FileOutputStream> open = new ArrayList<FileOutputStream>();
+        try {
+            stage(object, false, new Date(), open);
+            syncAndClose(open, false);
+            publish(object, false);
+            return object.dObj;
+        } catch (RuntimeException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            System.out.println("Exception while updating: " + ex);
+            throw new IllegalArgumentException("Cannot update Object @" + path + " error : " + ex);
+        } finally {
+            closeQuietly(open);
+            object.discardTemporaries();
+        }
+    }
+
+    @Override
+    public void applyBatch(String containerPath, List<BulkOperation> operations) {
+        Snapshots.checkWritable(containerPath);
+        CdmiPath container = CdmiPath.parse(containerPath);
+        File containerDirectory = container.toFile(baseDirectory);
+        if (!containerDirectory.isDirectory()) {
+            for (BulkOperation operation : operations) {
+                operation.setResult(409, "Container <" + containerPath + "> doesn't exist");
+            }
+            return;
+        }
+        String prefix = container.isRoot() ? "" : container + "/";
+
+        //
+        // Operations are applied in runs that touch each name at most once, so that the
+        // staging of one operation never depends on another that is not yet published.
+        //
+        List<BulkOperation> run = new ArrayList<BulkOperation>();
+        Set<String> names = new HashSet<String>();
+        for (BulkOperation operation : operations) {
+            if (!names.add(String.valueOf(operation.getName()))) {
+                applyRun(containerDirectory, prefix, run);
+                run.clear();
+                names.clear();
+                names.add(String.valueOf(operation.getName()));
+            }
+            run.add(operation);
+        }
+        applyRun(containerDirectory, prefix, run);
     }
 
     @Override
     public DataObject findByPath(String path) {
         System.out.println("In findByPath : " + path);
         //
-        String metadataFileName = getmetadataFileName(path);
-        String containerName = getcontainerName(path);
+        CdmiPath target = parseObjectPath(path);
+        path = target.toString();
         //
         // Check for metadata file
-        File objFile, metadataFile, baseDirectory;
-        try {
-            System.out.println("baseDirectory = " + baseDirectoryName);
-            baseDirectory = new File(baseDirectoryName + "/" + containerName);
-            metadataFile = new File(baseDirectory, metadataFileName);
-            System.out.println("Metadata Absolute Path = " + metadataFile.getAbsolutePath());
-        } catch (Exception ex) {
-            ex.printStackTrace();
-            System.out.println("Exception in findByPath : " + ex);
-            throw new IllegalArgumentException("Cannot get Object @" + path + " error : " + ex);
-        }
-        if (!metadataFile.exists()) {
+        File metadataFile = target.getFieldsFile(baseDirectory);
+        System.out.println("Metadata Absolute Path = " + metadataFile.getAbsolutePath());
+        if (!statCache.exists(metadataFile)) {
             return null;
         }
         // Check for object file
-        try {
-            System.out.println("baseDirectory = " + baseDirectoryName);
-            baseDirectory = new File(baseDirectoryName + "/");
-            objFile = new File(baseDirectory, path);
-            System.out.println("Object Absolute Path = " + objFile.getAbsolutePath());
-        } catch (Exception ex) {
-            ex.printStackTrace();
-            System.out.println("Exception in findByPath : " + ex);
-            throw new IllegalArgumentException("Cannot get Object @" + path + " error : " + ex);
-        }
-        if (!objFile.exists()) {
+        File objFile = target.toFile(baseDirectory);
+        System.out.println("Object Absolute Path = " + objFile.getAbsolutePath());
+        if (!statCache.exists(objFile)) {
             throw new ConflictException("Object File <"
                                         + objFile.getAbsolutePath()
                                         + "> doesn't exist");
@@ -245,7 +471,12 @@ public class DataObjectDaoImpl implements DataObjectDao {
         // Both Files are there. So open, read, create object and send out
         //
         DataObject dObj = new DataObject();
+        pathLocks.readLock(path).lock();
         try {
+            // Checked again under the lock; the object may have been deleted or moved since
+            if (!metadataFile.isFile() || !objFile.isFile()) {
+                throw new NotFoundException("Object <" + path + "> doesn't exist");
+            }
             // Read metadata
             FileInputStream in = new FileInputStream(metadataFile.getAbsolutePath());
             int inpSize = in.available();
@@ -254,26 +485,38 @@ public class DataObjectDaoImpl implements DataObjectDao {
             dObj.fromJson(inBytes, true);
             // Close the output stream
             in.close();
-            // Read object from file
-            in = new FileInputStream(objFile.getAbsolutePath());
+            // Read object from file, in whichever tier the metadata says it is
+            String location = dObj.getMetadata().get(VALUE_LOCATION);
+            in = new FileInputStream(valueFile(objFile, location));
             inpSize = in.available();
             inBytes = new byte[inpSize];
             in.read(inBytes);
-            dObj.setValue(new String(inBytes));
+            dObj.setValue(new String(decodeValue(dObj.getMetadata().get(VALUE_FORMAT), inBytes)));
             // Close the output stream
             in.close();
+            if (tierStore != null) {
+                tierStore.recordAccess(path, location);
+            }
+            // change access time; it is persisted later, with other accesses, if at all
+            Date now = new Date();
+            SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+            dObj.setMetadata("cdmi_atime", sdf.format(now));
+            if (accessStats != null) {
+                long unpersisted = accessStats.recordAccess(path, now.getTime());
+                dObj.setMetadata("cdmi_acount", Long.toString(AccessStats.count(dObj
+                        .getMetadata().get("cdmi_acount")) + unpersisted));
+            }
+        } catch (NotFoundException ex) {
+            throw ex;
+        } catch (FileNotFoundException ex) {
+            // The value file, possibly in another tier, is gone although the fields are not
+            throw new NotFoundException("Object <" + path + "> doesn't exist");
         } catch (Exception ex) {
             ex.printStackTrace();
             System.out.println("Exception while reading: " + ex);
             throw new IllegalArgumentException("Cannot read Object @" + path + " error : " + ex);
-        }
-
-        if (dObj != null) {
-            // change access time
-            Date now = new Date();
-            SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
-            dObj.setMetadata("cdmi_atime", sdf.format(now));
-            // need to increment acount dObj.setMetadata("cdmi_acount", "0");
+        } finally {
+            pathLocks.readLock(path).unlock();
         }
         return dObj;
         // throw new UnsupportedOperationException("DataObjectDaoImpl.findByPath()");
@@ -281,7 +524,984 @@ public class DataObjectDaoImpl implements DataObjectDao {
 
     @Override
     public DataObject findByObjectId(String objectId) {
-        throw new UnsupportedOperationException("DataObjectDaoImpl.findByObjectId()");
+        String path = objectIdIndex.findPath(objectId);
+        if (path == null) {
+            return null;
+        }
+        return findByPath(path);
+    }
+
+    @Override
+    public byte[] readValue(String path, long offset, int length) {
+        CdmiPath target = parseObjectPath(path);
+        path = target.toString();
+        File objFile = target.toFile(baseDirectory);
+        File metadataFile = target.getFieldsFile(baseDirectory);
+        pathLocks.readLock(path).lock();
+        try {
+            Map<String, String> metadata = readMetadata(path, objFile, metadataFile).getMetadata();
+            String format = metadata.get(VALUE_FORMAT);
+            String location = metadata.get(VALUE_LOCATION);
+            File valueFile = valueFile(objFile, location);
+            if (tierStore != null) {
+                tierStore.recordAccess(path, location);
+            }
+            if (accessStats != null) {
+                accessStats.recordAccess(path, System.currentTimeMillis());
+            }
+            if (DEFLATE.equals(format) && valueCompressor != null) {
+                return valueCompressor.decompress(valueFile, offset, length);
+            }
+            if (CHUNKS.equals(format) && chunkStore != null) {
+                return chunkStore.load(FileUtils.readString(valueFile), offset, length);
+            }
+            if (format != null) {
+                return slice(decodeValue(format, FileUtils.readBytes(valueFile)), offset, length);
+            }
+            RandomAccessFile in = new RandomAccessFile(valueFile, "r");
+            try {
+                long size = in.length();
+                byte[] range = new byte[(int) Math.max(0, Math.min(length, size - offset))];
+                if (range.length > 0) {
+                    in.seek(offset);
+                    in.readFully(range);
+                }
+                return range;
+            } finally {
+                in.close();
+            }
+        } catch (NotFoundException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            System.out.println("Exception while reading: " + ex);
+            throw new IllegalArgumentException("Cannot read Object @" + path + " error : " + ex);
+        } finally {
+            pathLocks.readLock(path).unlock();
+        }
     }
+
+    @Override
+    public DataObject completeUpload(String path, String uploadID) {
+        if (uploadStore == null) {
+            throw new UnsupportedOperationException("DataObjectDaoImpl.completeUpload()");
+        }
+        Snapshots.checkWritable(path);
+        FileUtils.checkName(path);
+        CdmiPath target = parseObjectPath(path);
+        StagedObject object = new StagedObject(null,
+                                               target.toString(),
+                                               target.toFile(baseDirectory),
+                                               target.getFieldsFile(baseDirectory));
+        boolean published = false;
+        List<FileOutputStream> open = new ArrayList<FileOutputStream>();
+        try {
+            //
+            // Concatenate the parts outside of any lock; only the renames of publish() happen
+            // under the write lock of the object.
+            //
+            UploadStore.Assembly assembly = uploadStore.assemble(object.path,
+                                                                 uploadID,
+                                                                 object.objFile);
+            object.request = assembly.getRequest();
+            object.valueTemp = assembly.getValue();
+            boolean create = !object.metadataFile.exists();
+            stage(object, create, new Date(), open);
+            syncAndClose(open, false);
+            publish(object, create);
+            published = true;
+            uploadStore.finish(uploadID);
+            return object.dObj;
+        } catch (RuntimeException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            System.out.println("Exception while completing upload: " + ex);
+            throw new IllegalArgumentException("Cannot complete upload @" + path + " error : "
+                                               + ex);
+        } finally {
+            if (!published) {
+                uploadStore.release(uploadID);
+            }
+            closeQuietly(open);
+            object.discardTemporaries();
+        }
+    }
+
     // --------------------------------------------------------- Private Methods
+
+    private static byte[] slice(byte[] value, long offset, int length) {
+        byte[] range = new byte[(int) Math.max(0, Math.min(length, value.length - offset))];
+        if (range.length > 0) {
+            System.arraycopy(value, (int) offset, range, 0, range.length);
+        }
+        return range;
+    }
+
+    /**
+     * <p>
+     * Move the data object at <code>source</code> to <code>path</code>. The value file is
+     * renamed, not copied, and keeps its object ID; only the object ID index has to follow it.
+     * Both paths are write locked for the duration, so concurrent readers see the object either
+     * at its old path or at its new one.
+     * </p>
+     * 
+     * @param source
+     *            Path of the existing data object
+     * @param path
+     *            Path the data object is moved to
+     * @param dObj
+     *            Request; any metadata in it replaces the user metadata of the moved object
+     */
+    private DataObject moveByPath(String source, String path, DataObject dObj) {
+        CdmiPath target = parseObjectPath(path);
+        CdmiPath sourcePath = parseObjectPath(source);
+        path = target.toString();
+        source = sourcePath.toString();
+        File objFile = target.toFile(baseDirectory);
+        File metadataFile = target.getFieldsFile(baseDirectory);
+        File sourceObjFile = sourcePath.toFile(baseDirectory);
+        File sourceMetadataFile = sourcePath.getFieldsFile(baseDirectory);
+
+        pathLocks.lockWrite(source, path);
+        try {
+            DataObject moved = readMetadata(source, sourceObjFile, sourceMetadataFile);
+            checkTarget(objFile, metadataFile);
+            replaceUserMetadata(moved, dObj);
+            moved.setMetadata("fileName", objFile.getAbsolutePath());
+            moved.setMetadata("metadataFileName", metadataFile.getAbsolutePath());
+
+            //
+            // A move into a container of another domain moves the usage along
+            //
+            String sourceDomainURI = domainURI(source);
+            String domainURI = domainURI(path);
+            long size = 0;
+            if (accountDao != null && !sourceDomainURI.equals(domainURI)) {
+                size = ChunkStore.valueSize(sourceObjFile);
+                accountDao.charge(domainURI, size, 1);
+            }
+            File metadataTemp = FileUtils.writeTemporary(metadataFile, moved.metadataToJson());
+            if (!sourceObjFile.renameTo(objFile)) {
+                metadataTemp.delete();
+                if (accountDao != null && !sourceDomainURI.equals(domainURI)) {
+                    accountDao.adjust(domainURI, -size, -1);
+                }
+                throw new IllegalArgumentException("Cannot move Object @"
+                                                   + source
+                                                   + " to "
+                                                   + path);
+            }
+            if (accountDao != null && !sourceDomainURI.equals(domainURI)) {
+                accountDao.adjust(sourceDomainURI, -size, -1);
+            }
+            FileUtils.replace(metadataTemp, metadataFile);
+            sourceMetadataFile.delete();
+            if (versionStore != null) {
+                versionStore.move(source, path);
+            }
+
+            objectIdIndex.put(moved.getObjectID(), path);
+            changes.fire(Change.MOVE,
+                         MediaTypes.DATA_OBJECT,
+                         path,
+                         source,
+                         moved.getObjectID(),
+                         moved.getMetadata());
+            return moved;
+        } catch (RuntimeException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            System.out.println("Exception while moving: " + ex);
+            throw new IllegalArgumentException("Cannot move Object @" + source + " error : " + ex);
+        } finally {
+            pathLocks.unlockWrite(source, path);
+        }
+    }
+
+    /**
+     * <p>
+     * Create the data object at <code>path</code> holding the serialized form of the container
+     * tree or data object at <code>source</code>; see {@link ContainerArchive}. The archive is
+     * written to a temporary file next to the new object and published like a value, without
+     * compression or chunking, so a container created with <code>deserialize</code> can read
+     * it in place.
+     * </p>
+     * 
+     * @param source
+     *            Path of the container or data object to serialize
+     * @param path
+     *            Path of the new data object
+     * @param dObj
+     *            Request; its mimetype and metadata apply to the new data object
+     */
+    private DataObject serializeByPath(String source, String path, DataObject dObj) {
+        CdmiPath sourcePath = CdmiPath.parse(source);
+        File sourceFile = sourcePath.toFile(baseDirectory);
+        File sourceFields = sourcePath.isRoot() ? null : sourcePath.getFieldsFile(baseDirectory);
+        if (!sourceFile.exists() || (sourceFields != null && !sourceFields.isFile())) {
+            throw new NotFoundException("Object <" + source + "> doesn't exist");
+        }
+        if (sourceFile.isDirectory() && treeJobManager == null) {
+            throw new UnsupportedOperationException("DataObjectDaoImpl.serializeByPath()");
+        }
+        CdmiPath target = parseObjectPath(path);
+        StagedObject object = new StagedObject(null,
+                                               target.toString(),
+                                               target.toFile(baseDirectory),
+                                               target.getFieldsFile(baseDirectory));
+        dObj.setSerialize(null);
+        if (dObj.getMimetype() == null) {
+            dObj.setMimetype(ContainerArchive.MIMETYPE);
+        }
+        object.request = dObj;
+        List<FileOutputStream> open = new ArrayList<FileOutputStream>();
+        try {
+            checkTarget(object.objFile, object.metadataFile);
+            object.valueTemp = FileUtils.temporaryFile(object.objFile);
+            ContainerArchive.serialize(sourceFile,
+                                       sourceFields,
+                                       sourcePath.toString(),
+                                       object.valueTemp,
+                                       treeJobManager == null ? null : treeJobManager.newWalker(),
+                                       pathLocks,
+                                       chunkStore,
+                                       tierStore);
+            stage(object, true, new Date(), open);
+            syncAndClose(open, false);
+            publish(object, true);
+            return object.dObj;
+        } catch (RuntimeException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            System.out.println("Exception while serializing: " + ex);
+            throw new IllegalArgumentException("Cannot serialize @" + source + " error : " + ex);
+        } finally {
+            closeQuietly(open);
+            object.discardTemporaries();
+        }
+    }
+
+    /**
+     * <p>
+     * Copy the data object at <code>source</code> to <code>path</code> as a new data object with
+     * its own object ID. The value is cloned with {@link FileUtils#cloneFile(File, File)} into a
+     * temporary file first, so only the final renames happen under the write lock of the
+     * target.
+     * </p>
+     * 
+     * @param source
+     *            Path of the existing data object
+     * @param path
+     *            Path of the new data object
+     * @param dObj
+     *            Request; any metadata in it replaces the user metadata of the copy
+     */
+    private DataObject copyByPath(String source, String path, DataObject dObj) {
+        CdmiPath target = parseObjectPath(path);
+        CdmiPath sourcePath = parseObjectPath(source);
+        path = target.toString();
+        source = sourcePath.toString();
+        File objFile = target.toFile(baseDirectory);
+        File metadataFile = target.getFieldsFile(baseDirectory);
+        File sourceObjFile = sourcePath.toFile(baseDirectory);
+        File sourceMetadataFile = sourcePath.getFieldsFile(baseDirectory);
+
+        File valueTemp = null;
+        File metadataTemp = null;
+        try {
+            checkTarget(objFile, metadataFile);
+            DataObject copied;
+            valueTemp = FileUtils.temporaryFile(objFile);
+            pathLocks.readLock(source).lock();
+            try {
+                copied = readMetadata(source, sourceObjFile, sourceMetadataFile);
+                FileUtils.cloneFile(sourceObjFile, valueTemp);
+            } finally {
+                pathLocks.readLock(source).unlock();
+            }
+
+            replaceUserMetadata(copied, dObj);
+            copied.setObjectID(ObjectID.getObjectID(8));
+            Date now = new Date();
+            SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+            copied.setMetadata("cdmi_ctime", sdf.format(now));
+            copied.setMetadata("cdmi_atime", "never");
+            copied.setMetadata("cdmi_acount", "0");
+            copied.setMetadata("cdmi_mcount", "0");
+            copied.setMetadata("fileName", objFile.getAbsolutePath());
+            copied.setMetadata("metadataFileName", metadataFile.getAbsolutePath());
+            metadataTemp = FileUtils.writeTemporary(metadataFile, copied.metadataToJson());
+
+            pathLocks.writeLock(path).lock();
+            try {
+                checkTarget(objFile, metadataFile);
+                charge(path, ChunkStore.valueSize(valueTemp), 1);
+                FileUtils.replace(valueTemp, objFile);
+                valueTemp = null;
+                FileUtils.replace(metadataTemp, metadataFile);
+                metadataTemp = null;
+            } finally {
+                pathLocks.writeLock(path).unlock();
+            }
+
+            objectIdIndex.put(copied.getObjectID(), path);
+            changes.fire(Change.COPY,
+                         MediaTypes.DATA_OBJECT,
+                         path,
+                         source,
+                         copied.getObjectID(),
+                         copied.getMetadata());
+            return copied;
+        } catch (RuntimeException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            System.out.println("Exception while copying: " + ex);
+            throw new IllegalArgumentException("Cannot copy Object @" + source + " error : " + ex);
+        } finally {
+            if (valueTemp != null) {
+                valueTemp.delete();
+            }
+            if (metadataTemp != null) {
+                metadataTemp.delete();
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Apply a run of bulk operations on distinct names in three steps: stage the new values and
+     * metadata of every create and update in temporary files, sync all of them in one pass, then
+     * publish (rename into place, or delete) in request order. Compared with one request per
+     * object, the container is resolved once and syncs are grouped instead of interleaved with
+     * writes.
+     * </p>
+     */
+    private void applyRun(File containerDirectory, String prefix, List<BulkOperation> run) {
+        Date now = new Date();
+        List<StagedObject> staged = new ArrayList<StagedObject>(run.size());
+        List<FileOutputStream> open = new ArrayList<FileOutputStream>();
+        try {
+            for (BulkOperation operation : run) {
+                String op = operation.getOp();
+                String name = operation.getName();
+                if (name == null
+                    || name.length() == 0
+                    || name.indexOf('/') >= 0
+                    || name.startsWith(".")) {
+                    operation.setResult(400, "Invalid object name <" + name + ">");
+                    continue;
+                }
+                if (FileUtils.isReservedName(name)) {
+                    operation.setResult(400, "Name <" + name + "> is reserved");
+                    continue;
+                }
+                if (!BulkOperation.CREATE.equals(op)
+                    && !BulkOperation.UPDATE.equals(op)
+                    && !BulkOperation.DELETE.equals(op)) {
+                    operation.setResult(400, "Invalid operation <" + op + ">");
+                    continue;
+                }
+                StagedObject object = new StagedObject(operation,
+                                                       prefix + name,
+                                                       new File(containerDirectory, name),
+                                                       new File(containerDirectory, "." + name));
+                object.request = operation.getDataObject();
+                try {
+                    if (!BulkOperation.DELETE.equals(op)) {
+                        stage(object, BulkOperation.CREATE.equals(op), now, open);
+                    }
+                    staged.add(object);
+                } catch (Exception ex) {
+                    setFailure(operation, ex);
+                }
+            }
+
+            try {
+                syncAndClose(open, syncBulkWrites);
+            } catch (IOException ex) {
+                for (StagedObject object : staged) {
+                    setFailure(object.operation, ex);
+                }
+                return;
+            }
+
+            for (StagedObject object : staged) {
+                String op = object.operation.getOp();
+                try {
+                    if (BulkOperation.DELETE.equals(op)) {
+                        deleteObject(object.path, object.objFile, object.metadataFile);
+                        object.operation.setResult(200, null);
+                    } else {
+                        boolean create = BulkOperation.CREATE.equals(op);
+                        publish(object, create);
+                        object.operation.setDataObject(object.dObj);
+                        object.operation.setResult(create ? 201 : 200, null);
+                    }
+                } catch (Exception ex) {
+                    setFailure(object.operation, ex);
+                }
+            }
+        } finally {
+            closeQuietly(open);
+            for (StagedObject object : staged) {
+                object.discardTemporaries();
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Prepare the data object for a create or update and write its new value (if any) and
+     * metadata to temporary files. The streams of those files are left open in
+     * <code>open</code> so the caller can sync them as a group.
+     * </p>
+     */
+    private void stage(StagedObject object, boolean create, Date now, List<FileOutputStream> open)
+            throws Exception {
+        DataObject dObj;
+        if (create) {
+            if (object.objFile.exists()) {
+                throw new ConflictException("Object File <"
+                                            + object.objFile.getAbsolutePath()
+                                            + "> exists");
+            }
+            dObj = object.request;
+            if (dObj.getValue() == null) {
+                dObj.setValue("");
+            }
+            dObj.setObjectType("application/cdmi-object");
+            initializeNewObject(dObj, object.objFile, object.metadataFile, now);
+        } else {
+            pathLocks.readLock(object.path).lock();
+            try {
+                dObj = readMetadata(object.path, object.objFile, object.metadataFile);
+            } finally {
+                pathLocks.readLock(object.path).unlock();
+            }
+            object.previousMimetype = dObj.getMimetype();
+            object.previousFormat = dObj.getMetadata().get(VALUE_FORMAT);
+            object.previousTime = dObj.getMetadata().get("cdmi_mtime");
+            if (object.previousTime == null) {
+                object.previousTime = dObj.getMetadata().get("cdmi_ctime");
+            }
+            DataObject request = object.request;
+            replaceUserMetadata(dObj, request);
+            if (request.getValue() != null) {
+                dObj.setValue(request.getValue());
+                dObj.setMetadata("cdmi_size", request.getValue().length() + "");
+            }
+            if (request.getMimetype() != null) {
+                dObj.setMimetype(request.getMimetype());
+                dObj.setMetadata("mimetype", request.getMimetype());
+            }
+            SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+            dObj.setMetadata("cdmi_mtime", sdf.format(now));
+            dObj.setMetadata("cdmi_mcount", Long.toString(AccessStats.count(dObj.getMetadata()
+                    .get("cdmi_mcount")) + 1));
+        }
+        object.dObj = dObj;
+        if (object.valueTemp != null) {
+            // Value staged by the caller, as is: the concatenated parts of an upload
+            dObj.setValue(null);
+            dObj.setMetadata("cdmi_size", Long.toString(object.valueTemp.length()));
+            dObj.getMetadata().remove(VALUE_FORMAT);
+            dObj.getMetadata().remove(VALUE_LOCATION);
+        } else if (dObj.getValue() != null) {
+            object.valueTemp = writeStaged(object.objFile, encodeValue(object.path, dObj), open);
+        }
+        object.metadataTemp = writeStaged(object.metadataFile, dObj.metadataToJson(), open);
+    }
+
+    /**
+     * <p>
+     * Move the staged files of a create or update into place under the write lock of the
+     * object, value first.
+     * </p>
+     */
+    private void publish(StagedObject object, boolean create) throws IOException {
+        pathLocks.writeLock(object.path).lock();
+        try {
+            if (create && object.objFile.exists()) {
+                throw new ConflictException("Object File <"
+                                            + object.objFile.getAbsolutePath()
+                                            + "> exists");
+            }
+            if (!create && !object.metadataFile.exists()) {
+                throw new NotFoundException("Object <" + object.path + "> doesn't exist");
+            }
+            String location = null;
+            if (!create) {
+                Map<String, String> current = currentMetadata(object);
+                location = current.get(VALUE_LOCATION);
+                if (refreshMetadata(object, current)) {
+                    restageMetadata(object);
+                }
+            }
+            long size = 0;
+            if (object.valueTemp != null) {
+                size = ChunkStore.valueSize(object.valueTemp);
+                if (object.objFile.isFile()) {
+                    size -= ChunkStore.valueSize(object.objFile);
+                }
+            }
+            charge(object.path, size, create ? 1 : 0);
+            if (!create
+                && object.valueTemp != null
+                && versionStore != null
+                && versionStore.isVersioned(containerPath(object.path))
+                && object.objFile.isFile()) {
+                byte[] previous = FileUtils.readBytes(valueFile(object.objFile, location));
+                versionStore.record(object.path,
+                                    decodeValue(object.previousFormat, previous),
+                                    object.previousMimetype,
+                                    object.previousTime);
+            }
+            try {
+                if (object.valueTemp != null) {
+                    FileUtils.replace(object.valueTemp, object.objFile);
+                    object.valueTemp = null;
+                }
+                FileUtils.replace(object.metadataTemp, object.metadataFile);
+                object.metadataTemp = null;
+            } catch (IOException ex) {
+                if (object.valueTemp != null) {
+                    adjust(object.path, -size, create ? -1 : 0);
+                }
+                throw ex;
+            }
+        } finally {
+            pathLocks.writeLock(object.path).unlock();
+        }
+        objectIdIndex.put(object.dObj.getObjectID(), object.path);
+        changes.fire(create ? Change.CREATE : Change.UPDATE,
+                     MediaTypes.DATA_OBJECT,
+                     object.path,
+                     null,
+                     object.dObj.getObjectID(),
+                     object.dObj.getMetadata());
+    }
+
+    /**
+     * <p>
+     * Delete the value and metadata files of a data object under its write lock.
+     * </p>
+     * 
+     * @exception NotFoundException
+     *                if there is no data object at the specified path
+     */
+    private void deleteObject(String path, File objFile, File metadataFile) {
+        String objectID = null;
+        pathLocks.writeLock(path).lock();
+        try {
+            if (!metadataFile.exists() && !objFile.exists()) {
+                throw new NotFoundException("Object <" + path + "> doesn't exist");
+            }
+            if (objFile.isDirectory()) {
+                throw new IllegalArgumentException("Path <" + path + "> is a container");
+            }
+            if (metadataFile.exists()) {
+                try {
+                    objectID = readMetadata(path, objFile, metadataFile).getObjectID();
+                } catch (Exception ex) {
+                    // Unreadable metadata; delete the files anyway
+                }
+            }
+            long size = objFile.isFile() ? ChunkStore.valueSize(objFile) : -1;
+            if (objFile.delete() && size >= 0) {
+                adjust(path, -size, -1);
+            }
+            metadataFile.delete();
+            if (versionStore != null) {
+                versionStore.delete(path);
+            }
+            objectIdIndex.remove(objectID, path);
+        } finally {
+            pathLocks.writeLock(path).unlock();
+        }
+        changes.fire(Change.DELETE, MediaTypes.DATA_OBJECT, path, null, objectID, null);
+    }
+
+    /**
+     * <p>
+     * Write the specified text to a temporary file next to <code>target</code>, leaving the
+     * stream open in <code>open</code>.
+     * </p>
+     */
+    private File writeStaged(File target, String content, List<FileOutputStream> open)
+            throws IOException {
+        return writeStaged(target, content.getBytes(), open);
+    }
+
+    /**
+     * <p>
+     * Write the specified bytes to a temporary file next to <code>target</code>, leaving the
+     * stream open in <code>open</code>.
+     * </p>
+     */
+    private File writeStaged(File target, byte[] content, List<FileOutputStream> open)
+            throws IOException {
+        File temporary = FileUtils.temporaryFile(target);
+        FileOutputStream out = new FileOutputStream(temporary);
+        open.add(out);
+        out.write(content);
+        return temporary;
+    }
+
+    /**
+     * <p>
+     * Optionally sync, then close, all of the specified streams.
+     * </p>
+     */
+    private void syncAndClose(List<FileOutputStream> open, boolean sync) throws IOException {
+        while (!open.isEmpty()) {
+            FileOutputStream out = open.get(open.size() - 1);
+            if (sync) {
+                out.getFD().sync();
+            }
+            out.close();
+            open.remove(open.size() - 1);
+        }
+    }
+
+    private void closeQuietly(List<FileOutputStream> open) {
+        for (FileOutputStream out : open) {
+            try {
+                out.close();
+            } catch (IOException ex) {
+                // Ignore
+            }
+        }
+        open.clear();
+    }
+
+    /**
+     * <p>
+     * Return the URI of the domain the data object at <code>path</code> is charged to: the
+     * domain of its container.
+     * </p>
+     */
+    private String domainURI(String path) {
+        if (containerDao == null) {
+            return ContainerDaoImpl.DEFAULT_DOMAIN_URI;
+        }
+        return containerDao.findDomainURI(containerPath(path));
+    }
+
+    /**
+     * <p>
+     * Charge the domain of the data object at <code>path</code>, enforcing its quotas.
+     * </p>
+     * 
+     * @exception ForbiddenException
+     *                if a quota of the domain would be exceeded
+     */
+    private void charge(String path, long bytes, long objects) {
+        if (accountDao != null && (bytes != 0 || objects != 0)) {
+            accountDao.charge(domainURI(path), bytes, objects);
+        }
+    }
+
+    /**
+     * <p>
+     * Adjust the usage of the domain of the data object at <code>path</code> without a quota
+     * check; used for deletes and to undo a charge.
+     * </p>
+     */
+    private void adjust(String path, long bytes, long objects) {
+        if (accountDao != null && (bytes != 0 || objects != 0)) {
+            accountDao.adjust(domainURI(path), bytes, objects);
+        }
+    }
+
+    /**
+     * <p>
+     * Record a failed bulk operation with the HTTP status matching the exception.
+     * </p>
+     */
+    private void setFailure(BulkOperation operation, Exception ex) {
+        if (ex instanceof CdmiException) {
+            operation.setResult(((CdmiException) ex).getStatus(), ex.getMessage());
+        } else {
+            ex.printStackTrace();
+            operation.setResult(500, ex.toString());
+        }
+    }
+
+    /**
+     * <p>
+     * A data object on its way through <code>stage()</code> and <code>publish()</code>.
+     * </p>
+     */
+    private static final class StagedObject {
+
+        private final BulkOperation operation;
+        private final String path;
+        private final File objFile;
+        private final File metadataFile;
+        private DataObject request;
+        private DataObject dObj;
+        private File valueTemp;
+        private File metadataTemp;
+        private String previousMimetype;
+        private String previousFormat;
+        private String previousTime;
+
+        private StagedObject(BulkOperation operation, String path, File objFile, File metadataFile) {
+            this.operation = operation;
+            this.path = path;
+            this.objFile = objFile;
+            this.metadataFile = metadataFile;
+        }
+
+        private void discardTemporaries() {
+            if (valueTemp != null) {
+                valueTemp.delete();
+            }
+            if (metadataTemp != null) {
+                metadataTemp.delete();
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Fill in the system fields and metadata of a data object about to be created.
+     * </p>
+     */
+    private void initializeNewObject(DataObject dObj, File objFile, File metadataFile, Date now) {
+        // dObj.setObjectURI(path); // TBD Correct
+        // Make object ID
+        String objectID = dObj.getObjectID();
+        if (objectID == null) {
+            objectID = ObjectID.getObjectID(8);//System.nanoTime()+"";
+            dObj.setObjectID(objectID);
+        }
+        // dObj.setObjectURI(directory.getAbsolutePath()+"/"+objectID);
+        dObj.setCapabilitiesURI("/cdmi_capabilities/dataobject");
+        // Add metadata
+        String val = "" + dObj.getValue();
+        dObj.setMetadata("cdmi_size", val.length() + "");
+        // ISO-8601 Date
+        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+        dObj.setMetadata("cdmi_ctime", sdf.format(now));
+        dObj.setMetadata("cdmi_atime", "never");
+        dObj.setMetadata("cdmi_acount", "0");
+        dObj.setMetadata("cdmi_mcount", "0");
+        // Create file
+        dObj.setMetadata("fileName", objFile.getAbsolutePath());
+        dObj.setMetadata("metadataFileName", metadataFile.getAbsolutePath());
+        String mimeType = dObj.getMimetype();
+        if (mimeType == null) {
+            mimeType = "text/plain";
+            dObj.setMimetype(mimeType);
+        }
+        dObj.setMetadata("mimetype", mimeType);
+    }
+
+    /**
+     * <p>
+     * Return the content to write to the value file of the data object at <code>path</code>,
+     * and record its format in the metadata: compressed blocks if its container asks for
+     * compression and the value compresses well, else a chunk manifest for values the
+     * {@link ChunkStore} accepts, else the value itself.
+     * </p>
+     */
+    private byte[] encodeValue(String path, DataObject dObj) throws IOException {
+        byte[] value = dObj.getValue().getBytes();
+        dObj.getMetadata().remove(VALUE_LOCATION);
+        if (valueCompressor != null) {
+            int level = valueCompressor.level(containerPath(path));
+            byte[] compressed = level < 0 ? null : valueCompressor.compress(value, level);
+            if (compressed != null) {
+                dObj.setMetadata(VALUE_FORMAT, DEFLATE);
+                return compressed;
+            }
+        }
+        if (chunkStore != null && chunkStore.accepts(value.length)) {
+            dObj.setMetadata(VALUE_FORMAT, CHUNKS);
+            return chunkStore.store(value).getBytes("ISO-8859-1");
+        }
+        dObj.getMetadata().remove(VALUE_FORMAT);
+        return value;
+    }
+
+    /**
+     * <p>
+     * Return the value held by the content of a value file in the specified format.
+     * </p>
+     */
+    private byte[] decodeValue(String format, byte[] content) throws IOException {
+        if (format == null) {
+            return content;
+        }
+        if (CHUNKS.equals(format) && chunkStore != null) {
+            return chunkStore.load(new String(content, "ISO-8859-1"));
+        }
+        if (DEFLATE.equals(format) && valueCompressor != null) {
+            return valueCompressor.decompress(content);
+        }
+        throw new IOException("Unsupported value format '" + format + "'");
+    }
+
+    /**
+     * <p>
+     * Return the file holding the value of a data object: its value file, or the file of the
+     * capacity tier at <code>location</code> if it was demoted.
+     * </p>
+     */
+    private File valueFile(File objFile, String location) throws IOException {
+        if (location == null) {
+            return objFile;
+        }
+        if (tierStore == null) {
+            throw new IOException("No tier store to read '" + location + "'");
+        }
+        return tierStore.file(location);
+    }
+
+    /**
+     * <p>
+     * Return the persisted metadata of a staged object, under its write lock.
+     * </p>
+     */
+    private Map<String, String> currentMetadata(StagedObject object) throws IOException {
+        try {
+            return readMetadata(object.path, object.objFile, object.metadataFile).getMetadata();
+        } catch (IOException ex) {
+            throw ex;
+        } catch (RuntimeException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new IOException("Cannot read fields: " + ex);
+        }
+    }
+
+    /**
+     * <p>
+     * Bring the staged metadata of an update up to date with the metadata maintained since it
+     * was staged without a write: the access statistics flushed by the {@link AccessStats},
+     * the modification count of concurrent updates, and the tier of a value the update leaves
+     * alone. Return <code>true</code> if anything changed.
+     * </p>
+     */
+    private static boolean refreshMetadata(StagedObject object, Map<String, String> current) {
+        Map<String, String> staged = object.dObj.getMetadata();
+        boolean changed = update(staged, "cdmi_atime", current.get("cdmi_atime"));
+        changed |= update(staged, "cdmi_acount", current.get("cdmi_acount"));
+        changed |= update(staged, "cdmi_mcount", Long.toString(AccessStats.count(current
+                .get("cdmi_mcount")) + 1));
+        if (object.valueTemp == null) {
+            changed |= update(staged, VALUE_LOCATION, current.get(VALUE_LOCATION));
+        }
+        return changed;
+    }
+
+    private static boolean update(Map<String, String> metadata, String key, String value) {
+        if (equal(metadata.get(key), value)) {
+            return false;
+        }
+        if (value == null) {
+            metadata.remove(key);
+        } else {
+            metadata.put(key, value);
+        }
+        return true;
+    }
+
+    /**
+     * <p>
+     * Rewrite the staged metadata of an update after {@link #refreshMetadata}.
+     * </p>
+     */
+    private void restageMetadata(StagedObject object) throws IOException {
+        String json;
+        try {
+            json = object.dObj.metadataToJson();
+        } catch (Exception ex) {
+            throw new IOException("Cannot write fields: " + ex);
+        }
+        File metadataTemp = FileUtils.writeTemporary(object.metadataFile, json);
+        object.metadataTemp.delete();
+        object.metadataTemp = metadataTemp;
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * <p>
+     * Read the persisted fields of the data object at <code>path</code>, without its value.
+     * </p>
+     * 
+     * @exception NotFoundException
+     *                if there is no data object at the specified path
+     */
+    private DataObject readMetadata(String path, File objFile, File metadataFile)
+            throws Exception {
+        if (!metadataFile.exists() || !objFile.isFile()) {
+            throw new NotFoundException("Object <" + path + "> doesn't exist");
+        }
+        DataObject dObj = new DataObject();
+        FileInputStream in = new FileInputStream(metadataFile);
+        try {
+            dObj.fromJson(in, true);
+        } finally {
+            in.close();
+        }
+        return dObj;
+    }
+
+    /**
+     * <p>
+     * Ensure nothing exists yet at the target of a copy or move.
+     * </p>
+     * 
+     * @exception ConflictException
+     *                if a data object or container exists at the target
+     */
+    private void checkTarget(File objFile, File metadataFile) {
+        if (!objFile.getParentFile().isDirectory()) {
+            throw new ConflictException("Container <"
+                                        + objFile.getParentFile().getAbsolutePath()
+                                        + "> doesn't exist");
+        }
+        if (objFile.exists() || metadataFile.exists()) {
+            throw new ConflictException("Object File <" + objFile.getAbsolutePath() + "> exists");
+        }
+    }
+
+    /**
+     * <p>
+     * If the request carries metadata, replace the user metadata of the target with it, keeping
+     * the system metadata (<code>cdmi_*</code> and the file bookkeeping) of the target.
+     * </p>
+     */
+    private void replaceUserMetadata(DataObject target, DataObject request) {
+        if (request.getMetadata().isEmpty()) {
+            return;
+        }
+        Iterator<Map.Entry<String, String>> it = target.getMetadata().entrySet().iterator();
+        while (it.hasNext()) {
+            String key = it.next().getKey();
+            if (!key.startsWith("cdmi_")
+                && !"fileName".equals(key)
+                && !"metadataFileName".equals(key)
+                && !VALUE_FORMAT.equals(key)
+                && !VALUE_LOCATION.equals(key)
+                && !"mimetype".equals(key)) {
+                it.remove();
+            }
+        }
+        for (Map.Entry<String, String> entry : request.getMetadata().entrySet()) {
+            if (!entry.getKey().startsWith("cdmi_")
+                && !VALUE_FORMAT.equals(entry.getKey())
+                && !VALUE_LOCATION.equals(entry.getKey())) {
+                target.setMetadata(entry.getKey(), entry.getValue());
+            }
+        }
+    }
 }
@@ -0,0 +1,297 @@
+/*
+ * Copyright (c) 2010, Sun Microsystems, Inc.
+ * Copyright (c) 2010, The Storage Networking Industry Association.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ * Redistributions of source code must retain the above copyright notice, 
+ * this list of conditions and the following disclaimer.
+ *  
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ *  
+ * Neither the name of The Storage Networking Industry Association (SNIA) nor 
+ * the names of its contributors may be used to endorse or promote products 
+ * derived from this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF 
+ *  THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.snia.cdmiserver.dao.filesystem;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+import org.snia.cdmiserver.exception.BadRequestException;
+import org.snia.cdmiserver.util.CdmiPath;
+
+/**
+ * <p>
+ * Static helpers for moving bytes between files in the backing store.
+ * </p>
+ */
+final class FileUtils {
+
+    /**
+     * <p>
+     * Private constructor to prohibit instantiation.
+     * </p>
+     */
+    private FileUtils() {}
+
+    /**
+     * <p>
+     * Copy the contents of one file to another with {@link FileChannel#transferTo}, which lets
+     * the kernel move the data (<code>sendfile</code> on Linux) instead of pulling it through
+     * the Java heap. The target is created or truncated, and gets the source's modification
+     * time.
+     * </p>
+     * 
+     * @param source
+     *            File to copy from
+     * @param target
+     *            File to copy to
+     */
+    static void cloneFile(File source, File target) throws IOException {
+        FileInputStream in = new FileInputStream(source);
+        try {
+            FileOutputStream out = new FileOutputStream(target);
+            try {
+                transfer(in.getChannel(), out.getChannel());
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        target.setLastModified(source.lastModified());
+    }
+
+    /**
+     * <p>
+     * Transfer everything from the current position of <code>from</code> to its end onto
+     * <code>to</code>.
+     * </p>
+     */
+    static long transfer(FileChannel from, FileChannel to) throws IOException {
+        long position = from.position();
+        long size = from.size();
+        while (position < size) {
+            long count = from.transferTo(position, size - position, to);
+            if (count <= 0) {
+                throw new IOException("Transfer stalled at offset " + position + " of " + size);
+            }
+            position += count;
+        }
+        return size;
+    }
+
+    /**
+     * <p>
+     * Transfer <code>count</code> bytes of <code>from</code>, starting at
+     * <code>position</code>, onto <code>to</code>. The position of <code>from</code> is not
+     * used, so several threads may transfer from the same channel at once.
+     * </p>
+     */
+    static void transfer(FileChannel from, long position, long count, FileChannel to)
+            throws IOException {
+        long end = position + count;
+        while (position < end) {
+            long n = from.transferTo(position, end - position, to);
+            if (n <= 0) {
+                throw new IOException("Transfer stalled at offset " + position + " of " + end);
+            }
+            position += n;
+        }
+    }
+
+    /**
+     * <p>
+     * Prefix of the names of temporary files. They start with "." so container listings skip
+     * them, and with "~" so they are never mistaken for the "." file of an object.
+     * </p>
+     */
+    static final String TEMPORARY_PREFIX = ".~";
+
+    /**
+     * <p>
+     * Return <code>true</code> if the specified file is a temporary file created by
+     * {@link #temporaryFile(File)}.
+     * </p>
+     */
+    static boolean isTemporary(File file) {
+        return file.getName().startsWith(TEMPORARY_PREFIX);
+    }
+
+    /**
+     * <p>
+     * Return <code>true</code> if the "." file of an object with the specified name would be
+     * the directory keeping the versions of a sibling data object, or the values of a sibling
+     * queue: the name ends with <code>.versions</code> or <code>.queue</code>.
+     * </p>
+     */
+    static boolean isReservedName(String name) {
+        return name.endsWith(VersionStore.VERSIONS_SUFFIX)
+               || name.endsWith(QueueDaoImpl.QUEUE_SUFFIX);
+    }
+
+    /**
+     * <p>
+     * Reject creating an object at a path whose name is reserved.
+     * </p>
+     * 
+     * @exception BadRequestException
+     *                if the name of the path is reserved
+     */
+    static void checkName(String path) {
+        if (path == null) {
+            return;
+        }
+        String name = CdmiPath.parse(path).getName();
+        if (isReservedName(name)) {
+            throw new BadRequestException("Name <" + name + "> is reserved");
+        }
+    }
+
+    /**
+     * <p>
+     * Return a new, unique temporary file in the same directory as (and so on the same
+     * filesystem as) the specified target, suitable for {@link #replace(File, File)}.
+     * </p>
+     */
+    static File temporaryFile(File target) throws IOException {
+        return File.createTempFile(TEMPORARY_PREFIX + target.getName() + ".", "", target
+                .getParentFile());
+    }
+
+    /**
+     * <p>
+     * Atomically replace <code>target</code> with <code>temporary</code>. Readers see either the
+     * old file or the new one, never a partially written file. Because the target's directory
+     * entry is swapped rather than its contents rewritten, any other hard links to the old file
+     * keep the old contents.
+     * </p>
+     */
+    static void replace(File temporary, File target) throws IOException {
+        if (!temporary.renameTo(target)) {
+            temporary.delete();
+            throw new IOException("Cannot rename '" + temporary + "' to '" + target + "'");
+        }
+    }
+
+    /**
+     * <p>
+     * Write the specified text to a temporary file next to <code>target</code> and return that
+     * file, ready to be moved into place with {@link #replace(File, File)}. The text is encoded
+     * with the platform default charset, like the rest of the backing store.
+     * </p>
+     */
+    static File writeTemporary(File target, String content) throws IOException {
+        return writeTemporary(target, content.getBytes());
+    }
+
+    /**
+     * <p>
+     * Write the specified bytes to a temporary file next to <code>target</code> and return that
+     * file, ready to be moved into place with {@link #replace(File, File)}.
+     * </p>
+     */
+    static File writeTemporary(File target, byte[] content) throws IOException {
+        File temporary = temporaryFile(target);
+        try {
+            FileOutputStream out = new FileOutputStream(temporary);
+            try {
+                out.write(content);
+            } finally {
+                out.close();
+            }
+        } catch (IOException ex) {
+            temporary.delete();
+            throw ex;
+        }
+        return temporary;
+    }
+
+    /**
+     * <p>
+     * Atomically replace the contents of <code>target</code> with the specified text.
+     * </p>
+     */
+    static void writeAtomically(File target, String content) throws IOException {
+        replace(writeTemporary(target, content), target);
+    }
+
+    /**
+     * <p>
+     * Atomically replace the contents of <code>target</code> with the specified bytes.
+     * </p>
+     */
+    static void writeAtomically(File target, byte[] content, int offset, int length)
+            throws IOException {
+        File temporary = temporaryFile(target);
+        try {
+            FileOutputStream out = new FileOutputStream(temporary);
+            try {
+                out.write(content, offset, length);
+            } finally {
+                out.close();
+            }
+        } catch (IOException ex) {
+            temporary.delete();
+            throw ex;
+        }
+        replace(temporary, target);
+    }
+
+    /**
+     * <p>
+     * Read the whole of the specified file as text in the platform default charset.
+     * </p>
+     */
+    static String readString(File file) throws IOException {
+        return new String(readBytes(file));
+    }
+
+    /**
+     * <p>
+     * Read the whole of the specified file.
+     * </p>
+     */
+    static byte[] readBytes(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            byte[] bytes = new byte[(int) file.length()];
+            int count = 0;
+            while (count < bytes.length) {
+                int n = in.read(bytes, count, bytes.length - count);
+                if (n < 0) {
+                    break;
+                }
+                count += n;
+            }
+            if (count < bytes.length) {
+                byte[] read = new byte[count];
+                System.arraycopy(bytes, 0, read, 0, count);
+                return read;
+            }
+            return bytes;
+        } finally {
+            in.close();
+        }
+    }
+
+}
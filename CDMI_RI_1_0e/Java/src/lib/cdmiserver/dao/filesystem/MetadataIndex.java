@@ -0,0 +1,608 @@
+/*
+ * Copyright (c) 2010, Sun Microsystems, Inc.
+ * Copyright (c) 2010, The Storage Networking Industry Association.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ * Redistributions of source code must retain the above copyright notice, 
+ * this list of conditions and the following disclaimer.
+ *  
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ *  
+ * Neither the name of The Storage Networking Industry Association (SNIA) nor 
+ * the names of its contributors may be used to endorse or promote products 
+ * derived from this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF 
+ *  THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.snia.cdmiserver.dao.filesystem;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.snia.cdmiserver.dao.ChangeListener;
+import org.snia.cdmiserver.exception.BadRequestException;
+import org.snia.cdmiserver.model.Change;
+
+/**
+ * <p>
+ * In-memory secondary indexes on selected metadata keys of containers, data objects and
+ * queues, kept up to date as a {@link ChangeListener}. Keys configured as hash keys support
+ * equality lookups; keys configured as sorted keys also support range lookups. Each value is
+ * parsed once, when it is indexed, into a {@link SortKey}: numbers sort numerically (so
+ * <code>cdmi_size</code> ranges work) before ISO-8601 times, which sort by time (so
+ * <code>cdmi_ctime</code> ranges work), before everything else, which sorts as strings.
+ * </p>
+ * 
+ * <p>
+ * Only indexed keys can be queried. Each query is driven by one condition, preferring an
+ * equality, and the other conditions are checked against the indexed values of each
+ * candidate, so no intermediate result set is built.
+ * </p>
+ */
+public class MetadataIndex implements ChangeListener {
+
+    private static final String[] OPERATORS = { ">=", "<=", "==", ">", "<" };
+
+    private static final int STRIPES = 256;
+
+    // Postings per indexed key: value -> paths
+    private final Map<String, ConcurrentMap<SortKey, Set<String>>> indexes =
+            new HashMap<String, ConcurrentMap<SortKey, Set<String>>>();
+
+    // Indexed values per path, for updates, deletes and checking conditions
+    private final ConcurrentSkipListMap<String, Map<String, SortKey>> indexed =
+            new ConcurrentSkipListMap<String, Map<String, SortKey>>();
+
+    private final Object[] locks = new Object[STRIPES];
+
+    public MetadataIndex() {
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    // -------------------------------------------------------------- Properties
+
+    /**
+     * <p>
+     * Set the metadata keys indexed for equality lookups. Must be called before the index is
+     * used.
+     * </p>
+     */
+    public void setHashKeys(List<String> keys) {
+        for (String key : keys) {
+            indexes.put(key, new ConcurrentHashMap<SortKey, Set<String>>());
+        }
+    }
+
+    /**
+     * <p>
+     * Set the metadata keys indexed for equality and range lookups. Must be called before the
+     * index is used.
+     * </p>
+     */
+    public void setSortedKeys(List<String> keys) {
+        for (String key : keys) {
+            indexes.put(key, new ConcurrentSkipListMap<SortKey, Set<String>>());
+        }
+    }
+
+    // ------------------------------------------------- ChangeListener Methods
+    @Override
+    public void changed(Change change) {
+        String operation = change.getOperation();
+        if (Change.DELETE.equals(operation)) {
+            remove(change.getPath());
+            removeBelow(change.getPath());
+        } else if (Change.MOVE.equals(operation)) {
+            remove(change.getSource());
+            moveBelow(change.getSource(), change.getPath());
+            put(change.getPath(), change.getMetadata());
+        } else {
+            put(change.getPath(), change.getMetadata());
+        }
+    }
+
+    // ---------------------------------------------------------- Public Methods
+
+    /**
+     * <p>
+     * Index the metadata of the object at the specified path, replacing what was indexed for
+     * it before.
+     * </p>
+     */
+    public void put(String path, Map<String, String> metadata) {
+        if (metadata == null) {
+            return;
+        }
+        Map<String, SortKey> values = new HashMap<String, SortKey>();
+        for (String key : indexes.keySet()) {
+            String value = metadata.get(key);
+            if (value != null) {
+                values.put(key, SortKey.parse(value));
+            }
+        }
+        putValues(path, values);
+    }
+
+    /**
+     * <p>
+     * Forget the object at the specified path.
+     * </p>
+     */
+    public void remove(String path) {
+        synchronized (lock(path)) {
+            Map<String, SortKey> previous = indexed.remove(path);
+            if (previous != null) {
+                for (Map.Entry<String, SortKey> entry : previous.entrySet()) {
+                    removePosting(indexes.get(entry.getKey()), entry.getValue(), path);
+                }
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Return the number of indexed objects.
+     * </p>
+     */
+    public int size() {
+        return indexed.size();
+    }
+
+    /**
+     * <p>
+     * Return the paths of up to <code>limit</code> objects at or below <code>scope</code>
+     * (everywhere if empty) whose metadata satisfies every condition. Conditions map a
+     * metadata key to an operator and operand, such as <code>"== red"</code> or
+     * <code>"&gt;= 2010-06-01"</code>; the operators are <code>==</code>, <code>&lt;</code>,
+     * <code>&lt;=</code>, <code>&gt;</code> and <code>&gt;=</code>, and a bare operand means
+     * <code>==</code>.
+     * </p>
+     * 
+     * @exception BadRequestException
+     *                if a condition is malformed or its key is not indexed, or a range is
+     *                requested on a key that is only hash indexed
+     */
+    public List<String> query(String scope, Map<String, String> conditions, int limit) {
+        if (conditions.isEmpty()) {
+            throw new BadRequestException("A query needs at least one metadata condition");
+        }
+        scope = ChangeSupport.normalize(scope);
+        List<Condition> parsed = new ArrayList<Condition>(conditions.size());
+        Condition driver = null;
+        for (Map.Entry<String, String> entry : conditions.entrySet()) {
+            String[] text = parseCondition(entry.getKey(), entry.getValue());
+            ConcurrentMap<SortKey, Set<String>> index = indexes.get(text[0]);
+            if (index == null) {
+                throw new BadRequestException("Metadata <" + text[0] + "> is not indexed");
+            }
+            if (!"==".equals(text[1]) && !(index instanceof ConcurrentNavigableMap)) {
+                throw new BadRequestException("Metadata <" + text[0] + "> only supports equality");
+            }
+            Condition condition = new Condition(text[0], text[1], SortKey.parse(text[2]));
+            parsed.add(condition);
+            if (driver == null
+                || ("==".equals(condition.operator) && !"==".equals(driver.operator))) {
+                driver = condition;
+            }
+        }
+
+        List<String> results = new ArrayList<String>();
+        Set<String> seen = new HashSet<String>();
+        for (Set<String> paths : candidates(driver)) {
+            for (String path : paths) {
+                if (results.size() >= limit) {
+                    return results;
+                }
+                if (isInScope(path, scope) && seen.add(path) && satisfies(path, parsed)) {
+                    results.add(path);
+                }
+            }
+        }
+        return results;
+    }
+
+    // --------------------------------------------------------- Private Methods
+
+    private Object lock(String path) {
+        return locks[(path.hashCode() & 0x7fffffff) % STRIPES];
+    }
+
+    private void putValues(String path, Map<String, SortKey> values) {
+        synchronized (lock(path)) {
+            Map<String, SortKey> previous = values.isEmpty()
+                ? indexed.remove(path)
+                : indexed.put(path, values);
+            if (previous != null) {
+                for (Map.Entry<String, SortKey> entry : previous.entrySet()) {
+                    if (!entry.getValue().equals(values.get(entry.getKey()))) {
+                        removePosting(indexes.get(entry.getKey()), entry.getValue(), path);
+                    }
+                }
+            }
+            for (Map.Entry<String, SortKey> entry : values.entrySet()) {
+                if (previous == null || !entry.getValue().equals(previous.get(entry.getKey()))) {
+                    addPosting(indexes.get(entry.getKey()), entry.getValue(), path);
+                }
+            }
+        }
+    }
+
+    private void removeBelow(String prefix) {
+        for (String path : indexed.subMap(prefix + "/", prefix + "0").keySet()) {
+            remove(path);
+        }
+    }
+
+    private void moveBelow(String source, String target) {
+        Map<String, Map<String, SortKey>> below = indexed.subMap(source + "/", source + "0");
+        for (Map.Entry<String, Map<String, SortKey>> entry : below.entrySet()) {
+            String path = entry.getKey();
+            remove(path);
+            putValues(target + path.substring(source.length()), entry.getValue());
+        }
+    }
+
+    private static void addPosting(
+            ConcurrentMap<SortKey, Set<String>> index,
+            SortKey value,
+            String path) {
+        while (true) {
+            Set<String> paths = index.get(value);
+            if (paths == null) {
+                Set<String> created =
+                        Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+                paths = index.putIfAbsent(value, created);
+                if (paths == null) {
+                    paths = created;
+                }
+            }
+            paths.add(path);
+            // Retry if the set was dropped as empty while we added to it
+            if (index.get(value) == paths) {
+                return;
+            }
+        }
+    }
+
+    private static void removePosting(
+            ConcurrentMap<SortKey, Set<String>> index,
+            SortKey value,
+            String path) {
+        Set<String> paths = index.get(value);
+        if (paths != null) {
+            paths.remove(path);
+            if (paths.isEmpty()) {
+                index.remove(value, paths);
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Return the posting sets matching a single condition.
+     * </p>
+     */
+    private Iterable<Set<String>> candidates(Condition condition) {
+        ConcurrentMap<SortKey, Set<String>> index = indexes.get(condition.key);
+        String operator = condition.operator;
+        SortKey operand = condition.operand;
+        if ("==".equals(operator)) {
+            Set<String> paths = index.get(operand);
+            return paths == null
+                ? Collections.<Set<String>> emptyList()
+                : Collections.singletonList(paths);
+        }
+        ConcurrentNavigableMap<SortKey, Set<String>> sorted =
+                (ConcurrentNavigableMap<SortKey, Set<String>>) index;
+        if (">".equals(operator)) {
+            return sorted.tailMap(operand, false).values();
+        } else if (">=".equals(operator)) {
+            return sorted.tailMap(operand, true).values();
+        } else if ("<".equals(operator)) {
+            return sorted.headMap(operand, false).values();
+        } else {
+            return sorted.headMap(operand, true).values();
+        }
+    }
+
+    private boolean satisfies(String path, List<Condition> conditions) {
+        Map<String, SortKey> values = indexed.get(path);
+        if (values == null) {
+            return false;
+        }
+        for (Condition condition : conditions) {
+            SortKey value = values.get(condition.key);
+            if (value == null) {
+                return false;
+            }
+            int order = value.compareTo(condition.operand);
+            String operator = condition.operator;
+            if (("==".equals(operator) && order != 0)
+                || (">".equals(operator) && order <= 0)
+                || (">=".equals(operator) && order < 0)
+                || ("<".equals(operator) && order >= 0)
+                || ("<=".equals(operator) && order > 0)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isInScope(String path, String scope) {
+        return scope.length() == 0
+            || (path.startsWith(scope)
+                && path.length() > scope.length()
+                && path.charAt(scope.length()) == '/');
+    }
+
+    /**
+     * <p>
+     * Split a condition into key, operator and operand.
+     * </p>
+     */
+    static String[] parseCondition(String key, String condition) {
+        String text = condition.trim();
+        for (String operator : OPERATORS) {
+            if (text.startsWith(operator)) {
+                return new String[] { key, operator, text.substring(operator.length()).trim() };
+            }
+        }
+        return new String[] { key, "==", text };
+    }
+
+    // ---------------------------------------------------------- Support Classes
+
+    private static final class Condition {
+
+        final String key;
+        final String operator;
+        final SortKey operand;
+
+        Condition(String key, String operator, SortKey operand) {
+            this.key = key;
+            this.operator = operator;
+            this.operand = operand;
+        }
+
+    }
+
+    /**
+     * <p>
+     * A metadata value parsed once for ordering. Numbers sort before ISO-8601 times, which
+     * sort before everything else; within a kind values sort by number, by instant and by
+     * text, with ties broken by text so distinct values never compare equal.
+     * </p>
+     */
+    static final class SortKey implements Comparable<SortKey> {
+
+        private static final int NUMBER = 0;
+        private static final int TIME = 1;
+        private static final int TEXT = 2;
+
+        private final int kind;
+        private final double number;
+        private final long time;
+        private final String text;
+
+        private SortKey(int kind, double number, long time, String text) {
+            this.kind = kind;
+            this.number = number;
+            this.time = time;
+            this.text = text;
+        }
+
+        static SortKey parse(String value) {
+            if (isNumber(value)) {
+                return new SortKey(NUMBER, Double.parseDouble(value), 0, value);
+            }
+            long time = parseTime(value);
+            if (time != Long.MIN_VALUE) {
+                return new SortKey(TIME, 0, time, value);
+            }
+            return new SortKey(TEXT, 0, 0, value);
+        }
+
+        public int compareTo(SortKey other) {
+            if (kind != other.kind) {
+                return kind < other.kind ? -1 : 1;
+            }
+            if (kind == NUMBER) {
+                int result = Double.compare(number, other.number);
+                if (result != 0) {
+                    return result;
+                }
+            } else if (kind == TIME && time != other.time) {
+                return time < other.time ? -1 : 1;
+            }
+            return text.compareTo(other.text);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof SortKey && text.equals(((SortKey) other).text);
+        }
+
+        @Override
+        public int hashCode() {
+            return text.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+
+        /**
+         * <p>
+         * Check for <code>-?digits[.digits][(e|E)[+-]digits]</code>, also allowing a missing
+         * integer or fraction part, so no exception is thrown for values that are not numbers.
+         * </p>
+         */
+        private static boolean isNumber(String value) {
+            int length = value.length();
+            int i = 0;
+            if (i < length && value.charAt(i) == '-') {
+                i++;
+            }
+            int digits = 0;
+            while (i < length && isDigit(value.charAt(i))) {
+                i++;
+                digits++;
+            }
+            if (i < length && value.charAt(i) == '.') {
+                i++;
+                while (i < length && isDigit(value.charAt(i))) {
+                    i++;
+                    digits++;
+                }
+            }
+            if (digits == 0) {
+                return false;
+            }
+            if (i < length && (value.charAt(i) == 'e' || value.charAt(i) == 'E')) {
+                i++;
+                if (i < length && (value.charAt(i) == '+' || value.charAt(i) == '-')) {
+                    i++;
+                }
+                int exponent = i;
+                while (i < length && isDigit(value.charAt(i))) {
+                    i++;
+                }
+                if (i == exponent) {
+                    return false;
+                }
+            }
+            return i == length;
+        }
+
+        /**
+         * <p>
+         * Parse <code>yyyy-MM-dd[THH:mm[:ss[.fraction]]][Z|(+|-)HH:mm]</code> into milliseconds
+         * since the epoch, taking times without an offset as UTC. Returns
+         * <code>Long.MIN_VALUE</code> if the value is not such a time.
+         * </p>
+         */
+        private static long parseTime(String value) {
+            int length = value.length();
+            if (length < 10
+                || value.charAt(4) != '-'
+                || value.charAt(7) != '-') {
+                return Long.MIN_VALUE;
+            }
+            int year = digits(value, 0, 4);
+            int month = digits(value, 5, 2);
+            int day = digits(value, 8, 2);
+            if (year < 0 || month < 1 || month > 12 || day < 1 || day > 31) {
+                return Long.MIN_VALUE;
+            }
+            long millis = daysFromCivil(year, month, day) * 86400000L;
+            int i = 10;
+            if (i < length && (value.charAt(i) == 'T' || value.charAt(i) == 't')) {
+                if (length < i + 6 || value.charAt(i + 3) != ':') {
+                    return Long.MIN_VALUE;
+                }
+                int hour = digits(value, i + 1, 2);
+                int minute = digits(value, i + 4, 2);
+                if (hour < 0 || hour > 23 || minute < 0 || minute > 59) {
+                    return Long.MIN_VALUE;
+                }
+                millis += (hour * 60L + minute) * 60000L;
+                i += 6;
+                if (i < length && value.charAt(i) == ':') {
+                    int second = i + 3 <= length ? digits(value, i + 1, 2) : -1;
+                    if (second < 0 || second > 60) {
+                        return Long.MIN_VALUE;
+                    }
+                    millis += second * 1000L;
+                    i += 3;
+                    if (i < length && value.charAt(i) == '.') {
+                        i++;
+                        int start = i;
+                        long scale = 100;
+                        while (i < length && isDigit(value.charAt(i))) {
+                            millis += (value.charAt(i) - '0') * scale;
+                            scale /= 10;
+                            i++;
+                        }
+                        if (i == start) {
+                            return Long.MIN_VALUE;
+                        }
+                    }
+                }
+            }
+            if (i < length && (value.charAt(i) == 'Z' || value.charAt(i) == 'z')) {
+                i++;
+            } else if (i < length && (value.charAt(i) == '+' || value.charAt(i) == '-')) {
+                if (length < i + 6 || value.charAt(i + 3) != ':') {
+                    return Long.MIN_VALUE;
+                }
+                int hours = digits(value, i + 1, 2);
+                int minutes = digits(value, i + 4, 2);
+                if (hours < 0 || hours > 23 || minutes < 0 || minutes > 59) {
+                    return Long.MIN_VALUE;
+                }
+                long offset = (hours * 60L + minutes) * 60000L;
+                millis += value.charAt(i) == '+' ? -offset : offset;
+                i += 6;
+            }
+            return i == length ? millis : Long.MIN_VALUE;
+        }
+
+        private static boolean isDigit(char c) {
+            return c >= '0' && c <= '9';
+        }
+
+        private static int digits(String value, int offset, int count) {
+            int result = 0;
+            for (int i = offset; i < offset + count; i++) {
+                char c = value.charAt(i);
+                if (!isDigit(c)) {
+                    return -1;
+                }
+                result = result * 10 + (c - '0');
+            }
+            return result;
+        }
+
+        /**
+         * <p>
+         * Days since 1970-01-01 of a proleptic Gregorian date.
+         * </p>
+         */
+        private static long daysFromCivil(int year, int month, int day) {
+            long y = month <= 2 ? year - 1 : year;
+            long era = (y >= 0 ? y : y - 399) / 400;
+            long yearOfEra = y - era * 400;
+            long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+            long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+            return era * 146097 + dayOfEra - 719468;
+        }
+
+    }
+
+}
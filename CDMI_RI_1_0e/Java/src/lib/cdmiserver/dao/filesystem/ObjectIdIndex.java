@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2010, Sun Microsystems, Inc.
+ * Copyright (c) 2010, The Storage Networking Industry Association.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ * Redistributions of source code must retain the above copyright notice, 
+ * this list of conditions and the following disclaimer.
+ *  
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ *  
+ * Neither the name of The Storage Networking Industry Association (SNIA) nor 
+ * the names of its contributors may be used to endorse or promote products 
+ * derived from this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF 
+ *  THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.snia.cdmiserver.dao.filesystem;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <p>
+ * In-memory index from object ID to the path of the object, so that objects can be found by ID
+ * and so that moves only have to touch the index instead of the data.
+ * </p>
+ */
+public class ObjectIdIndex {
+
+    private final ConcurrentMap<String, String> paths = new ConcurrentHashMap<String, String>();
+
+    /**
+     * <p>
+     * Record the path of the object with the specified ID, replacing any previous path.
+     * </p>
+     * 
+     * @param objectId
+     *            Object ID of the object
+     * @param path
+     *            Path of the object, relative to the base directory
+     */
+    public void put(String objectId, String path) {
+        if (objectId != null && path != null) {
+            paths.put(objectId, path);
+        }
+    }
+
+    /**
+     * <p>
+     * Forget the object with the specified ID, if it is still recorded at the specified path.
+     * </p>
+     * 
+     * @param objectId
+     *            Object ID of the object
+     * @param path
+     *            Path the object was removed from
+     */
+    public void remove(String objectId, String path) {
+        if (objectId != null && path != null) {
+            paths.remove(objectId, path);
+        }
+    }
+
+    /**
+     * <p>
+     * Forget every object recorded at the specified path or below it, after the tree there
+     * was deleted. The index is searched, rather than the tree read, since the tree is gone.
+     * </p>
+     * 
+     * @param path
+     *            Path of the deleted container, relative to the base directory
+     */
+    public void removeBelow(String path) {
+        if (path == null) {
+            return;
+        }
+        String prefix = path.length() == 0 ? "" : path + "/";
+        Iterator<Map.Entry<String, String>> it = paths.entrySet().iterator();
+        while (it.hasNext()) {
+            String indexed = it.next().getValue();
+            if (indexed.equals(path) || indexed.startsWith(prefix)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Record every object below the specified path as below <code>target</code>, after the
+     * container at <code>source</code> was moved there.
+     * </p>
+     * 
+     * @param source
+     *            Path the container was moved from, relative to the base directory
+     * @param target
+     *            Path the container was moved to, relative to the base directory
+     */
+    public void moveBelow(String source, String target) {
+        if (source == null || target == null || source.length() == 0) {
+            return;
+        }
+        String prefix = source + "/";
+        for (Map.Entry<String, String> entry : paths.entrySet()) {
+            String indexed = entry.getValue();
+            if (indexed.startsWith(prefix)) {
+                paths.replace(entry.getKey(),
+                              indexed,
+                              target + indexed.substring(source.length()));
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Return the path of the object with the specified ID, if any; otherwise, return
+     * <code>null</code>.
+     * </p>
+     * 
+     * @param objectId
+     *            Object ID of the requested object
+     */
+    public String findPath(String objectId) {
+        if (objectId == null) {
+            return null;
+        }
+        return paths.get(objectId);
+    }
+
+    /**
+     * <p>
+     * Return the number of indexed objects.
+     * </p>
+     */
+    public int size() {
+        return paths.size();
+    }
+
+}
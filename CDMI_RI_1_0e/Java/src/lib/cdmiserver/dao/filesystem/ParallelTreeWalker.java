@@ -0,0 +1,292 @@
+/*
+ * Copyright (c) 2010, Sun Microsystems, Inc.
+ * Copyright (c) 2010, The Storage Networking Industry Association.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ * Redistributions of source code must retain the above copyright notice, 
+ * this list of conditions and the following disclaimer.
+ *  
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ *  
+ * Neither the name of The Storage Networking Industry Association (SNIA) nor 
+ * the names of its contributors may be used to endorse or promote products 
+ * derived from this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF 
+ *  THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.snia.cdmiserver.dao.filesystem;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * <p>
+ * Iterative, parallel walker over a directory tree. Every directory is listed by its own task on
+ * the supplied {@link Executor}, and large directories are split into batches of files, so deep
+ * or wide trees neither recurse on the calling thread nor serialize on a single listing.
+ * </p>
+ * 
+ * <p>
+ * Directories are completed bottom-up without recursion: each directory keeps a count of its
+ * outstanding children, and the task that finishes the last child runs the post-visit for the
+ * directory and then moves on to its parent. This gives a correct post-order (needed for delete)
+ * while all work stays on the pool.
+ * </p>
+ */
+public class ParallelTreeWalker {
+
+    /**
+     * <p>
+     * Callback interface for a walk. Implementations must be thread safe; files and directories
+     * are visited concurrently.
+     * </p>
+     */
+    public interface Visitor {
+
+        /**
+         * <p>
+         * Called before the entries of a directory are visited. Return <code>false</code> to
+         * skip the directory's contents (the post-visit is still called).
+         * </p>
+         */
+        public boolean preVisitDirectory(File directory) throws IOException;
+
+        /**
+         * <p>
+         * Called for every file (and every symbolic link, which is never followed).
+         * </p>
+         */
+        public void visitFile(File file) throws IOException;
+
+        /**
+         * <p>
+         * Called after all entries of a directory have been visited.
+         * </p>
+         */
+        public void postVisitDirectory(File directory) throws IOException;
+    }
+
+    /**
+     * <p>
+     * Number of files handed to a single task when a directory is split up.
+     * </p>
+     */
+    private static final int BATCH_SIZE = 512;
+
+    private final Executor executor;
+
+    /**
+     * <p>
+     * Create a walker running its tasks on the specified executor. The executor must not reject
+     * tasks and must not be the one the calling thread is running on, since
+     * <code>walk()</code> blocks until the tree has been processed.
+     * </p>
+     * 
+     * @param executor
+     *            Executor for listing and visiting tasks
+     */
+    public ParallelTreeWalker(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * <p>
+     * Walk the tree rooted at the specified directory, blocking until every entry has been
+     * visited. The first failure aborts the walk and is rethrown here.
+     * </p>
+     * 
+     * @param root
+     *            Directory at the top of the tree
+     * @param visitor
+     *            Callbacks for the entries of the tree
+     * 
+     * @exception IOException
+     *                if a visitor callback failed
+     * @exception InterruptedException
+     *                if the calling thread was interrupted while waiting; outstanding tasks are
+     *                told to stop
+     */
+    public void walk(File root, Visitor visitor) throws IOException, InterruptedException {
+        Walk walk = new Walk(visitor);
+        walk.submitDirectory(new Node(root, null));
+        try {
+            walk.done.await();
+        } catch (InterruptedException ex) {
+            walk.failure.compareAndSet(null, ex);
+            throw ex;
+        }
+        Throwable failure = walk.failure.get();
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        } else if (failure != null) {
+            throw new IOException("Tree walk of " + root + " failed: " + failure);
+        }
+    }
+
+    /**
+     * <p>
+     * Return <code>true</code> if the specified file is a symbolic link. Links are reported as
+     * files so that a walk never leaves the tree it was started on.
+     * </p>
+     * 
+     * @param file
+     *            File to check
+     */
+    public static boolean isSymbolicLink(File file) throws IOException {
+        File parent = file.getParentFile();
+        File candidate = (parent == null) ? file : new File(parent.getCanonicalFile(), file
+                .getName());
+        return !candidate.getCanonicalFile().equals(candidate.getAbsoluteFile());
+    }
+
+    //
+    // Private Helper Classes
+    //
+
+    /**
+     * <p>
+     * A directory being walked, with the number of outstanding tasks and children that must
+     * finish before it can be post-visited. The count starts at one for the listing task itself.
+     * </p>
+     */
+    private static final class Node {
+
+        private final File directory;
+        private final Node parent;
+        private final AtomicInteger pending = new AtomicInteger(1);
+
+        private Node(File directory, Node parent) {
+            this.directory = directory;
+            this.parent = parent;
+        }
+    }
+
+    /**
+     * <p>
+     * State of a single call to <code>walk()</code>.
+     * </p>
+     */
+    private final class Walk {
+
+        private final Visitor visitor;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+        private Walk(Visitor visitor) {
+            this.visitor = visitor;
+        }
+
+        private void submitDirectory(final Node node) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    listDirectory(node);
+                }
+            });
+        }
+
+        private void submitFiles(final Node node, final List<File> files) {
+            node.pending.incrementAndGet();
+            executor.execute(new Runnable() {
+                public void run() {
+                    visitFiles(node, files);
+                }
+            });
+        }
+
+        private void listDirectory(Node node) {
+            try {
+                if (failure.get() == null && visitor.preVisitDirectory(node.directory)) {
+                    File[] entries = node.directory.listFiles();
+                    if (entries == null) {
+                        throw new IOException("Cannot list directory " + node.directory);
+                    }
+                    List<File> files = new ArrayList<File>();
+                    for (File entry : entries) {
+                        if (entry.isDirectory() && !isSymbolicLink(entry)) {
+                            node.pending.incrementAndGet();
+                            submitDirectory(new Node(entry, node));
+                        } else {
+                            files.add(entry);
+                            if (files.size() == BATCH_SIZE) {
+                                submitFiles(node, files);
+                                files = new ArrayList<File>();
+                            }
+                        }
+                    }
+                    for (File file : files) {
+                        if (failure.get() != null) {
+                            break;
+                        }
+                        visitor.visitFile(file);
+                    }
+                }
+            } catch (Throwable t) {
+                failure.compareAndSet(null, t);
+            } finally {
+                complete(node);
+            }
+        }
+
+        private void visitFiles(Node node, List<File> files) {
+            try {
+                for (File file : files) {
+                    if (failure.get() != null) {
+                        break;
+                    }
+                    visitor.visitFile(file);
+                }
+            } catch (Throwable t) {
+                failure.compareAndSet(null, t);
+            } finally {
+                complete(node);
+            }
+        }
+
+        /**
+         * <p>
+         * Release one outstanding unit of work on the specified directory. Whoever releases the
+         * last unit post-visits the directory and continues with its parent, iteratively.
+         * </p>
+         */
+        private void complete(Node node) {
+            while (node != null && node.pending.decrementAndGet() == 0) {
+                if (failure.get() == null) {
+                    try {
+                        visitor.postVisitDirectory(node.directory);
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+                if (node.parent == null) {
+                    done.countDown();
+                }
+                node = node.parent;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2010, Sun Microsystems, Inc.
+ * Copyright (c) 2010, The Storage Networking Industry Association.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ * Redistributions of source code must retain the above copyright notice, 
+ * this list of conditions and the following disclaimer.
+ *  
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ *  
+ * Neither the name of The Storage Networking Industry Association (SNIA) nor 
+ * the names of its contributors may be used to endorse or promote products 
+ * derived from this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF 
+ *  THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.snia.cdmiserver.dao.filesystem;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * <p>
+ * Striped read/write locks keyed by object path. Readers of an object hold the read lock while
+ * they load its metadata and value; operations replacing or relocating an object's files hold
+ * the write lock, so a reader never sees one file of an object without the other.
+ * </p>
+ * 
+ * <p>
+ * Paths share a fixed number of locks, so unrelated paths occasionally contend, but memory use
+ * does not grow with the number of objects.
+ * </p>
+ */
+public class PathLocks {
+
+    private static final int STRIPES = 256;
+
+    private final ReadWriteLock[] locks = new ReadWriteLock[STRIPES];
+
+    public PathLocks() {
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    /**
+     * <p>
+     * Return the read lock for the specified path.
+     * </p>
+     */
+    public Lock readLock(String path) {
+        return locks[stripe(path)].readLock();
+    }
+
+    /**
+     * <p>
+     * Return the write lock for the specified path.
+     * </p>
+     */
+    public Lock writeLock(String path) {
+        return locks[stripe(path)].writeLock();
+    }
+
+    /**
+     * <p>
+     * Acquire the write locks of two paths in a fixed order, so that two operations locking the
+     * same pair in opposite directions cannot deadlock. Release with
+     * {@link #unlockWrite(String, String)}.
+     * </p>
+     */
+    public void lockWrite(String first, String second) {
+        int a = stripe(first);
+        int b = stripe(second);
+        locks[Math.min(a, b)].writeLock().lock();
+        if (a != b) {
+            locks[Math.max(a, b)].writeLock().lock();
+        }
+    }
+
+    /**
+     * <p>
+     * Release the write locks acquired by {@link #lockWrite(String, String)}.
+     * </p>
+     */
+    public void unlockWrite(String first, String second) {
+        int a = stripe(first);
+        int b = stripe(second);
+        if (a != b) {
+            locks[Math.max(a, b)].writeLock().unlock();
+        }
+        locks[Math.min(a, b)].writeLock().unlock();
+    }
+
+    private int stripe(String path) {
+        int h = (path == null) ? 0 : path.hashCode();
+        h ^= (h >>> 16);
+        return h & (STRIPES - 1);
+    }
+
+}
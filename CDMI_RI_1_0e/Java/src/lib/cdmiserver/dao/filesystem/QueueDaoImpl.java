@@ -0,0 +1,597 @@
+/*
+ * Copyright (c) 2010, Sun Microsystems, Inc.
+ * Copyright (c) 2010, The Storage Networking Industry Association.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ * Redistributions of source code must retain the above copyright notice, 
+ * this list of conditions and the following disclaimer.
+ *  
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ *  
+ * Neither the name of The Storage Networking Industry Association (SNIA) nor 
+ * the names of its contributors may be used to endorse or promote products 
+ * derived from this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF 
+ *  THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.snia.cdmiserver.dao.filesystem;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.snia.cdmiserver.dao.ChangeListener;
+import org.snia.cdmiserver.dao.QueueDao;
+import org.snia.cdmiserver.exception.BadRequestException;
+import org.snia.cdmiserver.exception.ConflictException;
+import org.snia.cdmiserver.exception.NotFoundException;
+import org.snia.cdmiserver.model.Change;
+import org.snia.cdmiserver.model.Queue;
+import org.snia.cdmiserver.util.CdmiPath;
+import org.snia.cdmiserver.util.MediaTypes;
+import org.snia.cdmiserver.util.ObjectID;
+
+/**
+ * <p>
+ * Concrete implementation of {@link QueueDao} using the local filesystem as the backing store.
+ * </p>
+ * 
+ * <p>
+ * The fields of a queue named <code>name</code> are kept in the "." file <code>.name</code>
+ * of its container, like those of a data object. Its values are records of a
+ * {@link SegmentedLog} in the directory <code>.name.queue</code>, together with a
+ * <code>head</code> file holding the log position of the oldest unacknowledged value.
+ * Enqueue and dequeue do not lock; acknowledgements are serialized per queue, checkpoint the
+ * head and delete the segments that no longer hold unacknowledged values.
+ * </p>
+ * 
+ * <p>
+ * An open queue is closed when it is deleted, or when a container above it is deleted or
+ * moved (this DAO listens to the changes of the {@link org.snia.cdmiserver.dao.ContainerDao}).
+ * Closing waits for the enqueues in progress, wakes the waiting consumers, and makes later
+ * calls on the closed state fail as if the queue did not exist.
+ * </p>
+ */
+public class QueueDaoImpl implements QueueDao, ChangeListener {
+
+    /**
+     * <p>
+     * Suffix of the name of the directory holding the values of a queue.
+     * </p>
+     */
+    static final String QUEUE_SUFFIX = ".queue";
+
+    private static final String HEAD_FILE = "head";
+
+    private static final String CHARSET = "UTF-8";
+
+    // -------------------------------------------------------------- Properties
+    private String baseDirectoryName = null;
+
+    public void setBaseDirectoryName(String baseDirectoryName) {
+        this.baseDirectoryName = baseDirectoryName;
+    }
+
+    private ObjectIdIndex objectIdIndex = new ObjectIdIndex();
+
+    /**
+     * <p>
+     * Set the {@link ObjectIdIndex} mapping object IDs to paths. A private index is used if none
+     * is injected.
+     * </p>
+     */
+    public void setObjectIdIndex(ObjectIdIndex objectIdIndex) {
+        this.objectIdIndex = objectIdIndex;
+    }
+
+    private int segmentSize = 64 * 1024 * 1024;
+
+    /**
+     * <p>
+     * Set the size in bytes of the log segment files of new queue segments, which also limits
+     * the size of a single value. Default value is 64MB.
+     * </p>
+     */
+    public void setSegmentSize(int segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
+    private final ChangeSupport changes = new ChangeSupport();
+
+    /**
+     * <p>
+     * Set the {@link ChangeListener}s told about every change made through this DAO. Enqueued
+     * and acknowledged values are not reported.
+     * </p>
+     */
+    public void setChangeListeners(List<ChangeListener> changeListeners) {
+        changes.setListeners(changeListeners);
+    }
+
+    // Open queues by path
+    private final ConcurrentMap<String, QueueState> queues =
+            new ConcurrentHashMap<String, QueueState>();
+
+    // ------------------------------------------------------- QueueDao Methods
+    @Override
+    public Queue createByPath(String path, Queue queueRequest) {
+        Snapshots.checkWritable(path);
+        FileUtils.checkName(path);
+        path = normalize(path);
+        File metadataFile = getMetadataFile(path);
+        File directory = getQueueDirectory(path);
+        File containerDirectory = metadataFile.getParentFile();
+        if (!containerDirectory.isDirectory()) {
+            throw new NotFoundException("Container <"
+                                        + containerDirectory.getAbsolutePath()
+                                        + "> doesn't exist");
+        }
+        if (new File(containerDirectory, getObjectName(path)).exists()) {
+            throw new ConflictException("Path <" + path + "> is not a queue");
+        }
+
+        synchronized (queues) {
+            try {
+                Queue queue;
+                if (directory.isDirectory()) {
+                    queue = readFields(metadataFile);
+                    if (!queueRequest.getMetadata().isEmpty()) {
+                        String ctime = queue.getMetadata().get("cdmi_ctime");
+                        queue.getMetadata().clear();
+                        queue.getMetadata().putAll(queueRequest.getMetadata());
+                        queue.setMetadata("cdmi_ctime", ctime);
+                    }
+                    writeFields(metadataFile, queue, state(path));
+                    changes.fire(Change.UPDATE,
+                                 MediaTypes.QUEUE,
+                                 path,
+                                 null,
+                                 queue.getObjectID(),
+                                 queue.getMetadata());
+                } else {
+                    queue = queueRequest;
+                    queue.setObjectID(ObjectID.getObjectID(8));
+                    queue.setObjectType("application/cdmi-queue");
+                    queue.setCapabilitiesURI("/cdmi_capabilities/queue/");
+                    SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+                    queue.setMetadata("cdmi_ctime", sdf.format(new Date()));
+                    writeFields(metadataFile, queue, openQueue(path, directory));
+                    objectIdIndex.put(queue.getObjectID(), path);
+                    changes.fire(Change.CREATE,
+                                 MediaTypes.QUEUE,
+                                 path,
+                                 null,
+                                 queue.getObjectID(),
+                                 queue.getMetadata());
+                }
+                queue.getValues().clear();
+                return completeQueue(queue, path, state(path));
+            } catch (RuntimeException ex) {
+                throw ex;
+            } catch (Exception ex) {
+                ex.printStackTrace();
+                System.out.println("Exception while creating queue: " + ex);
+                throw new IllegalArgumentException("Cannot create queue @" + path + " error : " + ex);
+            }
+        }
+    }
+
+    @Override
+    public void deleteByPath(String path) {
+        path = normalize(path);
+        File metadataFile = getMetadataFile(path);
+        File directory = getQueueDirectory(path);
+        synchronized (queues) {
+            if (!directory.isDirectory()) {
+                throw new NotFoundException("Queue <" + path + "> doesn't exist");
+            }
+            QueueState state = queues.remove(path);
+            if (state != null) {
+                close(state);
+            }
+            String objectID = null;
+            try {
+                objectID = readFields(metadataFile).getObjectID();
+            } catch (Exception ex) {
+                // Unreadable fields; delete the queue anyway
+            }
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+            metadataFile.delete();
+            objectIdIndex.remove(objectID, path);
+            changes.fire(Change.DELETE, MediaTypes.QUEUE, path, null, objectID, null);
+        }
+    }
+
+    @Override
+    public Queue findByPath(String path) {
+        path = normalize(path);
+        if (!queues.containsKey(path)
+            && (!getMetadataFile(path).isFile() || !getQueueDirectory(path).isDirectory())) {
+            return null;
+        }
+        try {
+            QueueState state = state(path);
+            byte[] fields = state.fields;
+            if (fields == null) { // Still being created
+                return null;
+            }
+            Queue queue = new Queue();
+            queue.fromJson(fields, true);
+            return completeQueue(queue, path, state);
+        } catch (RuntimeException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            throw new IllegalArgumentException("Cannot read queue @" + path + " error : " + ex);
+        }
+    }
+
+    @Override
+    public Queue findByObjectId(String objectId) {
+        String path = objectIdIndex.findPath(objectId);
+        if (path == null) {
+            return null;
+        }
+        return findByPath(path);
+    }
+
+    @Override
+    public long enqueue(String path, List<String> values) {
+        path = normalize(path);
+        QueueState state = state(path);
+        state.lock.readLock().lock();
+        try {
+            checkOpen(state, path);
+            for (String value : values) {
+                state.log.append(value.getBytes(CHARSET));
+                state.count.incrementAndGet();
+            }
+        } catch (IllegalArgumentException ex) {
+            throw new BadRequestException(ex.getMessage());
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            throw new IllegalArgumentException("Cannot enqueue @" + path + " error : " + ex);
+        } finally {
+            state.lock.readLock().unlock();
+        }
+        if (!state.waiters.isEmpty()) {
+            releaseWaiters(state);
+        }
+        return state.count.get();
+    }
+
+    @Override
+    public List<String> dequeue(String path, int offset, int count) {
+        path = normalize(path);
+        QueueState state = state(path);
+        List<byte[]> records = new ArrayList<byte[]>(Math.min(count, 1024));
+        state.lock.readLock().lock();
+        try {
+            checkOpen(state, path);
+            long position = state.head;
+            if (offset > 0) {
+                position = state.log.skip(position, offset);
+            }
+            state.log.read(position, records, count);
+        } finally {
+            state.lock.readLock().unlock();
+        }
+        List<String> values = new ArrayList<String>(records.size());
+        try {
+            for (byte[] record : records) {
+                values.add(new String(record, CHARSET));
+            }
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+        return values;
+    }
+
+    @Override
+    public int acknowledge(String path, int count) {
+        path = normalize(path);
+        QueueState state = state(path);
+        state.lock.readLock().lock();
+        try {
+            synchronized (state) {
+                checkOpen(state, path);
+                //
+                // A value is counted once written, but an earlier reservation may still be
+                // unwritten, and skipping stops there. Only the values actually skipped are
+                // acknowledged, so the count stays exact.
+                //
+                int max = (int) Math.min(count, state.count.get());
+                long head = state.head;
+                int acknowledged = 0;
+                while (acknowledged < max) {
+                    long next = state.log.skip(head, 1);
+                    if (next == head) {
+                        break;
+                    }
+                    head = next;
+                    acknowledged++;
+                }
+                if (acknowledged <= 0) {
+                    return 0;
+                }
+                try {
+                    FileUtils.writeAtomically(state.headFile, Long.toString(head));
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                    throw new IllegalArgumentException("Cannot acknowledge @"
+                                                       + path
+                                                       + " error : "
+                                                       + ex);
+                }
+                state.head = head;
+                state.count.addAndGet(-acknowledged);
+                state.log.truncateBefore(head);
+                return acknowledged;
+            }
+        } finally {
+            state.lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void awaitValues(String path, Runnable waiter) {
+        path = normalize(path);
+        QueueState state = state(path);
+        state.waiters.add(waiter);
+        // Values may have arrived, or the queue been closed, before the waiter was added
+        if (state.count.get() > 0 || state.closed) {
+            releaseWaiters(state);
+        }
+    }
+
+    @Override
+    public void cancelWait(String path, Runnable waiter) {
+        path = normalize(path);
+        QueueState state = queues.get(path);
+        if (state != null) {
+            state.waiters.remove(waiter);
+        }
+    }
+
+    // ------------------------------------------------- ChangeListener Methods
+
+    /**
+     * <p>
+     * Close and forget the open queues at or below a deleted container, or below the source of
+     * a moved container; the moved queues are opened again at their new paths.
+     * </p>
+     */
+    @Override
+    public void changed(Change change) {
+        if (!MediaTypes.CONTAINER.equals(change.getObjectType())) {
+            return;
+        }
+        String path;
+        if (Change.DELETE.equals(change.getOperation())) {
+            path = change.getPath();
+        } else if (Change.MOVE.equals(change.getOperation())) {
+            path = change.getSource();
+        } else {
+            return;
+        }
+        try {
+            path = CdmiPath.parse(path).toString();
+        } catch (RuntimeException ex) {
+            return;
+        }
+        synchronized (queues) {
+            Iterator<Map.Entry<String, QueueState>> entries = queues.entrySet().iterator();
+            while (entries.hasNext()) {
+                Map.Entry<String, QueueState> entry = entries.next();
+                String queuePath = entry.getKey();
+                if (path.length() == 0 || queuePath.startsWith(path + "/")) {
+                    entries.remove();
+                    close(entry.getValue());
+                }
+            }
+        }
+    }
+
+    // --------------------------------------------------------- Private Methods
+
+    /**
+     * <p>
+     * Mark a queue state closed once the calls using it have finished, and wake its waiting
+     * consumers, which then find the queue gone.
+     * </p>
+     */
+    private void close(QueueState state) {
+        state.lock.writeLock().lock();
+        try {
+            state.closed = true;
+        } finally {
+            state.lock.writeLock().unlock();
+        }
+        releaseWaiters(state);
+    }
+
+    private static void checkOpen(QueueState state, String path) {
+        if (state.closed) {
+            throw new NotFoundException("Queue <" + path + "> doesn't exist");
+        }
+    }
+
+    /**
+     * <p>
+     * Run and remove every waiting callback. This happens once per enqueue request, not once
+     * per value, so a burst of values wakes each consumer once.
+     * </p>
+     */
+    private void releaseWaiters(QueueState state) {
+        Runnable waiter;
+        while ((waiter = state.waiters.poll()) != null) {
+            try {
+                waiter.run();
+            } catch (RuntimeException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Parse a queue path once, on the way in; the normalized form keys the open queues and is
+     * all the private methods below see.
+     * </p>
+     */
+    private static String normalize(String path) {
+        CdmiPath parsed = CdmiPath.parse(path);
+        String name = parsed.getName();
+        if (name.length() == 0 || name.startsWith(".")) {
+            throw new BadRequestException("Invalid queue name <" + name + ">");
+        }
+        return parsed.toString();
+    }
+
+    private String getObjectName(String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    private File getContainerDirectory(String path) {
+        int slash = path.lastIndexOf('/');
+        return slash < 0
+            ? new File(baseDirectoryName)
+            : new File(baseDirectoryName, path.substring(0, slash));
+    }
+
+    private File getMetadataFile(String path) {
+        return new File(getContainerDirectory(path), "." + getObjectName(path));
+    }
+
+    private File getQueueDirectory(String path) {
+        return new File(getContainerDirectory(path), "." + getObjectName(path) + QUEUE_SUFFIX);
+    }
+
+    /**
+     * <p>
+     * Return the open state of the queue at <code>path</code>, opening its log if necessary.
+     * </p>
+     * 
+     * @exception NotFoundException
+     *                if the specified path does not identify a queue
+     */
+    private QueueState state(String path) {
+        QueueState state = queues.get(path);
+        if (state != null) {
+            return state;
+        }
+        synchronized (queues) {
+            state = queues.get(path);
+            if (state == null) {
+                File directory = getQueueDirectory(path);
+                if (!directory.isDirectory()) {
+                    throw new NotFoundException("Queue <" + path + "> doesn't exist");
+                }
+                try {
+                    state = openQueue(path, directory);
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                    throw new IllegalArgumentException("Cannot open queue @"
+                                                       + path
+                                                       + " error : "
+                                                       + ex);
+                }
+            }
+            return state;
+        }
+    }
+
+    private QueueState openQueue(String path, File directory) throws IOException {
+        QueueState state = new QueueState(new SegmentedLog(directory, segmentSize));
+        File metadataFile = getMetadataFile(path);
+        if (metadataFile.isFile()) {
+            state.fields = FileUtils.readString(metadataFile).getBytes();
+        }
+        queues.put(path, state);
+        return state;
+    }
+
+    /**
+     * <p>
+     * Persist the fields of a queue and keep them with its state, so reads need not go to
+     * disk.
+     * </p>
+     */
+    private void writeFields(File metadataFile, Queue queue, QueueState state) throws Exception {
+        String json = queue.metadataToJson();
+        FileUtils.writeAtomically(metadataFile, json);
+        state.fields = json.getBytes();
+    }
+
+    private Queue readFields(File metadataFile) throws Exception {
+        Queue queue = new Queue();
+        queue.fromJson(FileUtils.readString(metadataFile).getBytes(), true);
+        return queue;
+    }
+
+    private Queue completeQueue(Queue queue, String path, QueueState state) {
+        int slash = path.lastIndexOf('/');
+        queue.setParentURI(slash < 0 ? "/" : "/" + path.substring(0, slash + 1));
+        queue.setQueueValues(state.count.get());
+        queue.setCompletionStatus("Complete");
+        return queue;
+    }
+
+    /**
+     * <p>
+     * Log, head position, value count, waiting consumers and persisted fields of an open
+     * queue.
+     * </p>
+     */
+    private static final class QueueState {
+
+        private final SegmentedLog log;
+        private final File headFile;
+        private final AtomicLong count = new AtomicLong();
+        private final java.util.Queue<Runnable> waiters = new ConcurrentLinkedQueue<Runnable>();
+        // Held shared by the calls using the log, exclusively to close it
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+        private volatile boolean closed;
+        private volatile long head;
+        private volatile byte[] fields;
+
+        private QueueState(SegmentedLog log) throws IOException {
+            this.log = log;
+            this.headFile = new File(log.getDirectory(), HEAD_FILE);
+            if (headFile.exists()) {
+                head = Long.parseLong(FileUtils.readString(headFile).trim());
+            }
+            count.set(log.count(head));
+        }
+    }
+
+}
@@ -0,0 +1,417 @@
+/*
+ * Copyright (c) 2010, Sun Microsystems, Inc.
+ * Copyright (c) 2010, The Storage Networking Industry Association.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ * Redistributions of source code must retain the above copyright notice, 
+ * this list of conditions and the following disclaimer.
+ *  
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ *  
+ * Neither the name of The Storage Networking Industry Association (SNIA) nor 
+ * the names of its contributors may be used to endorse or promote products 
+ * derived from this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF 
+ *  THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.snia.cdmiserver.dao.filesystem;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.snia.cdmiserver.dao.ChangeListener;
+import org.snia.cdmiserver.model.Change;
+import org.snia.cdmiserver.model.Container;
+import org.snia.cdmiserver.model.DataObject;
+import org.snia.cdmiserver.model.Queue;
+import org.snia.cdmiserver.util.DaemonThreadFactory;
+import org.snia.cdmiserver.util.MediaTypes;
+
+/**
+ * <p>
+ * Rebuilds the in-memory indexes from the "." files under the base directory when the server
+ * starts. The tree is walked in parallel on the {@link TreeJobManager} walker pool, from a
+ * background thread, so requests are served while the scan runs; until it completes, lookups
+ * by object ID and index queries only see the objects scanned or changed so far.
+ * </p>
+ * 
+ * <p>
+ * Every object found is reported to the {@link ObjectIdIndex} and, as a creation, to the
+ * injected change listeners (the metadata and search indexes, not the change journal). The
+ * scanner must itself be registered as a change listener of the DAOs: paths changed while the
+ * scan runs are left to the live change events, so a stale read never overrides them. It
+ * must be registered ahead of the indexes it fills: an object is checked and published under
+ * the same lock that change events are recorded under, so a live change either reaches the
+ * indexes after the scanned state or keeps the scanned state from being published. The DAOs
+ * update the {@link ObjectIdIndex} before they report a change, so deletes and moves are
+ * applied to it again once recorded, dropping anything published in between.
+ * </p>
+ * 
+ * <p>
+ * The scan also reports orphans: value files without a "." file, which
+ * <code>findByPath</code> rejects, and "." files without a value file, container or queue.
+ * </p>
+ */
+public class RecoveryScanner implements ChangeListener {
+
+    // -------------------------------------------------------------- Properties
+    private String baseDirectoryName = null;
+
+    /**
+     * <p>
+     * Set the base directory name for our local storage.
+     * </p>
+     */
+    public void setBaseDirectoryName(String baseDirectoryName) {
+        this.baseDirectoryName = baseDirectoryName;
+    }
+
+    private ObjectIdIndex objectIdIndex;
+
+    /**
+     * <p>
+     * Injected {@link ObjectIdIndex} to fill.
+     * </p>
+     */
+    public void setObjectIdIndex(ObjectIdIndex objectIdIndex) {
+        this.objectIdIndex = objectIdIndex;
+    }
+
+    private TreeJobManager treeJobManager;
+
+    /**
+     * <p>
+     * Injected {@link TreeJobManager} whose walker pool runs the scan.
+     * </p>
+     */
+    public void setTreeJobManager(TreeJobManager treeJobManager) {
+        this.treeJobManager = treeJobManager;
+    }
+
+    private List<ChangeListener> indexes = Collections.emptyList();
+
+    /**
+     * <p>
+     * Set the listeners to rebuild from the scanned objects.
+     * </p>
+     */
+    public void setIndexes(List<ChangeListener> indexes) {
+        this.indexes = indexes;
+    }
+
+    private int maxReportedOrphans = 1000;
+
+    /**
+     * <p>
+     * Set how many orphans of each kind are logged and kept for {@link #getOrphanedValues()}
+     * and {@link #getOrphanedMetadata()}; all of them are counted. Default value is 1000.
+     * </p>
+     */
+    public void setMaxReportedOrphans(int maxReportedOrphans) {
+        this.maxReportedOrphans = maxReportedOrphans;
+    }
+
+    // ------------------------------------------------------------------ State
+    private volatile boolean running;
+
+    private final Set<String> touched =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    // Orders publishing a scanned object against recording a live change
+    private final Object publishLock = new Object();
+
+    private final AtomicLong scannedObjects = new AtomicLong();
+
+    private final AtomicLong orphanedValueCount = new AtomicLong();
+
+    private final AtomicLong orphanedMetadataCount = new AtomicLong();
+
+    private final List<String> orphanedValues =
+            Collections.synchronizedList(new ArrayList<String>());
+
+    private final List<String> orphanedMetadata =
+            Collections.synchronizedList(new ArrayList<String>());
+
+    /**
+     * <p>
+     * Return <code>true</code> while the scan is running.
+     * </p>
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * <p>
+     * Return the number of objects indexed by the scan so far.
+     * </p>
+     */
+    public long getScannedObjects() {
+        return scannedObjects.get();
+    }
+
+    /**
+     * <p>
+     * Return the number of value files found without a "." file.
+     * </p>
+     */
+    public long getOrphanedValueCount() {
+        return orphanedValueCount.get();
+    }
+
+    /**
+     * <p>
+     * Return the number of "." files found without a value file, container or queue.
+     * </p>
+     */
+    public long getOrphanedMetadataCount() {
+        return orphanedMetadataCount.get();
+    }
+
+    /**
+     * <p>
+     * Return the paths of the first orphaned value files found.
+     * </p>
+     */
+    public List<String> getOrphanedValues() {
+        synchronized (orphanedValues) {
+            return new ArrayList<String>(orphanedValues);
+        }
+    }
+
+    /**
+     * <p>
+     * Return the paths of the first orphaned "." files found.
+     * </p>
+     */
+    public List<String> getOrphanedMetadata() {
+        synchronized (orphanedMetadata) {
+            return new ArrayList<String>(orphanedMetadata);
+        }
+    }
+
+    // ------------------------------------------------- ChangeListener Methods
+    @Override
+    public void changed(Change change) {
+        if (!running) {
+            return;
+        }
+        synchronized (publishLock) {
+            touched.add(change.getPath());
+            if (change.getSource() != null) {
+                touched.add(change.getSource());
+            }
+            boolean container = MediaTypes.CONTAINER.equals(change.getObjectType());
+            if (Change.DELETE.equals(change.getOperation())) {
+                if (container) {
+                    objectIdIndex.removeBelow(change.getPath());
+                } else {
+                    objectIdIndex.remove(change.getObjectID(), change.getPath());
+                }
+            } else if (Change.MOVE.equals(change.getOperation())) {
+                if (container) {
+                    objectIdIndex.moveBelow(change.getSource(), change.getPath());
+                } else if (change.getObjectID() != null) {
+                    objectIdIndex.put(change.getObjectID(), change.getPath());
+                }
+            }
+        }
+    }
+
+    // ---------------------------------------------------------- Public Methods
+
+    /**
+     * <p>
+     * Start the scan on a background thread and return at once.
+     * </p>
+     */
+    public void start() {
+        running = true;
+        Thread thread = new DaemonThreadFactory("cdmi-recovery-").newThread(new Runnable() {
+            public void run() {
+                try {
+                    scan();
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                    System.out.println("Recovery scan failed: " + ex);
+                } finally {
+                    running = false;
+                    touched.clear();
+                }
+            }
+        });
+        thread.start();
+    }
+
+    /**
+     * <p>
+     * Walk the whole tree, blocking until it has been scanned.
+     * </p>
+     */
+    public void scan() throws IOException, InterruptedException {
+        final File baseDirectory = new File(baseDirectoryName).getAbsoluteFile();
+        if (!baseDirectory.isDirectory()) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        System.out.println("Recovery scan of " + baseDirectory + " started");
+        final int prefixLength = baseDirectory.getPath().length() + 1;
+        treeJobManager.newWalker().walk(baseDirectory, new ParallelTreeWalker.Visitor() {
+            public boolean preVisitDirectory(File directory) {
+                // Skip queue segments, the journal, other internal directories and snapshots
+                String name = directory.getName();
+                return directory.equals(baseDirectory)
+                    || !(name.startsWith(".") || Snapshots.DIRECTORY.equals(name));
+            }
+
+            public void visitFile(File file) {
+                String relative = file.getPath().substring(prefixLength);
+                String name = file.getName();
+                if (name.startsWith(FileUtils.TEMPORARY_PREFIX)
+                    || ("." + Snapshots.DIRECTORY).equals(name)) {
+                    return;
+                }
+                if (name.startsWith(".")) {
+                    int slash = relative.lastIndexOf('/');
+                    String path = relative.substring(0, slash + 1) + name.substring(1);
+                    recover(file, new File(file.getParentFile(), name.substring(1)), path);
+                } else if (!new File(file.getParentFile(), "." + name).exists()) {
+                    orphan(orphanedValues, orphanedValueCount, relative, "value without metadata");
+                }
+            }
+
+            public void postVisitDirectory(File directory) {
+            }
+        });
+        System.out.println("Recovery scan of " + baseDirectory + " indexed "
+                           + scannedObjects.get() + " objects in "
+                           + (System.currentTimeMillis() - start) + " ms, found "
+                           + orphanedValueCount.get() + " orphaned values and "
+                           + orphanedMetadataCount.get() + " orphaned metadata files");
+    }
+
+    // --------------------------------------------------------- Private Methods
+
+    /**
+     * <p>
+     * Index the object described by a "." file.
+     * </p>
+     */
+    private void recover(File metadataFile, File value, String path) {
+        if (isTouched(path)) {
+            return;
+        }
+        String objectType;
+        String objectID;
+        Change change;
+        try {
+            if (value.isDirectory()) {
+                Container container = new Container();
+                container.fromJson(FileUtils.readString(metadataFile).getBytes(), true);
+                objectType = MediaTypes.CONTAINER;
+                objectID = null;
+                change = new Change(Change.CREATE, objectType, path, null);
+                change.setObjectID(container.getObjectID());
+                change.setMetadata(container.getMetadata());
+            } else if (value.isFile()) {
+                DataObject dObj = new DataObject();
+                FileInputStream in = new FileInputStream(metadataFile);
+                try {
+                    dObj.fromJson(in, true);
+                } finally {
+                    in.close();
+                }
+                objectType = MediaTypes.DATA_OBJECT;
+                objectID = dObj.getObjectID();
+                change = new Change(Change.CREATE, objectType, path, null);
+                change.setObjectID(objectID);
+                change.setMetadata(dObj.getMetadata());
+            } else if (new File(metadataFile.getPath() + QueueDaoImpl.QUEUE_SUFFIX).isDirectory()) {
+                Queue queue = new Queue();
+                queue.fromJson(FileUtils.readString(metadataFile).getBytes(), true);
+                objectType = MediaTypes.QUEUE;
+                objectID = queue.getObjectID();
+                change = new Change(Change.CREATE, objectType, path, null);
+                change.setObjectID(objectID);
+                change.setMetadata(queue.getMetadata());
+            } else {
+                if (metadataFile.exists()) {
+                    orphan(orphanedMetadata, orphanedMetadataCount, path,
+                           "metadata without value");
+                }
+                return;
+            }
+        } catch (Exception ex) {
+            // Deleted or rewritten under us, or unreadable; live changes take over
+            if (metadataFile.exists()) {
+                System.out.println("Recovery scan cannot read '" + metadataFile + "': " + ex);
+            }
+            return;
+        }
+
+        synchronized (publishLock) {
+            if (isTouched(path)) {
+                return;
+            }
+            if (objectID != null) {
+                objectIdIndex.put(objectID, path);
+            }
+            for (ChangeListener index : indexes) {
+                try {
+                    index.changed(change);
+                } catch (RuntimeException ex) {
+                    ex.printStackTrace();
+                }
+            }
+        }
+        scannedObjects.incrementAndGet();
+    }
+
+    /**
+     * <p>
+     * Return <code>true</code> if the path or one of its parents changed since the scan began.
+     * </p>
+     */
+    private boolean isTouched(String path) {
+        if (touched.isEmpty()) {
+            return false;
+        }
+        for (String prefix = path; prefix.length() > 0; ) {
+            if (touched.contains(prefix)) {
+                return true;
+            }
+            int slash = prefix.lastIndexOf('/');
+            prefix = slash < 0 ? "" : prefix.substring(0, slash);
+        }
+        return false;
+    }
+
+    private void orphan(List<String> orphans, AtomicLong count, String path, String kind) {
+        if (count.incrementAndGet() <= maxReportedOrphans) {
+            orphans.add(path);
+            System.out.println("Recovery scan found " + kind + ": " + path);
+        }
+    }
+
+}
@@ -0,0 +1,409 @@
+/*
+ * Copyright (c) 2010, Sun Microsystems, Inc.
+ * Copyright (c) 2010, The Storage Networking Industry Association.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ * Redistributions of source code must retain the above copyright notice, 
+ * this list of conditions and the following disclaimer.
+ *  
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ *  
+ * Neither the name of The Storage Networking Industry Association (SNIA) nor 
+ * the names of its contributors may be used to endorse or promote products 
+ * derived from this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF 
+ *  THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.snia.cdmiserver.dao.filesystem;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.snia.cdmiserver.dao.ChangeListener;
+import org.snia.cdmiserver.exception.BadRequestException;
+import org.snia.cdmiserver.model.Change;
+
+/**
+ * <p>
+ * In-memory trigram index over the names of containers, data objects and queues and over
+ * selected string metadata, kept up to date as a {@link ChangeListener}. It answers
+ * case-insensitive substring and prefix searches without listing directories.
+ * </p>
+ * 
+ * <p>
+ * Every indexed text is broken into its three-character substrings, with a start marker in
+ * front so that prefixes have trigrams of their own. A search walks the paths posted under
+ * the rarest trigram of its text and checks each against the indexed text, so results come
+ * out in path order and can be paged with the last path returned. Searches shorter than a
+ * trigram scan the indexed paths in the scope instead.
+ * </p>
+ */
+public class SearchIndex implements ChangeListener {
+
+    /**
+     * <p>
+     * The field holding the last segment of each path.
+     * </p>
+     */
+    public static final String NAME = "name";
+
+    private static final char START = '\u0002';
+
+    private static final int STRIPES = 256;
+
+    // Paths per field and trigram. Emptied postings are kept; their number is bounded by the
+    // trigrams ever indexed.
+    private final ConcurrentMap<String, Posting> postings =
+            new ConcurrentHashMap<String, Posting>();
+
+    // Indexed texts per path, for updates, deletes and checking candidates
+    private final ConcurrentSkipListMap<String, Document> documents =
+            new ConcurrentSkipListMap<String, Document>();
+
+    private final Object[] locks = new Object[STRIPES];
+
+    public SearchIndex() {
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    // -------------------------------------------------------------- Properties
+    private Set<String> metadataKeys = Collections.emptySet();
+
+    /**
+     * <p>
+     * Set the metadata keys whose values are indexed besides the object names. Must be called
+     * before the index is used.
+     * </p>
+     */
+    public void setMetadataKeys(List<String> metadataKeys) {
+        this.metadataKeys = new HashSet<String>(metadataKeys);
+    }
+
+    private int maxValueLength = 256;
+
+    /**
+     * <p>
+     * Set how many leading characters of a metadata value are indexed. Default value is 256.
+     * </p>
+     */
+    public void setMaxValueLength(int maxValueLength) {
+        this.maxValueLength = maxValueLength;
+    }
+
+    // ------------------------------------------------- ChangeListener Methods
+    @Override
+    public void changed(Change change) {
+        String operation = change.getOperation();
+        if (Change.DELETE.equals(operation)) {
+            remove(change.getPath());
+            removeBelow(change.getPath());
+        } else if (Change.MOVE.equals(operation)) {
+            Document moved = remove(change.getSource());
+            moveBelow(change.getSource(), change.getPath());
+            if (change.getMetadata() != null || moved == null) {
+                put(change.getPath(), change.getObjectType(), change.getMetadata());
+            } else {
+                index(change.getPath(), withName(change.getPath(), moved));
+            }
+        } else {
+            put(change.getPath(), change.getObjectType(), change.getMetadata());
+        }
+    }
+
+    // ---------------------------------------------------------- Public Methods
+
+    /**
+     * <p>
+     * Index the name and metadata of the object at the specified path, replacing what was
+     * indexed for it before.
+     * </p>
+     */
+    public void put(String path, String objectType, Map<String, String> metadata) {
+        path = ChangeSupport.normalize(path);
+        if (path.length() == 0) {
+            return;
+        }
+        Map<String, String> fields = new HashMap<String, String>();
+        if (metadata != null) {
+            for (String key : metadataKeys) {
+                String value = metadata.get(key);
+                if (value != null && value.length() > 0) {
+                    if (value.length() > maxValueLength) {
+                        value = value.substring(0, maxValueLength);
+                    }
+                    fields.put(key, value.toLowerCase());
+                }
+            }
+        }
+        fields.put(NAME, nameOf(path).toLowerCase());
+        index(path, new Document(objectType, fields));
+    }
+
+    /**
+     * <p>
+     * Forget the object at the specified path, returning what was indexed for it.
+     * </p>
+     */
+    public Document remove(String path) {
+        synchronized (lock(path)) {
+            Document previous = documents.remove(path);
+            if (previous != null) {
+                for (Map.Entry<String, String> field : previous.fields.entrySet()) {
+                    for (String trigram : trigrams(field.getValue(), true)) {
+                        Posting posting = postings.get(key(field.getKey(), trigram));
+                        if (posting != null && posting.paths.remove(path)) {
+                            posting.size.decrementAndGet();
+                        }
+                    }
+                }
+            }
+            return previous;
+        }
+    }
+
+    /**
+     * <p>
+     * Forget everything, before rebuilding the index.
+     * </p>
+     */
+    public void clear() {
+        documents.clear();
+        postings.clear();
+    }
+
+    /**
+     * <p>
+     * Return the number of indexed objects.
+     * </p>
+     */
+    public int size() {
+        return documents.size();
+    }
+
+    /**
+     * <p>
+     * Return the media type the object at the specified path was indexed with, or
+     * <code>null</code> if it isn't indexed.
+     * </p>
+     */
+    public String getObjectType(String path) {
+        Document document = documents.get(path);
+        return document == null ? null : document.objectType;
+    }
+
+    /**
+     * <p>
+     * Return, in path order, up to <code>limit</code> paths of objects at or below
+     * <code>scope</code> (everywhere if empty) and after <code>after</code> (from the start
+     * if <code>null</code>) whose <code>field</code> contains <code>text</code>, or starts
+     * with it if <code>prefix</code> is set. Case is ignored.
+     * </p>
+     * 
+     * @exception BadRequestException
+     *                if the text is empty or the field is not indexed
+     */
+    public List<String> search(
+            String field,
+            String text,
+            boolean prefix,
+            String scope,
+            String after,
+            int limit) {
+        if (text == null || text.length() == 0) {
+            throw new BadRequestException("Search text is required");
+        }
+        if (!NAME.equals(field) && !metadataKeys.contains(field)) {
+            throw new BadRequestException("Metadata <" + field + "> is not indexed for search");
+        }
+        String needle = text.toLowerCase();
+        scope = ChangeSupport.normalize(scope);
+
+        // Drive from the rarest trigram, or scan the scope for short texts
+        Posting driver = null;
+        List<String> trigrams = trigrams(needle, prefix);
+        for (String trigram : trigrams) {
+            Posting posting = postings.get(key(field, trigram));
+            if (posting == null) {
+                return new ArrayList<String>(0);
+            }
+            if (driver == null || posting.size.get() < driver.size.get()) {
+                driver = posting;
+            }
+        }
+        Iterable<String> candidates;
+        if (driver == null) {
+            candidates = range(documents.navigableKeySet(), scope, after);
+        } else {
+            candidates = range(driver.paths, scope, after);
+        }
+
+        List<String> results = new ArrayList<String>();
+        for (String path : candidates) {
+            if (results.size() >= limit) {
+                break;
+            }
+            Document document = documents.get(path);
+            String value = document == null ? null : document.fields.get(field);
+            if (value != null && (prefix ? value.startsWith(needle) : value.contains(needle))) {
+                results.add(path);
+            }
+        }
+        return results;
+    }
+
+    // ---------------------------------------------------------- Support Classes
+
+    /**
+     * <p>
+     * The media type and lower-cased texts indexed for one path.
+     * </p>
+     */
+    public static final class Document {
+
+        private final String objectType;
+        private final Map<String, String> fields;
+
+        Document(String objectType, Map<String, String> fields) {
+            this.objectType = objectType;
+            this.fields = fields;
+        }
+
+    }
+
+    private static final class Posting {
+
+        final NavigableSet<String> paths = new ConcurrentSkipListSet<String>();
+        final AtomicInteger size = new AtomicInteger();
+
+    }
+
+    // --------------------------------------------------------- Private Methods
+
+    private Object lock(String path) {
+        return locks[(path.hashCode() & 0x7fffffff) % STRIPES];
+    }
+
+    private void index(String path, Document document) {
+        synchronized (lock(path)) {
+            remove(path);
+            documents.put(path, document);
+            for (Map.Entry<String, String> field : document.fields.entrySet()) {
+                for (String trigram : trigrams(field.getValue(), true)) {
+                    Posting posting = postings.get(key(field.getKey(), trigram));
+                    if (posting == null) {
+                        Posting created = new Posting();
+                        posting = postings.putIfAbsent(key(field.getKey(), trigram), created);
+                        if (posting == null) {
+                            posting = created;
+                        }
+                    }
+                    if (posting.paths.add(path)) {
+                        posting.size.incrementAndGet();
+                    }
+                }
+            }
+        }
+    }
+
+    private void removeBelow(String prefix) {
+        for (String path : documents.subMap(prefix + "/", prefix + "0").keySet()) {
+            remove(path);
+        }
+    }
+
+    private void moveBelow(String source, String target) {
+        Map<String, Document> below = documents.subMap(source + "/", source + "0");
+        for (Map.Entry<String, Document> entry : below.entrySet()) {
+            String path = entry.getKey();
+            remove(path);
+            index(target + path.substring(source.length()), entry.getValue());
+        }
+    }
+
+    private static Document withName(String path, Document document) {
+        Map<String, String> fields = new HashMap<String, String>(document.fields);
+        fields.put(NAME, nameOf(path).toLowerCase());
+        return new Document(document.objectType, fields);
+    }
+
+    private static String nameOf(String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    private static String key(String field, String trigram) {
+        return field + '\u0000' + trigram;
+    }
+
+    /**
+     * <p>
+     * Return the distinct trigrams of a text, including those with the start marker if
+     * <code>anchored</code>.
+     * </p>
+     */
+    private static List<String> trigrams(String text, boolean anchored) {
+        String padded = anchored ? START + text : text;
+        List<String> trigrams = new ArrayList<String>(Math.max(0, padded.length() - 2));
+        Set<String> seen = new HashSet<String>();
+        for (int i = 0; i + 3 <= padded.length(); i++) {
+            String trigram = padded.substring(i, i + 3);
+            if (seen.add(trigram)) {
+                trigrams.add(trigram);
+            }
+        }
+        return trigrams;
+    }
+
+    /**
+     * <p>
+     * Restrict a sorted set of paths to those below <code>scope</code> and after
+     * <code>after</code>.
+     * </p>
+     */
+    private static NavigableSet<String> range(
+            NavigableSet<String> paths,
+            String scope,
+            String after) {
+        String from = scope.length() == 0 ? "" : scope + "/";
+        boolean inclusive = true;
+        if (after != null && after.compareTo(from) >= 0) {
+            from = after;
+            inclusive = false;
+        }
+        if (scope.length() == 0) {
+            return paths.tailSet(from, inclusive);
+        }
+        String to = scope + "0";
+        if (from.compareTo(to) >= 0) {
+            return new ConcurrentSkipListSet<String>();
+        }
+        return paths.subSet(from, inclusive, to, false);
+    }
+
+}
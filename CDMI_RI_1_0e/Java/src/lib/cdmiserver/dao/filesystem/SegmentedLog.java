@@ -0,0 +1,474 @@
+/*
+ * Copyright (c) 2010, Sun Microsystems, Inc.
+ * Copyright (c) 2010, The Storage Networking Industry Association.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ * Redistributions of source code must retain the above copyright notice, 
+ * this list of conditions and the following disclaimer.
+ *  
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ *  
+ * Neither the name of The Storage Networking Industry Association (SNIA) nor 
+ * the names of its contributors may be used to endorse or promote products 
+ * derived from this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF 
+ *  THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.snia.cdmiserver.dao.filesystem;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Append-only log of byte records kept in a directory of fixed-size, memory-mapped segment
+ * files. Each record is addressed by its position, a <code>long</code> that grows across
+ * segments; a segment file is named after the position of its first byte.
+ * </p>
+ * 
+ * <p>
+ * Appending does not lock: a writer reserves a slot in the current segment with a
+ * compare-and-set, writes the record's length at the start of the slot, copies the record
+ * into the mapping and then marks the slot committed. Readers stop at a slot that is not
+ * committed yet, so they never see a record that is still being written, and at a zero
+ * length, which ends the log. Only rolling over to a new segment is synchronized.
+ * </p>
+ * 
+ * <p>
+ * Since every reserved slot records its length before its record is written, a writer that
+ * dies part way through does not hide the records appended after it: when the log is
+ * opened again such a slot is marked abandoned and skipped from then on. Only a slot whose
+ * length was never written ends the log there.
+ * </p>
+ * 
+ * <p>
+ * Records reach the page cache when <code>append()</code> returns, so they survive a crash of
+ * the server process; call <code>force()</code> to write them to disk.
+ * </p>
+ */
+public class SegmentedLog {
+
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    // Length of the record plus one, then the state of the slot
+    private static final int HEADER_SIZE = 8;
+
+    private static final int COMMITTED = 0x434f4d54;
+
+    private static final int ABANDONED = 0x41424e44;
+
+    private final File directory;
+    private final int segmentSize;
+    private final ConcurrentSkipListMap<Long, Segment> segments =
+            new ConcurrentSkipListMap<Long, Segment>();
+    private volatile Segment current;
+
+    // Bumped after every record is complete; read before scanning so readers see its bytes
+    private final AtomicLong published = new AtomicLong();
+
+    /**
+     * <p>
+     * Open the log in the specified directory, creating it if necessary. Records that were
+     * not completely written before the previous shutdown are discarded, and the records
+     * appended after them kept.
+     * </p>
+     * 
+     * @param directory
+     *            Directory holding the segment files
+     * @param segmentSize
+     *            Size of new segment files in bytes
+     */
+    public SegmentedLog(File directory, int segmentSize) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create log directory " + directory.getAbsolutePath());
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+
+        File[] files = directory.listFiles();
+        Arrays.sort(files);
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(SEGMENT_SUFFIX)) {
+                long base = Long.parseLong(name.substring(0, name.length()
+                                                             - SEGMENT_SUFFIX.length()));
+                Segment segment = new Segment(file, base, (int) file.length());
+                segment.recover();
+                segments.put(base, segment);
+            }
+        }
+        if (segments.isEmpty()) {
+            current = createSegment(0);
+            segments.put(current.base, current);
+        } else {
+            current = segments.lastEntry().getValue();
+            for (Segment segment : segments.headMap(current.base).values()) {
+                segment.seal();
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Append a record and return its position.
+     * </p>
+     * 
+     * @exception IllegalArgumentException
+     *                if the record does not fit in a segment
+     */
+    public long append(byte[] record) throws IOException {
+        int size = HEADER_SIZE + record.length;
+        if (size > segmentSize) {
+            throw new IllegalArgumentException("Record of "
+                                               + record.length
+                                               + " bytes exceeds the log segment size");
+        }
+        while (true) {
+            Segment segment = current;
+            int offset = segment.reserve(size);
+            if (offset >= 0) {
+                segment.write(offset, record);
+                published.incrementAndGet();
+                return segment.base + offset;
+            }
+            roll(segment);
+        }
+    }
+
+    /**
+     * <p>
+     * Read up to <code>max</code> complete records starting at <code>position</code> into
+     * <code>records</code>, and return the position following the last record read. A
+     * position before the oldest remaining segment is treated as the start of that segment.
+     * </p>
+     */
+    public long read(long position, List<byte[]> records, int max) {
+        return scan(position, records, null, max);
+    }
+
+    /**
+     * <p>
+     * Like <code>read(long, List, int)</code>, also adding the position of each record read to
+     * <code>positions</code>.
+     * </p>
+     */
+    public long read(long position, List<byte[]> records, List<Long> positions, int max) {
+        return scan(position, records, positions, max);
+    }
+
+    /**
+     * <p>
+     * Skip up to <code>max</code> complete records starting at <code>position</code>, and
+     * return the position following the last record skipped.
+     * </p>
+     */
+    public long skip(long position, int max) {
+        return scan(position, null, null, max);
+    }
+
+    /**
+     * <p>
+     * Return the number of complete records between <code>position</code> and the end of
+     * the log.
+     * </p>
+     */
+    public long count(long position) {
+        long count = 0;
+        List<Long> positions = new ArrayList<Long>(1);
+        while (true) {
+            positions.clear();
+            long next = scan(position, null, positions, 1);
+            if (next == position) {
+                return count;
+            }
+            position = next;
+            count += positions.size();
+        }
+    }
+
+    /**
+     * <p>
+     * Delete the segments that only hold records before <code>position</code>. The current
+     * segment is never deleted.
+     * </p>
+     */
+    public void truncateBefore(long position) {
+        for (Segment segment : segments.headMap(current.base).values()) {
+            if (segment.base + segment.capacity > position) {
+                break;
+            }
+            segments.remove(segment.base);
+            if (!segment.file.delete()) {
+                System.out.println("Cannot delete log segment " + segment.file);
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Write the records appended so far to disk.
+     * </p>
+     */
+    public void force() {
+        Segment last = current;
+        Map.Entry<Long, Segment> previous = segments.lowerEntry(last.base);
+        if (previous != null) {
+            previous.getValue().buffer.force();
+        }
+        last.buffer.force();
+    }
+
+    /**
+     * <p>
+     * Return the position of the oldest record still in the log.
+     * </p>
+     */
+    public long getStartPosition() {
+        return segments.firstKey();
+    }
+
+    /**
+     * <p>
+     * Return the position following the space reserved so far. Records before it may still
+     * be in the middle of being written.
+     * </p>
+     */
+    public long getEndPosition() {
+        Segment segment = current;
+        int offset = segment.position.get();
+        if (offset == Segment.SEALED) {
+            offset = Math.max(segment.limit, 0);
+        }
+        return segment.base + offset;
+    }
+
+    /**
+     * <p>
+     * Return the directory holding the segment files.
+     * </p>
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    // --------------------------------------------------------- Private Methods
+
+    // Returns the position following the last record or abandoned slot found, or the start
+    // position if there was none
+    private long scan(long position, List<byte[]> records, List<Long> positions, int max) {
+        published.get();
+        long end = position;
+        int found = 0;
+        while (found < max) {
+            Map.Entry<Long, Segment> entry = segments.floorEntry(position);
+            if (entry == null) {
+                entry = segments.firstEntry();
+                if (entry == null) {
+                    break;
+                }
+                position = entry.getKey();
+            }
+            Segment segment = entry.getValue();
+            int offset = (int) (position - segment.base);
+            int length = segment.recordLength(offset);
+            if (length < 0) {
+                int limit = segment.limit;
+                if (limit >= 0 && offset >= limit) {
+                    // End of a sealed segment; continue with the next one
+                    Long next = segments.higherKey(segment.base);
+                    if (next == null) {
+                        break;
+                    }
+                    position = next;
+                    continue;
+                }
+                break;
+            }
+            int state = segment.state(offset);
+            if (state == ABANDONED) {
+                position += HEADER_SIZE + length;
+                end = position;
+                continue;
+            }
+            if (state != COMMITTED) {
+                break; // Still being written
+            }
+            if (records != null) {
+                records.add(segment.read(offset, length));
+            }
+            if (positions != null) {
+                positions.add(position);
+            }
+            position += HEADER_SIZE + length;
+            end = position;
+            found++;
+        }
+        return end;
+    }
+
+    private synchronized void roll(Segment full) throws IOException {
+        if (current != full) {
+            return;
+        }
+        full.seal();
+        Segment next = createSegment(full.base + full.capacity);
+        segments.put(next.base, next);
+        current = next;
+    }
+
+    private Segment createSegment(long base) throws IOException {
+        File file = new File(directory, String.format("%020d", base) + SEGMENT_SUFFIX);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(segmentSize);
+        } finally {
+            raf.close();
+        }
+        return new Segment(file, base, segmentSize);
+    }
+
+    /**
+     * <p>
+     * One mapped segment file. <code>position</code> is the next free offset, or
+     * <code>SEALED</code> once no more records may be reserved; <code>limit</code> is the end
+     * of the reserved space once sealed, -1 before.
+     * </p>
+     */
+    private static final class Segment {
+
+        private static final int SEALED = Integer.MAX_VALUE;
+
+        private final File file;
+        private final long base;
+        private final int capacity;
+        private final MappedByteBuffer buffer;
+        private final AtomicInteger position = new AtomicInteger();
+        private volatile int limit = -1;
+
+        private Segment(File file, long base, int capacity) throws IOException {
+            this.file = file;
+            this.base = base;
+            this.capacity = capacity;
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            } finally {
+                raf.close();
+            }
+        }
+
+        private int reserve(int size) {
+            while (true) {
+                int offset = position.get();
+                if ((long) offset + size > capacity) {
+                    return -1;
+                }
+                if (position.compareAndSet(offset, offset + size)) {
+                    return offset;
+                }
+            }
+        }
+
+        private void seal() {
+            while (true) {
+                int offset = position.get();
+                if (offset == SEALED) {
+                    return;
+                }
+                if (position.compareAndSet(offset, SEALED)) {
+                    limit = offset;
+                    return;
+                }
+            }
+        }
+
+        // Headers hold the record length plus one, so an empty record is not mistaken for the
+        // end of the log
+        private void write(int offset, byte[] record) {
+            buffer.putInt(offset, record.length + 1);
+            ByteBuffer view = buffer.duplicate();
+            view.position(offset + HEADER_SIZE);
+            view.put(record);
+            buffer.putInt(offset + 4, COMMITTED);
+        }
+
+        private int recordLength(int offset) {
+            if (offset + HEADER_SIZE > capacity) {
+                return -1;
+            }
+            int length = buffer.getInt(offset) - 1;
+            if (length > capacity - offset - HEADER_SIZE) {
+                return -1;
+            }
+            return length;
+        }
+
+        private int state(int offset) {
+            return buffer.getInt(offset + 4);
+        }
+
+        private byte[] read(int offset, int length) {
+            byte[] record = new byte[length];
+            ByteBuffer view = buffer.duplicate();
+            view.position(offset + HEADER_SIZE);
+            view.get(record);
+            return record;
+        }
+
+        /**
+         * <p>
+         * Mark the slots whose records were not completely written as abandoned, find the end
+         * of the reserved slots and clear everything after it, so partially written records
+         * cannot be read back as headers.
+         * </p>
+         */
+        private void recover() {
+            int offset = 0;
+            while (true) {
+                int length = recordLength(offset);
+                if (length < 0) {
+                    break;
+                }
+                int state = state(offset);
+                if (state != COMMITTED && state != ABANDONED) {
+                    buffer.putInt(offset + 4, ABANDONED);
+                }
+                offset += HEADER_SIZE + length;
+            }
+            ByteBuffer view = buffer.duplicate();
+            view.position(offset);
+            byte[] zeros = new byte[8192];
+            while (view.hasRemaining()) {
+                view.put(zeros, 0, Math.min(zeros.length, view.remaining()));
+            }
+            position.set(offset);
+        }
+    }
+
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2010, Sun Microsystems, Inc.
+ * Copyright (c) 2010, The Storage Networking Industry Association.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ * Redistributions of source code must retain the above copyright notice, 
+ * this list of conditions and the following disclaimer.
+ *  
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ *  
+ * Neither the name of The Storage Networking Industry Association (SNIA) nor 
+ * the names of its contributors may be used to endorse or promote products 
+ * derived from this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF 
+ *  THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.snia.cdmiserver.dao.filesystem;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.snia.cdmiserver.exception.ForbiddenException;
+import org.snia.cdmiserver.util.CdmiPath;
+
+/**
+ * <p>
+ * Static helpers for container snapshots. The snapshots of a container live in its child
+ * container <code>cdmi_snapshots</code>, one read-only container per snapshot, holding hard
+ * links to the files of the container at the time it was taken. No data is copied. Writes
+ * never modify a value or "." file in place but replace it with a new file (see
+ * {@link FileUtils#replace(File, File)}), which breaks the link, so a snapshot keeps the old
+ * contents copy-on-write.
+ * </p>
+ */
+final class Snapshots {
+
+    /**
+     * <p>
+     * Name of the child container holding the snapshots of a container.
+     * </p>
+     */
+    static final String DIRECTORY = "cdmi_snapshots";
+
+    /**
+     * <p>
+     * Number of entries linked by a single <code>cp</code> process.
+     * </p>
+     */
+    private static final int BATCH_SIZE = 1000;
+
+    /**
+     * <p>
+     * Private constructor to prohibit instantiation.
+     * </p>
+     */
+    private Snapshots() {}
+
+    /**
+     * <p>
+     * Reject changes to snapshots and to the <code>cdmi_snapshots</code> containers holding
+     * them.
+     * </p>
+     * 
+     * @exception ForbiddenException
+     *                if the path is inside a snapshot
+     */
+    static void checkWritable(String path) {
+        if (path == null) {
+            return;
+        }
+        if (CdmiPath.parse(path).hasSegment(DIRECTORY)) {
+            throw new ForbiddenException("Snapshot <" + path + "> is read-only");
+        }
+    }
+
+    /**
+     * <p>
+     * Return <code>true</code> if the path names a whole snapshot, which may be deleted.
+     * </p>
+     */
+    static boolean isSnapshot(String path) {
+        String[] segments = ChangeSupport.normalize(path).split("/");
+        if (segments.length < 3 || !DIRECTORY.equals(segments[segments.length - 2])) {
+            return false;
+        }
+        for (int i = 0; i < segments.length - 2; i++) {
+            if (DIRECTORY.equals(segments[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * <p>
+     * Return the names of the completed snapshots of a container, sorted.
+     * </p>
+     */
+    static List<String> list(File directory) {
+        String[] names = new File(directory, DIRECTORY).list();
+        if (names == null) {
+            return Collections.emptyList();
+        }
+        List<String> snapshots = new ArrayList<String>(names.length);
+        for (String name : names) {
+            if (!name.startsWith(".")) {
+                snapshots.add(name);
+            }
+        }
+        Collections.sort(snapshots);
+        return snapshots;
+    }
+
+    /**
+     * <p>
+     * Hard link the entries of <code>source</code> into the existing, empty directory
+     * <code>target</code>, recursively. The snapshots of the container itself, temporary
+     * files and queues (whose segments are updated in place) are left out at the top level;
+     * the caller removes those further down.
+     * </p>
+     * 
+     * <p>
+     * Java 6 has no API for creating hard links, so the links are made by <code>cp -al</code>,
+     * one process per batch of top-level entries.
+     * </p>
+     */
+    static void link(File source, File target) throws IOException, InterruptedException {
+        String[] names = source.list();
+        if (names == null) {
+            throw new IOException("Cannot list '" + source + "'");
+        }
+        List<String> command = new ArrayList<String>();
+        for (String name : names) {
+            if (DIRECTORY.equals(name)
+                || ("." + DIRECTORY).equals(name)
+                || name.startsWith(FileUtils.TEMPORARY_PREFIX)
+                || isQueue(source, name)) {
+                continue;
+            }
+            if (command.isEmpty()) {
+                command.add("cp");
+                command.add("-al");
+                command.add("--");
+            }
+            command.add(new File(source, name).getPath());
+            if (command.size() - 3 >= BATCH_SIZE) {
+                run(command, target);
+                command.clear();
+            }
+        }
+        if (!command.isEmpty()) {
+            run(command, target);
+        }
+    }
+
+    /**
+     * <p>
+     * Return <code>true</code> if the named entry of a directory belongs to a queue: its
+     * segment directory, or the "." file next to one.
+     * </p>
+     */
+    static boolean isQueue(File directory, String name) {
+        if (!name.startsWith(".")) {
+            return false;
+        }
+        return name.endsWith(QueueDaoImpl.QUEUE_SUFFIX)
+            || new File(directory, name + QueueDaoImpl.QUEUE_SUFFIX).isDirectory();
+    }
+
+    // --------------------------------------------------------- Private Methods
+
+    private static void run(List<String> command, File target)
+            throws IOException, InterruptedException {
+        command.add(target.getPath() + "/");
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        process.getOutputStream().close();
+        StringBuilder output = new StringBuilder();
+        InputStream in = process.getInputStream();
+        try {
+            byte[] buffer = new byte[1024];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                if (output.length() < 4096) {
+                    output.append(new String(buffer, 0, n));
+                }
+            }
+        } finally {
+            in.close();
+        }
+        int status = process.waitFor();
+        if (status != 0) {
+            throw new IOException("Cannot link into '" + target + "' (status " + status + "): "
+                                  + output.toString().trim());
+        }
+    }
+
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) 2010, Sun Microsystems, Inc.
+ * Copyright (c) 2010, The Storage Networking Industry Association.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ * Redistributions of source code must retain the above copyright notice, 
+ * this list of conditions and the following disclaimer.
+ *  
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ *  
+ * Neither the name of The Storage Networking Industry Association (SNIA) nor 
+ * the names of its contributors may be used to endorse or promote products 
+ * derived from this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF 
+ *  THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.snia.cdmiserver.dao.filesystem;
+
+import java.io.File;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.snia.cdmiserver.dao.ChangeListener;
+import org.snia.cdmiserver.model.Change;
+import org.snia.cdmiserver.util.CdmiPath;
+import org.snia.cdmiserver.util.MediaTypes;
+
+/**
+ * <p>
+ * Short-lived cache of whether files exist and are directories, shared by the DAOs so that the
+ * several existence checks of one request, and repeated requests for paths that do not exist,
+ * do not each go to the filesystem.
+ * </p>
+ * 
+ * <p>
+ * Entries are dropped when a change to their path is reported, and every entry is dropped when
+ * a tree of containers changes. An entry is only stored if no change was reported while the
+ * file was examined, so a lookup racing with a write never caches the old state. Changes made
+ * behind the server's back are seen once the entry expires, after <code>ttlMillis</code>.
+ * </p>
+ */
+public class StatCache implements ChangeListener {
+
+    /**
+     * <p>
+     * Result of a lookup: no such file.
+     * </p>
+     */
+    public static final int MISSING = 0;
+
+    /**
+     * <p>
+     * Result of a lookup: a regular file.
+     * </p>
+     */
+    public static final int FILE = 1;
+
+    /**
+     * <p>
+     * Result of a lookup: a directory.
+     * </p>
+     */
+    public static final int DIRECTORY = 2;
+
+    // ---------------------------------------------------------------- Properties
+
+    private File baseDirectory = null;
+
+    public void setBaseDirectoryName(String baseDirectoryName) {
+        this.baseDirectory = new File(baseDirectoryName);
+    }
+
+    private long ttlNanos = 1000L * 1000000L;
+
+    /**
+     * <p>
+     * Set how long a lookup is reused, in milliseconds; 0 turns the cache off.
+     * </p>
+     */
+    public void setTtlMillis(long ttlMillis) {
+        this.ttlNanos = ttlMillis * 1000000L;
+    }
+
+    private int maxEntries = 100000;
+
+    /**
+     * <p>
+     * Set the number of entries beyond which the cache starts over.
+     * </p>
+     */
+    public void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    // --------------------------------------------------------------------- State
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    // Bumped before every invalidation
+    private final AtomicLong invalidations = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * <p>
+     * Return a cache that does not cache, for DAOs that are not given one.
+     * </p>
+     */
+    static StatCache uncached() {
+        StatCache cache = new StatCache();
+        cache.setTtlMillis(0);
+        return cache;
+    }
+
+    // ------------------------------------------------------------ Public Methods
+
+    /**
+     * <p>
+     * Return {@link #MISSING}, {@link #FILE} or {@link #DIRECTORY} for the specified file.
+     * </p>
+     */
+    public int stat(File file) {
+        if (ttlNanos <= 0) {
+            return statNow(file);
+        }
+        String key = file.getPath();
+        long now = System.nanoTime();
+        Entry entry = entries.get(key);
+        if (entry != null && now - entry.time < ttlNanos) {
+            hits.incrementAndGet();
+            return entry.kind;
+        }
+        misses.incrementAndGet();
+        long epoch = invalidations.get();
+        int kind = statNow(file);
+        if (invalidations.get() == epoch) {
+            if (entries.size() >= maxEntries) {
+                entries.clear();
+            }
+            entries.put(key, new Entry(kind, now));
+            if (invalidations.get() != epoch) {
+                // An invalidation may have missed the entry just stored
+                entries.remove(key);
+            }
+        }
+        return kind;
+    }
+
+    public boolean exists(File file) {
+        return stat(file) != MISSING;
+    }
+
+    public boolean isFile(File file) {
+        return stat(file) == FILE;
+    }
+
+    public boolean isDirectory(File file) {
+        return stat(file) == DIRECTORY;
+    }
+
+    /**
+     * <p>
+     * Forget what is known about the specified file.
+     * </p>
+     */
+    public void invalidate(File file) {
+        invalidations.incrementAndGet();
+        entries.remove(file.getPath());
+    }
+
+    /**
+     * <p>
+     * Forget everything; used when a whole tree changes.
+     * </p>
+     */
+    public void invalidateAll() {
+        invalidations.incrementAndGet();
+        entries.clear();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    // ------------------------------------------------- ChangeListener Methods
+
+    @Override
+    public void changed(Change change) {
+        if (MediaTypes.CONTAINER.equals(change.getObjectType())
+            && !Change.CREATE.equals(change.getOperation())
+            && !Change.UPDATE.equals(change.getOperation())) {
+            invalidateAll(); // Copies, moves and deletes reach everything below
+            return;
+        }
+        invalidatePath(change.getPath());
+        if (change.getSource() != null) {
+            invalidatePath(change.getSource());
+        }
+    }
+
+    // ----------------------------------------------------------- Private Methods
+
+    /**
+     * <p>
+     * Forget the files of the container, data object or queue at <code>path</code>: the
+     * directory or value file, the "." fields file and the queue directory.
+     * </p>
+     */
+    private void invalidatePath(String path) {
+        if (baseDirectory == null) {
+            invalidateAll();
+            return;
+        }
+        CdmiPath parsed = CdmiPath.parse(path);
+        File fieldsFile = parsed.getFieldsFile(baseDirectory);
+        invalidations.incrementAndGet();
+        entries.remove(parsed.toFile(baseDirectory).getPath());
+        entries.remove(fieldsFile.getPath());
+        entries.remove(fieldsFile.getPath() + QueueDaoImpl.QUEUE_SUFFIX);
+    }
+
+    private static int statNow(File file) {
+        if (file.isFile()) {
+            return FILE;
+        }
+        return file.isDirectory() ? DIRECTORY : MISSING;
+    }
+
+    private static final class Entry {
+        final int kind;
+        final long time;
+
+        Entry(int kind, long time) {
+            this.kind = kind;
+            this.time = time;
+        }
+    }
+
+}
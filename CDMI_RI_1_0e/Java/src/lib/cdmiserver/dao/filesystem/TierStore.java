@@ -0,0 +1,832 @@
+/*
+ * Copyright (c) 2010, Sun Microsystems, Inc.
+ * Copyright (c) 2010, The Storage Networking Industry Association.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ * Redistributions of source code must retain the above copyright notice, 
+ * this list of conditions and the following disclaimer.
+ *  
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ *  
+ * Neither the name of The Storage Networking Industry Association (SNIA) nor 
+ * the names of its contributors may be used to endorse or promote products 
+ * derived from this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF 
+ *  THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.snia.cdmiserver.dao.filesystem;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import org.snia.cdmiserver.dao.ChangeListener;
+import org.snia.cdmiserver.model.Change;
+import org.snia.cdmiserver.model.DataObject;
+import org.snia.cdmiserver.util.CdmiPath;
+import org.snia.cdmiserver.util.DaemonThreadFactory;
+import org.snia.cdmiserver.util.MediaTypes;
+
+/**
+ * <p>
+ * Capacity tier for the values of data objects that are no longer read. The base directory
+ * is the fast tier: every object keeps its fields file, and usually its value file, there. A
+ * background migrator demotes values that have not been written or read for
+ * <code>coldAfterHours</code> to <code>directoryName</code>, typically on slower and cheaper
+ * disks, and promotes them back once they are read <code>promoteAccesses</code> times within
+ * <code>promoteWindowMinutes</code>. It moves at most <code>bytesPerSecond</code>, so
+ * migration never starves the requests it is meant to serve.
+ * </p>
+ * 
+ * <p>
+ * A demoted value is copied to a file of its own below <code>directoryName</code>, and the
+ * {@link DataObjectDaoImpl#VALUE_LOCATION} metadata of its object names that file, so reads go
+ * straight to the right tier. Its value file in the base directory is replaced by a small stub
+ * recording the size of the value, which is what the object is charged for. Both files are
+ * replaced under the write lock of the object, fields first, so a reader never finds a stub
+ * without a location. Migration pauses while tree jobs run, since those copy the files of an
+ * object without its lock.
+ * </p>
+ * 
+ * <p>
+ * Copies and snapshots of an object share its capacity tier file, so, as in {@link ChunkStore},
+ * files are freed by a periodic mark and sweep rather than when an object is deleted: the
+ * collector marks the location of every fields file in the tree, snapshots included, and
+ * deletes the files nobody marked that were last modified before the grace period. Promotion
+ * touches the file it promotes from for that reason, giving readers that looked up the old
+ * location the grace period to finish.
+ * </p>
+ */
+public class TierStore implements ChangeListener {
+
+    static final String STUB_HEADER = "CDMI-TIER 1\n";
+
+    // Larger files are never stubs, and are not opened to find out
+    private static final int MAX_STUB_SIZE = 128;
+
+    private static final Pattern LOCATION = Pattern.compile("[0-9a-f]{2}/[0-9a-f]{32}");
+
+    private static final int SLICE_SIZE = 1024 * 1024;
+
+    // -------------------------------------------------------------- Properties
+    private String directoryName = null;
+
+    /**
+     * <p>
+     * Set the directory of the capacity tier. It should be outside of the base directory, on
+     * the disks values are demoted to.
+     * </p>
+     */
+    public void setDirectoryName(String directoryName) {
+        this.directoryName = directoryName;
+    }
+
+    private String baseDirectoryName = null;
+
+    /**
+     * <p>
+     * Set the base directory name for our local storage, which is the fast tier.
+     * </p>
+     */
+    public void setBaseDirectoryName(String baseDirectoryName) {
+        this.baseDirectoryName = baseDirectoryName;
+    }
+
+    private TreeJobManager treeJobManager;
+
+    /**
+     * <p>
+     * Injected {@link TreeJobManager} whose walker pool scans the tree, and whose jobs pause
+     * migration.
+     * </p>
+     */
+    public void setTreeJobManager(TreeJobManager treeJobManager) {
+        this.treeJobManager = treeJobManager;
+    }
+
+    private PathLocks pathLocks;
+
+    /**
+     * <p>
+     * Injected {@link PathLocks}, shared with the data object DAO.
+     * </p>
+     */
+    public void setPathLocks(PathLocks pathLocks) {
+        this.pathLocks = pathLocks;
+    }
+
+    private long minValueSize = 1024 * 1024;
+
+    /**
+     * <p>
+     * Set the size of the smallest value demoted. Default value is 1 MB.
+     * </p>
+     */
+    public void setMinValueSize(long minValueSize) {
+        this.minValueSize = minValueSize;
+    }
+
+    private int coldAfterHours = 168;
+
+    /**
+     * <p>
+     * Set how long a value must have been neither written nor read to be demoted. Default
+     * value is 168 (a week).
+     * </p>
+     */
+    public void setColdAfterHours(int coldAfterHours) {
+        this.coldAfterHours = coldAfterHours;
+    }
+
+    private int promoteAccesses = 3;
+
+    /**
+     * <p>
+     * Set how many reads of a demoted value within <code>promoteWindowMinutes</code> promote
+     * it, or 0 to never promote values. Default value is 3.
+     * </p>
+     */
+    public void setPromoteAccesses(int promoteAccesses) {
+        this.promoteAccesses = promoteAccesses;
+    }
+
+    private int promoteWindowMinutes = 60;
+
+    /**
+     * <p>
+     * Set the window reads are counted in for promotion. Default value is 60.
+     * </p>
+     */
+    public void setPromoteWindowMinutes(int promoteWindowMinutes) {
+        this.promoteWindowMinutes = promoteWindowMinutes;
+    }
+
+    private long bytesPerSecond = 16L * 1024 * 1024;
+
+    /**
+     * <p>
+     * Set how many bytes per second the migrator may copy between tiers. Default value is
+     * 16 MB.
+     * </p>
+     */
+    public void setBytesPerSecond(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    private int migrateIntervalMinutes = 60;
+
+    /**
+     * <p>
+     * Set the time between migrations in minutes, or 0 to never migrate. Default value is 60.
+     * </p>
+     */
+    public void setMigrateIntervalMinutes(int migrateIntervalMinutes) {
+        this.migrateIntervalMinutes = migrateIntervalMinutes;
+    }
+
+    private int collectIntervalMinutes = 1440;
+
+    /**
+     * <p>
+     * Set the time between collections in minutes, or 0 to never collect. Default value is
+     * 1440 (daily).
+     * </p>
+     */
+    public void setCollectIntervalMinutes(int collectIntervalMinutes) {
+        this.collectIntervalMinutes = collectIntervalMinutes;
+    }
+
+    private int graceSeconds = 3600;
+
+    /**
+     * <p>
+     * Set how long before a collection starts a file of the capacity tier must have last
+     * been written or promoted from to be deleted. It must exceed the time it takes to read
+     * a value. Default value is 3600.
+     * </p>
+     */
+    public void setGraceSeconds(int graceSeconds) {
+        this.graceSeconds = graceSeconds;
+    }
+
+    private int maxTrackedObjects = 100000;
+
+    /**
+     * <p>
+     * Set how many objects reads are tracked for; tracking starts over when there are more.
+     * Default value is 100000.
+     * </p>
+     */
+    public void setMaxTrackedObjects(int maxTrackedObjects) {
+        this.maxTrackedObjects = maxTrackedObjects;
+    }
+
+    // ------------------------------------------------------------------ State
+    private final ConcurrentMap<String, Access> accesses = new ConcurrentHashMap<String, Access>();
+
+    private final Set<String> promotions =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private final AtomicLong demoted = new AtomicLong();
+
+    private final AtomicLong promoted = new AtomicLong();
+
+    private final ScheduledExecutorService migrator =
+            Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("cdmi-tiers-"));
+
+    // Start and bytes moved of the current migration, for the budget
+    private long budgetStart;
+
+    private long budgetUsed;
+
+    // Changes the collector has to account for while it walks
+    private volatile boolean collecting = false;
+
+    private volatile boolean treeChanged = false;
+
+    private final Set<String> changedObjects =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * <p>
+     * Return the number of values demoted.
+     * </p>
+     */
+    public long getDemoted() {
+        return demoted.get();
+    }
+
+    /**
+     * <p>
+     * Return the number of values promoted.
+     * </p>
+     */
+    public long getPromoted() {
+        return promoted.get();
+    }
+
+    // ------------------------------------------------- ChangeListener Methods
+    @Override
+    public void changed(Change change) {
+        if (!collecting) {
+            return;
+        }
+        String operation = change.getOperation();
+        if (MediaTypes.CONTAINER.equals(change.getObjectType())) {
+            if (Change.COPY.equals(operation)
+                || Change.MOVE.equals(operation)
+                || (Change.CREATE.equals(operation)
+                    && change.getPath().indexOf(Snapshots.DIRECTORY + "/") >= 0)) {
+                treeChanged = true;
+            }
+        } else if (Change.COPY.equals(operation) || Change.MOVE.equals(operation)) {
+            changedObjects.add(change.getPath());
+        }
+    }
+
+    // ---------------------------------------------------------- Public Methods
+
+    /**
+     * <p>
+     * Return the file of the capacity tier at the specified location.
+     * </p>
+     * 
+     * @exception IOException
+     *                if the location is not one this store hands out
+     */
+    public File file(String location) throws IOException {
+        if (!LOCATION.matcher(location).matches()) {
+            throw new IOException("Invalid value location '" + location + "'");
+        }
+        return new File(directoryName, location);
+    }
+
+    /**
+     * <p>
+     * Record a read of the data object at the specified normalized path, whose value is at
+     * <code>location</code> in the capacity tier, or in the fast tier if <code>null</code>.
+     * A demoted value read often enough is queued for promotion.
+     * </p>
+     */
+    public void recordAccess(String path, String location) {
+        Access access = accesses.get(path);
+        if (access == null) {
+            if (accesses.size() >= maxTrackedObjects) {
+                accesses.clear();
+            }
+            access = new Access();
+            Access existing = accesses.putIfAbsent(path, access);
+            if (existing != null) {
+                access = existing;
+            }
+        }
+        int count = access.record(System.currentTimeMillis(), promoteWindowMinutes * 60000L);
+        if (location != null && promoteAccesses > 0 && count >= promoteAccesses) {
+            promotions.add(path);
+        }
+    }
+
+    /**
+     * <p>
+     * Promote the values queued for promotion, then demote the values gone cold, within the
+     * byte budget of one interval. Blocks until done.
+     * </p>
+     */
+    public void migrate() throws IOException, InterruptedException {
+        synchronized (this) {
+            budgetStart = System.currentTimeMillis();
+            budgetUsed = 0;
+        }
+        int promotedNow = 0;
+        for (String path : new ArrayList<String>(promotions)) {
+            promotions.remove(path);
+            if (isPaused()) {
+                return;
+            }
+            if (promote(path)) {
+                promotedNow++;
+            }
+        }
+        int demotedNow = 0;
+        for (File file : findCold(bytesPerSecond * Math.max(1, migrateIntervalMinutes) * 60)) {
+            if (isPaused()) {
+                break;
+            }
+            if (demote(file)) {
+                demotedNow++;
+            }
+        }
+        if (promotedNow > 0 || demotedNow > 0) {
+            System.out.println("Tier migration promoted " + promotedNow + " values, demoted "
+                               + demotedNow);
+        }
+    }
+
+    /**
+     * <p>
+     * Delete the files of the capacity tier no fields file refers to, blocking until done.
+     * Return the number of files deleted, or -1 if the collection was abandoned.
+     * </p>
+     */
+    public long collect() throws IOException, InterruptedException {
+        final File baseDirectory = new File(baseDirectoryName).getAbsoluteFile();
+        final Set<String> marked =
+                Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        long cutoff = System.currentTimeMillis() - graceSeconds * 1000L;
+        changedObjects.clear();
+        treeChanged = false;
+        collecting = true;
+        try {
+            // Mark
+            treeJobManager.newWalker().walk(baseDirectory, new ParallelTreeWalker.Visitor() {
+                public boolean preVisitDirectory(File directory) {
+                    return directory.equals(baseDirectory) || !directory.getName().startsWith(".");
+                }
+
+                public void visitFile(File file) {
+                    if (file.getName().startsWith(".") && !FileUtils.isTemporary(file)) {
+                        mark(file, marked);
+                    }
+                }
+
+                public void postVisitDirectory(File directory) {
+                }
+            });
+            for (String path : changedObjects) {
+                mark(CdmiPath.parse(path).getFieldsFile(baseDirectory), marked);
+            }
+            if (treeChanged) {
+                System.out.println("Tier collection abandoned: containers changed meanwhile");
+                return -1;
+            }
+        } finally {
+            collecting = false;
+        }
+
+        // Sweep
+        long deleted = 0;
+        File[] directories = new File(directoryName).listFiles();
+        if (directories != null) {
+            for (File directory : directories) {
+                File[] files = directory.listFiles();
+                if (files == null) {
+                    continue;
+                }
+                for (File file : files) {
+                    String location = directory.getName() + "/" + file.getName();
+                    if (!marked.contains(location)
+                        && file.lastModified() < cutoff
+                        && file.delete()) {
+                        deleted++;
+                    }
+                }
+            }
+        }
+        System.out.println("Tier collection kept " + marked.size() + " values, deleted "
+                           + deleted);
+        return deleted;
+    }
+
+    /**
+     * <p>
+     * Schedule the migrator and the collector, if enabled.
+     * </p>
+     */
+    public void start() {
+        if (migrateIntervalMinutes > 0) {
+            migrator.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    try {
+                        migrate();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    } catch (Exception ex) {
+                        ex.printStackTrace();
+                        System.out.println("Tier migration failed: " + ex);
+                    }
+                }
+            }, migrateIntervalMinutes, migrateIntervalMinutes, TimeUnit.MINUTES);
+        }
+        if (collectIntervalMinutes > 0) {
+            migrator.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    try {
+                        collect();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    } catch (Exception ex) {
+                        ex.printStackTrace();
+                        System.out.println("Tier collection failed: " + ex);
+                    }
+                }
+            }, collectIntervalMinutes, collectIntervalMinutes, TimeUnit.MINUTES);
+        }
+    }
+
+    /**
+     * <p>
+     * Stop the migrator and the collector.
+     * </p>
+     */
+    public void shutdown() {
+        migrator.shutdownNow();
+    }
+
+    // --------------------------------------------------------- Package Methods
+
+    /**
+     * <p>
+     * Return the size of the value a stub stands for, or -1 if the file is not a stub, or
+     * cannot be read.
+     * </p>
+     */
+    static long stubSize(File file) {
+        if (file.length() > MAX_STUB_SIZE) {
+            return -1;
+        }
+        try {
+            String stub = FileUtils.readString(file);
+            if (!stub.startsWith(STUB_HEADER)) {
+                return -1;
+            }
+            return Long.parseLong(stub.substring(STUB_HEADER.length()).trim());
+        } catch (IOException ex) {
+            return -1;
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    // --------------------------------------------------------- Private Methods
+
+    private boolean isPaused() {
+        return Thread.currentThread().isInterrupted() || treeJobManager.isBusy();
+    }
+
+    /**
+     * <p>
+     * Scan the fast tier for values large enough to demote that were neither written nor
+     * read since the cutoff, up to <code>budget</code> bytes of them.
+     * </p>
+     */
+    private List<File> findCold(final long budget) throws IOException, InterruptedException {
+        final File baseDirectory = new File(baseDirectoryName).getAbsoluteFile();
+        final int prefixLength = baseDirectory.getPath().length() + 1;
+        final long now = System.currentTimeMillis();
+        final long cutoff = now - coldAfterHours * 3600000L;
+        final ConcurrentLinkedQueue<File> cold = new ConcurrentLinkedQueue<File>();
+        final AtomicLong total = new AtomicLong();
+        treeJobManager.newWalker().walk(baseDirectory, new ParallelTreeWalker.Visitor() {
+            public boolean preVisitDirectory(File directory) {
+                if (directory.equals(baseDirectory)) {
+                    return true;
+                }
+                String name = directory.getName();
+                return !name.startsWith(".")
+                    && !Snapshots.DIRECTORY.equals(name)
+                    && total.get() < budget;
+            }
+
+            public void visitFile(File file) {
+                long length = file.length();
+                if (file.getName().startsWith(".")
+                    || length < minValueSize
+                    || file.lastModified() >= cutoff
+                    || total.get() >= budget) {
+                    return;
+                }
+                Access access = accesses.get(file.getPath().substring(prefixLength));
+                if (access != null && access.last >= cutoff) {
+                    return;
+                }
+                cold.add(file);
+                total.addAndGet(length);
+            }
+
+            public void postVisitDirectory(File directory) {
+            }
+        });
+        return new ArrayList<File>(cold);
+    }
+
+    /**
+     * <p>
+     * Move the value in the specified value file to the capacity tier. Return
+     * <code>false</code> if it is not eligible any more, or changed while it was copied.
+     * </p>
+     */
+    private boolean demote(File objFile) throws IOException, InterruptedException {
+        File baseDirectory = new File(baseDirectoryName).getAbsoluteFile();
+        String path = CdmiPath.parse(objFile.getPath().substring(
+                baseDirectory.getPath().length() + 1)).toString();
+        File metadataFile = new File(objFile.getParentFile(), "." + objFile.getName());
+        DataObject before = readFields(metadataFile);
+        if (before == null
+            || before.getMetadata().get(DataObjectDaoImpl.VALUE_LOCATION) != null
+            || DataObjectDaoImpl.CHUNKS.equals(before.getMetadata().get(
+                    DataObjectDaoImpl.VALUE_FORMAT))) {
+            return false;
+        }
+        long length = objFile.length();
+        long modified = objFile.lastModified();
+        String location = newLocation();
+        File cold = file(location);
+        boolean published = false;
+        try {
+            copy(objFile, cold);
+            pathLocks.writeLock(path).lock();
+            try {
+                DataObject dObj = readFields(metadataFile);
+                if (treeJobManager.isBusy()
+                    || dObj == null
+                    || objFile.length() != length
+                    || objFile.lastModified() != modified
+                    || !sameValue(before, dObj)) {
+                    return false;
+                }
+                dObj.setMetadata(DataObjectDaoImpl.VALUE_LOCATION, location);
+                File metadataTemp = FileUtils.writeTemporary(metadataFile, toJson(dObj));
+                File stubTemp = FileUtils.writeTemporary(objFile, STUB_HEADER + length + "\n");
+                try {
+                    FileUtils.replace(metadataTemp, metadataFile);
+                } catch (IOException ex) {
+                    stubTemp.delete();
+                    throw ex;
+                }
+                published = true;
+                FileUtils.replace(stubTemp, objFile);
+            } finally {
+                pathLocks.writeLock(path).unlock();
+            }
+            demoted.incrementAndGet();
+            return true;
+        } finally {
+            if (!published) {
+                cold.delete();
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Move the value of the data object at the specified path back to the fast tier. Return
+     * <code>false</code> if it is not in the capacity tier, or changed while it was copied.
+     * </p>
+     */
+    private boolean promote(String path) throws IOException, InterruptedException {
+        File baseDirectory = new File(baseDirectoryName);
+        CdmiPath target = CdmiPath.parse(path);
+        File objFile = target.toFile(baseDirectory);
+        File metadataFile = target.getFieldsFile(baseDirectory);
+        DataObject before = readFields(metadataFile);
+        String location = before == null ? null : before.getMetadata().get(
+                DataObjectDaoImpl.VALUE_LOCATION);
+        if (location == null || !objFile.isFile()) {
+            return false;
+        }
+        File cold = file(location);
+        File valueTemp = FileUtils.temporaryFile(objFile);
+        try {
+            copy(cold, valueTemp);
+            pathLocks.writeLock(path).lock();
+            try {
+                DataObject dObj = readFields(metadataFile);
+                if (treeJobManager.isBusy()
+                    || dObj == null
+                    || !location.equals(dObj.getMetadata().get(DataObjectDaoImpl.VALUE_LOCATION))) {
+                    return false;
+                }
+                dObj.getMetadata().remove(DataObjectDaoImpl.VALUE_LOCATION);
+                File metadataTemp = FileUtils.writeTemporary(metadataFile, toJson(dObj));
+                try {
+                    FileUtils.replace(valueTemp, objFile);
+                    valueTemp = null;
+                } finally {
+                    if (valueTemp != null) {
+                        metadataTemp.delete();
+                    }
+                }
+                FileUtils.replace(metadataTemp, metadataFile);
+            } finally {
+                pathLocks.writeLock(path).unlock();
+            }
+            // Readers that found the old location may still be reading it
+            cold.setLastModified(System.currentTimeMillis());
+            promoted.incrementAndGet();
+            return true;
+        } finally {
+            if (valueTemp != null) {
+                valueTemp.delete();
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Copy a value between tiers within the byte budget, syncing the copy.
+     * </p>
+     */
+    private void copy(File source, File target) throws IOException, InterruptedException {
+        File directory = target.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+            throw new IOException("Cannot create '" + directory + "'");
+        }
+        FileInputStream in = new FileInputStream(source);
+        try {
+            FileOutputStream out = new FileOutputStream(target);
+            try {
+                FileChannel from = in.getChannel();
+                long size = from.size();
+                for (long position = 0; position < size; position += SLICE_SIZE) {
+                    long count = Math.min(SLICE_SIZE, size - position);
+                    throttle(count);
+                    FileUtils.transfer(from, position, count, out.getChannel());
+                }
+                out.getChannel().force(true);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * <p>
+     * Wait until moving <code>bytes</code> more keeps the migration within its budget.
+     * </p>
+     */
+    private void throttle(long bytes) throws InterruptedException {
+        long wait;
+        synchronized (this) {
+            budgetUsed += bytes;
+            wait = budgetStart + budgetUsed * 1000 / bytesPerSecond - System.currentTimeMillis();
+        }
+        if (wait > 0) {
+            Thread.sleep(wait);
+        }
+    }
+
+    private static String newLocation() {
+        String name = UUID.randomUUID().toString().replace("-", "");
+        return name.substring(0, 2) + "/" + name;
+    }
+
+    /**
+     * <p>
+     * Return <code>true</code> if two reads of the fields of an object agree on how its value
+     * is stored, and when it was last written.
+     * </p>
+     */
+    private static boolean sameValue(DataObject before, DataObject after) {
+        return equal(before.getMetadata().get(DataObjectDaoImpl.VALUE_FORMAT),
+                     after.getMetadata().get(DataObjectDaoImpl.VALUE_FORMAT))
+            && equal(before.getMetadata().get(DataObjectDaoImpl.VALUE_LOCATION),
+                     after.getMetadata().get(DataObjectDaoImpl.VALUE_LOCATION))
+            && equal(before.getObjectID(), after.getObjectID());
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * <p>
+     * Mark the location named by a fields file, if any.
+     * </p>
+     */
+    private static void mark(File fields, Set<String> marked) {
+        try {
+            String json = FileUtils.readString(fields);
+            // Cheap test first; only the fields of demoted values are parsed
+            if (json.indexOf(DataObjectDaoImpl.VALUE_LOCATION) < 0) {
+                return;
+            }
+            DataObject dObj = new DataObject();
+            dObj.fromJson(json.getBytes(), true);
+            String location = dObj.getMetadata().get(DataObjectDaoImpl.VALUE_LOCATION);
+            if (location != null) {
+                marked.add(location);
+            }
+        } catch (Exception ex) {
+            // Deleted meanwhile, or not the fields of a data object
+        }
+    }
+
+    /**
+     * <p>
+     * Read the fields of a data object, or return <code>null</code> if they cannot be read.
+     * </p>
+     */
+    private static DataObject readFields(File metadataFile) {
+        try {
+            DataObject dObj = new DataObject();
+            dObj.fromJson(FileUtils.readBytes(metadataFile), true);
+            return dObj;
+        } catch (Exception ex) {
+            return null;
+        }
+    }
+
+    private static String toJson(DataObject dObj) throws IOException {
+        try {
+            return dObj.metadataToJson();
+        } catch (IOException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new IOException("Cannot write fields: " + ex);
+        }
+    }
+
+    // ---------------------------------------------------------- Support Classes
+
+    /**
+     * <p>
+     * When a data object was last read, and how often within the current window.
+     * </p>
+     */
+    private static final class Access {
+
+        private volatile long last;
+        private long windowStart;
+        private int count;
+
+        private synchronized int record(long now, long window) {
+            if (now - windowStart >= window) {
+                windowStart = now;
+                count = 0;
+            }
+            last = now;
+            return ++count;
+        }
+    }
+}
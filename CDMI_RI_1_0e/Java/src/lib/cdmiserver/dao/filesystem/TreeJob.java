@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2010, Sun Microsystems, Inc.
+ * Copyright (c) 2010, The Storage Networking Industry Association.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ * Redistributions of source code must retain the above copyright notice, 
+ * this list of conditions and the following disclaimer.
+ *  
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ *  
+ * Neither the name of The Storage Networking Industry Association (SNIA) nor 
+ * the names of its contributors may be used to endorse or promote products 
+ * derived from this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF 
+ *  THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.snia.cdmiserver.dao.filesystem;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Progress of a long running operation on a container tree (delete, copy, ...) that is carried
+ * out in the background. The values map directly onto the CDMI <code>completionStatus</code> and
+ * <code>percentComplete</code> fields.
+ * </p>
+ */
+public class TreeJob {
+
+    public static final String PROCESSING = "Processing";
+
+    public static final String COMPLETE = "Complete";
+
+    /**
+     * <p>
+     * Kinds of background tree operations.
+     * </p>
+     */
+    public enum Operation {
+        DELETE, COPY, SNAPSHOT, DESERIALIZE
+    }
+
+    private final String path;
+    private final Operation operation;
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong done = new AtomicLong();
+    private volatile String completionStatus = PROCESSING;
+
+    public TreeJob(String path, Operation operation) {
+        this.path = path;
+        this.operation = operation;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public Operation getOperation() {
+        return operation;
+    }
+
+    public String getCompletionStatus() {
+        return completionStatus;
+    }
+
+    public boolean isProcessing() {
+        return PROCESSING.equals(completionStatus);
+    }
+
+    /**
+     * <p>
+     * Return the percentage of work done. While processing this never reports 100, so clients
+     * polling on <code>percentComplete</code> alone do not stop too early.
+     * </p>
+     */
+    public Integer getPercentComplete() {
+        if (!isProcessing()) {
+            return Integer.valueOf(100);
+        }
+        long t = total.get();
+        if (t <= 0) {
+            return Integer.valueOf(0);
+        }
+        return Integer.valueOf((int) Math.min(99L, (done.get() * 100L) / t));
+    }
+
+    /**
+     * <p>
+     * Add to the number of entries this job has to process.
+     * </p>
+     */
+    public void addTotal(long count) {
+        total.addAndGet(count);
+    }
+
+    /**
+     * <p>
+     * Add to the number of entries this job has processed.
+     * </p>
+     */
+    public void addDone(long count) {
+        done.addAndGet(count);
+    }
+
+    void complete() {
+        completionStatus = COMPLETE;
+    }
+
+    void fail(Throwable cause) {
+        completionStatus = "Error: " + cause.getMessage();
+    }
+
+}
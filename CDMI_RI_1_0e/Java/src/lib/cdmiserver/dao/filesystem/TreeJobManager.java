@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2010, Sun Microsystems, Inc.
+ * Copyright (c) 2010, The Storage Networking Industry Association.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ * Redistributions of source code must retain the above copyright notice, 
+ * this list of conditions and the following disclaimer.
+ *  
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ *  
+ * Neither the name of The Storage Networking Industry Association (SNIA) nor 
+ * the names of its contributors may be used to endorse or promote products 
+ * derived from this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF 
+ *  THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.snia.cdmiserver.dao.filesystem;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.snia.cdmiserver.exception.ConflictException;
+import org.snia.cdmiserver.util.DaemonThreadFactory;
+
+/**
+ * <p>
+ * Runs {@link TreeJob}s in the background and keeps track of them by path, so that DAOs can
+ * report <code>completionStatus</code> and <code>percentComplete</code> for a container while an
+ * operation on it is in progress.
+ * </p>
+ * 
+ * <p>
+ * Jobs run on their own threads and fan their work out to a separate walker pool through
+ * {@link ParallelTreeWalker}, so a job waiting for its walk never holds up the walk itself.
+ * </p>
+ */
+public class TreeJobManager {
+
+    //
+    // Properties and Dependency Injection Methods
+    //
+    private int walkerThreads = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+
+    /**
+     * <p>
+     * Set the number of threads listing and visiting files for tree walks. Defaults to twice the
+     * number of processors (at least four), since the work is mostly waiting on the filesystem.
+     * </p>
+     * 
+     * @param walkerThreads
+     *            The new number of walker threads
+     */
+    public void setWalkerThreads(int walkerThreads) {
+        this.walkerThreads = walkerThreads;
+    }
+
+    //
+    // Job Methods
+    //
+    private final ConcurrentMap<String, TreeJob> jobs = new ConcurrentHashMap<String, TreeJob>();
+
+    private ExecutorService jobPool = null;
+
+    private ExecutorService walkerPool = null;
+
+    /**
+     * <p>
+     * Start running the specified work in the background on behalf of the specified job. A
+     * successful job is forgotten as soon as it completes; a failed one is kept, so its error can
+     * still be reported, until another job is started on the same path.
+     * </p>
+     * 
+     * @param job
+     *            Job to register
+     * @param work
+     *            Work to run for the job
+     * 
+     * @exception ConflictException
+     *                if another job is still processing the same path
+     */
+    public void start(final TreeJob job, final Runnable work) {
+        TreeJob existing = jobs.putIfAbsent(job.getPath(), job);
+        if (existing != null) {
+            if (existing.isProcessing() || !jobs.replace(job.getPath(), existing, job)) {
+                throw new ConflictException("Path '"
+                                            + job.getPath()
+                                            + "' is busy with another operation");
+            }
+        }
+        jobPool().execute(new Runnable() {
+            public void run() {
+                try {
+                    work.run();
+                    job.complete();
+                    jobs.remove(job.getPath(), job);
+                } catch (Throwable t) {
+                    t.printStackTrace();
+                    System.out.println("Background " + job.getOperation() + " of '"
+                                       + job.getPath() + "' failed: " + t);
+                    job.fail(t);
+                }
+            }
+        });
+    }
+
+    /**
+     * <p>
+     * Return the job registered for the specified path, if any; otherwise, return
+     * <code>null</code>.
+     * </p>
+     * 
+     * @param path
+     *            Path the job was started on
+     */
+    public TreeJob findJob(String path) {
+        if (path == null) {
+            return null;
+        }
+        return jobs.get(path);
+    }
+
+    /**
+     * <p>
+     * Return <code>true</code> if any job is still processing.
+     * </p>
+     */
+    public boolean isBusy() {
+        for (TreeJob job : jobs.values()) {
+            if (job.isProcessing()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * <p>
+     * Return a new {@link ParallelTreeWalker} running on the shared walker pool.
+     * </p>
+     */
+    public ParallelTreeWalker newWalker() {
+        return new ParallelTreeWalker(walkerPool());
+    }
+
+    /**
+     * <p>
+     * Return the shared walker pool, for jobs that fan out work other than a tree walk.
+     * </p>
+     */
+    Executor walkerExecutor() {
+        return walkerPool();
+    }
+
+    /**
+     * <p>
+     * Stop all background threads. Running jobs are interrupted.
+     * </p>
+     */
+    public synchronized void shutdown() {
+        if (jobPool != null) {
+            jobPool.shutdownNow();
+        }
+        if (walkerPool != null) {
+            walkerPool.shutdownNow();
+        }
+    }
+
+    //
+    // Private Helper Methods
+    //
+    private synchronized ExecutorService jobPool() {
+        if (jobPool == null) {
+            jobPool = Executors.newCachedThreadPool(new DaemonThreadFactory("cdmi-job-"));
+        }
+        return jobPool;
+    }
+
+    private synchronized ExecutorService walkerPool() {
+        if (walkerPool == null) {
+            walkerPool = Executors.newFixedThreadPool(walkerThreads,
+                                                      new DaemonThreadFactory("cdmi-walker-"));
+        }
+        return walkerPool;
+    }
+
+}
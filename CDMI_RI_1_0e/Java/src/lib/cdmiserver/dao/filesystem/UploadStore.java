@@ -0,0 +1,473 @@
+/*
+ * Copyright (c) 2010, Sun Microsystems, Inc.
+ * Copyright (c) 2010, The Storage Networking Industry Association.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ * Redistributions of source code must retain the above copyright notice, 
+ * this list of conditions and the following disclaimer.
+ *  
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ *  
+ * Neither the name of The Storage Networking Industry Association (SNIA) nor 
+ * the names of its contributors may be used to endorse or promote products 
+ * derived from this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF 
+ *  THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.snia.cdmiserver.dao.filesystem;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.snia.cdmiserver.exception.BadRequestException;
+import org.snia.cdmiserver.exception.ConflictException;
+import org.snia.cdmiserver.exception.NotFoundException;
+import org.snia.cdmiserver.model.DataObject;
+import org.snia.cdmiserver.util.CdmiPath;
+import org.snia.cdmiserver.util.DaemonThreadFactory;
+
+/**
+ * <p>
+ * Stages the parts of multipart uploads, so that a large value can arrive over many
+ * connections at once and a dropped connection only costs one part.
+ * </p>
+ * 
+ * <p>
+ * An upload is a directory below <code>directoryName</code> named by its upload ID, holding
+ * the path of the data object, the fields requested for it and one file per part received.
+ * Parts may arrive in any order and be sent again; the last one received wins. When the upload
+ * completes, {@link #assemble(String, String, File)} concatenates the parts, in part number
+ * order, into a temporary file next to the data object with {@link FileUtils#transfer}, and
+ * {@link DataObjectDaoImpl} moves it into place. Uploads neither completed nor aborted are
+ * deleted once they have been idle for <code>maxIdleHours</code>.
+ * </p>
+ */
+public class UploadStore {
+
+    private static final String PATH = "path";
+
+    private static final String FIELDS = "fields";
+
+    private static final String PART_PREFIX = "part-";
+
+    private static final int BUFFER_SIZE = 65536;
+
+    // -------------------------------------------------------------- Properties
+    private File directory = null;
+
+    /**
+     * <p>
+     * Set the directory uploads are staged in. It should be on the same filesystem as the
+     * data objects.
+     * </p>
+     */
+    public void setDirectoryName(String directoryName) {
+        this.directory = new File(directoryName);
+    }
+
+    private File baseDirectory = null;
+
+    /**
+     * <p>
+     * Set the base directory name for our local storage.
+     * </p>
+     */
+    public void setBaseDirectoryName(String baseDirectoryName) {
+        this.baseDirectory = new File(baseDirectoryName);
+    }
+
+    private int maxParts = 10000;
+
+    /**
+     * <p>
+     * Set the highest part number accepted. Default value is 10000.
+     * </p>
+     */
+    public void setMaxParts(int maxParts) {
+        this.maxParts = maxParts;
+    }
+
+    private long maxPartBytes = 5L * 1024 * 1024 * 1024;
+
+    /**
+     * <p>
+     * Set the largest part accepted, in bytes. Default value is 5 GiB.
+     * </p>
+     */
+    public void setMaxPartBytes(long maxPartBytes) {
+        this.maxPartBytes = maxPartBytes;
+    }
+
+    private int maxIdleHours = 24;
+
+    /**
+     * <p>
+     * Set how long an upload may go without receiving a part before it is deleted; 0 keeps
+     * uploads until they are completed or aborted. Default value is 24.
+     * </p>
+     */
+    public void setMaxIdleHours(int maxIdleHours) {
+        this.maxIdleHours = maxIdleHours;
+    }
+
+    // ------------------------------------------------------------------ State
+
+    // Uploads being assembled; they take no more parts until done
+    private final Set<String> assembling =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private final ScheduledExecutorService expirer =
+            Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("cdmi-uploads-"));
+
+    // ---------------------------------------------------------- Public Methods
+
+    /**
+     * <p>
+     * Start an upload of the value of the data object at <code>path</code> and return its
+     * upload ID. The mimetype and metadata of the request are applied when the upload
+     * completes.
+     * </p>
+     * 
+     * @exception BadRequestException
+     *                if the request carries a value, names an object to copy or move, or the
+     *                name of the data object is reserved
+     * @exception ConflictException
+     *                if the container of the data object does not exist
+     */
+    public String begin(String path, DataObject request) throws Exception {
+        Snapshots.checkWritable(path);
+        FileUtils.checkName(path);
+        CdmiPath target = CdmiPath.parse(path);
+        if (target.isRoot()) {
+            throw new BadRequestException("No object name in path <" + path + ">");
+        }
+        if (request.getValue() != null || request.getCopy() != null || request.getMove() != null) {
+            throw new BadRequestException("The value of an upload is sent in parts");
+        }
+        if (!target.getParentFile(baseDirectory).isDirectory()) {
+            throw new ConflictException("Container <" + target.getParentURI() + "> doesn't exist");
+        }
+        String uploadID = UUID.randomUUID().toString();
+        File upload = new File(directory, uploadID);
+        if (!upload.mkdirs()) {
+            throw new IOException("Cannot create upload directory '" + upload + "'");
+        }
+        FileUtils.writeAtomically(new File(upload, PATH), target.toString());
+        FileUtils.writeAtomically(new File(upload, FIELDS), request.metadataToJson());
+        return uploadID;
+    }
+
+    /**
+     * <p>
+     * Store part <code>number</code> of an upload from <code>in</code>, replacing any earlier
+     * copy of the part, and return its size.
+     * </p>
+     * 
+     * @exception BadRequestException
+     *                if the part number is out of range, or the part too large
+     * @exception ConflictException
+     *                if the upload is being completed
+     * @exception NotFoundException
+     *                if there is no such upload for the data object
+     */
+    public long writePart(String path, String uploadID, int number, InputStream in)
+            throws IOException {
+        if (number < 1 || number > maxParts) {
+            throw new BadRequestException("Part number must be between 1 and " + maxParts);
+        }
+        File upload = findUpload(path, uploadID);
+        if (assembling.contains(uploadID)) {
+            throw new ConflictException("Upload <" + uploadID + "> is being completed");
+        }
+        File part = new File(upload, PART_PREFIX + number);
+        File temporary = FileUtils.temporaryFile(part);
+        long size = 0;
+        try {
+            FileOutputStream out = new FileOutputStream(temporary);
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int n;
+                while ((n = in.read(buffer)) >= 0) {
+                    size += n;
+                    if (size > maxPartBytes) {
+                        throw new BadRequestException("Part exceeds " + maxPartBytes + " bytes");
+                    }
+                    out.write(buffer, 0, n);
+                }
+            } finally {
+                out.close();
+            }
+            FileUtils.replace(temporary, part);
+        } finally {
+            temporary.delete();
+        }
+        return size;
+    }
+
+    /**
+     * <p>
+     * Return the size of each part received so far, by part number.
+     * </p>
+     * 
+     * @exception NotFoundException
+     *                if there is no such upload for the data object
+     */
+    public SortedMap<Integer, Long> listParts(String path, String uploadID) throws IOException {
+        return listParts(findUpload(path, uploadID));
+    }
+
+    /**
+     * <p>
+     * Concatenate the parts of an upload into a new temporary file next to <code>target</code>
+     * and return the fields requested for the data object. Parts are numbered from 1 without
+     * gaps. The upload takes no more parts until {@link #finish(String)} or
+     * {@link #release(String)} is called; the caller owns the temporary file.
+     * </p>
+     * 
+     * @exception BadRequestException
+     *                if no parts were received or a part is missing
+     * @exception ConflictException
+     *                if the upload is already being completed
+     * @exception NotFoundException
+     *                if there is no such upload for the data object
+     */
+    public Assembly assemble(String path, String uploadID, File target) throws Exception {
+        File upload = findUpload(path, uploadID);
+        if (!assembling.add(uploadID)) {
+            throw new ConflictException("Upload <" + uploadID + "> is being completed");
+        }
+        boolean assembled = false;
+        try {
+            SortedMap<Integer, Long> parts = listParts(upload);
+            if (parts.isEmpty()) {
+                throw new BadRequestException("Upload <" + uploadID + "> has no parts");
+            }
+            if (parts.lastKey().intValue() != parts.size()) {
+                throw new BadRequestException("Upload <" + uploadID + "> is missing parts");
+            }
+            DataObject request = new DataObject();
+            request.fromJson(FileUtils.readBytes(new File(upload, FIELDS)), true);
+            File value = FileUtils.temporaryFile(target);
+            try {
+                FileOutputStream out = new FileOutputStream(value);
+                try {
+                    for (Integer number : parts.keySet()) {
+                        FileInputStream in = new FileInputStream(new File(upload, PART_PREFIX
+                                                                                  + number));
+                        try {
+                            FileUtils.transfer(in.getChannel(), out.getChannel());
+                        } finally {
+                            in.close();
+                        }
+                    }
+                } finally {
+                    out.close();
+                }
+            } catch (IOException ex) {
+                value.delete();
+                throw ex;
+            }
+            assembled = true;
+            return new Assembly(request, value);
+        } finally {
+            if (!assembled) {
+                assembling.remove(uploadID);
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Delete an upload whose value has been published.
+     * </p>
+     */
+    public void finish(String uploadID) {
+        deleteTree(new File(directory, uploadID));
+        assembling.remove(uploadID);
+    }
+
+    /**
+     * <p>
+     * Let an upload that could not be published take parts again, so it can be retried.
+     * </p>
+     */
+    public void release(String uploadID) {
+        assembling.remove(uploadID);
+    }
+
+    /**
+     * <p>
+     * Abort an upload, deleting its parts.
+     * </p>
+     * 
+     * @exception ConflictException
+     *                if the upload is being completed
+     * @exception NotFoundException
+     *                if there is no such upload for the data object
+     */
+    public void abort(String path, String uploadID) throws IOException {
+        File upload = findUpload(path, uploadID);
+        if (assembling.contains(uploadID)) {
+            throw new ConflictException("Upload <" + uploadID + "> is being completed");
+        }
+        deleteTree(upload);
+    }
+
+    /**
+     * <p>
+     * Schedule the deletion of idle uploads, if enabled.
+     * </p>
+     */
+    public void start() {
+        if (maxIdleHours > 0) {
+            expirer.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    try {
+                        expire();
+                    } catch (Exception ex) {
+                        ex.printStackTrace();
+                        System.out.println("Upload expiry failed: " + ex);
+                    }
+                }
+            }, 1, 1, TimeUnit.HOURS);
+        }
+    }
+
+    /**
+     * <p>
+     * Stop deleting idle uploads.
+     * </p>
+     */
+    public void shutdown() {
+        expirer.shutdownNow();
+    }
+
+    // ---------------------------------------------------------- Support Classes
+
+    /**
+     * <p>
+     * The assembled value of an upload and the fields requested for its data object.
+     * </p>
+     */
+    public static final class Assembly {
+
+        private final DataObject request;
+        private final File value;
+
+        private Assembly(DataObject request, File value) {
+            this.request = request;
+            this.value = value;
+        }
+
+        public DataObject getRequest() {
+            return request;
+        }
+
+        public File getValue() {
+            return value;
+        }
+
+    }
+
+    // --------------------------------------------------------- Private Methods
+
+    /**
+     * <p>
+     * Return the directory of an upload of the data object at <code>path</code>.
+     * </p>
+     * 
+     * @exception NotFoundException
+     *                if there is no such upload for the data object
+     */
+    private File findUpload(String path, String uploadID) throws IOException {
+        // Upload IDs come from clients; keep them to the characters of a UUID
+        if (uploadID == null || !uploadID.matches("[0-9a-fA-F-]{1,64}")) {
+            throw new NotFoundException("Upload <" + uploadID + "> doesn't exist");
+        }
+        File upload = new File(directory, uploadID);
+        File pathFile = new File(upload, PATH);
+        if (!pathFile.isFile()
+            || !FileUtils.readString(pathFile).equals(CdmiPath.parse(path).toString())) {
+            throw new NotFoundException("Upload <" + uploadID + "> of <" + path
+                                        + "> doesn't exist");
+        }
+        return upload;
+    }
+
+    private static SortedMap<Integer, Long> listParts(File upload) {
+        SortedMap<Integer, Long> parts = new TreeMap<Integer, Long>();
+        String[] names = upload.list();
+        if (names == null) {
+            return parts;
+        }
+        for (String name : names) {
+            if (name.startsWith(PART_PREFIX)) {
+                try {
+                    Integer number = Integer.valueOf(name.substring(PART_PREFIX.length()));
+                    parts.put(number, Long.valueOf(new File(upload, name).length()));
+                } catch (NumberFormatException ex) {
+                    // Not a part
+                }
+            }
+        }
+        return parts;
+    }
+
+    /**
+     * <p>
+     * Delete the uploads no part has been written to for <code>maxIdleHours</code>.
+     * </p>
+     */
+    private void expire() {
+        File[] uploads = directory.listFiles();
+        if (uploads == null) {
+            return;
+        }
+        long cutoff = System.currentTimeMillis() - maxIdleHours * 3600000L;
+        for (File upload : uploads) {
+            if (upload.isDirectory()
+                && upload.lastModified() < cutoff
+                && !assembling.contains(upload.getName())) {
+                System.out.println("Deleting idle upload " + upload.getName());
+                deleteTree(upload);
+            }
+        }
+    }
+
+    private static void deleteTree(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+        file.delete();
+    }
+
+}
@@ -0,0 +1,435 @@
+/*
+ * Copyright (c) 2010, Sun Microsystems, Inc.
+ * Copyright (c) 2010, The Storage Networking Industry Association.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ * Redistributions of source code must retain the above copyright notice, 
+ * this list of conditions and the following disclaimer.
+ *  
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ *  
+ * Neither the name of The Storage Networking Industry Association (SNIA) nor 
+ * the names of its contributors may be used to endorse or promote products 
+ * derived from this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF 
+ *  THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.snia.cdmiserver.dao.filesystem;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.snia.cdmiserver.model.Container;
+
+/**
+ * <p>
+ * Compresses data object values in containers whose <code>cdmi_compression</code> metadata
+ * asks for it: <code>deflate</code> for the best ratio, or <code>deflate_fast</code> for
+ * speed. A value is compressed in fixed-size blocks, each on its own, behind an index of the
+ * compressed block lengths, so a range of the value is read by inflating only the blocks it
+ * spans. Before compressing a value, a few of its blocks are compressed as a sample; if they
+ * do not shrink enough, the value is stored as it is.
+ * </p>
+ * 
+ * <p>
+ * A compressed value file holds a header line, the block size, the value size and the block
+ * count, the compressed length of every block, then the blocks as raw deflate streams.
+ * </p>
+ */
+public class ValueCompressor {
+
+    static final String HEADER = "CDMI-DEFLATE 1\n";
+
+    // Header line, block size, value size, block count
+    private static final int FIXED_LENGTH = HEADER.length() + 4 + 8 + 4;
+
+    // ---------------------------------------------------------------- Properties
+    private String baseDirectoryName = null;
+
+    /**
+     * <p>
+     * Set the base directory name for our local storage, where container fields are read.
+     * </p>
+     */
+    public void setBaseDirectoryName(String baseDirectoryName) {
+        this.baseDirectoryName = baseDirectoryName;
+    }
+
+    private int blockSize = 65536;
+
+    /**
+     * <p>
+     * Set the size of the blocks values are compressed in. Smaller blocks make range reads
+     * cheaper and ratios worse. Default value is 65536.
+     * </p>
+     */
+    public void setBlockSize(int blockSize) {
+        this.blockSize = blockSize;
+    }
+
+    private int minValueSize = 4096;
+
+    /**
+     * <p>
+     * Set the smallest value worth compressing. Default value is 4096.
+     * </p>
+     */
+    public void setMinValueSize(int minValueSize) {
+        this.minValueSize = minValueSize;
+    }
+
+    private int sampleBlocks = 3;
+
+    /**
+     * <p>
+     * Set how many blocks, spread over the value, are compressed to decide whether to compress
+     * the rest. Default value is 3.
+     * </p>
+     */
+    public void setSampleBlocks(int sampleBlocks) {
+        this.sampleBlocks = sampleBlocks;
+    }
+
+    private double maxSampledRatio = 0.9;
+
+    /**
+     * <p>
+     * Set the compressed to original size ratio of the sample above which a value is stored
+     * as it is. Default value is 0.9.
+     * </p>
+     */
+    public void setMaxSampledRatio(double maxSampledRatio) {
+        this.maxSampledRatio = maxSampledRatio;
+    }
+
+    // Compression level per container path, checked against the fields file
+    private final ConcurrentMap<String, Policy> policies = new ConcurrentHashMap<String, Policy>();
+
+    // ---------------------------------------------------------- Public Methods
+
+    /**
+     * <p>
+     * Return the deflate level values in the container at <code>containerPath</code> are
+     * compressed with, or -1 if they are not compressed.
+     * </p>
+     */
+    public int level(String containerPath) {
+        return policy(ChangeSupport.normalize(containerPath)).level;
+    }
+
+    /**
+     * <p>
+     * Compress a value with the specified deflate level, or return <code>null</code> if it is
+     * too small, or its sampled blocks did not compress well enough.
+     * </p>
+     */
+    public byte[] compress(byte[] data, int level) throws IOException {
+        if (data.length < minValueSize) {
+            return null;
+        }
+        int count = (data.length + blockSize - 1) / blockSize;
+        byte[][] blocks = new byte[count][];
+        Deflater deflater = new Deflater(level, true);
+        try {
+            // Sample blocks spread evenly over the value
+            int samples = Math.max(1, Math.min(sampleBlocks, count));
+            long sampled = 0;
+            long compressed = 0;
+            for (int i = 0; i < samples; i++) {
+                int block = (int) ((long) i * (count - 1) / Math.max(1, samples - 1));
+                if (blocks[block] == null) {
+                    blocks[block] = deflate(deflater, data, block);
+                    sampled += blockLength(data.length, block);
+                    compressed += blocks[block].length;
+                }
+            }
+            if (compressed > sampled * maxSampledRatio) {
+                return null;
+            }
+            for (int block = 0; block < count; block++) {
+                if (blocks[block] == null) {
+                    blocks[block] = deflate(deflater, data, block);
+                }
+            }
+        } finally {
+            deflater.end();
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 2);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeBytes(HEADER);
+        out.writeInt(blockSize);
+        out.writeLong(data.length);
+        out.writeInt(count);
+        for (byte[] block : blocks) {
+            out.writeInt(block.length);
+        }
+        for (byte[] block : blocks) {
+            out.write(block);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * <p>
+     * Return the whole value held by compressed content.
+     * </p>
+     */
+    public byte[] decompress(byte[] content) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(content));
+        byte[] header = new byte[HEADER.length()];
+        in.readFully(header);
+        checkHeader(header);
+        int size = in.readInt();
+        long length = in.readLong();
+        int count = in.readInt();
+        int position = FIXED_LENGTH + 4 * count;
+        byte[] value = new byte[(int) length];
+        Inflater inflater = new Inflater(true);
+        try {
+            for (int block = 0; block < count; block++) {
+                int compressed = in.readInt();
+                inflate(inflater, content, position, compressed, value, block * size,
+                        blockLength(value.length, block, size));
+                position += compressed;
+            }
+        } finally {
+            inflater.end();
+        }
+        return value;
+    }
+
+    /**
+     * <p>
+     * Return up to <code>length</code> bytes of the value held by a compressed file, starting
+     * at <code>offset</code>, reading and inflating only the blocks they fall in.
+     * </p>
+     */
+    public byte[] decompress(File file, long offset, int length) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] header = new byte[HEADER.length()];
+            in.readFully(header);
+            checkHeader(header);
+            int size = in.readInt();
+            long total = in.readLong();
+            int count = in.readInt();
+            if (offset >= total || length <= 0) {
+                return new byte[0];
+            }
+            length = (int) Math.min(length, total - offset);
+            int first = (int) (offset / size);
+            int last = (int) ((offset + length - 1) / size);
+
+            // Find the blocks through the index
+            byte[] index = new byte[4 * count];
+            in.readFully(index);
+            long position = FIXED_LENGTH + index.length;
+            for (int block = 0; block < first; block++) {
+                position += readInt(index, block);
+            }
+            in.seek(position);
+
+            byte[] range = new byte[length];
+            byte[] plain = new byte[size];
+            Inflater inflater = new Inflater(true);
+            try {
+                for (int block = first; block <= last; block++) {
+                    byte[] compressed = new byte[readInt(index, block)];
+                    in.readFully(compressed);
+                    long start = (long) block * size;
+                    int plainLength = (int) Math.min(size, total - start);
+                    inflate(inflater, compressed, 0, compressed.length, plain, 0, plainLength);
+                    int from = (int) Math.max(0, offset - start);
+                    int to = (int) Math.min(plainLength, offset + length - start);
+                    System.arraycopy(plain, from, range, (int) (start + from - offset), to - from);
+                }
+            } finally {
+                inflater.end();
+            }
+            return range;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * <p>
+     * Check that a file holds a well-formed compressed value: the header, and a block index
+     * consistent with the value size and with the length of the file. The blocks themselves
+     * are only checked when inflated.
+     * </p>
+     * 
+     * @exception IOException
+     *                if the file does not hold a compressed value
+     */
+    static void validate(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            if (in.length() < FIXED_LENGTH) {
+                throw new IOException("Not a compressed value");
+            }
+            byte[] header = new byte[HEADER.length()];
+            in.readFully(header);
+            checkHeader(header);
+            int size = in.readInt();
+            long total = in.readLong();
+            int count = in.readInt();
+            if (size <= 0
+                || total < 0
+                || total > (long) size * Integer.MAX_VALUE
+                || count != (total + size - 1) / size
+                || FIXED_LENGTH + 4L * count > in.length()) {
+                throw new IOException("Compressed value has an invalid block index");
+            }
+            long length = FIXED_LENGTH + 4L * count;
+            for (int block = 0; block < count; block++) {
+                int compressed = in.readInt();
+                if (compressed < 0) {
+                    throw new IOException("Compressed value has an invalid block index");
+                }
+                length += compressed;
+            }
+            if (length != in.length()) {
+                throw new IOException("Compressed value does not match its block index");
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    // --------------------------------------------------------- Private Methods
+
+    private static final class Policy {
+
+        private final long lastModified;
+        private final int level;
+
+        Policy(long lastModified, int level) {
+            this.lastModified = lastModified;
+            this.level = level;
+        }
+
+    }
+
+    /**
+     * <p>
+     * Return the compression policy of a container, re-reading its fields when they changed.
+     * The root container has no fields, and is never compressed.
+     * </p>
+     */
+    private Policy policy(String containerPath) {
+        if (containerPath.length() == 0) {
+            return new Policy(0, -1);
+        }
+        int slash = containerPath.lastIndexOf('/');
+        File parent = new File(baseDirectoryName, slash < 0 ? "" : containerPath.substring(0,
+                                                                                         slash));
+        File fieldsFile = new File(parent, "." + containerPath.substring(slash + 1));
+        long lastModified = fieldsFile.lastModified();
+        Policy policy = policies.get(containerPath);
+        if (policy != null && policy.lastModified == lastModified) {
+            return policy;
+        }
+        int level = -1;
+        if (lastModified != 0) {
+            try {
+                Container container = new Container();
+                container.fromJson(FileUtils.readBytes(fieldsFile), true);
+                String compression = container.getMetadata().get("cdmi_compression");
+                if ("deflate".equals(compression)) {
+                    level = Deflater.BEST_COMPRESSION;
+                } else if ("deflate_fast".equals(compression)) {
+                    level = Deflater.BEST_SPEED;
+                }
+            } catch (Exception ex) {
+                System.out.println("Cannot read compression policy of <" + containerPath + ">: "
+                                   + ex);
+            }
+        }
+        policy = new Policy(lastModified, level);
+        policies.put(containerPath, policy);
+        return policy;
+    }
+
+    private int blockLength(int length, int block) {
+        return blockLength(length, block, blockSize);
+    }
+
+    private static int blockLength(int length, int block, int size) {
+        return (int) Math.min(size, length - (long) block * size);
+    }
+
+    private byte[] deflate(Deflater deflater, byte[] data, int block) {
+        deflater.reset();
+        deflater.setInput(data, block * blockSize, blockLength(data.length, block));
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(blockSize / 2);
+        byte[] buffer = new byte[8192];
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buffer);
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static void inflate(Inflater inflater, byte[] compressed, int offset, int length,
+                                byte[] plain, int plainOffset, int plainLength)
+            throws IOException {
+        inflater.reset();
+        inflater.setInput(compressed, offset, length);
+        try {
+            int count = 0;
+            while (count < plainLength) {
+                int n = inflater.inflate(plain, plainOffset + count, plainLength - count);
+                if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+                    break;
+                }
+                count += n;
+            }
+            if (count != plainLength) {
+                throw new IOException("Compressed block is truncated");
+            }
+        } catch (DataFormatException ex) {
+            throw new IOException("Compressed block is corrupt: " + ex.getMessage());
+        }
+    }
+
+    private static void checkHeader(byte[] header) throws IOException {
+        if (!HEADER.equals(new String(header, "ISO-8859-1"))) {
+            throw new IOException("Not a compressed value");
+        }
+    }
+
+    private static int readInt(byte[] bytes, int index) {
+        int i = index * 4;
+        return ((bytes[i] & 0xff) << 24) | ((bytes[i + 1] & 0xff) << 16)
+               | ((bytes[i + 2] & 0xff) << 8) | (bytes[i + 3] & 0xff);
+    }
+
+}
@@ -0,0 +1,524 @@
+/*
+ * Copyright (c) 2010, Sun Microsystems, Inc.
+ * Copyright (c) 2010, The Storage Networking Industry Association.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ * Redistributions of source code must retain the above copyright notice, 
+ * this list of conditions and the following disclaimer.
+ *  
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ *  
+ * Neither the name of The Storage Networking Industry Association (SNIA) nor 
+ * the names of its contributors may be used to endorse or promote products 
+ * derived from this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF 
+ *  THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.snia.cdmiserver.dao.filesystem;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.snia.cdmiserver.exception.NotFoundException;
+import org.snia.cdmiserver.model.Container;
+import org.snia.cdmiserver.util.DaemonThreadFactory;
+
+/**
+ * <p>
+ * Keeps the previous versions of data objects in containers that have versioning enabled:
+ * container metadata <code>cdmi_versioning</code> set to <code>version_all</code>, and
+ * optionally <code>cdmi_versions_count</code> for how many versions to retain.
+ * </p>
+ * 
+ * <p>
+ * The versions of an object live in <code>.name.versions</code> next to it: one manifest per
+ * version listing its content-defined chunks (see {@link Chunker}), and a pool of chunks
+ * named by digest shared by all versions of the object. A version only adds the chunks that
+ * differ from the versions before it, so a small edit to a large object costs a chunk or
+ * two. Versions beyond the retained count are pruned, and chunks no longer referenced swept,
+ * by a background compactor shortly after the object changes.
+ * </p>
+ */
+public class VersionStore {
+
+    static final String VERSIONS_SUFFIX = ".versions";
+
+    private static final String CHUNKS = "chunks";
+
+    private static final String MANIFEST_SUFFIX = ".version";
+
+    private final Chunker chunker = new Chunker(2048, 8192, 65536);
+
+    // -------------------------------------------------------------- Properties
+    private String baseDirectoryName = null;
+
+    /**
+     * <p>
+     * Set the base directory name for our local storage.
+     * </p>
+     */
+    public void setBaseDirectoryName(String baseDirectoryName) {
+        this.baseDirectoryName = baseDirectoryName;
+    }
+
+    private PathLocks pathLocks = new PathLocks();
+
+    /**
+     * <p>
+     * Injected {@link PathLocks}, shared with the data object DAO.
+     * </p>
+     */
+    public void setPathLocks(PathLocks pathLocks) {
+        this.pathLocks = pathLocks;
+    }
+
+    private int maxVersions = 16;
+
+    /**
+     * <p>
+     * Set how many versions are retained when the container does not say. Default value is
+     * 16.
+     * </p>
+     */
+    public void setMaxVersions(int maxVersions) {
+        this.maxVersions = maxVersions;
+    }
+
+    private int compactDelaySeconds = 60;
+
+    /**
+     * <p>
+     * Set how long after an object changes its versions are compacted, so that a burst of
+     * updates is compacted once. Default value is 60.
+     * </p>
+     */
+    public void setCompactDelaySeconds(int compactDelaySeconds) {
+        this.compactDelaySeconds = compactDelaySeconds;
+    }
+
+    // ------------------------------------------------------------------ State
+
+    // Versioning policy per container path, checked against the fields file
+    private final ConcurrentMap<String, Policy> policies = new ConcurrentHashMap<String, Policy>();
+
+    // Objects waiting for compaction
+    private final Set<String> pending =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private final ScheduledExecutorService compactor =
+            Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("cdmi-versions-"));
+
+    // ---------------------------------------------------------- Public Methods
+
+    /**
+     * <p>
+     * Return <code>true</code> if data objects in the specified container are versioned.
+     * </p>
+     */
+    public boolean isVersioned(String containerPath) {
+        return policy(ChangeSupport.normalize(containerPath)).retain > 0;
+    }
+
+    /**
+     * <p>
+     * Keep the current value of the data object at <code>path</code> as a new version,
+     * before it is replaced. Must be called with the object write locked.
+     * </p>
+     * 
+     * @param path
+     *            Path of the data object
+     * @param data
+     *            Its value
+     * @param mimetype
+     *            Its mimetype, or <code>null</code>
+     * @param time
+     *            When the value was written
+     */
+    public void record(String path, byte[] data, String mimetype, String time) throws IOException {
+        path = ChangeSupport.normalize(path);
+        File directory = versionsDirectory(path);
+        File chunks = new File(directory, CHUNKS);
+        if (!chunks.isDirectory() && !chunks.mkdirs()) {
+            throw new IOException("Cannot create '" + chunks + "'");
+        }
+        StringBuilder manifest = new StringBuilder();
+        manifest.append("size ").append(data.length).append('\n');
+        if (mimetype != null) {
+            manifest.append("mimetype ").append(mimetype).append('\n');
+        }
+        if (time != null) {
+            manifest.append("time ").append(time).append('\n');
+        }
+        for (int offset = 0; offset < data.length; ) {
+            int length = chunker.next(data, offset, data.length - offset);
+            String digest = Chunker.digest(data, offset, length);
+            File chunk = new File(chunks, digest);
+            if (!chunk.exists()) {
+                FileUtils.writeAtomically(chunk, data, offset, length);
+            }
+            manifest.append("chunk ").append(digest).append(' ').append(length).append('\n');
+            offset += length;
+        }
+        List<Long> versions = listVersions(directory);
+        long version = versions.isEmpty() ? 1 : versions.get(versions.size() - 1) + 1;
+        FileUtils.writeAtomically(new File(directory, version + MANIFEST_SUFFIX),
+                                  manifest.toString());
+        scheduleCompaction(path);
+    }
+
+    /**
+     * <p>
+     * Return the retained versions of the data object at <code>path</code>, oldest first.
+     * </p>
+     */
+    public List<Version> list(String path) throws IOException {
+        path = ChangeSupport.normalize(path);
+        File directory = versionsDirectory(path);
+        List<Version> versions = new ArrayList<Version>();
+        pathLocks.readLock(path).lock();
+        try {
+            for (Long number : listVersions(directory)) {
+                Version version = readManifest(directory, number.longValue(), null);
+                if (version != null) {
+                    versions.add(version);
+                }
+            }
+        } finally {
+            pathLocks.readLock(path).unlock();
+        }
+        return versions;
+    }
+
+    /**
+     * <p>
+     * Return the specified version of the data object at <code>path</code>, with its value.
+     * </p>
+     * 
+     * @exception NotFoundException
+     *                if there is no such version
+     */
+    public Version read(String path, long number) throws IOException {
+        path = ChangeSupport.normalize(path);
+        File directory = versionsDirectory(path);
+        pathLocks.readLock(path).lock();
+        try {
+            List<String> chunks = new ArrayList<String>();
+            Version version = readManifest(directory, number, chunks);
+            if (version == null) {
+                throw new NotFoundException("Version " + number + " of <" + path
+                                            + "> doesn't exist");
+            }
+            byte[] value = new byte[(int) version.size];
+            int offset = 0;
+            for (String digest : chunks) {
+                byte[] chunk = FileUtils.readBytes(new File(new File(directory, CHUNKS), digest));
+                System.arraycopy(chunk, 0, value, offset, chunk.length);
+                offset += chunk.length;
+            }
+            if (offset != value.length) {
+                throw new IOException("Version " + number + " of <" + path + "> is damaged");
+            }
+            version.value = value;
+            return version;
+        } finally {
+            pathLocks.readLock(path).unlock();
+        }
+    }
+
+    /**
+     * <p>
+     * Delete all versions of the data object at <code>path</code>. Must be called with the
+     * object write locked.
+     * </p>
+     */
+    public void delete(String path) {
+        deleteTree(versionsDirectory(ChangeSupport.normalize(path)));
+    }
+
+    /**
+     * <p>
+     * Move the versions of a data object along with it. Must be called with both paths write
+     * locked.
+     * </p>
+     */
+    public void move(String source, String target) throws IOException {
+        File from = versionsDirectory(ChangeSupport.normalize(source));
+        File to = versionsDirectory(ChangeSupport.normalize(target));
+        if (from.isDirectory()) {
+            deleteTree(to);
+            if (!from.renameTo(to)) {
+                throw new IOException("Cannot rename '" + from + "' to '" + to + "'");
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Stop the compactor.
+     * </p>
+     */
+    public void shutdown() {
+        compactor.shutdownNow();
+    }
+
+    // ---------------------------------------------------------- Support Classes
+
+    /**
+     * <p>
+     * A retained version of a data object.
+     * </p>
+     */
+    public static final class Version {
+
+        private final long number;
+        private final long size;
+        private String mimetype;
+        private String time;
+        private byte[] value;
+
+        Version(long number, long size) {
+            this.number = number;
+            this.size = size;
+        }
+
+        public long getNumber() {
+            return number;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public String getMimetype() {
+            return mimetype;
+        }
+
+        public String getTime() {
+            return time;
+        }
+
+        /**
+         * <p>
+         * Return the value, if it was read.
+         * </p>
+         */
+        public byte[] getValue() {
+            return value;
+        }
+
+    }
+
+    private static final class Policy {
+
+        private final long lastModified;
+        private final int retain;
+
+        Policy(long lastModified, int retain) {
+            this.lastModified = lastModified;
+            this.retain = retain;
+        }
+
+    }
+
+    // --------------------------------------------------------- Private Methods
+
+    private File versionsDirectory(String path) {
+        int slash = path.lastIndexOf('/');
+        File container = new File(baseDirectoryName, slash < 0 ? "" : path.substring(0, slash));
+        return new File(container, "." + path.substring(slash + 1) + VERSIONS_SUFFIX);
+    }
+
+    /**
+     * <p>
+     * Return the versioning policy of a container, re-reading its fields when they changed.
+     * The root container has no fields, and is never versioned.
+     * </p>
+     */
+    private Policy policy(String containerPath) {
+        if (containerPath.length() == 0) {
+            return new Policy(0, 0);
+        }
+        int slash = containerPath.lastIndexOf('/');
+        File parent = new File(baseDirectoryName, slash < 0 ? "" : containerPath.substring(0,
+                                                                                         slash));
+        File fieldsFile = new File(parent, "." + containerPath.substring(slash + 1));
+        long lastModified = fieldsFile.lastModified();
+        Policy policy = policies.get(containerPath);
+        if (policy != null && policy.lastModified == lastModified) {
+            return policy;
+        }
+        int retain = 0;
+        if (lastModified != 0) {
+            try {
+                Container container = new Container();
+                container.fromJson(FileUtils.readBytes(fieldsFile), true);
+                if ("version_all".equals(container.getMetadata().get("cdmi_versioning"))) {
+                    retain = maxVersions;
+                    String count = container.getMetadata().get("cdmi_versions_count");
+                    if (count != null) {
+                        retain = Integer.parseInt(count.trim());
+                    }
+                }
+            } catch (Exception ex) {
+                System.out.println("Cannot read versioning policy of <" + containerPath + ">: "
+                                   + ex);
+            }
+        }
+        policy = new Policy(lastModified, retain);
+        policies.put(containerPath, policy);
+        return policy;
+    }
+
+    /**
+     * <p>
+     * Return the version numbers in a versions directory, ascending.
+     * </p>
+     */
+    private static List<Long> listVersions(File directory) {
+        List<Long> versions = new ArrayList<Long>();
+        String[] names = directory.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.endsWith(MANIFEST_SUFFIX) && !name.startsWith(".")) {
+                    try {
+                        versions.add(Long.valueOf(name.substring(0, name.length()
+                                                                    - MANIFEST_SUFFIX.length())));
+                    } catch (NumberFormatException ex) {
+                        // Not a manifest
+                    }
+                }
+            }
+        }
+        Collections.sort(versions);
+        return versions;
+    }
+
+    /**
+     * <p>
+     * Read a manifest, adding its chunk digests to <code>chunks</code> if not
+     * <code>null</code>. Return <code>null</code> if there is no such version.
+     * </p>
+     */
+    private static Version readManifest(File directory, long number, List<String> chunks)
+            throws IOException {
+        File file = new File(directory, number + MANIFEST_SUFFIX);
+        if (!file.isFile()) {
+            return null;
+        }
+        Version version = null;
+        String mimetype = null;
+        String time = null;
+        for (String line : FileUtils.readString(file).split("\n")) {
+            int space = line.indexOf(' ');
+            if (space < 0) {
+                continue;
+            }
+            String key = line.substring(0, space);
+            String value = line.substring(space + 1);
+            if ("size".equals(key)) {
+                version = new Version(number, Long.parseLong(value));
+            } else if ("mimetype".equals(key)) {
+                mimetype = value;
+            } else if ("time".equals(key)) {
+                time = value;
+            } else if ("chunk".equals(key) && chunks != null) {
+                chunks.add(value.substring(0, value.indexOf(' ')));
+            }
+        }
+        if (version != null) {
+            version.mimetype = mimetype;
+            version.time = time;
+        }
+        return version;
+    }
+
+    private void scheduleCompaction(final String path) {
+        if (pending.add(path)) {
+            compactor.schedule(new Runnable() {
+                public void run() {
+                    pending.remove(path);
+                    try {
+                        compact(path);
+                    } catch (Exception ex) {
+                        ex.printStackTrace();
+                        System.out.println("Cannot compact versions of <" + path + ">: " + ex);
+                    }
+                }
+            }, compactDelaySeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * <p>
+     * Drop the oldest versions beyond the retained count of the object's container, then
+     * delete the chunks no remaining version refers to.
+     * </p>
+     */
+    private void compact(String path) throws IOException {
+        int slash = path.lastIndexOf('/');
+        int retain = policy(slash < 0 ? "" : path.substring(0, slash)).retain;
+        File directory = versionsDirectory(path);
+        pathLocks.writeLock(path).lock();
+        try {
+            if (!directory.isDirectory()) {
+                return;
+            }
+            List<Long> versions = listVersions(directory);
+            int drop = retain > 0 ? Math.max(0, versions.size() - retain) : 0;
+            for (int i = 0; i < drop; i++) {
+                new File(directory, versions.get(i) + MANIFEST_SUFFIX).delete();
+            }
+            Set<String> referenced = new HashSet<String>();
+            for (int i = drop; i < versions.size(); i++) {
+                List<String> chunks = new ArrayList<String>();
+                readManifest(directory, versions.get(i).longValue(), chunks);
+                referenced.addAll(chunks);
+            }
+            File[] chunks = new File(directory, CHUNKS).listFiles();
+            if (chunks != null) {
+                for (File chunk : chunks) {
+                    if (!referenced.contains(chunk.getName())) {
+                        chunk.delete();
+                    }
+                }
+            }
+        } finally {
+            pathLocks.writeLock(path).unlock();
+        }
+    }
+
+    private static void deleteTree(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+        file.delete();
+    }
+
+}
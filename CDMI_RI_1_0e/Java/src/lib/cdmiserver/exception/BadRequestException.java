@@ -36,7 +36,7 @@ package org.snia.cdmiserver.exception;
  * Exception that should be mapped to an HTTP Status 400 Response
  * </p>
  */
-public class BadRequestException extends RuntimeException {
+public class BadRequestException extends CdmiException {
 
     public BadRequestException(String message) {
         super(message);
@@ -50,4 +50,9 @@ public class BadRequestException extends RuntimeException {
         super(cause);
     }
 
+    @Override
+    public int getStatus() {
+        return 400;
+    }
+
 }
@@ -36,7 +36,7 @@ package org.snia.cdmiserver.exception;
  * Exception that should be mapped to an HTTP Status 409 Response
  * </p>
  */
-public class ConflictException extends RuntimeException {
+public class ConflictException extends CdmiException {
 
     public ConflictException(String message) {
         super(message);
@@ -50,4 +50,9 @@ public class ConflictException extends RuntimeException {
         super(cause);
     }
 
+    @Override
+    public int getStatus() {
+        return 409;
+    }
+
 }
@@ -36,7 +36,7 @@ package org.snia.cdmiserver.exception;
  * Exception that should be mapped to an HTTP Status 403 Response
  * </p>
  */
-public class ForbiddenException extends RuntimeException {
+public class ForbiddenException extends CdmiException {
 
     public ForbiddenException(String message) {
         super(message);
@@ -50,4 +50,9 @@ public class ForbiddenException extends RuntimeException {
         super(cause);
     }
 
+    @Override
+    public int getStatus() {
+        return 403;
+    }
+
 }
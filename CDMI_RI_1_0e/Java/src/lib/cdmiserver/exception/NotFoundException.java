@@ -36,7 +36,7 @@ package org.snia.cdmiserver.exception;
  * Exception that should be mapped to an HTTP Status 404 Response
  * </p>
  */
-public class NotFoundException extends RuntimeException {
+public class NotFoundException extends CdmiException {
 
     public NotFoundException(String message) {
         super(message);
@@ -50,4 +50,9 @@ public class NotFoundException extends RuntimeException {
         super(cause);
     }
 
+    @Override
+    public int getStatus() {
+        return 404;
+    }
+
 }
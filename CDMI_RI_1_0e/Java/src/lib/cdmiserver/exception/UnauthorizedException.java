@@ -36,7 +36,7 @@ package org.snia.cdmiserver.exception;
  * Exception that should be mapped to an HTTP Status 401 Response.
  * </p>
  */
-public class UnauthorizedException extends RuntimeException {
+public class UnauthorizedException extends CdmiException {
 
     private String realm = null;
 
@@ -71,4 +71,9 @@ public class UnauthorizedException extends RuntimeException {
         return this.realm;
     }
 
+    @Override
+    public int getStatus() {
+        return 401;
+    }
+
 }
@@ -0,0 +1,470 @@
+/*
+ * Copyright (c) 2010, Sun Microsystems, Inc.
+ * Copyright (c) 2010, The Storage Networking Industry Association.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ * Redistributions of source code must retain the above copyright notice, 
+ * this list of conditions and the following disclaimer.
+ *  
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ *  
+ * Neither the name of The Storage Networking Industry Association (SNIA) nor 
+ * the names of its contributors may be used to endorse or promote products 
+ * derived from this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF 
+ *  THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.snia.cdmiserver.filter;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.snia.cdmiserver.dao.ContainerDao;
+import org.snia.cdmiserver.exception.CdmiException;
+
+/**
+ * <p>
+ * Servlet filter admitting requests per domain before any DAO work is done, so one busy
+ * domain cannot take all request threads and disk bandwidth from the others. Each domain has
+ * a token bucket for operations per second, a token bucket for bytes per second and a
+ * bulkhead bounding its concurrent requests:
+ * </p>
+ * <ul>
+ * <li>A request finding the operations bucket empty, or the bytes bucket in debt, is answered
+ * with 429 Too Many Requests and a <code>Retry-After</code> header.</li>
+ * <li>A request that cannot enter the bulkhead within <code>maxWaitMillis</code> is answered
+ * with 503 Service Unavailable.</li>
+ * </ul>
+ * <p>
+ * The bytes of a request body (by its <code>Content-Length</code>) are taken when it is
+ * admitted, those of the response once it has been sent; both may take the bucket into debt,
+ * which later requests wait out. The domain of a request is the domain of the container it
+ * addresses. Requests to <code>cdmi_capabilities</code>, <code>cdmi_domains</code> and the
+ * other system paths that do not name a container count against the default domain.
+ * </p>
+ * <p>
+ * The filter is a Spring bean, installed with a <code>DelegatingFilterProxy</code>. A limit
+ * of 0 turns that limit off, and every limit is off until it is configured.
+ * </p>
+ */
+public class AdmissionFilter implements Filter {
+
+    private static final String DEFAULT_DOMAIN = "default_domain";
+
+    private static final String ADMITTED_ATTRIBUTE = AdmissionFilter.class.getName()
+                                                     + ".admitted";
+
+    // ---------------------------------------------------------------- Properties
+
+    private ContainerDao containerDao;
+
+    /**
+     * <p>
+     * Injected {@link ContainerDao} instance, resolving the domain of request paths.
+     * </p>
+     */
+    public void setContainerDao(ContainerDao containerDao) {
+        this.containerDao = containerDao;
+    }
+
+    private double opsPerSecond = 0;
+
+    /**
+     * <p>
+     * Set the sustained requests per second of each domain.
+     * </p>
+     */
+    public void setOpsPerSecond(double opsPerSecond) {
+        this.opsPerSecond = opsPerSecond;
+    }
+
+    private double burstOps = 0;
+
+    /**
+     * <p>
+     * Set the requests a domain may send at once after being idle.
+     * </p>
+     */
+    public void setBurstOps(double burstOps) {
+        this.burstOps = burstOps;
+    }
+
+    private double bytesPerSecond = 0;
+
+    /**
+     * <p>
+     * Set the sustained request and response bytes per second of each domain.
+     * </p>
+     */
+    public void setBytesPerSecond(double bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    private double burstBytes = 0;
+
+    /**
+     * <p>
+     * Set the bytes a domain may transfer at once after being idle.
+     * </p>
+     */
+    public void setBurstBytes(double burstBytes) {
+        this.burstBytes = burstBytes;
+    }
+
+    private int maxConcurrent = 0;
+
+    /**
+     * <p>
+     * Set the number of requests of one domain processed at the same time.
+     * </p>
+     */
+    public void setMaxConcurrent(int maxConcurrent) {
+        this.maxConcurrent = maxConcurrent;
+    }
+
+    private long maxWaitMillis = 50;
+
+    /**
+     * <p>
+     * Set how long a request waits for a place in the bulkhead of its domain before it is
+     * rejected.
+     * </p>
+     */
+    public void setMaxWaitMillis(long maxWaitMillis) {
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    // --------------------------------------------------------------------- State
+
+    private final ConcurrentMap<String, Admission> admissions =
+            new ConcurrentHashMap<String, Admission>();
+
+    // ------------------------------------------------------------ Filter Methods
+
+    @Override
+    public void init(FilterConfig config) throws ServletException {
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        if (!(request instanceof HttpServletRequest)
+            || !(response instanceof HttpServletResponse)) {
+            chain.doFilter(request, response);
+            return;
+        }
+        HttpServletRequest httpRequest = (HttpServletRequest) request;
+        HttpServletResponse httpResponse = (HttpServletResponse) response;
+        Admission admission = admission(domain(httpRequest));
+
+        // A suspended request is dispatched through the filter again when it is resumed;
+        // it was admitted the first time and only its response bytes are counted now
+        boolean resumed = httpRequest.getAttribute(ADMITTED_ATTRIBUTE) != null;
+        boolean entered = false;
+        if (!resumed) {
+            long wait = admission.ops.take(1, false);
+            if (wait == 0) {
+                long length = httpRequest.getContentLength();
+                wait = admission.bytes.take(length > 0 ? length : 0, true);
+                if (wait > 0) {
+                    admission.ops.give(1);
+                }
+            }
+            if (wait > 0) {
+                admission.rejectedRate.incrementAndGet();
+                reject(httpResponse, 429, "Request rate of the domain exceeded", wait);
+                return;
+            }
+
+            entered = true;
+            if (admission.bulkhead != null) {
+                try {
+                    entered = admission.bulkhead.tryAcquire(maxWaitMillis,
+                                                            TimeUnit.MILLISECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    entered = false;
+                }
+            }
+            if (!entered) {
+                admission.rejectedConcurrency.incrementAndGet();
+                reject(httpResponse, 503, "Too many concurrent requests for the domain", 0);
+                return;
+            }
+
+            httpRequest.setAttribute(ADMITTED_ATTRIBUTE, Boolean.TRUE);
+            admission.admitted.incrementAndGet();
+        }
+        CountingResponse counting = new CountingResponse(httpResponse);
+        try {
+            chain.doFilter(request, counting);
+            counting.flushWriter();
+        } finally {
+            if (entered && admission.bulkhead != null) {
+                admission.bulkhead.release();
+            }
+            admission.bytes.take(counting.count, true);
+        }
+    }
+
+    @Override
+    public void destroy() {
+    }
+
+    // ------------------------------------------------------------ Public Methods
+
+    /**
+     * <p>
+     * Return the admission counters of a domain: admitted requests, requests rejected for
+     * their rate and requests rejected by the bulkhead.
+     * </p>
+     * 
+     * @param name
+     *            Name of the domain
+     */
+    public Map<String, String> getMetrics(String name) {
+        Map<String, String> metrics = new LinkedHashMap<String, String>();
+        Admission admission = admissions.get(name);
+        metrics.put("cdmi_requests_admitted", admission == null ? "0"
+                                                                : admission.admitted.toString());
+        metrics.put("cdmi_requests_rejected_rate",
+                    admission == null ? "0" : admission.rejectedRate.toString());
+        metrics.put("cdmi_requests_rejected_concurrency",
+                    admission == null ? "0" : admission.rejectedConcurrency.toString());
+        return metrics;
+    }
+
+    // ----------------------------------------------------------- Private Methods
+
+    private Admission admission(String name) {
+        Admission admission = admissions.get(name);
+        if (admission == null) {
+            admission = new Admission();
+            Admission existing = admissions.putIfAbsent(name, admission);
+            if (existing != null) {
+                admission = existing;
+            }
+        }
+        return admission;
+    }
+
+    /**
+     * <p>
+     * Return the name of the domain the request counts against.
+     * </p>
+     */
+    private String domain(HttpServletRequest request) {
+        String path = request.getServletPath();
+        if (request.getPathInfo() != null) {
+            path += request.getPathInfo();
+        }
+        while (path.startsWith("/")) {
+            path = path.substring(1);
+        }
+        int slash = path.indexOf('/');
+        String first = slash < 0 ? path : path.substring(0, slash);
+        if (first.startsWith("cdmi_")) {
+            // Only these system paths are followed by the path of a container or object
+            if (slash < 0
+                || !("cdmi_bulk".equals(first)
+                     || "cdmi_queues".equals(first)
+                     || "cdmi_versions".equals(first))) {
+                return DEFAULT_DOMAIN;
+            }
+            path = path.substring(slash + 1);
+        }
+        if (containerDao == null || path.length() == 0) {
+            return DEFAULT_DOMAIN;
+        }
+        String domainURI;
+        try {
+            domainURI = containerDao.findDomainURI(path);
+        } catch (CdmiException ex) {
+            // An invalid path; admitted to the default domain, the resource rejects it
+            return DEFAULT_DOMAIN;
+        }
+        while (domainURI.endsWith("/")) {
+            domainURI = domainURI.substring(0, domainURI.length() - 1);
+        }
+        return domainURI.substring(domainURI.lastIndexOf('/') + 1);
+    }
+
+    private static void reject(HttpServletResponse response, int status, String message, long wait)
+            throws IOException {
+        response.setHeader("Retry-After",
+                           String.valueOf(Math.max(1, TimeUnit.NANOSECONDS.toSeconds(wait
+                                                                                    + 999999999L))));
+        response.sendError(status, message);
+    }
+
+    // ----------------------------------------------------------- Support Classes
+
+    /**
+     * <p>
+     * The buckets, bulkhead and counters of one domain.
+     * </p>
+     */
+    private final class Admission {
+
+        private final TokenBucket ops = new TokenBucket(opsPerSecond, burstOps);
+        private final TokenBucket bytes = new TokenBucket(bytesPerSecond, burstBytes);
+        private final Semaphore bulkhead =
+                maxConcurrent > 0 ? new Semaphore(maxConcurrent, true) : null;
+        private final AtomicLong admitted = new AtomicLong();
+        private final AtomicLong rejectedRate = new AtomicLong();
+        private final AtomicLong rejectedConcurrency = new AtomicLong();
+
+    }
+
+    /**
+     * <p>
+     * Token bucket refilled at <code>rate</code> tokens per second up to <code>burst</code>.
+     * </p>
+     */
+    static final class TokenBucket {
+
+        private final double rate;
+        private final double burst;
+        private double tokens;
+        private long last = System.nanoTime();
+
+        TokenBucket(double rate, double burst) {
+            this.rate = rate;
+            this.burst = Math.max(burst, 1);
+            this.tokens = this.burst;
+        }
+
+        /**
+         * <p>
+         * Take <code>count</code> tokens and return 0, or return the nanoseconds until they
+         * can be taken and take none. With <code>debt</code>, the tokens are taken as long as
+         * the bucket is not in debt already, leaving it negative if need be.
+         * </p>
+         */
+        synchronized long take(double count, boolean debt) {
+            if (rate <= 0) {
+                return 0;
+            }
+            long now = System.nanoTime();
+            tokens = Math.min(burst, tokens + (now - last) * rate / 1e9);
+            last = now;
+            double needed = debt ? 0 : count;
+            if (tokens < needed || (debt && tokens < 0)) {
+                return (long) Math.ceil((needed - tokens) / rate * 1e9);
+            }
+            tokens -= count;
+            return 0;
+        }
+
+        synchronized void give(double count) {
+            tokens = Math.min(burst, tokens + count);
+        }
+
+    }
+
+    /**
+     * <p>
+     * Response counting the bytes of its body.
+     * </p>
+     */
+    private static final class CountingResponse extends HttpServletResponseWrapper {
+
+        private long count;
+        private ServletOutputStream stream;
+        private PrintWriter writer;
+
+        CountingResponse(HttpServletResponse response) {
+            super(response);
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            if (writer != null) {
+                throw new IllegalStateException("getWriter() has already been called");
+            }
+            if (stream == null) {
+                final ServletOutputStream out = super.getOutputStream();
+                stream = new ServletOutputStream() {
+                    @Override
+                    public void write(int b) throws IOException {
+                        out.write(b);
+                        count++;
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        out.write(b, off, len);
+                        count += len;
+                    }
+
+                    @Override
+                    public void flush() throws IOException {
+                        out.flush();
+                    }
+                };
+            }
+            return stream;
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            if (writer == null) {
+                if (stream != null) {
+                    throw new IllegalStateException("getOutputStream() has already been called");
+                }
+                String charset = getCharacterEncoding();
+                ServletOutputStream out = getOutputStream();
+                writer = new PrintWriter(new OutputStreamWriter(out, charset == null
+                                                                     ? "ISO-8859-1"
+                                                                     : charset));
+            }
+            return writer;
+        }
+
+        @Override
+        public void flushBuffer() throws IOException {
+            flushWriter();
+            super.flushBuffer();
+        }
+
+        void flushWriter() {
+            if (writer != null) {
+                writer.flush();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,440 @@
+/*
+ * Copyright (c) 2010, Sun Microsystems, Inc.
+ * Copyright (c) 2010, The Storage Networking Industry Association.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ * Redistributions of source code must retain the above copyright notice, 
+ * this list of conditions and the following disclaimer.
+ *  
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ *  
+ * Neither the name of The Storage Networking Industry Association (SNIA) nor 
+ * the names of its contributors may be used to endorse or promote products 
+ * derived from this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF 
+ *  THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.snia.cdmiserver.filter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * <p>
+ * Servlet filter compressing responses with <code>gzip</code> or <code>deflate</code>, as
+ * negotiated through the <code>Accept-Encoding</code> request header. Only responses of the
+ * configured media types are compressed (CDMI JSON by default), never those of the excluded
+ * media types, which are already compressed.
+ * </p>
+ * 
+ * <p>
+ * The body is streamed through the encoder as it is written. Only its first
+ * <code>threshold</code> bytes are held back, to leave smaller responses uncompressed; a
+ * response whose declared length is below the threshold is not held back at all.
+ * </p>
+ * 
+ * <p>
+ * Init parameters:
+ * </p>
+ * <ul>
+ * <li><code>threshold</code> - Smallest response compressed, in bytes (default 1024)</li>
+ * <li><code>mimeTypes</code> - Comma separated media types to compress; a trailing
+ * <code>*</code> matches any suffix</li>
+ * <li><code>excludedMimeTypes</code> - Comma separated media types never compressed</li>
+ * </ul>
+ */
+public class CompressionFilter implements Filter {
+
+    private static final String DEFAULT_MIME_TYPES =
+            "application/cdmi-*,application/json,text/json";
+
+    private static final String DEFAULT_EXCLUDED_MIME_TYPES =
+            "image/*,audio/*,video/*,application/zip,application/gzip,application/x-gzip,"
+            + "application/x-bzip2,application/x-xz,application/x-7z-compressed";
+
+    private int threshold = 1024;
+
+    private List<String> mimeTypes;
+
+    private List<String> excludedMimeTypes;
+
+    // -------------------------------------------------------- Filter Methods
+
+    @Override
+    public void init(FilterConfig config) throws ServletException {
+        String value = config.getInitParameter("threshold");
+        if (value != null) {
+            threshold = Integer.parseInt(value.trim());
+        }
+        value = config.getInitParameter("mimeTypes");
+        mimeTypes = split(value == null ? DEFAULT_MIME_TYPES : value);
+        value = config.getInitParameter("excludedMimeTypes");
+        excludedMimeTypes = split(value == null ? DEFAULT_EXCLUDED_MIME_TYPES : value);
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        String encoding = null;
+        if (request instanceof HttpServletRequest && response instanceof HttpServletResponse) {
+            encoding = negotiate(((HttpServletRequest) request).getHeader("Accept-Encoding"));
+        }
+        if (encoding == null) {
+            chain.doFilter(request, response);
+            return;
+        }
+        CompressingResponse compressing =
+                new CompressingResponse((HttpServletResponse) response, encoding);
+        chain.doFilter(request, compressing);
+        compressing.finish();
+    }
+
+    @Override
+    public void destroy() {
+    }
+
+    // --------------------------------------------------------- Private Methods
+
+    private static List<String> split(String value) {
+        List<String> list = new ArrayList<String>();
+        for (String item : value.split(",")) {
+            if (item.trim().length() > 0) {
+                list.add(item.trim().toLowerCase());
+            }
+        }
+        return list;
+    }
+
+    /**
+     * <p>
+     * Return the encoding to use for an <code>Accept-Encoding</code> header, preferring
+     * <code>gzip</code>, or <code>null</code> to send the response as it is.
+     * </p>
+     */
+    static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        boolean gzip = false;
+        boolean deflate = false;
+        boolean any = false;
+        boolean refuseGzip = false;
+        boolean refuseDeflate = false;
+        for (String item : acceptEncoding.toLowerCase().split(",")) {
+            String[] parts = item.split(";");
+            String coding = parts[0].trim();
+            boolean accepted = true;
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        accepted = Double.parseDouble(parameter.substring(2).trim()) > 0;
+                    } catch (NumberFormatException ex) {
+                        accepted = false;
+                    }
+                }
+            }
+            if ("gzip".equals(coding) || "x-gzip".equals(coding)) {
+                gzip = accepted;
+                refuseGzip = !accepted;
+            } else if ("deflate".equals(coding)) {
+                deflate = accepted;
+                refuseDeflate = !accepted;
+            } else if ("*".equals(coding)) {
+                any = accepted;
+            }
+        }
+        if (gzip || (any && !refuseGzip)) {
+            return "gzip";
+        }
+        if (deflate || (any && !refuseDeflate)) {
+            return "deflate";
+        }
+        return null;
+    }
+
+    /**
+     * <p>
+     * Return <code>true</code> if responses of the specified content type are compressed.
+     * </p>
+     */
+    private boolean isCompressible(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        int semicolon = contentType.indexOf(';');
+        String type = (semicolon < 0 ? contentType : contentType.substring(0, semicolon))
+                .trim().toLowerCase();
+        return matches(type, mimeTypes) && !matches(type, excludedMimeTypes);
+    }
+
+    private static boolean matches(String type, List<String> patterns) {
+        for (String pattern : patterns) {
+            if (pattern.endsWith("*")
+                ? type.startsWith(pattern.substring(0, pattern.length() - 1))
+                : type.equals(pattern)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // --------------------------------------------------------- Support Classes
+
+    /**
+     * <p>
+     * Response holding back the start of the body until it knows whether to compress it, then
+     * streaming the rest through the encoder (or straight through).
+     * </p>
+     */
+    private final class CompressingResponse extends HttpServletResponseWrapper {
+
+        private final HttpServletResponse response;
+        private final String encoding;
+        private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private OutputStream target;
+        private boolean compressing;
+        private boolean encoded;
+        private int contentLength = -1;
+        private ServletOutputStream stream;
+        private PrintWriter writer;
+
+        CompressingResponse(HttpServletResponse response, String encoding) {
+            super(response);
+            this.response = response;
+            this.encoding = encoding;
+        }
+
+        @Override
+        public void setContentLength(int length) {
+            if (target == null) {
+                contentLength = length;
+                if (length < threshold) {
+                    decide(false);
+                }
+            } else if (!compressing) {
+                response.setContentLength(length);
+            }
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+            if (!header(name, value)) {
+                response.setHeader(name, value);
+            }
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+            if (!header(name, value)) {
+                response.addHeader(name, value);
+            }
+        }
+
+        @Override
+        public void setIntHeader(String name, int value) {
+            if (!header(name, String.valueOf(value))) {
+                response.setIntHeader(name, value);
+            }
+        }
+
+        @Override
+        public void addIntHeader(String name, int value) {
+            if (!header(name, String.valueOf(value))) {
+                response.addIntHeader(name, value);
+            }
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            if (writer != null) {
+                throw new IllegalStateException("getWriter() has already been called");
+            }
+            return body();
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            if (writer == null) {
+                if (stream != null) {
+                    throw new IllegalStateException("getOutputStream() has already been called");
+                }
+                String charset = response.getCharacterEncoding();
+                writer = new PrintWriter(new OutputStreamWriter(body(), charset == null
+                                                                        ? "ISO-8859-1"
+                                                                        : charset));
+            }
+            return writer;
+        }
+
+        @Override
+        public void flushBuffer() throws IOException {
+            if (writer != null) {
+                writer.flush();
+            }
+            if (target == null) {
+                // Someone wants the bytes on the wire now, so send what we have
+                decide(buffer.size() >= threshold);
+            }
+            target.flush();
+            response.flushBuffer();
+        }
+
+        @Override
+        public void resetBuffer() {
+            if (target != null) {
+                throw new IllegalStateException("Response body already sent");
+            }
+            buffer.reset();
+            response.resetBuffer();
+        }
+
+        @Override
+        public void reset() {
+            if (target != null) {
+                throw new IllegalStateException("Response body already sent");
+            }
+            buffer.reset();
+            contentLength = -1;
+            encoded = false;
+            response.reset();
+        }
+
+        private ServletOutputStream body() {
+            if (stream == null) {
+                stream = new ServletOutputStream() {
+                    @Override
+                    public void write(int b) throws IOException {
+                        write(new byte[] { (byte) b }, 0, 1);
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        CompressingResponse.this.write(b, off, len);
+                    }
+
+                    @Override
+                    public void flush() throws IOException {
+                        // Flushed through once decided; until then the start stays held back
+                        if (target != null) {
+                            target.flush();
+                        }
+                    }
+                };
+            }
+            return stream;
+        }
+
+        /**
+         * <p>
+         * Intercept the headers the decision depends on; return <code>true</code> if the
+         * header is handled here.
+         * </p>
+         */
+        private boolean header(String name, String value) {
+            if ("Content-Length".equalsIgnoreCase(name)) {
+                setContentLength(Integer.parseInt(value.trim()));
+                return true;
+            }
+            if ("Content-Encoding".equalsIgnoreCase(name)) {
+                encoded = true;
+            }
+            return false;
+        }
+
+        private void write(byte[] b, int off, int len) throws IOException {
+            if (target == null) {
+                buffer.write(b, off, len);
+                if (buffer.size() >= threshold) {
+                    decide(true);
+                }
+            } else {
+                target.write(b, off, len);
+            }
+        }
+
+        /**
+         * <p>
+         * Choose between compressing and sending as it is, then release the held back bytes.
+         * </p>
+         */
+        private void decide(boolean large) {
+            boolean compressible = isCompressible(response.getContentType());
+            compressing = large && compressible && !encoded;
+            try {
+                if (compressible) {
+                    response.addHeader("Vary", "Accept-Encoding");
+                }
+                if (compressing) {
+                    response.setHeader("Content-Encoding", encoding);
+                    OutputStream out = response.getOutputStream();
+                    target = "gzip".equals(encoding) ? new GZIPOutputStream(out)
+                                                     : new DeflaterOutputStream(out);
+                } else {
+                    if (contentLength >= 0) {
+                        response.setContentLength(contentLength);
+                    }
+                    target = response.getOutputStream();
+                }
+                buffer.writeTo(target);
+                buffer = null;
+            } catch (IOException ex) {
+                throw new IllegalStateException("Cannot start response body: " + ex);
+            }
+        }
+
+        /**
+         * <p>
+         * Send whatever is still held back, and end the compressed stream.
+         * </p>
+         */
+        private void finish() throws IOException {
+            if (writer != null) {
+                writer.flush();
+            }
+            if (target == null) {
+                if (buffer.size() == 0) {
+                    return;
+                }
+                decide(buffer.size() >= threshold);
+            }
+            if (compressing) {
+                ((DeflaterOutputStream) target).finish();
+            }
+            target.flush();
+        }
+    }
+
+}
@@ -31,13 +31,216 @@
 
 package org.snia.cdmiserver.model;
 
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.snia.cdmiserver.exception.BadRequestException;
+
 /**
  * <p>
- * Representation of a CDMI <em>Account</em>.
+ * Representation of a CDMI <em>Account</em>: a domain, with the usage charged to it by the
+ * containers and data objects that belong to it, and its quotas.
  * </p>
  */
 public class Account {
 
-    // FIXME - flesh out fields and getter/setter pairs
+    /**
+     * <p>
+     * Metadata holding the most bytes of data object values the domain may use; absent for
+     * no limit.
+     * </p>
+     */
+    public static final String QUOTA_BYTES = "cdmi_quota_bytes";
+
+    /**
+     * <p>
+     * Metadata holding the most data objects the domain may hold; absent for no limit.
+     * </p>
+     */
+    public static final String QUOTA_OBJECTS = "cdmi_quota_objects";
+
+    // Account creation fields
+    private Map<String, String> metadata = new HashMap<String, String>();
+    // Account representation fields
+    private String objectType;
+    private String objectID;
+    private String objectURI;
+    private String parentURI;
+    private List<String> children = new ArrayList<String>();
+    private long usageBytes;
+    private long usageObjects;
+
+    public Map<String, String> getMetadata() {
+        return metadata;
+    }
+
+    public void setMetadata(String key, String val) {
+        metadata.put(key, val);
+    }
+
+    public String getObjectType() {
+        return objectType;
+    }
+
+    public void setObjectType(String objectType) {
+        this.objectType = objectType;
+    }
+
+    public String getObjectID() {
+        return objectID;
+    }
+
+    public void setObjectID(String objectID) {
+        this.objectID = objectID;
+    }
+
+    /**
+     * <p>
+     * URI of the domain, such as <code>/cdmi_domains/default_domain/</code>.
+     * </p>
+     */
+    public String getObjectURI() {
+        return objectURI;
+    }
+
+    public void setObjectURI(String objectURI) {
+        this.objectURI = objectURI;
+    }
+
+    public String getParentURI() {
+        return parentURI;
+    }
+
+    public void setParentURI(String parentURI) {
+        this.parentURI = parentURI;
+    }
+
+    public List<String> getChildren() {
+        return children;
+    }
+
+    /**
+     * <p>
+     * Bytes of data object values charged to the domain.
+     * </p>
+     */
+    public long getUsageBytes() {
+        return usageBytes;
+    }
+
+    public void setUsageBytes(long usageBytes) {
+        this.usageBytes = usageBytes;
+    }
+
+    /**
+     * <p>
+     * Data objects charged to the domain.
+     * </p>
+     */
+    public long getUsageObjects() {
+        return usageObjects;
+    }
+
+    public void setUsageObjects(long usageObjects) {
+        this.usageObjects = usageObjects;
+    }
+
+    /**
+     * <p>
+     * Return the limit in the specified quota metadata, or -1 if there is none.
+     * </p>
+     * 
+     * @exception BadRequestException
+     *                if the quota is not a number
+     */
+    public long getQuota(String key) {
+        String value = metadata.get(key);
+        if (value == null || value.trim().length() == 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException ex) {
+            throw new BadRequestException("Invalid " + key + " : " + value);
+        }
+    }
+
+    public String toJson() throws Exception {
+        //
+        StringWriter outBuffer = new StringWriter();
+        try {
+            JsonFactory f = new JsonFactory();
+            JsonGenerator g = f.createJsonGenerator(outBuffer);
+            g.useDefaultPrettyPrinter();
+            g.writeStartObject();
+            //
+            if (objectType != null)
+                g.writeStringField("objectType", objectType);
+            if (objectID != null)
+                g.writeStringField("objectID", objectID);
+            if (objectURI != null)
+                g.writeStringField("objectURI", objectURI);
+            if (parentURI != null)
+                g.writeStringField("parentURI", parentURI);
+            //
+            g.writeObjectFieldStart("metadata");
+            for (Map.Entry<String, String> entry : metadata.entrySet()) {
+                g.writeStringField(entry.getKey(), entry.getValue());
+            }
+            g.writeStringField("cdmi_usage_bytes", String.valueOf(usageBytes));
+            g.writeStringField("cdmi_usage_objects", String.valueOf(usageObjects));
+            g.writeEndObject();
+            //
+            g.writeArrayFieldStart("children");
+            for (String child : children) {
+                g.writeString(child);
+            }
+            g.writeEndArray();
+            if (!children.isEmpty()) {
+                g.writeStringField("childrenrange", "0-" + (children.size() - 1));
+            }
+            //
+            g.writeEndObject();
+            g.flush();
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            throw ex;
+        }
+        //
+        return outBuffer.toString();
+    }
+
+    /**
+     * <p>
+     * Parse an account request. Only its metadata is accepted.
+     * </p>
+     */
+    public void fromJson(byte[] jsonBytes) throws Exception {
+        JsonFactory f = new JsonFactory();
+        JsonParser jp = f.createJsonParser(jsonBytes);
+        JsonToken tolkein;
+        tolkein = jp.nextToken();// START_OBJECT
+        while ((tolkein = jp.nextToken()) != JsonToken.END_OBJECT) {
+            String key = jp.getCurrentName();
+            if ("metadata".equals(key)) {// process metadata
+                tolkein = jp.nextToken();
+                while ((tolkein = jp.nextToken()) != JsonToken.END_OBJECT) {
+                    key = jp.getCurrentName();
+                    tolkein = jp.nextToken();
+                    this.setMetadata(key, jp.getText());
+                }// while
+            } else {
+                System.out.println("Invalid Key : " + key);
+                throw new BadRequestException("Invalid Key : " + key);
+            }
+        }
+    }
 
 }
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2010, Sun Microsystems, Inc.
+ * Copyright (c) 2010, The Storage Networking Industry Association.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ * Redistributions of source code must retain the above copyright notice, 
+ * this list of conditions and the following disclaimer.
+ *  
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ *  
+ * Neither the name of The Storage Networking Industry Association (SNIA) nor 
+ * the names of its contributors may be used to endorse or promote products 
+ * derived from this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF 
+ *  THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.snia.cdmiserver.model;
+
+import java.util.Map;
+
+/**
+ * <p>
+ * A change to a container, data object or queue, as reported to change listeners and recorded
+ * in the change journal.
+ * </p>
+ */
+public class Change {
+
+    public static final String CREATE = "create";
+
+    public static final String UPDATE = "update";
+
+    public static final String COPY = "copy";
+
+    public static final String MOVE = "move";
+
+    public static final String DELETE = "delete";
+
+    private long sequence = -1;
+    private String operation;
+    private String objectType;
+    private String path;
+    private String source;
+    private String objectID;
+    private long time;
+    private Map<String, String> metadata;
+
+    public Change() {
+    }
+
+    /**
+     * <p>
+     * Create a change that happened now.
+     * </p>
+     * 
+     * @param operation
+     *            One of the operation constants
+     * @param objectType
+     *            Media type of the changed object
+     * @param path
+     *            Path of the changed object, without leading or trailing "/"
+     * @param source
+     *            Path the object was copied or moved from, or <code>null</code>
+     */
+    public Change(String operation, String objectType, String path, String source) {
+        this.operation = operation;
+        this.objectType = objectType;
+        this.path = path;
+        this.source = source;
+        this.time = System.currentTimeMillis();
+    }
+
+    /**
+     * <p>
+     * Position of this change in the change journal, or -1 if it has not been journaled.
+     * </p>
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public void setOperation(String operation) {
+        this.operation = operation;
+    }
+
+    public String getObjectType() {
+        return objectType;
+    }
+
+    public void setObjectType(String objectType) {
+        this.objectType = objectType;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public void setPath(String path) {
+        this.path = path;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public void setSource(String source) {
+        this.source = source;
+    }
+
+    public String getObjectID() {
+        return objectID;
+    }
+
+    public void setObjectID(String objectID) {
+        this.objectID = objectID;
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    public void setTime(long time) {
+        this.time = time;
+    }
+
+    /**
+     * <p>
+     * Metadata of the object after the change, if known. Not journaled.
+     * </p>
+     */
+    public Map<String, String> getMetadata() {
+        return metadata;
+    }
+
+    public void setMetadata(Map<String, String> metadata) {
+        this.metadata = metadata;
+    }
+
+}
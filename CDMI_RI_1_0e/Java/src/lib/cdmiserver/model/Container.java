@@ -59,6 +59,7 @@ public class Container {
     private String move;
     private String reference;
     private String snapshot; // To create a snapshot via the "update" operation
+    private String deserialize; // Data object holding a serialized container to recreate
 
     // Container representation fields
     private String objectType;
@@ -116,6 +117,14 @@ public class Container {
         this.snapshot = snapshot;
     }
 
+    public String getDeserialize() {
+        return deserialize;
+    }
+
+    public void setDeserialize(String deserialize) {
+        this.deserialize = deserialize;
+    }
+
     public String getObjectType() {
         return objectType;
     }
@@ -229,8 +238,17 @@ public class Container {
                 }
                 g.writeEndArray();
                 g.writeStringField("childrenrange", childrenrange);
+                if (!snapshots.isEmpty()) {
+                    g.writeArrayFieldStart("snapshots");
+                    for (String snapshot : snapshots) {
+                        g.writeString(snapshot);
+                    }
+                    g.writeEndArray();
+                }
                 if (completionStatus != null)
                     g.writeStringField("completionStatus", completionStatus);
+                if (percentComplete != null)
+                    g.writeNumberField("percentComplete", percentComplete.intValue());
             }
 
             g.writeEndObject();
@@ -288,11 +306,26 @@ public class Container {
                 String value2 = jp.getText();
                 System.out.println("Key : " + key + " Val : " + value2);
                 this.setDomainURI(value2);
+            } else if ("copy".equals(key)) {// process copy
+                jp.nextToken();
+                String value2 = jp.getText();
+                System.out.println("Key : " + key + " Val : " + value2);
+                this.setCopy(value2);
             } else if ("move".equals(key)) {// process move
                 jp.nextToken();
                 String value2 = jp.getText();
                 System.out.println("Key : " + key + " Val : " + value2);
                 this.setMove(value2);
+            } else if ("snapshot".equals(key)) {// process snapshot
+                jp.nextToken();
+                String value2 = jp.getText();
+                System.out.println("Key : " + key + " Val : " + value2);
+                this.setSnapshot(value2);
+            } else if ("deserialize".equals(key)) {// process deserialize
+                jp.nextToken();
+                String value2 = jp.getText();
+                System.out.println("Key : " + key + " Val : " + value2);
+                this.setDeserialize(value2);
             } else {
                 if (fromFile) { // accept rest of key-values
                     if ("objectID".equals(key)) { // process value
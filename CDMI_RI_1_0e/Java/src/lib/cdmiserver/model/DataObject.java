@@ -307,6 +307,26 @@ public class DataObject {
                 String value1 = jp.getText();
                 System.out.println("Key : " + key + " Val : " + value1);
                 this.setValue(value1);
+            } else if ("copy".equals(key)) { // process copy
+                jp.nextToken();
+                String value2 = jp.getText();
+                System.out.println("Key : " + key + " Val : " + value2);
+                this.setCopy(value2);
+            } else if ("move".equals(key)) { // process move
+                jp.nextToken();
+                String value2 = jp.getText();
+                System.out.println("Key : " + key + " Val : " + value2);
+                this.setMove(value2);
+            } else if ("serialize".equals(key)) { // process serialize
+                jp.nextToken();
+                String value2 = jp.getText();
+                System.out.println("Key : " + key + " Val : " + value2);
+                this.setSerialize(value2);
+            } else if ("deserialize".equals(key)) { // process deserialize
+                jp.nextToken();
+                String value2 = jp.getText();
+                System.out.println("Key : " + key + " Val : " + value2);
+                this.setDeserialize(value2);
             } else if ("mimetype".equals(key)) { // process mimetype
                 jp.nextToken();
                 String value2 = jp.getText();
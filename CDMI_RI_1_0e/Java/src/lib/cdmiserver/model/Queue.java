@@ -31,6 +31,18 @@
 
 package org.snia.cdmiserver.model;
 
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.snia.cdmiserver.exception.BadRequestException;
+
 /**
  * <p>
  * Representation of a CDMI <em>Queue</em>.
@@ -38,6 +50,220 @@ package org.snia.cdmiserver.model;
  */
 public class Queue {
 
-    // FIXME - flesh out fields and getter/setter pairs
+    // Queue creation fields
+    private Map<String, String> metadata = new HashMap<String, String>();
+    private List<String> values = new ArrayList<String>();
+    // Queue representation fields
+    private String objectType;
+    private String objectID;
+    private String parentURI;
+    private String capabilitiesURI;
+    private String completionStatus;
+    private long queueValues;
+    private String valuerange;
+
+    // Representation also includes "metadata" and "value" from creation fields
+    //
+
+    public Map<String, String> getMetadata() {
+        return metadata;
+    }
+
+    public void setMetadata(String key, String val) {
+        metadata.put(key, val);
+    }
+
+    /**
+     * <p>
+     * Values to enqueue, or values read from the head of the queue.
+     * </p>
+     */
+    public List<String> getValues() {
+        return values;
+    }
+
+    public String getObjectType() {
+        return objectType;
+    }
+
+    public void setObjectType(String objectType) {
+        this.objectType = objectType;
+    }
+
+    public String getObjectID() {
+        return objectID;
+    }
+
+    public void setObjectID(String objectID) {
+        this.objectID = objectID;
+    }
+
+    public String getParentURI() {
+        return parentURI;
+    }
+
+    public void setParentURI(String parentURI) {
+        this.parentURI = parentURI;
+    }
+
+    public String getCapabilitiesURI() {
+        return capabilitiesURI;
+    }
+
+    public void setCapabilitiesURI(String capabilitiesURI) {
+        this.capabilitiesURI = capabilitiesURI;
+    }
+
+    public String getCompletionStatus() {
+        return completionStatus;
+    }
+
+    public void setCompletionStatus(String completionStatus) {
+        this.completionStatus = completionStatus;
+    }
+
+    /**
+     * <p>
+     * Number of values in the queue.
+     * </p>
+     */
+    public long getQueueValues() {
+        return queueValues;
+    }
+
+    public void setQueueValues(long queueValues) {
+        this.queueValues = queueValues;
+    }
+
+    public String getValuerange() {
+        return valuerange;
+    }
+
+    public void setValuerange(String valuerange) {
+        this.valuerange = valuerange;
+    }
+
+    public String toJson() throws Exception {
+        //
+        StringWriter outBuffer = new StringWriter();
+        try {
+            JsonFactory f = new JsonFactory();
+            JsonGenerator g = f.createJsonGenerator(outBuffer);
+            g.useDefaultPrettyPrinter();
+            g.writeStartObject();
+            //
+            if (objectType != null)
+                g.writeStringField("objectType", objectType);
+            if (capabilitiesURI != null)
+                g.writeStringField("capabilitiesURI", capabilitiesURI);
+            if (objectID != null)
+                g.writeStringField("objectID", objectID);
+            if (parentURI != null)
+                g.writeStringField("parentURI", parentURI);
+            if (completionStatus != null)
+                g.writeStringField("completionStatus", completionStatus);
+            //
+            g.writeObjectFieldStart("metadata");
+            for (Map.Entry<String, String> entry : metadata.entrySet()) {
+                g.writeStringField(entry.getKey(), entry.getValue());
+            }
+            g.writeEndObject();
+            //
+            g.writeNumberField("queueValues", queueValues);
+            if (valuerange != null) {
+                g.writeStringField("valueRange", valuerange);
+                g.writeArrayFieldStart("value");
+                for (String value : values) {
+                    g.writeString(value);
+                }
+                g.writeEndArray();
+            }
+            //
+            g.writeEndObject();
+            g.flush();
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            throw ex;
+        }
+        //
+        return outBuffer.toString();
+    }
+
+    public String metadataToJson() throws Exception {
+        //
+        StringWriter outBuffer = new StringWriter();
+        try {
+            JsonFactory f = new JsonFactory();
+            JsonGenerator g = f.createJsonGenerator(outBuffer);
+            g.useDefaultPrettyPrinter();
+            g.writeStartObject();
+            //
+            if (objectType != null)
+                g.writeStringField("objectType", objectType);
+            if (capabilitiesURI != null)
+                g.writeStringField("capabilitiesURI", capabilitiesURI);
+            if (objectID != null)
+                g.writeStringField("objectID", objectID);
+            //
+            g.writeObjectFieldStart("metadata");
+            for (Map.Entry<String, String> entry : metadata.entrySet()) {
+                g.writeStringField(entry.getKey(), entry.getValue());
+            }
+            g.writeEndObject();
+            //
+            g.writeEndObject();
+            g.flush();
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            throw ex;
+        }
+        //
+        return outBuffer.toString();
+    }
+
+    /**
+     * <p>
+     * Parse a queue request, or the persisted fields of a queue when <code>fromFile</code> is
+     * true. In a request, <code>value</code> may be a single string or an array of strings.
+     * </p>
+     */
+    public void fromJson(byte[] jsonBytes, boolean fromFile) throws Exception {
+        JsonFactory f = new JsonFactory();
+        JsonParser jp = f.createJsonParser(jsonBytes);
+        JsonToken tolkein;
+        tolkein = jp.nextToken();// START_OBJECT
+        while ((tolkein = jp.nextToken()) != JsonToken.END_OBJECT) {
+            String key = jp.getCurrentName();
+            if ("metadata".equals(key)) {// process metadata
+                tolkein = jp.nextToken();
+                while ((tolkein = jp.nextToken()) != JsonToken.END_OBJECT) {
+                    key = jp.getCurrentName();
+                    tolkein = jp.nextToken();
+                    this.setMetadata(key, jp.getText());
+                }// while
+            } else if ("value".equals(key)) { // process value(s)
+                tolkein = jp.nextToken();
+                if (tolkein == JsonToken.START_ARRAY) {
+                    while ((tolkein = jp.nextToken()) != JsonToken.END_ARRAY) {
+                        values.add(jp.getText());
+                    }
+                } else {
+                    values.add(jp.getText());
+                }
+            } else if (fromFile && "objectType".equals(key)) {
+                jp.nextToken();
+                this.setObjectType(jp.getText());
+            } else if (fromFile && "capabilitiesURI".equals(key)) {
+                jp.nextToken();
+                this.setCapabilitiesURI(jp.getText());
+            } else if (fromFile && "objectID".equals(key)) {
+                jp.nextToken();
+                this.setObjectID(jp.getText());
+            } else {
+                System.out.println("Invalid Key : " + key);
+                throw new BadRequestException("Invalid Key : " + key);
+            }
+        }
+    }
 
 }
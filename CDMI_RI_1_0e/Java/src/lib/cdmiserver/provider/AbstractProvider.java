@@ -34,23 +34,51 @@ package org.snia.cdmiserver.provider;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
 import org.codehaus.jettison.json.JSONArray;
 import org.codehaus.jettison.json.JSONException;
 import org.codehaus.jettison.json.JSONObject;
 
 /**
  * <p>
- * Convenience base class for providers performing JSON reading.
+ * Convenience base class for providers performing JSON reading and writing.
  * </p>
  */
 public abstract class AbstractProvider {
 
+    /**
+     * <p>
+     * Factory shared by all providers for creating streaming JSON generators. A configured
+     * {@link JsonFactory} is thread safe and recycles its buffers per thread, so there is no need
+     * to build one per response.
+     * </p>
+     */
+    protected static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    /**
+     * <p>
+     * Create a UTF-8 {@link JsonGenerator} writing directly to the specified stream. Closing the
+     * generator flushes it but leaves the underlying stream open for the container.
+     * </p>
+     * 
+     * @param out
+     *            Stream the JSON text is written to
+     */
+    protected JsonGenerator createGenerator(OutputStream out) throws IOException {
+        JsonGenerator g = JSON_FACTORY.createJsonGenerator(out, JsonEncoding.UTF8);
+        g.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        return g;
+    }
+
     protected List<String> convertArray(JSONArray entity) throws IOException {
         List<String> list = new ArrayList<String>();
         for (int i = 0; i < entity.length(); i++) {
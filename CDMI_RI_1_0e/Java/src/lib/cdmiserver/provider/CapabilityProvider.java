@@ -31,14 +31,15 @@
 
 package org.snia.cdmiserver.provider;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Type;
+import java.util.Collections;
 import java.util.Map;
+import java.util.WeakHashMap;
 
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.MediaType;
@@ -46,8 +47,10 @@ import javax.ws.rs.core.MultivaluedMap;
 import javax.ws.rs.ext.MessageBodyReader;
 import javax.ws.rs.ext.MessageBodyWriter;
 
+import org.codehaus.jackson.JsonGenerator;
 import org.codehaus.jettison.json.JSONException;
 import org.codehaus.jettison.json.JSONObject;
+import org.snia.cdmiserver.dao.CapabilityDao;
 import org.snia.cdmiserver.model.Capability;
 
 /**
@@ -109,7 +112,11 @@ public class CapabilityProvider extends AbstractProvider
             Type type,
             Annotation[] annotations,
             MediaType mediaTYpe) {
-        return -1;
+        try {
+            return encode(entity).length;
+        } catch (IOException e) {
+            return -1;
+        }
     }
 
     @Override
@@ -121,32 +128,68 @@ public class CapabilityProvider extends AbstractProvider
             MediaType mediaType,
             MultivaluedMap<String, Object> headers,
             OutputStream out) throws IOException, WebApplicationException {
-        JSONObject entity = new JSONObject();
-        try {
-            Writer writer = new OutputStreamWriter(out);
+        out.write(encode(capability));
+    }
+
+    // --------------------------------------------------------- Private Methods
+
+    /**
+     * <p>
+     * UTF-8 encoded representations of the capabilities we have already written, keyed by
+     * instance. {@link CapabilityDao} hands out the same immutable instances on every request, so
+     * each one is only serialized once and <code>getSize()</code> can report the real length.
+     * </p>
+     */
+    private final Map<Capability, byte[]> encoded =
+            Collections.synchronizedMap(new WeakHashMap<Capability, byte[]>());
+
+    /**
+     * <p>
+     * Return the UTF-8 encoded JSON representation of the specified capability, serializing it
+     * on first use.
+     * </p>
+     * 
+     * @param capability
+     *            Capability to be encoded
+     */
+    private byte[] encode(Capability capability) throws IOException {
+        byte[] bytes = encoded.get(capability);
+        if (bytes == null) {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(512);
+            JsonGenerator g = createGenerator(buffer);
+            g.writeStartObject();
             if (capability.getObjectType() != null) {
-                entity.put("objectType", capability.getObjectType());
+                g.writeStringField("objectType", capability.getObjectType());
             }
             if (capability.getObjectID() != null) {
-                entity.put("objectID", capability.getObjectID());
+                g.writeStringField("objectID", capability.getObjectID());
             }
             if (capability.getParentURI() != null) {
-                entity.put("parentURI", capability.getParentURI());
+                g.writeStringField("parentURI", capability.getParentURI());
             }
             if (capability.getParentID() != null) {
-                entity.put("parentID", capability.getParentID());
+                g.writeStringField("parentID", capability.getParentID());
             }
             if (capability.getMetadata().size() > 0) {
-                entity.put("capabilities", capability.getMetadata());
+                g.writeObjectFieldStart("capabilities");
+                for (Map.Entry<String, String> entry : capability.getMetadata().entrySet()) {
+                    g.writeStringField(entry.getKey(), entry.getValue());
+                }
+                g.writeEndObject();
             }
             if (capability.getChildren().size() > 0) {
-                entity.put("children", capability.getChildren());
+                g.writeArrayFieldStart("children");
+                for (String child : capability.getChildren()) {
+                    g.writeString(child);
+                }
+                g.writeEndArray();
             }
-            entity.write(writer);
-            writer.flush();
-        } catch (JSONException e) {
-            throw new IOException(e);
+            g.writeEndObject();
+            g.close();
+            bytes = buffer.toByteArray();
+            encoded.put(capability, bytes);
         }
+        return bytes;
     }
 
 }
@@ -34,8 +34,6 @@ package org.snia.cdmiserver.provider;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Type;
 import java.util.Map;
@@ -46,6 +44,7 @@ import javax.ws.rs.core.MultivaluedMap;
 import javax.ws.rs.ext.MessageBodyReader;
 import javax.ws.rs.ext.MessageBodyWriter;
 
+import org.codehaus.jackson.JsonGenerator;
 import org.codehaus.jettison.json.JSONException;
 import org.codehaus.jettison.json.JSONObject;
 import org.snia.cdmiserver.model.Container;
@@ -131,47 +130,63 @@ public class ContainerProvider extends AbstractProvider
             MediaType mediaType,
             MultivaluedMap<String, Object> headers,
             OutputStream out) throws IOException, WebApplicationException {
-        JSONObject entity = new JSONObject();
-        try {
-            Writer writer = new OutputStreamWriter(out);
-            if (container.getObjectURI() != null) {
-                entity.put("objectURI", container.getObjectURI());
-            }
-            if (container.getObjectID() != null) {
-                entity.put("objectID", container.getObjectID());
-            }
-            if (container.getParentURI() != null) {
-                entity.put("parentURI", container.getParentURI());
-            }
-            if (container.getDomainURI() != null) {
-                entity.put("domainURI", container.getDomainURI());
-            }
-            if (container.getCapabilitiesURI() != null) {
-                entity.put("capabilitiesURI", container.getCapabilitiesURI());
-            }
-            if (container.getCompletionStatus() != null) {
-                entity.put("completionStatus", container.getCompletionStatus());
-            }
-            if (container.getPercentComplete() != null) {
-                entity.put("percentComplete", container.getPercentComplete());
-            }
-            if (container.getMetadata().size() > 0) {
-                entity.put("metadata", container.getMetadata());
+        JsonGenerator g = createGenerator(out);
+        g.writeStartObject();
+        if (container.getObjectType() != null) {
+            g.writeStringField("objectType", container.getObjectType());
+        }
+        if (container.getObjectID() != null) {
+            g.writeStringField("objectID", container.getObjectID());
+        }
+        if (container.getParentURI() != null) {
+            g.writeStringField("parentURI", container.getParentURI());
+        }
+        if (container.getDomainURI() != null) {
+            g.writeStringField("domainURI", container.getDomainURI());
+        }
+        if (container.getCapabilitiesURI() != null) {
+            g.writeStringField("capabilitiesURI", container.getCapabilitiesURI());
+        }
+        if (container.getCompletionStatus() != null) {
+            g.writeStringField("completionStatus", container.getCompletionStatus());
+        }
+        if (container.getPercentComplete() != null) {
+            g.writeNumberField("percentComplete", container.getPercentComplete().intValue());
+        }
+        if (container.getMetadata().size() > 0) {
+            g.writeObjectFieldStart("metadata");
+            for (Map.Entry<String, String> entry : container.getMetadata().entrySet()) {
+                g.writeStringField(entry.getKey(), entry.getValue());
             }
-            if (container.getExports().size() > 0) {
-                entity.put("exports", container.getExports());
+            g.writeEndObject();
+        }
+        if (container.getExports().size() > 0) {
+            g.writeObjectFieldStart("exports");
+            for (String name : container.getExports().keySet()) {
+                g.writeObjectFieldStart(name);
+                g.writeEndObject();
             }
-            if (container.getChildrenrange() != null) {
-                entity.put("childrenrange", container.getChildrenrange());
+            g.writeEndObject();
+        }
+        if (container.getSnapshots().size() > 0) {
+            g.writeArrayFieldStart("snapshots");
+            for (String snapshot : container.getSnapshots()) {
+                g.writeString(snapshot);
             }
-            if (container.getChildren().size() > 0) {
-                entity.put("children", container.getChildren());
+            g.writeEndArray();
+        }
+        if (container.getChildrenrange() != null) {
+            g.writeStringField("childrenrange", container.getChildrenrange());
+        }
+        if (container.getChildren().size() > 0) {
+            g.writeArrayFieldStart("children");
+            for (String child : container.getChildren()) {
+                g.writeString(child);
             }
-            entity.write(writer);
-            writer.flush();
-        } catch (JSONException e) {
-            throw new IOException(e);
+            g.writeEndArray();
         }
+        g.writeEndObject();
+        g.close();
     }
 
 }
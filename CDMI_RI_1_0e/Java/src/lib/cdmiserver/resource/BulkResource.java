@@ -0,0 +1,271 @@
+/*
+ * Copyright (c) 2010, Sun Microsystems, Inc.
+ * Copyright (c) 2010, The Storage Networking Industry Association.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ * Redistributions of source code must retain the above copyright notice, 
+ * this list of conditions and the following disclaimer.
+ *  
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ *  
+ * Neither the name of The Storage Networking Industry Association (SNIA) nor 
+ * the names of its contributors may be used to endorse or promote products 
+ * derived from this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF 
+ *  THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.snia.cdmiserver.resource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.snia.cdmiserver.dao.DataObjectDao;
+import org.snia.cdmiserver.exception.BadRequestException;
+import org.snia.cdmiserver.model.BulkOperation;
+import org.snia.cdmiserver.model.DataObject;
+import org.snia.cdmiserver.util.DaemonThreadFactory;
+import org.snia.cdmiserver.util.MediaTypes;
+
+/**
+ * <p>
+ * Create, update and delete many data objects of one container in a single request. The body
+ * is a stream of JSON objects (one per line by convention), each of the form
+ * </p>
+ * 
+ * <pre>
+ * { "op" : "create", "name" : "a.txt", "mimetype" : "text/plain", "value" : "...",
+ *   "metadata" : { ... } }
+ * </pre>
+ * 
+ * <p>
+ * where <code>op</code> is one of <code>create</code>, <code>update</code> or
+ * <code>delete</code>. The response streams back one JSON object per item, in request order,
+ * with the HTTP status code of that item's outcome.
+ * </p>
+ * 
+ * <p>
+ * Items are handed to the DAO in batches; the next batch is parsed while the previous one is
+ * being applied, and the results of each batch are flushed as soon as it completes.
+ * </p>
+ */
+@Path("/cdmi_bulk/{path:.+}")
+public class BulkResource {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private static final ExecutorService APPLY_POOL =
+            Executors.newCachedThreadPool(new DaemonThreadFactory("cdmi-bulk-"));
+
+    private DataObjectDao dataObjectDao;
+
+    /**
+     * <p>
+     * Injected {@link DataObjectDao} instance.
+     * </p>
+     */
+    public void setDataObjectDao(DataObjectDao dataObjectDao) {
+        this.dataObjectDao = dataObjectDao;
+    }
+
+    private int batchSize = 256;
+
+    /**
+     * <p>
+     * Set the number of items applied together. Default value is 256.
+     * </p>
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * <p>
+     * Apply a stream of bulk operations to the data objects of a container.
+     * </p>
+     * 
+     * @param path
+     *            Path to the container
+     * @param in
+     *            Stream of operations
+     */
+    @POST
+    @Produces(MediaTypes.NDJSON)
+    public Response postBulk(@PathParam("path") final String path, final InputStream in) {
+        System.out.println("Bulk request for container " + path);
+        StreamingOutput output = new StreamingOutput() {
+            public void write(OutputStream out) throws IOException, WebApplicationException {
+                process(path, in, out);
+            }
+        };
+        return Response.ok(output).header("X-CDMI-Specification-Version", "1.0.2").build();
+    }
+
+    // ---------------------------------------------------------- Private Methods
+
+    private void process(final String path, InputStream in, OutputStream out) throws IOException {
+        JsonParser jp = JSON_FACTORY.createJsonParser(in);
+        JsonGenerator g = JSON_FACTORY.createJsonGenerator(out, JsonEncoding.UTF8);
+        g.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        try {
+            Future<List<BulkOperation>> pending = null;
+            while (true) {
+                final List<BulkOperation> batch = new ArrayList<BulkOperation>(batchSize);
+                String error = null;
+                try {
+                    readBatch(jp, batch);
+                } catch (IOException ex) {
+                    // Apply what was read; the error is reported after it
+                    error = "Invalid bulk request: " + ex.getMessage();
+                } catch (BadRequestException ex) {
+                    error = ex.getMessage();
+                }
+                Future<List<BulkOperation>> next = null;
+                if (!batch.isEmpty()) {
+                    next = APPLY_POOL.submit(new Callable<List<BulkOperation>>() {
+                        public List<BulkOperation> call() {
+                            dataObjectDao.applyBatch(path, batch);
+                            return batch;
+                        }
+                    });
+                }
+                if (pending != null) {
+                    writeResults(g, await(pending));
+                }
+                pending = next;
+                if (error != null || batch.size() < batchSize) {
+                    if (pending != null) {
+                        writeResults(g, await(pending));
+                    }
+                    if (error != null) {
+                        g.writeStartObject();
+                        g.writeNumberField("status", 400);
+                        g.writeStringField("message", error);
+                        g.writeEndObject();
+                        g.writeRaw("\n");
+                        g.flush();
+                    }
+                    return;
+                }
+            }
+        } finally {
+            jp.close();
+            g.close();
+        }
+    }
+
+    /**
+     * <p>
+     * Read up to <code>batchSize</code> operations into <code>batch</code>.
+     * </p>
+     */
+    private void readBatch(JsonParser jp, List<BulkOperation> batch) throws IOException {
+        while (batch.size() < batchSize) {
+            JsonToken token = jp.nextToken();
+            if (token == null) {
+                return;
+            }
+            if (token != JsonToken.START_OBJECT) {
+                throw new BadRequestException("Expected a JSON object, found " + token);
+            }
+            batch.add(readOperation(jp));
+        }
+    }
+
+    private BulkOperation readOperation(JsonParser jp) throws IOException {
+        BulkOperation operation = new BulkOperation();
+        DataObject dObj = operation.getDataObject();
+        JsonToken token;
+        while ((token = jp.nextToken()) != JsonToken.END_OBJECT) {
+            if (token == null) {
+                throw new BadRequestException("Unterminated bulk operation");
+            }
+            String key = jp.getCurrentName();
+            token = jp.nextToken();
+            if ("metadata".equals(key) && token == JsonToken.START_OBJECT) {
+                while (jp.nextToken() == JsonToken.FIELD_NAME) {
+                    String name = jp.getCurrentName();
+                    jp.nextToken();
+                    dObj.setMetadata(name, jp.getText());
+                }
+            } else if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+                jp.skipChildren();
+            } else if ("op".equals(key)) {
+                operation.setOp(jp.getText());
+            } else if ("name".equals(key)) {
+                operation.setName(jp.getText());
+            } else if ("value".equals(key)) {
+                dObj.setValue(jp.getText());
+            } else if ("mimetype".equals(key)) {
+                dObj.setMimetype(jp.getText());
+            }
+        }
+        return operation;
+    }
+
+    private List<BulkOperation> await(Future<List<BulkOperation>> pending) throws IOException {
+        try {
+            return pending.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while applying bulk operations");
+        } catch (ExecutionException ex) {
+            ex.getCause().printStackTrace();
+            throw new IOException("Bulk operations failed: " + ex.getCause());
+        }
+    }
+
+    private void writeResults(JsonGenerator g, List<BulkOperation> batch) throws IOException {
+        for (BulkOperation operation : batch) {
+            g.writeStartObject();
+            g.writeStringField("op", operation.getOp());
+            g.writeStringField("name", operation.getName());
+            g.writeNumberField("status", operation.getStatus());
+            if (operation.getMessage() != null) {
+                g.writeStringField("message", operation.getMessage());
+            } else if (operation.getDataObject().getObjectID() != null
+                       && !BulkOperation.DELETE.equals(operation.getOp())) {
+                g.writeStringField("objectID", operation.getDataObject().getObjectID());
+            }
+            g.writeEndObject();
+            g.writeRaw("\n");
+        }
+        g.flush();
+    }
+
+}
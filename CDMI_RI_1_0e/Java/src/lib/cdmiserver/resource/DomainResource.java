@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2010, Sun Microsystems, Inc.
+ * Copyright (c) 2010, The Storage Networking Industry Association.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ * Redistributions of source code must retain the above copyright notice, 
+ * this list of conditions and the following disclaimer.
+ *  
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ *  
+ * Neither the name of The Storage Networking Industry Association (SNIA) nor 
+ * the names of its contributors may be used to endorse or promote products 
+ * derived from this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF 
+ *  THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.snia.cdmiserver.resource;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.GET;
+import javax.ws.rs.PUT;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Response;
+
+import org.snia.cdmiserver.dao.AccountDao;
+import org.snia.cdmiserver.exception.NotFoundException;
+import org.snia.cdmiserver.filter.AdmissionFilter;
+import org.snia.cdmiserver.model.Account;
+import org.snia.cdmiserver.util.MediaTypes;
+
+/**
+ * <p>
+ * Access to domains. A GET on <code>/cdmi_domains/</code> lists the domains as children; a
+ * GET on <code>/cdmi_domains/{name}/</code> returns the domain with its usage in the
+ * <code>cdmi_usage_bytes</code> and <code>cdmi_usage_objects</code> metadata. A PUT creates
+ * or updates a domain; its <code>cdmi_quota_bytes</code> and <code>cdmi_quota_objects</code>
+ * metadata limit the data objects stored in the containers of the domain. The counters of the
+ * {@link AdmissionFilter} are reported with the usage.
+ * </p>
+ */
+@Path("/cdmi_domains")
+public class DomainResource {
+
+    //
+    // Properties and Dependency Injection Methods
+    //
+    private AccountDao accountDao;
+
+    /**
+     * <p>
+     * Injected {@link AccountDao} instance.
+     * </p>
+     */
+    public void setAccountDao(AccountDao accountDao) {
+        this.accountDao = accountDao;
+    }
+
+    private AdmissionFilter admissionFilter;
+
+    /**
+     * <p>
+     * Injected {@link AdmissionFilter} instance, if requests are admitted per domain.
+     * </p>
+     */
+    public void setAdmissionFilter(AdmissionFilter admissionFilter) {
+        this.admissionFilter = admissionFilter;
+    }
+
+    //
+    // Resource Methods
+    //
+    @GET
+    @Produces(MediaTypes.ACCOUNT)
+    public Response getDomains() throws Exception {
+        Account domains = new Account();
+        domains.setObjectType(MediaTypes.ACCOUNT);
+        domains.setObjectURI("/cdmi_domains/");
+        domains.setParentURI("/");
+        for (String name : accountDao.getNames()) {
+            domains.getChildren().add(name + "/");
+        }
+        return Response.ok(domains.toJson()).type(MediaTypes.ACCOUNT).header(
+                "X-CDMI-Specification-Version", "1.0.2").build();
+    }
+
+    /**
+     * <p>
+     * Read a domain.
+     * </p>
+     * 
+     * @param name
+     *            Name of the existing domain
+     */
+    @GET
+    @Path("{name:[^/]+/?}")
+    @Produces(MediaTypes.ACCOUNT)
+    public Response getDomain(@PathParam("name") String name) throws Exception {
+        Account account = accountDao.findByName(trim(name));
+        if (account == null) {
+            throw new NotFoundException("Domain <" + name + "> doesn't exist");
+        }
+        if (admissionFilter != null) {
+            account.getMetadata().putAll(admissionFilter.getMetrics(trim(name)));
+        }
+        return Response.ok(account.toJson()).type(MediaTypes.ACCOUNT).header(
+                "X-CDMI-Specification-Version", "1.0.2").build();
+    }
+
+    /**
+     * <p>
+     * Create or update a domain. The metadata of the request replaces the metadata of an
+     * existing domain; usage is kept.
+     * </p>
+     * 
+     * @param name
+     *            Name of the new or existing domain
+     */
+    @PUT
+    @Path("{name:[^/]+/?}")
+    @Consumes(MediaTypes.ACCOUNT)
+    @Produces(MediaTypes.ACCOUNT)
+    public Response putDomain(@PathParam("name") String name, byte[] bytes) throws Exception {
+        Account request = new Account();
+        request.fromJson(bytes);
+        Account account = accountDao.createByName(trim(name), request);
+        return Response.ok(account.toJson()).type(MediaTypes.ACCOUNT).header(
+                "X-CDMI-Specification-Version", "1.0.2").build();
+    }
+
+    private static String trim(String name) {
+        return name.endsWith("/") ? name.substring(0, name.length() - 1) : name;
+    }
+
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2010, Sun Microsystems, Inc.
+ * Copyright (c) 2010, The Storage Networking Industry Association.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ * Redistributions of source code must retain the above copyright notice, 
+ * this list of conditions and the following disclaimer.
+ *  
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ *  
+ * Neither the name of The Storage Networking Industry Association (SNIA) nor 
+ * the names of its contributors may be used to endorse or promote products 
+ * derived from this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF 
+ *  THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.snia.cdmiserver.resource;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.apache.cxf.continuations.Continuation;
+import org.apache.cxf.jaxrs.ext.MessageContext;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.snia.cdmiserver.dao.filesystem.ChangeJournal;
+import org.snia.cdmiserver.model.Change;
+import org.snia.cdmiserver.util.MediaTypes;
+
+/**
+ * <p>
+ * Change notification feed. A GET on <code>/cdmi_notifications/{prefix}</code> streams the
+ * journaled changes to objects at or below <code>prefix</code> (all objects if empty), one
+ * JSON object per line:
+ * </p>
+ * 
+ * <pre>
+ * { "sequence" : 1234, "operation" : "move", "objectType" : "application/cdmi-object",
+ *   "path" : "a/b.txt", "source" : "a/c.txt", "objectID" : "...", "time" : 1286000000000 }
+ * </pre>
+ * 
+ * <p>
+ * The stream starts at sequence number <code>since</code> and ends with a line
+ * <code>{ "next" : N }</code>; pass N as <code>since</code> to continue. When there are no
+ * new changes, the request waits up to <code>wait</code> seconds for some; where the container
+ * supports CXF continuations the request is suspended rather than holding a thread. At most
+ * <code>limit</code> changes are returned, capped by the configured maximum. If changes after
+ * <code>since</code> have already been discarded, the response is 410 (Gone) and the client
+ * has to re-list the containers it follows.
+ * </p>
+ */
+@Path("/cdmi_notifications")
+public class NotificationResource {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    //
+    // Properties and Dependency Injection Methods
+    //
+    private ChangeJournal changeJournal;
+
+    /**
+     * <p>
+     * Injected {@link ChangeJournal} instance.
+     * </p>
+     */
+    public void setChangeJournal(ChangeJournal changeJournal) {
+        this.changeJournal = changeJournal;
+    }
+
+    private int maxWaitSeconds = 60;
+
+    /**
+     * <p>
+     * Set the longest time in seconds a request may wait for changes. Default value is 60.
+     * </p>
+     */
+    public void setMaxWaitSeconds(int maxWaitSeconds) {
+        this.maxWaitSeconds = maxWaitSeconds;
+    }
+
+    private int maxResults = 10000;
+
+    /**
+     * <p>
+     * Set the largest number of changes a request may ask for. Default value is 10000.
+     * </p>
+     */
+    public void setMaxResults(int maxResults) {
+        this.maxResults = maxResults;
+    }
+
+    //
+    // Resource Methods
+    //
+    @GET
+    @Produces(MediaTypes.NDJSON)
+    public Response getAllChanges(
+            @QueryParam("since") @DefaultValue("0") long since,
+            @QueryParam("limit") @DefaultValue("1000") int limit,
+            @QueryParam("wait") @DefaultValue("0") int wait,
+            @Context MessageContext messageContext) throws Exception {
+        return getChanges("", since, limit, wait, messageContext);
+    }
+
+    @GET
+    @Path("/{path:.+}")
+    @Produces(MediaTypes.NDJSON)
+    public Response getChanges(
+            @PathParam("path") final String path,
+            @QueryParam("since") @DefaultValue("0") final long since,
+            @QueryParam("limit") @DefaultValue("1000") final int limit,
+            @QueryParam("wait") @DefaultValue("0") int wait,
+            @Context MessageContext messageContext) throws Exception {
+        if (since > 0 && since < changeJournal.getOldestSequence()) {
+            return Response.status(Response.Status.GONE).header("X-CDMI-Specification-Version",
+                                                                "1.0.2").build();
+        }
+        int pageSize = Math.max(1, Math.min(limit, maxResults));
+        final List<Change> changes = new ArrayList<Change>();
+        long next = changeJournal.read(since, path, pageSize, changes);
+        int seconds = Math.min(wait, maxWaitSeconds);
+        if (changes.isEmpty() && seconds > 0) {
+            Continuation continuation = ParkedRequest.getContinuation(messageContext);
+            if (continuation == null) {
+                waitForChanges(next, seconds);
+            } else if (continuation.isNew()) {
+                // Park the request; it is invoked again when resumed or timed out. If a
+                // change arrived before it could be parked, read it right away.
+                ParkedRequest parked = new ParkedRequest(continuation);
+                continuation.setObject(parked);
+                changeJournal.awaitChanges(next, parked);
+                if (parked.suspend(seconds * 1000L)) {
+                    return null;
+                }
+            } else if (continuation.getObject() instanceof Runnable) {
+                changeJournal.cancelWait((Runnable) continuation.getObject());
+            }
+            next = changeJournal.read(next, path, pageSize, changes);
+        }
+        final long cursor = next;
+        StreamingOutput output = new StreamingOutput() {
+            public void write(OutputStream out) throws IOException, WebApplicationException {
+                JsonGenerator g = JSON_FACTORY.createJsonGenerator(out, JsonEncoding.UTF8);
+                g.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+                for (Change change : changes) {
+                    g.writeStartObject();
+                    g.writeNumberField("sequence", change.getSequence());
+                    g.writeStringField("operation", change.getOperation());
+                    g.writeStringField("objectType", change.getObjectType());
+                    g.writeStringField("path", change.getPath());
+                    if (change.getSource() != null) {
+                        g.writeStringField("source", change.getSource());
+                    }
+                    if (change.getObjectID() != null) {
+                        g.writeStringField("objectID", change.getObjectID());
+                    }
+                    g.writeNumberField("time", change.getTime());
+                    g.writeEndObject();
+                    g.writeRaw("\n");
+                }
+                g.writeStartObject();
+                g.writeNumberField("next", cursor);
+                g.writeEndObject();
+                g.writeRaw("\n");
+                g.close();
+            }
+        };
+        return Response.ok(output).header("X-CDMI-Specification-Version", "1.0.2").build();
+    }
+
+    /**
+     * <p>
+     * Block the request thread until a change is journaled at or after <code>since</code> or
+     * <code>seconds</code> pass.
+     * </p>
+     */
+    private void waitForChanges(long since, int seconds) throws IOException,
+            InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        Runnable waiter = new Runnable() {
+            public void run() {
+                latch.countDown();
+            }
+        };
+        changeJournal.awaitChanges(since, waiter);
+        try {
+            latch.await(seconds, TimeUnit.SECONDS);
+        } finally {
+            changeJournal.cancelWait(waiter);
+        }
+    }
+
+}
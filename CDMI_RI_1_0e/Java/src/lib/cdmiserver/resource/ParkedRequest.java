@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2010, Sun Microsystems, Inc.
+ * Copyright (c) 2010, The Storage Networking Industry Association.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ * Redistributions of source code must retain the above copyright notice, 
+ * this list of conditions and the following disclaimer.
+ *  
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ *  
+ * Neither the name of The Storage Networking Industry Association (SNIA) nor 
+ * the names of its contributors may be used to endorse or promote products 
+ * derived from this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF 
+ *  THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.snia.cdmiserver.resource;
+
+import org.apache.cxf.continuations.Continuation;
+import org.apache.cxf.continuations.ContinuationProvider;
+import org.apache.cxf.jaxrs.ext.MessageContext;
+
+/**
+ * <p>
+ * Waiter that resumes a suspended request. The continuation is only resumed after it has
+ * been suspended; a waiter run earlier keeps the request from being suspended.
+ * </p>
+ */
+class ParkedRequest implements Runnable {
+
+    private final Continuation continuation;
+
+    private boolean released;
+
+    private boolean suspended;
+
+    ParkedRequest(Continuation continuation) {
+        this.continuation = continuation;
+    }
+
+    /**
+     * <p>
+     * Return the continuation of the current request, or <code>null</code> if the container
+     * does not support them.
+     * </p>
+     */
+    static Continuation getContinuation(MessageContext messageContext) {
+        if (messageContext == null) {
+            return null;
+        }
+        ContinuationProvider provider = (ContinuationProvider) messageContext
+                .get(ContinuationProvider.class.getName());
+        return provider == null ? null : provider.getContinuation();
+    }
+
+    /**
+     * <p>
+     * Suspend the request unless the waiter has already run, and return whether it was
+     * suspended. The continuation may end the invocation by throwing.
+     * </p>
+     */
+    synchronized boolean suspend(long timeout) {
+        if (released) {
+            return false;
+        }
+        suspended = true;
+        continuation.suspend(timeout);
+        return true;
+    }
+
+    public synchronized void run() {
+        released = true;
+        if (suspended) {
+            continuation.resume();
+        }
+    }
+
+}
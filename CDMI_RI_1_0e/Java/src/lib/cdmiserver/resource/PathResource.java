@@ -31,6 +31,8 @@
 package org.snia.cdmiserver.resource;
 
 import java.net.URI;
+import java.util.List;
+
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
 import javax.ws.rs.DefaultValue;
@@ -48,6 +50,7 @@ import javax.ws.rs.core.Response.ResponseBuilder;
 
 import org.snia.cdmiserver.dao.ContainerDao;
 import org.snia.cdmiserver.dao.DataObjectDao;
+import org.snia.cdmiserver.exception.CdmiException;
 import org.snia.cdmiserver.model.Container;
 import org.snia.cdmiserver.model.DataObject;
 import org.snia.cdmiserver.util.MediaTypes;
@@ -97,6 +100,11 @@ public class PathResource {
      * [9.7] Delete a Container Object
      * </p>
      *
+     * <p>
+     * Large containers are deleted in the background and answered with 202 (Accepted); reading
+     * the container meanwhile reports the progress of the delete.
+     * </p>
+     *
      * @param path
      *            Path to the existing object
      */
@@ -106,9 +114,20 @@ public class PathResource {
             @PathParam("path") String path) {
 
         try {
-            containerDao.deleteByPath(path);
+            if (!containerDao.isContainer(path)) {
+                dataObjectDao.deleteByPath(path);
+                return Response.ok().header(
+                        "X-CDMI-Specification-Version", "1.0.2").build();
+            }
+            if (!containerDao.deleteByPath(path)) {
+                // Large container, still being deleted in the background
+                return Response.status(Response.Status.ACCEPTED).header(
+                        "X-CDMI-Specification-Version", "1.0.2").build();
+            }
             return Response.ok().header(
                     "X-CDMI-Specification-Version", "1.0.2").build();
+        } catch (CdmiException ex) {
+            throw ex;
         } catch (Exception ex) {
             System.out.println(ex);
             ex.printStackTrace();
@@ -174,6 +193,8 @@ public class PathResource {
               return Response.ok(respStr).header(
                       "X-CDMI-Specification-Version", "1.0.2").build();
             }
+          } catch (CdmiException ex) {
+              throw ex;
           } catch (Exception ex) {
             System.out.println(ex);
             ex.printStackTrace();
@@ -193,6 +214,8 @@ public class PathResource {
             return Response.ok(respStr).header(
                     "X-CDMI-Specification-Version", "1.0.2").build();
           } // if/else
+        } catch (CdmiException ex) {
+            throw ex;
         } catch (Exception ex) {
           System.out.println(ex);
           ex.printStackTrace();
@@ -270,6 +293,8 @@ public class PathResource {
                     return Response.ok(respStr).header(
                             "X-CDMI-Specification-Version", "1.0.2").build();
                 }
+            } catch (CdmiException ex) {
+                throw ex;
             } catch (Exception ex) {
                 System.out.println(ex);
                 ex.printStackTrace();
@@ -279,6 +304,20 @@ public class PathResource {
         } else {
             // if object, send out the object in it's native form
             try {
+                long[] range = getByteRange(headers);
+                if (range != null) {
+                    // Read just the requested bytes of the value
+                    byte[] bytes = dataObjectDao.readValue(path, range[0], (int) Math.min(
+                            Integer.MAX_VALUE, range[1] - range[0] + 1));
+                    if (bytes.length == 0) {
+                        return Response.status(416).header("Content-Range", "bytes */*")
+                                .build();
+                    }
+                    return Response.status(206).entity(bytes).type("application/octet-stream")
+                            .header("Content-Range", "bytes " + range[0] + "-"
+                                                     + (range[0] + bytes.length - 1) + "/*")
+                            .header("X-CDMI-Specification-Version", "1.0.2").build();
+                }
                 DataObject dObj = dataObjectDao.findByPath(path);
                 if (dObj == null) {
                     return Response.status(Response.Status.NOT_FOUND).build();
@@ -290,6 +329,8 @@ public class PathResource {
                     return Response.ok(respStr).type(dObj.getMimetype()).header(
                             "X-CDMI-Specification-Version", "1.0.2").build();
                 } // if/else
+            } catch (CdmiException ex) {
+                throw ex;
             } catch (Exception ex) {
                 System.out.println(ex);
                 ex.printStackTrace();
@@ -340,12 +381,18 @@ public class PathResource {
                 // build a JSON representation
                 String respStr = container.toJson(false);
                 ResponseBuilder builder = Response.created(new URI(path));
+                if ("Processing".equals(container.getCompletionStatus())) {
+                    // Copy still running in the background
+                    builder.status(Response.Status.ACCEPTED);
+                }
                 builder.header("X-CDMI-Specification-Version", "1.0.2");
                 //ResponseBuilder builder = Response.status(Response.Status.CREATED);
                 return builder.entity(respStr).build();
                 /* return Response.created(respStr).header(
                         "X-CDMI-Specification-Version", "1.0.2").build(); */
             } // if/else
+        } catch (CdmiException ex) {
+            throw ex;
         } catch (Exception ex) {
             System.out.println(ex);
             ex.printStackTrace();
@@ -392,7 +439,9 @@ public class PathResource {
                 dObj.setObjectType("application/cdmi-object");
                 // parse json
                 dObj.fromJson(bytes, false);
-                if (dObj.getValue() == null) {
+                if (dObj.getValue() == null
+                    && dObj.getCopy() == null
+                    && dObj.getMove() == null) {
                     dObj.setValue("== N/A ==");
                 }
                 dObj = dataObjectDao.createByPath(path, dObj);
@@ -401,8 +450,12 @@ public class PathResource {
                 return Response.ok(respStr).header(
                         "X-CDMI-Specification-Version", "1.0.2").build();
             }
-            dObj.fromJson(bytes,false);
+            DataObject request = new DataObject();
+            request.fromJson(bytes, false);
+            dataObjectDao.updateByPath(path, request);
             return Response.ok().build();
+        } catch (CdmiException ex) {
+            throw ex;
         } catch (Exception ex) {
             System.out.println(ex);
             ex.printStackTrace();
@@ -478,6 +531,8 @@ public class PathResource {
                         dObj.getObjectType()).build();
             }
             return Response.ok().build();
+        } catch (CdmiException ex) {
+            throw ex;
         } catch (Exception ex) {
             System.out.println(ex);
             ex.printStackTrace();
@@ -497,4 +552,34 @@ public class PathResource {
      *         creating a data object with a non-CDMI Content Type)
      */
 
+    /**
+     * <p>
+     * Return the first and last byte offsets of a <code>Range: bytes=first-[last]</code>
+     * request header, or <code>null</code> if there is none or it is not of that form (suffix
+     * and multiple ranges are answered with the whole value).
+     * </p>
+     */
+    private long[] getByteRange(HttpHeaders headers) {
+        List<String> values = headers.getRequestHeader("Range");
+        if (values == null || values.size() != 1) {
+            return null;
+        }
+        String value = values.get(0).trim();
+        if (!value.startsWith("bytes=") || value.indexOf(',') >= 0) {
+            return null;
+        }
+        int dash = value.indexOf('-');
+        try {
+            long first = Long.parseLong(value.substring("bytes=".length(), dash).trim());
+            String last = value.substring(dash + 1).trim();
+            long[] range = { first, Long.MAX_VALUE - 1 };
+            if (last.length() > 0) {
+                range[1] = Long.parseLong(last);
+            }
+            return range[1] < range[0] ? null : range;
+        } catch (RuntimeException ex) {
+            return null;
+        }
+    }
+
 }
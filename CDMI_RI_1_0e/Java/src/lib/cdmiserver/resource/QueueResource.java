@@ -0,0 +1,421 @@
+/*
+ * Copyright (c) 2010, Sun Microsystems, Inc.
+ * Copyright (c) 2010, The Storage Networking Industry Association.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ * Redistributions of source code must retain the above copyright notice, 
+ * this list of conditions and the following disclaimer.
+ *  
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ *  
+ * Neither the name of The Storage Networking Industry Association (SNIA) nor 
+ * the names of its contributors may be used to endorse or promote products 
+ * derived from this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF 
+ *  THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.snia.cdmiserver.resource;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.DELETE;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.PUT;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.UriInfo;
+
+import org.apache.cxf.continuations.Continuation;
+import org.apache.cxf.jaxrs.ext.MessageContext;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.snia.cdmiserver.dao.QueueDao;
+import org.snia.cdmiserver.dao.filesystem.MetadataIndex;
+import org.snia.cdmiserver.exception.BadRequestException;
+import org.snia.cdmiserver.exception.NotFoundException;
+import org.snia.cdmiserver.model.Queue;
+import org.snia.cdmiserver.util.MediaTypes;
+
+/**
+ * <p>
+ * Access to queue objects by path. Queues live in the container namespace, but are addressed
+ * under <code>/cdmi_queues/</code> so that requests are not routed to {@link PathResource}.
+ * </p>
+ * 
+ * <p>
+ * Values are read and acknowledged by range from the head of the queue: a GET with the query
+ * <code>?value:0-9</code> returns (without removing) the ten oldest values, and a DELETE with
+ * the same query removes them.
+ * </p>
+ */
+@Path("/cdmi_queues/{path:.+}")
+public class QueueResource {
+
+    private static final String QUERY_QUEUE = "cdmi_query_queue";
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    //
+    // Properties and Dependency Injection Methods
+    //
+    private QueueDao queueDao;
+
+    /**
+     * <p>
+     * Injected {@link QueueDao} instance.
+     * </p>
+     */
+    public void setQueueDao(QueueDao queueDao) {
+        this.queueDao = queueDao;
+    }
+
+    private MetadataIndex metadataIndex;
+
+    /**
+     * <p>
+     * Injected {@link MetadataIndex} answering query queues. Without one, query queues hold
+     * their queries like any other values.
+     * </p>
+     */
+    public void setMetadataIndex(MetadataIndex metadataIndex) {
+        this.metadataIndex = metadataIndex;
+    }
+
+    private int maxQueryResults = 10000;
+
+    /**
+     * <p>
+     * Set the largest number of results enqueued for one query. Default value is 10000.
+     * </p>
+     */
+    public void setMaxQueryResults(int maxQueryResults) {
+        this.maxQueryResults = maxQueryResults;
+    }
+
+    private int maxWaitSeconds = 60;
+
+    /**
+     * <p>
+     * Set the longest time in seconds a read may wait for values. Default value is 60.
+     * </p>
+     */
+    public void setMaxWaitSeconds(int maxWaitSeconds) {
+        this.maxWaitSeconds = maxWaitSeconds;
+    }
+
+    //
+    // Resource Methods
+    //
+    /**
+     * <p>
+     * [10.2] Create a Queue Object and [10.6] Update a Queue Object. Values in the request are
+     * enqueued.
+     * </p>
+     * 
+     * @param path
+     *            Path to the new or existing queue
+     */
+    @PUT
+    @Consumes(MediaTypes.QUEUE)
+    @Produces(MediaTypes.QUEUE)
+    public Response putQueue(@PathParam("path") String path, byte[] bytes) throws Exception {
+        Queue queueRequest = new Queue();
+        queueRequest.fromJson(bytes, false);
+        List<String> values = new ArrayList<String>(queueRequest.getValues());
+        Queue queue = queueDao.createByPath(path, queueRequest);
+        if (!values.isEmpty()) {
+            queue.setQueueValues(queueDao.enqueue(path, runQueries(path, queue, values)));
+        }
+        return Response.ok(queue.toJson()).header("X-CDMI-Specification-Version", "1.0.2")
+                .build();
+    }
+
+    /**
+     * <p>
+     * [10.5] Enqueue values. The body holds a <code>value</code> field with a single value or
+     * an array of values.
+     * </p>
+     * 
+     * @param path
+     *            Path to the existing queue
+     */
+    @POST
+    @Consumes(MediaTypes.QUEUE)
+    public Response enqueue(@PathParam("path") String path, byte[] bytes) throws Exception {
+        Queue queueRequest = new Queue();
+        queueRequest.fromJson(bytes, false);
+        Queue queue = queueDao.findByPath(path);
+        if (queue == null) {
+            throw new NotFoundException("Queue <" + path + "> doesn't exist");
+        }
+        queueDao.enqueue(path, runQueries(path, queue, queueRequest.getValues()));
+        return Response.noContent().header("X-CDMI-Specification-Version", "1.0.2").build();
+    }
+
+    /**
+     * <p>
+     * [10.4] Read a Queue Object, with the values in the requested range, if any.
+     * </p>
+     * 
+     * <p>
+     * With a <code>wait:N</code> query term (for example <code>?value:0-99;wait:30</code>), a
+     * read that finds no values waits up to N seconds for some to be enqueued. Where the
+     * container supports CXF continuations the request is suspended rather than holding a
+     * thread; otherwise the request thread waits.
+     * </p>
+     * 
+     * @param path
+     *            Path to the existing queue
+     */
+    @GET
+    @Produces(MediaTypes.QUEUE)
+    public Response getQueue(
+            @PathParam("path") String path,
+            @Context UriInfo uriInfo,
+            @Context MessageContext messageContext) throws Exception {
+        Queue queue = queueDao.findByPath(path);
+        if (queue == null) {
+            throw new NotFoundException("Queue <" + path + "> doesn't exist");
+        }
+        int[] range = getValueRange(uriInfo);
+        if (range != null) {
+            List<String> values = queueDao.dequeue(path, range[0], range[1]);
+            int wait = Math.min(getWaitSeconds(uriInfo), maxWaitSeconds);
+            if (values.isEmpty() && wait > 0) {
+                Continuation continuation = ParkedRequest.getContinuation(messageContext);
+                if (continuation == null) {
+                    waitForValues(path, wait);
+                } else if (continuation.isNew()) {
+                    // Park the request; it is invoked again when resumed or timed out. If
+                    // values arrived before it could be parked, read them right away.
+                    ParkedRequest parked = new ParkedRequest(continuation);
+                    continuation.setObject(parked);
+                    queueDao.awaitValues(path, parked);
+                    if (parked.suspend(wait * 1000L)) {
+                        return null;
+                    }
+                } else if (continuation.getObject() instanceof Runnable) {
+                    queueDao.cancelWait(path, (Runnable) continuation.getObject());
+                }
+                values = queueDao.dequeue(path, range[0], range[1]);
+                queue = queueDao.findByPath(path);
+                if (queue == null) {
+                    throw new NotFoundException("Queue <" + path + "> doesn't exist");
+                }
+            }
+            queue.getValues().addAll(values);
+            queue.setValuerange(values.isEmpty() ? "" : range[0]
+                                                         + "-"
+                                                         + (range[0] + values.size() - 1));
+        }
+        return Response.ok(queue.toJson()).header("X-CDMI-Specification-Version", "1.0.2")
+                .build();
+    }
+
+    /**
+     * <p>
+     * [10.7] Delete a Queue Object, or, with a value range starting at 0, acknowledge (remove)
+     * that many values from the head of the queue.
+     * </p>
+     * 
+     * @param path
+     *            Path to the existing queue
+     */
+    @DELETE
+    public Response deleteQueue(@PathParam("path") String path, @Context UriInfo uriInfo) {
+        int[] range = getValueRange(uriInfo);
+        if (range == null) {
+            queueDao.deleteByPath(path);
+        } else {
+            if (range[0] != 0) {
+                throw new BadRequestException("Values can only be removed from the head of a queue");
+            }
+            queueDao.acknowledge(path, range[1]);
+        }
+        return Response.noContent().header("X-CDMI-Specification-Version", "1.0.2").build();
+    }
+
+    // --------------------------------------------------------- Private Methods
+
+    /**
+     * <p>
+     * If the queue is a query queue (metadata <code>cdmi_queue_type</code> is
+     * <code>cdmi_query_queue</code>), treat each value as a CDMI query and return the paths of
+     * the matching objects in the queue's container instead; otherwise return the values
+     * unchanged. Queries select objects with the metadata conditions of their
+     * <code>cdmi_scope</code>, such as
+     * <code>{ "cdmi_scope" : [ { "metadata" : { "color" : "== red" } } ] }</code>.
+     * </p>
+     */
+    private List<String> runQueries(String path, Queue queue, List<String> values)
+            throws IOException {
+        if (metadataIndex == null
+            || !QUERY_QUEUE.equals(queue.getMetadata().get("cdmi_queue_type"))) {
+            return values;
+        }
+        int slash = path.lastIndexOf('/');
+        String scope = slash < 0 ? "" : path.substring(0, slash);
+        List<String> results = new ArrayList<String>();
+        for (String value : values) {
+            results.addAll(metadataIndex.query(scope, parseQuery(value), maxQueryResults));
+        }
+        return results;
+    }
+
+    /**
+     * <p>
+     * Collect the metadata conditions of the <code>cdmi_scope</code> of a query.
+     * </p>
+     */
+    private static Map<String, String> parseQuery(String query) throws IOException {
+        Map<String, String> conditions = new HashMap<String, String>();
+        JsonParser jp = JSON_FACTORY.createJsonParser(query);
+        try {
+            if (jp.nextToken() != JsonToken.START_OBJECT) {
+                throw new BadRequestException("A query must be a JSON object");
+            }
+            while (jp.nextToken() == JsonToken.FIELD_NAME) {
+                String key = jp.getCurrentName();
+                JsonToken token = jp.nextToken();
+                if ("cdmi_scope".equals(key)) {
+                    parseScope(jp, token, conditions);
+                } else {
+                    jp.skipChildren();
+                }
+            }
+        } catch (JsonParseException ex) {
+            throw new BadRequestException("Invalid query: " + ex.getMessage());
+        } finally {
+            jp.close();
+        }
+        return conditions;
+    }
+
+    private static void parseScope(JsonParser jp, JsonToken token, Map<String, String> conditions)
+            throws IOException {
+        if (token == JsonToken.START_ARRAY) {
+            while ((token = jp.nextToken()) != JsonToken.END_ARRAY) {
+                parseScope(jp, token, conditions);
+            }
+        } else if (token == JsonToken.START_OBJECT) {
+            while (jp.nextToken() == JsonToken.FIELD_NAME) {
+                String key = jp.getCurrentName();
+                token = jp.nextToken();
+                if ("metadata".equals(key) && token == JsonToken.START_OBJECT) {
+                    while (jp.nextToken() == JsonToken.FIELD_NAME) {
+                        String name = jp.getCurrentName();
+                        jp.nextToken();
+                        conditions.put(name, jp.getText());
+                    }
+                } else {
+                    jp.skipChildren();
+                }
+            }
+        } else {
+            throw new BadRequestException("Invalid cdmi_scope in query");
+        }
+    }
+
+    /**
+     * <p>
+     * Block the request thread until the queue holds values or <code>seconds</code> pass.
+     * </p>
+     */
+    private void waitForValues(String path, int seconds) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        Runnable waiter = new Runnable() {
+            public void run() {
+                latch.countDown();
+            }
+        };
+        queueDao.awaitValues(path, waiter);
+        try {
+            latch.await(seconds, TimeUnit.SECONDS);
+        } finally {
+            queueDao.cancelWait(path, waiter);
+        }
+    }
+
+    /**
+     * <p>
+     * Return the number of seconds of the <code>wait:N</code> term of the query string, or 0
+     * if there is none.
+     * </p>
+     */
+    static int getWaitSeconds(UriInfo uriInfo) {
+        String query = uriInfo.getRequestUri().getRawQuery();
+        if (query == null) {
+            return 0;
+        }
+        for (String term : query.split("[;&]")) {
+            if (term.startsWith("wait:")) {
+                try {
+                    return Math.max(0, Integer.parseInt(term.substring("wait:".length())));
+                } catch (NumberFormatException ex) {
+                    throw new BadRequestException("Invalid wait <" + term + ">");
+                }
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * <p>
+     * Return the offset and count of the <code>value:first-last</code> (or
+     * <code>value:first</code>) term of the query string, or <code>null</code> if there is
+     * none.
+     * </p>
+     */
+    static int[] getValueRange(UriInfo uriInfo) {
+        String query = uriInfo.getRequestUri().getRawQuery();
+        if (query == null) {
+            return null;
+        }
+        for (String term : query.split("[;&]")) {
+            if (term.startsWith("value:")) {
+                String range = term.substring("value:".length());
+                try {
+                    int dash = range.indexOf('-');
+                    int first = Integer.parseInt(dash < 0 ? range : range.substring(0, dash));
+                    int last = dash < 0 ? first : Integer.parseInt(range.substring(dash + 1));
+                    if (first < 0 || last < first) {
+                        throw new BadRequestException("Invalid value range <" + range + ">");
+                    }
+                    return new int[] { first, last - first + 1 };
+                } catch (NumberFormatException ex) {
+                    throw new BadRequestException("Invalid value range <" + range + ">");
+                }
+            }
+        }
+        return null;
+    }
+
+}
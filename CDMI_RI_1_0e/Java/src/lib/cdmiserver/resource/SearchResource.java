@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2010, Sun Microsystems, Inc.
+ * Copyright (c) 2010, The Storage Networking Industry Association.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ * Redistributions of source code must retain the above copyright notice, 
+ * this list of conditions and the following disclaimer.
+ *  
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ *  
+ * Neither the name of The Storage Networking Industry Association (SNIA) nor 
+ * the names of its contributors may be used to endorse or promote products 
+ * derived from this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF 
+ *  THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.snia.cdmiserver.resource;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.snia.cdmiserver.dao.filesystem.SearchIndex;
+import org.snia.cdmiserver.util.MediaTypes;
+
+/**
+ * <p>
+ * Name and metadata search. A GET on <code>/cdmi_search/{scope}?q=text</code> streams the
+ * objects at or below <code>scope</code> (all objects if empty) whose name contains
+ * <code>text</code>, one JSON object per line:
+ * </p>
+ * 
+ * <pre>
+ * { "path" : "a/report-2010.txt", "objectType" : "application/cdmi-object" }
+ * </pre>
+ * 
+ * <p>
+ * <code>field</code> searches an indexed metadata value instead of the name, and
+ * <code>match=prefix</code> matches only at the start. Results come in path order, at most
+ * <code>limit</code> at a time; when there may be more, the stream ends with a line
+ * <code>{ "next" : "path" }</code> to pass as <code>after</code> for the next page.
+ * </p>
+ */
+@Path("/cdmi_search")
+public class SearchResource {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    //
+    // Properties and Dependency Injection Methods
+    //
+    private SearchIndex searchIndex;
+
+    /**
+     * <p>
+     * Injected {@link SearchIndex} instance.
+     * </p>
+     */
+    public void setSearchIndex(SearchIndex searchIndex) {
+        this.searchIndex = searchIndex;
+    }
+
+    private int maxResults = 10000;
+
+    /**
+     * <p>
+     * Set the largest page a request may ask for. Default value is 10000.
+     * </p>
+     */
+    public void setMaxResults(int maxResults) {
+        this.maxResults = maxResults;
+    }
+
+    //
+    // Resource Methods
+    //
+    @GET
+    @Produces(MediaTypes.NDJSON)
+    public Response searchAll(
+            @QueryParam("q") String text,
+            @QueryParam("field") @DefaultValue(SearchIndex.NAME) String field,
+            @QueryParam("match") @DefaultValue("contains") String match,
+            @QueryParam("after") String after,
+            @QueryParam("limit") @DefaultValue("1000") int limit) throws Exception {
+        return search("", text, field, match, after, limit);
+    }
+
+    @GET
+    @Path("/{path:.+}")
+    @Produces(MediaTypes.NDJSON)
+    public Response search(
+            @PathParam("path") String path,
+            @QueryParam("q") String text,
+            @QueryParam("field") @DefaultValue(SearchIndex.NAME) String field,
+            @QueryParam("match") @DefaultValue("contains") String match,
+            @QueryParam("after") String after,
+            @QueryParam("limit") @DefaultValue("1000") int limit) throws Exception {
+        final int pageSize = Math.max(1, Math.min(limit, maxResults));
+        final List<String> paths =
+                searchIndex.search(field, text, "prefix".equals(match), path, after, pageSize);
+        StreamingOutput output = new StreamingOutput() {
+            public void write(OutputStream out) throws IOException, WebApplicationException {
+                JsonGenerator g = JSON_FACTORY.createJsonGenerator(out, JsonEncoding.UTF8);
+                g.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+                for (String found : paths) {
+                    g.writeStartObject();
+                    g.writeStringField("path", found);
+                    String objectType = searchIndex.getObjectType(found);
+                    if (objectType != null) {
+                        g.writeStringField("objectType", objectType);
+                    }
+                    g.writeEndObject();
+                    g.writeRaw("\n");
+                }
+                if (paths.size() == pageSize) {
+                    g.writeStartObject();
+                    g.writeStringField("next", paths.get(paths.size() - 1));
+                    g.writeEndObject();
+                    g.writeRaw("\n");
+                }
+                g.close();
+            }
+        };
+        return Response.ok(output).header("X-CDMI-Specification-Version", "1.0.2").build();
+    }
+
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2010, Sun Microsystems, Inc.
+ * Copyright (c) 2010, The Storage Networking Industry Association.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ * Redistributions of source code must retain the above copyright notice, 
+ * this list of conditions and the following disclaimer.
+ *  
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ *  
+ * Neither the name of The Storage Networking Industry Association (SNIA) nor 
+ * the names of its contributors may be used to endorse or promote products 
+ * derived from this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF 
+ *  THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.snia.cdmiserver.resource;
+
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.util.Map;
+import java.util.SortedMap;
+
+import javax.ws.rs.DELETE;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.PUT;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Response;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.snia.cdmiserver.dao.DataObjectDao;
+import org.snia.cdmiserver.dao.filesystem.UploadStore;
+import org.snia.cdmiserver.exception.BadRequestException;
+import org.snia.cdmiserver.model.DataObject;
+
+/**
+ * <p>
+ * Multipart uploads of the values of data objects, for values too large for one request
+ * body. The value is sent in numbered parts, in parallel over as many connections as the
+ * client likes, and becomes the value of the data object when the upload is completed:
+ * </p>
+ * 
+ * <ul>
+ * <li>A POST on <code>/cdmi_uploads/{path}</code> starts an upload. The optional body is a
+ * <code>application/cdmi-object</code> document without a value; its mimetype and metadata
+ * are applied on completion. The response is <code>{ "uploadID" : "..." }</code>.</li>
+ * <li>A PUT on <code>/cdmi_uploads/{path}?uploadID=ID&amp;part=N</code> stores part N, from
+ * 1, replacing any earlier copy of it.</li>
+ * <li>A GET with <code>?uploadID=ID</code> lists the parts received so far.</li>
+ * <li>A POST with <code>?uploadID=ID</code> concatenates parts 1 to N into the value of the
+ * data object at <code>path</code>, creating the object if needed, and returns it.</li>
+ * <li>A DELETE with <code>?uploadID=ID</code> aborts the upload.</li>
+ * </ul>
+ */
+@Path("/cdmi_uploads/{path:.+}")
+public class UploadResource {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    //
+    // Properties and Dependency Injection Methods
+    //
+    private UploadStore uploadStore;
+
+    /**
+     * <p>
+     * Injected {@link UploadStore} instance.
+     * </p>
+     */
+    public void setUploadStore(UploadStore uploadStore) {
+        this.uploadStore = uploadStore;
+    }
+
+    private DataObjectDao dataObjectDao;
+
+    /**
+     * <p>
+     * Injected {@link DataObjectDao} instance, which publishes completed uploads.
+     * </p>
+     */
+    public void setDataObjectDao(DataObjectDao dataObjectDao) {
+        this.dataObjectDao = dataObjectDao;
+    }
+
+    //
+    // Resource Methods
+    //
+    @POST
+    public Response beginOrComplete(
+            @PathParam("path") String path,
+            @QueryParam("uploadID") String uploadID,
+            byte[] bytes) throws Exception {
+        if (uploadID != null) {
+            DataObject dObj = dataObjectDao.completeUpload(path, uploadID);
+            return Response.ok(dObj.toJson()).type("application/cdmi-object").header(
+                    "X-CDMI-Specification-Version", "1.0.2").build();
+        }
+        DataObject request = new DataObject();
+        if (bytes != null && bytes.length > 0) {
+            request.fromJson(bytes, false);
+        }
+        uploadID = uploadStore.begin(path, request);
+        StringWriter out = new StringWriter();
+        JsonGenerator g = JSON_FACTORY.createJsonGenerator(out);
+        g.writeStartObject();
+        g.writeStringField("uploadID", uploadID);
+        g.writeEndObject();
+        g.close();
+        return Response.status(Response.Status.CREATED).entity(out.toString()).type(
+                "application/json").header("X-CDMI-Specification-Version", "1.0.2").build();
+    }
+
+    @PUT
+    public Response putPart(
+            @PathParam("path") String path,
+            @QueryParam("uploadID") String uploadID,
+            @QueryParam("part") Integer part,
+            InputStream in) throws Exception {
+        if (uploadID == null || part == null) {
+            throw new BadRequestException("A part needs both uploadID and part parameters");
+        }
+        long size = uploadStore.writePart(path, uploadID, part.intValue(), in);
+        StringWriter out = new StringWriter();
+        JsonGenerator g = JSON_FACTORY.createJsonGenerator(out);
+        g.writeStartObject();
+        g.writeNumberField("part", part.intValue());
+        g.writeNumberField("size", size);
+        g.writeEndObject();
+        g.close();
+        return Response.ok(out.toString()).type("application/json").header(
+                "X-CDMI-Specification-Version", "1.0.2").build();
+    }
+
+    @GET
+    public Response getParts(
+            @PathParam("path") String path,
+            @QueryParam("uploadID") String uploadID) throws Exception {
+        SortedMap<Integer, Long> parts = uploadStore.listParts(path, uploadID);
+        StringWriter out = new StringWriter();
+        JsonGenerator g = JSON_FACTORY.createJsonGenerator(out);
+        g.useDefaultPrettyPrinter();
+        g.writeStartObject();
+        g.writeStringField("uploadID", uploadID);
+        g.writeArrayFieldStart("parts");
+        for (Map.Entry<Integer, Long> entry : parts.entrySet()) {
+            g.writeStartObject();
+            g.writeNumberField("part", entry.getKey().intValue());
+            g.writeNumberField("size", entry.getValue().longValue());
+            g.writeEndObject();
+        }
+        g.writeEndArray();
+        g.writeEndObject();
+        g.close();
+        return Response.ok(out.toString()).type("application/json").header(
+                "X-CDMI-Specification-Version", "1.0.2").build();
+    }
+
+    @DELETE
+    public Response abort(
+            @PathParam("path") String path,
+            @QueryParam("uploadID") String uploadID) throws Exception {
+        uploadStore.abort(path, uploadID);
+        return Response.ok().header("X-CDMI-Specification-Version", "1.0.2").build();
+    }
+
+}
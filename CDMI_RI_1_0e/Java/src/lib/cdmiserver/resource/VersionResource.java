@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2010, Sun Microsystems, Inc.
+ * Copyright (c) 2010, The Storage Networking Industry Association.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ * Redistributions of source code must retain the above copyright notice, 
+ * this list of conditions and the following disclaimer.
+ *  
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ *  
+ * Neither the name of The Storage Networking Industry Association (SNIA) nor 
+ * the names of its contributors may be used to endorse or promote products 
+ * derived from this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF 
+ *  THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.snia.cdmiserver.resource;
+
+import java.io.StringWriter;
+import java.util.List;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Response;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.snia.cdmiserver.dao.filesystem.VersionStore;
+import org.snia.cdmiserver.exception.NotFoundException;
+
+/**
+ * <p>
+ * Access to the previous versions of data objects in versioned containers. A GET on
+ * <code>/cdmi_versions/{path}</code> lists the retained versions of the data object at
+ * <code>path</code>, oldest first:
+ * </p>
+ * 
+ * <pre>
+ * { "versions" : [ { "version" : 1, "size" : 1024, "mimetype" : "text/plain",
+ *                    "time" : "2010-10-01T12:00:00" }, ... ] }
+ * </pre>
+ * 
+ * <p>
+ * A GET with <code>?version=N</code> returns the value of version N, with its mimetype as
+ * the content type.
+ * </p>
+ */
+@Path("/cdmi_versions/{path:.+}")
+public class VersionResource {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    //
+    // Properties and Dependency Injection Methods
+    //
+    private VersionStore versionStore;
+
+    /**
+     * <p>
+     * Injected {@link VersionStore} instance.
+     * </p>
+     */
+    public void setVersionStore(VersionStore versionStore) {
+        this.versionStore = versionStore;
+    }
+
+    //
+    // Resource Methods
+    //
+    @GET
+    public Response getVersions(
+            @PathParam("path") String path,
+            @QueryParam("version") Long number) throws Exception {
+        if (number != null) {
+            VersionStore.Version version = versionStore.read(path, number.longValue());
+            String mimetype = version.getMimetype() != null
+                ? version.getMimetype()
+                : "application/octet-stream";
+            return Response.ok(version.getValue()).type(mimetype).header(
+                    "X-CDMI-Specification-Version", "1.0.2").build();
+        }
+
+        List<VersionStore.Version> versions = versionStore.list(path);
+        if (versions.isEmpty()) {
+            throw new NotFoundException("Object <" + path + "> has no versions");
+        }
+        StringWriter out = new StringWriter();
+        JsonGenerator g = JSON_FACTORY.createJsonGenerator(out);
+        g.useDefaultPrettyPrinter();
+        g.writeStartObject();
+        g.writeArrayFieldStart("versions");
+        for (VersionStore.Version version : versions) {
+            g.writeStartObject();
+            g.writeNumberField("version", version.getNumber());
+            g.writeNumberField("size", version.getSize());
+            if (version.getMimetype() != null) {
+                g.writeStringField("mimetype", version.getMimetype());
+            }
+            if (version.getTime() != null) {
+                g.writeStringField("time", version.getTime());
+            }
+            g.writeEndObject();
+        }
+        g.writeEndArray();
+        g.writeEndObject();
+        g.close();
+        return Response.ok(out.toString()).type("application/json").header(
+                "X-CDMI-Specification-Version", "1.0.2").build();
+    }
+
+}
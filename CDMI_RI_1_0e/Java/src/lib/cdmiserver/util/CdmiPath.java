@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2010, Sun Microsystems, Inc.
+ * Copyright (c) 2010, The Storage Networking Industry Association.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ * Redistributions of source code must retain the above copyright notice, 
+ * this list of conditions and the following disclaimer.
+ *  
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ *  
+ * Neither the name of The Storage Networking Industry Association (SNIA) nor 
+ * the names of its contributors may be used to endorse or promote products 
+ * derived from this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF 
+ *  THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.snia.cdmiserver.util;
+
+import java.io.File;
+
+import org.snia.cdmiserver.exception.BadRequestException;
+
+/**
+ * <p>
+ * A parsed CDMI path, relative to the root container: no leading, trailing or repeated
+ * slashes, and the empty string for the root container itself. Parsing rejects
+ * <code>.</code> and <code>..</code> segments, so a path never leads out of the directory
+ * it is resolved against. Instances are immutable; the name and parent are found once, by
+ * the position of the last slash.
+ * </p>
+ */
+public final class CdmiPath {
+
+    /**
+     * <p>
+     * The root container.
+     * </p>
+     */
+    public static final CdmiPath ROOT = new CdmiPath("", 0);
+
+    private final String path;
+
+    // Start of the last segment; 0 for top level names and the root
+    private final int nameStart;
+
+    private CdmiPath(String path, int nameStart) {
+        this.path = path;
+        this.nameStart = nameStart;
+    }
+
+    /**
+     * <p>
+     * Parse and validate a path. A <code>null</code> or empty path is the root container.
+     * </p>
+     * 
+     * @exception BadRequestException
+     *                if a segment is <code>.</code> or <code>..</code>, or holds a NUL
+     */
+    public static CdmiPath parse(String path) {
+        if (path == null) {
+            return ROOT;
+        }
+        int length = path.length();
+        StringBuilder normalized = null; // Only needed if there are slashes to drop
+        int segments = 0;
+        int lastEnd = 0;
+        int nameStart = 0;
+        int start = 0;
+        while (start < length) {
+            if (path.charAt(start) == '/') {
+                start++;
+                continue;
+            }
+            int end = start;
+            while (end < length && path.charAt(end) != '/') {
+                if (path.charAt(end) == '\0') {
+                    throw new BadRequestException("Invalid path <" + path + ">");
+                }
+                end++;
+            }
+            if (path.charAt(start) == '.'
+                && (end - start == 1 || (end - start == 2 && path.charAt(start + 1) == '.'))) {
+                throw new BadRequestException("Invalid path <" + path + ">");
+            }
+            if (normalized == null && start != (segments == 0 ? 0 : lastEnd + 1)) {
+                normalized = new StringBuilder(length);
+                normalized.append(path, 0, lastEnd);
+            }
+            if (normalized == null) {
+                nameStart = start;
+            } else {
+                if (normalized.length() > 0) {
+                    normalized.append('/');
+                }
+                nameStart = normalized.length();
+                normalized.append(path, start, end);
+            }
+            segments++;
+            lastEnd = end;
+            start = end;
+        }
+        if (segments == 0) {
+            return ROOT;
+        }
+        if (normalized != null) {
+            return new CdmiPath(normalized.toString(), nameStart);
+        }
+        return new CdmiPath(lastEnd == length ? path : path.substring(0, lastEnd), nameStart);
+    }
+
+    /**
+     * <p>
+     * Return <code>true</code> for the root container.
+     * </p>
+     */
+    public boolean isRoot() {
+        return path.length() == 0;
+    }
+
+    /**
+     * <p>
+     * Return the last segment, or the empty string for the root container.
+     * </p>
+     */
+    public String getName() {
+        return path.substring(nameStart);
+    }
+
+    /**
+     * <p>
+     * Return the path of the parent container; the root container is its own parent.
+     * </p>
+     */
+    public CdmiPath getParent() {
+        if (nameStart == 0) {
+            return ROOT;
+        }
+        String parent = path.substring(0, nameStart - 1);
+        return new CdmiPath(parent, parent.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * <p>
+     * Return the parent URI as reported in CDMI responses: <code>/</code> for top level names,
+     * <code>/a/b/</code> for <code>a/b/name</code>.
+     * </p>
+     */
+    public String getParentURI() {
+        return nameStart == 0 ? "/" : "/" + path.substring(0, nameStart);
+    }
+
+    /**
+     * <p>
+     * Return <code>true</code> if one of the segments is <code>segment</code>.
+     * </p>
+     */
+    public boolean hasSegment(String segment) {
+        int index = path.indexOf(segment);
+        while (index >= 0) {
+            int end = index + segment.length();
+            if ((index == 0 || path.charAt(index - 1) == '/')
+                && (end == path.length() || path.charAt(end) == '/')) {
+                return true;
+            }
+            index = path.indexOf(segment, end);
+        }
+        return false;
+    }
+
+    /**
+     * <p>
+     * Return the file or directory of this path below <code>base</code>.
+     * </p>
+     */
+    public File toFile(File base) {
+        return isRoot() ? base : new File(base, path);
+    }
+
+    /**
+     * <p>
+     * Return the directory of the parent container below <code>base</code>.
+     * </p>
+     */
+    public File getParentFile(File base) {
+        return nameStart == 0 ? base : new File(base, path.substring(0, nameStart - 1));
+    }
+
+    /**
+     * <p>
+     * Return the "." file next to this path holding its JSON-encoded fields.
+     * </p>
+     */
+    public File getFieldsFile(File base) {
+        return new File(getParentFile(base), "." + getName());
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof CdmiPath && path.equals(((CdmiPath) other).path);
+    }
+
+    @Override
+    public int hashCode() {
+        return path.hashCode();
+    }
+
+    /**
+     * <p>
+     * Return the normalized path.
+     * </p>
+     */
+    @Override
+    public String toString() {
+        return path;
+    }
+
+}
@@ -59,6 +59,8 @@ public class MediaTypes {
 
     public static final String JSON = "text/json";
 
+    public static final String NDJSON = "application/x-ndjson";
+
     public static final String QUEUE = "application/cdmi-queue";
 
 }
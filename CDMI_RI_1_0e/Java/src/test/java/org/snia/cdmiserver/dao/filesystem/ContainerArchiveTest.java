@@ -0,0 +1,272 @@
+/*
+ * Copyright (c) 2010, Sun Microsystems, Inc.
+ * Copyright (c) 2010, The Storage Networking Industry Association.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ * Redistributions of source code must retain the above copyright notice, 
+ * this list of conditions and the following disclaimer.
+ *  
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ *  
+ * Neither the name of The Storage Networking Industry Association (SNIA) nor 
+ * the names of its contributors may be used to endorse or promote products 
+ * derived from this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF 
+ *  THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.snia.cdmiserver.dao.filesystem;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * <p>
+ * Unit tests of {@link ContainerArchive}.
+ * </p>
+ */
+public class ContainerArchiveTest {
+
+    private File directory;
+
+    private File archive;
+
+    private ExecutorService executor;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = File.createTempFile("container-archive", "");
+        directory.delete();
+        directory.mkdirs();
+        archive = new File(directory, "archive");
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void deleteDirectory() {
+        executor.shutdownNow();
+        delete(directory);
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        File root = new File(directory, "root");
+        write(new File(directory, ".root"), "root fields");
+        createObject(root, "a.txt", "value of a");
+        createObject(root, "empty", "");
+        createContainer(root, "sub");
+        createObject(new File(root, "sub"), "b.txt", "value of b");
+        createContainer(new File(root, "sub"), "deeper");
+        // Not serialized: temporary files, orphaned values, queues and snapshots
+        write(new File(root, FileUtils.TEMPORARY_PREFIX + "a.txt"), "partial");
+        write(new File(root, "orphan"), "no fields");
+        new File(root, ".q" + QueueDaoImpl.QUEUE_SUFFIX).mkdirs();
+        createContainer(root, Snapshots.DIRECTORY);
+
+        serialize(root);
+        Assert.assertEquals("root fields", new String(ContainerArchive.readRootFields(archive)));
+
+        Recorder recorder = new Recorder();
+        ContainerArchive.deserialize(archive, recorder, executor, 2);
+        Assert.assertEquals(fields("", "root fields",
+                                   "sub", "fields of sub",
+                                   "sub/deeper", "fields of deeper"),
+                            recorder.containers);
+        Assert.assertEquals(fields("a.txt", "fields of a.txt|value of a",
+                                   "empty", "fields of empty|",
+                                   "sub/b.txt", "fields of b.txt|value of b"),
+                            recorder.dataObjects);
+
+        // A container comes before anything in it
+        Assert.assertTrue(recorder.order.indexOf("sub") < recorder.order.indexOf("sub/deeper"));
+    }
+
+    @Test
+    public void testRejectsPathsLeavingTheTree() throws Exception {
+        String[] paths = { "../escape", "a/../../escape", "/absolute", ".hidden", "a//b",
+                          "q" + QueueDaoImpl.QUEUE_SUFFIX, Snapshots.DIRECTORY + "/s" };
+        for (String path : paths) {
+            writeArchive(path);
+            Recorder recorder = new Recorder();
+            try {
+                ContainerArchive.deserialize(archive, recorder, executor, 2);
+                Assert.fail("Accepted path " + path);
+            } catch (IOException expected) {
+            }
+            Assert.assertTrue(recorder.dataObjects.isEmpty());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncatedArchive() throws Exception {
+        File root = new File(directory, "root");
+        root.mkdirs();
+        createObject(root, "a.txt", "a value long enough to be cut in the middle");
+        serialize(root);
+        RandomAccessFile file = new RandomAccessFile(archive, "rw");
+        try {
+            file.setLength(file.length() - 10);
+        } finally {
+            file.close();
+        }
+        ContainerArchive.deserialize(archive, new Recorder(), executor, 2);
+    }
+
+    @Test(expected = IOException.class)
+    public void testArchiveWithoutEnd() throws Exception {
+        File root = new File(directory, "root");
+        root.mkdirs();
+        createObject(root, "a.txt", "value");
+        serialize(root);
+        RandomAccessFile file = new RandomAccessFile(archive, "rw");
+        try {
+            file.setLength(file.length() - 1);
+        } finally {
+            file.close();
+        }
+        ContainerArchive.deserialize(archive, new Recorder(), executor, 2);
+    }
+
+    // --------------------------------------------------------- Private Methods
+
+    private void serialize(File root) throws Exception {
+        ContainerArchive.serialize(root,
+                                   new File(root.getParentFile(), "." + root.getName()),
+                                   "root",
+                                   archive,
+                                   new ParallelTreeWalker(executor),
+                                   new PathLocks(),
+                                   null,
+                                   null);
+    }
+
+    // An archive of an empty root container holding one data object at the specified path
+    private void writeArchive(String path) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeBytes("CDMI-ARCHIVE 1\n");
+        out.writeByte('C');
+        out.writeUTF("");
+        out.writeInt(0);
+        out.writeByte('D');
+        out.writeUTF(path);
+        out.writeInt(0);
+        out.writeLong(1);
+        out.writeByte('x');
+        out.writeByte('E');
+        out.flush();
+        FileOutputStream file = new FileOutputStream(archive);
+        try {
+            file.write(bytes.toByteArray());
+        } finally {
+            file.close();
+        }
+    }
+
+    private static void createContainer(File parent, String name) throws IOException {
+        new File(parent, name).mkdirs();
+        write(new File(parent, "." + name), "fields of " + name);
+    }
+
+    private static void createObject(File parent, String name, String value)
+            throws IOException {
+        parent.mkdirs();
+        write(new File(parent, name), value);
+        write(new File(parent, "." + name), "fields of " + name);
+    }
+
+    private static Map<String, String> fields(String... pairs) {
+        Map<String, String> map = new TreeMap<String, String>();
+        for (int i = 0; i < pairs.length; i += 2) {
+            map.put(pairs[i], pairs[i + 1]);
+        }
+        return map;
+    }
+
+    private static void write(File file, String content) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * <p>
+     * Extractor that keeps what it is passed.
+     * </p>
+     */
+    private static class Recorder implements ContainerArchive.Extractor {
+
+        private final Map<String, String> containers =
+                Collections.synchronizedMap(new TreeMap<String, String>());
+
+        private final Map<String, String> dataObjects =
+                Collections.synchronizedMap(new TreeMap<String, String>());
+
+        private final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+
+        public void container(String path, byte[] fields) {
+            containers.put(path, new String(fields));
+            order.add(path);
+        }
+
+        public void dataObject(String path,
+                               byte[] fields,
+                               FileChannel archive,
+                               long offset,
+                               long length) throws IOException {
+            ByteBuffer value = ByteBuffer.allocate((int) length);
+            while (value.hasRemaining()) {
+                if (archive.read(value, offset + value.position()) < 0) {
+                    throw new IOException("Archive ends inside a value");
+                }
+            }
+            dataObjects.put(path, new String(fields) + "|" + new String(value.array()));
+            order.add(path);
+        }
+    }
+
+}
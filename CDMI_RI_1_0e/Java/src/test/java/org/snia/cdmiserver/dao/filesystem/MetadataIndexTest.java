@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2010, Sun Microsystems, Inc.
+ * Copyright (c) 2010, The Storage Networking Industry Association.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ * Redistributions of source code must retain the above copyright notice, 
+ * this list of conditions and the following disclaimer.
+ *  
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ *  
+ * Neither the name of The Storage Networking Industry Association (SNIA) nor 
+ * the names of its contributors may be used to endorse or promote products 
+ * derived from this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF 
+ *  THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.snia.cdmiserver.dao.filesystem;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.snia.cdmiserver.exception.BadRequestException;
+
+/**
+ * <p>
+ * Unit tests of {@link MetadataIndex}.
+ * </p>
+ */
+public class MetadataIndexTest {
+
+    private MetadataIndex index;
+
+    @Before
+    public void createIndex() {
+        index = new MetadataIndex();
+        index.setHashKeys(Arrays.asList("color"));
+        index.setSortedKeys(Arrays.asList("cdmi_size", "cdmi_ctime", "label"));
+    }
+
+    @Test
+    public void testNumericRange() {
+        put("a/1", "cdmi_size", "9");
+        put("a/2", "cdmi_size", "10");
+        put("a/3", "cdmi_size", "100");
+        put("a/4", "cdmi_size", "1.5e2");
+        Assert.assertEquals(Arrays.asList("a/2", "a/3", "a/4"),
+                            sorted(query("", "cdmi_size", ">= 10")));
+        Assert.assertEquals(Arrays.asList("a/1"), sorted(query("", "cdmi_size", "< 10")));
+        Assert.assertEquals(Arrays.asList("a/4"), sorted(query("", "cdmi_size", "> 100")));
+    }
+
+    @Test
+    public void testDateRange() {
+        put("a/1", "cdmi_ctime", "2010-06-01T12:00:00.000Z");
+        put("a/2", "cdmi_ctime", "2010-06-01T14:30:00+02:00");
+        put("a/3", "cdmi_ctime", "2010-06-02");
+        put("a/4", "cdmi_ctime", "2011-01-01T00:00:00.5Z");
+        // a/2 is 12:30 UTC, after a/1 although its text sorts before
+        Assert.assertEquals(Arrays.asList("a/2", "a/3", "a/4"),
+                            sorted(query("", "cdmi_ctime", "> 2010-06-01T12:00:00Z")));
+        Assert.assertEquals(Arrays.asList("a/1", "a/2"),
+                            sorted(query("", "cdmi_ctime", "< 2010-06-02")));
+        Assert.assertEquals(Arrays.asList("a/1", "a/2", "a/3"),
+                            sorted(query("", "cdmi_ctime", "<= 2010-12-31T23:59:59.999Z")));
+    }
+
+    @Test
+    public void testMixedOrdering() {
+        put("a/1", "label", "10");
+        put("a/2", "label", "9");
+        put("a/3", "label", "2010-06-01");
+        put("a/4", "label", "apple");
+        put("a/5", "label", "2010-06");
+        // Numbers sort before times, which sort before text
+        Assert.assertEquals(Arrays.asList("a/1", "a/3", "a/4", "a/5"),
+                            sorted(query("", "label", "> 9")));
+        Assert.assertEquals(Arrays.asList("a/1", "a/2"),
+                            sorted(query("", "label", "< 2010-01-01")));
+        Assert.assertEquals(Arrays.asList("a/4", "a/5"),
+                            sorted(query("", "label", "> 2100-01-01")));
+    }
+
+    @Test
+    public void testConditionsCombine() {
+        index.put("a/1", metadata("cdmi_size", "10", "cdmi_ctime", "2010-06-01"));
+        index.put("a/2", metadata("cdmi_size", "20", "cdmi_ctime", "2010-06-01"));
+        index.put("a/3", metadata("cdmi_size", "20", "cdmi_ctime", "2010-07-01"));
+        Assert.assertEquals(Arrays.asList("a/2"),
+                            query("", "cdmi_size", "> 10", "cdmi_ctime", "< 2010-07-01"));
+    }
+
+    @Test
+    public void testEqualityIsExact() {
+        put("a/1", "cdmi_size", "10");
+        put("a/2", "cdmi_size", "10.0");
+        put("a/3", "color", "red");
+        Assert.assertEquals(Arrays.asList("a/1"), query("", "cdmi_size", "== 10"));
+        Assert.assertEquals(Arrays.asList("a/2"), query("", "cdmi_size", "10.0"));
+        Assert.assertEquals(Arrays.asList("a/3"), query("", "color", "red"));
+        Assert.assertTrue(query("", "color", "blue").isEmpty());
+    }
+
+    @Test
+    public void testScopeAndUpdates() {
+        put("a/1", "cdmi_size", "5");
+        put("b/1", "cdmi_size", "5");
+        put("ab/1", "cdmi_size", "5");
+        Assert.assertEquals(Arrays.asList("a/1"), query("/a/", "cdmi_size", "5"));
+        put("a/1", "cdmi_size", "6");
+        Assert.assertTrue(query("a", "cdmi_size", "5").isEmpty());
+        index.remove("b/1");
+        Assert.assertEquals(Arrays.asList("ab/1"), query("", "cdmi_size", "5"));
+        Assert.assertEquals(2, index.size());
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void testRangeOnHashKey() {
+        query("", "color", "> red");
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void testUnindexedKey() {
+        query("", "owner", "bob");
+    }
+
+    // --------------------------------------------------------- Private Methods
+
+    private void put(String path, String key, String value) {
+        index.put(path, Collections.singletonMap(key, value));
+    }
+
+    private List<String> query(String scope, String... conditions) {
+        return index.query(scope, metadata(conditions), 100);
+    }
+
+    private static Map<String, String> metadata(String... pairs) {
+        Map<String, String> metadata = new HashMap<String, String>();
+        for (int i = 0; i < pairs.length; i += 2) {
+            metadata.put(pairs[i], pairs[i + 1]);
+        }
+        return metadata;
+    }
+
+    private static List<String> sorted(List<String> paths) {
+        Collections.sort(paths);
+        return paths;
+    }
+
+}
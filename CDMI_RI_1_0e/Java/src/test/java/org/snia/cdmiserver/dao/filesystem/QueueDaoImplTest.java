@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2010, Sun Microsystems, Inc.
+ * Copyright (c) 2010, The Storage Networking Industry Association.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ * Redistributions of source code must retain the above copyright notice, 
+ * this list of conditions and the following disclaimer.
+ *  
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ *  
+ * Neither the name of The Storage Networking Industry Association (SNIA) nor 
+ * the names of its contributors may be used to endorse or promote products 
+ * derived from this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF 
+ *  THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.snia.cdmiserver.dao.filesystem;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.snia.cdmiserver.exception.NotFoundException;
+import org.snia.cdmiserver.model.Change;
+import org.snia.cdmiserver.util.MediaTypes;
+
+/**
+ * <p>
+ * Unit tests of the value log behind {@link QueueDaoImpl}.
+ * </p>
+ */
+public class QueueDaoImplTest {
+
+    private File base;
+
+    private QueueDaoImpl queueDao;
+
+    @Before
+    public void createQueue() throws IOException {
+        base = File.createTempFile("queue-dao", "");
+        base.delete();
+        new File(base, ".q" + QueueDaoImpl.QUEUE_SUFFIX).mkdirs();
+        queueDao = new QueueDaoImpl();
+        queueDao.setBaseDirectoryName(base.getAbsolutePath());
+        queueDao.setSegmentSize(256);
+    }
+
+    @After
+    public void deleteQueue() {
+        delete(base);
+    }
+
+    @Test
+    public void testEnqueueDequeueAcknowledge() {
+        List<String> values = new ArrayList<String>();
+        for (int i = 0; i < 40; i++) {
+            values.add("value-" + i);
+        }
+        Assert.assertEquals(40, queueDao.enqueue("q", values));
+        Assert.assertEquals(values.subList(0, 5), queueDao.dequeue("q", 0, 5));
+        Assert.assertEquals(values.subList(30, 40), queueDao.dequeue("q", 30, 100));
+
+        Assert.assertEquals(25, queueDao.acknowledge("q", 25));
+        Assert.assertEquals(values.subList(25, 30), queueDao.dequeue("q", 0, 5));
+        Assert.assertEquals(15, queueDao.acknowledge("q", 100));
+        Assert.assertEquals(0, queueDao.acknowledge("q", 1));
+        Assert.assertEquals(0, queueDao.enqueue("q", Collections.<String> emptyList()));
+        Assert.assertTrue(queueDao.dequeue("q", 0, 10).isEmpty());
+    }
+
+    @Test
+    public void testAcknowledgeUnderConcurrentEnqueue() throws Exception {
+        final int writers = 6;
+        final int perWriter = 1500;
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final AtomicLong acknowledged = new AtomicLong();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int w = 0; w < writers; w++) {
+            final int writer = w;
+            threads.add(new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < perWriter; i++) {
+                            queueDao.enqueue("q", Collections.singletonList(writer + ":" + i));
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            });
+        }
+        Thread acknowledger = new Thread() {
+            public void run() {
+                try {
+                    start.await();
+                    while (writing.get()) {
+                        acknowledged.addAndGet(queueDao.acknowledge("q", 7));
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            }
+        };
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        acknowledger.start();
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        writing.set(false);
+        acknowledger.join();
+        Assert.assertNull(failure.get());
+
+        // The count must match what is actually left in the log
+        long remaining = queueDao.enqueue("q", Collections.<String> emptyList());
+        Assert.assertEquals(writers * perWriter - acknowledged.get(), remaining);
+        Assert.assertEquals(remaining, queueDao.dequeue("q", 0, writers * perWriter).size());
+
+        int drained;
+        while ((drained = queueDao.acknowledge("q", 1000)) > 0) {
+            acknowledged.addAndGet(drained);
+        }
+        Assert.assertEquals(writers * perWriter, acknowledged.get());
+        Assert.assertEquals(0, queueDao.enqueue("q", Collections.<String> emptyList()));
+        Assert.assertTrue(queueDao.dequeue("q", 0, 10).isEmpty());
+    }
+
+    @Test
+    public void testContainerDeleteClosesQueue() {
+        File container = new File(base, "c");
+        new File(container, ".q" + QueueDaoImpl.QUEUE_SUFFIX).mkdirs();
+        Assert.assertEquals(1, queueDao.enqueue("c/q", Collections.singletonList("value")));
+
+        delete(container);
+        queueDao.changed(new Change(Change.DELETE, MediaTypes.CONTAINER, "c", null));
+        try {
+            queueDao.enqueue("c/q", Collections.singletonList("lost"));
+            Assert.fail("Enqueued to a deleted queue");
+        } catch (NotFoundException ex) {
+            // Expected
+        }
+        // Queues elsewhere stay open
+        Assert.assertEquals(1, queueDao.enqueue("q", Collections.singletonList("value")));
+    }
+
+    @Test
+    public void testContainerMoveReopensQueue() {
+        File container = new File(base, "c");
+        new File(container, ".q" + QueueDaoImpl.QUEUE_SUFFIX).mkdirs();
+        queueDao.enqueue("c/q", Collections.singletonList("first"));
+
+        Assert.assertTrue(container.renameTo(new File(base, "d")));
+        queueDao.changed(new Change(Change.MOVE, MediaTypes.CONTAINER, "d", "c"));
+        try {
+            queueDao.enqueue("c/q", Collections.singletonList("lost"));
+            Assert.fail("Enqueued to a moved queue");
+        } catch (NotFoundException ex) {
+            // Expected
+        }
+        Assert.assertEquals(2, queueDao.enqueue("d/q", Collections.singletonList("second")));
+        List<String> values = new ArrayList<String>();
+        values.add("first");
+        values.add("second");
+        Assert.assertEquals(values, queueDao.dequeue("d/q", 0, 10));
+    }
+
+    @Test
+    public void testDeleteReleasesWaiters() {
+        final AtomicBoolean released = new AtomicBoolean();
+        queueDao.awaitValues("q", new Runnable() {
+            public void run() {
+                released.set(true);
+            }
+        });
+        Assert.assertFalse(released.get());
+        queueDao.deleteByPath("q");
+        Assert.assertTrue(released.get());
+        Assert.assertNull(queueDao.findByPath("q"));
+    }
+
+    // --------------------------------------------------------- Private Methods
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+}
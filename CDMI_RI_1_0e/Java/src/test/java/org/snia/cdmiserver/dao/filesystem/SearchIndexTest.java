@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2010, Sun Microsystems, Inc.
+ * Copyright (c) 2010, The Storage Networking Industry Association.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ * Redistributions of source code must retain the above copyright notice, 
+ * this list of conditions and the following disclaimer.
+ *  
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ *  
+ * Neither the name of The Storage Networking Industry Association (SNIA) nor 
+ * the names of its contributors may be used to endorse or promote products 
+ * derived from this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF 
+ *  THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.snia.cdmiserver.dao.filesystem;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.snia.cdmiserver.exception.BadRequestException;
+import org.snia.cdmiserver.model.Change;
+import org.snia.cdmiserver.util.MediaTypes;
+
+/**
+ * <p>
+ * Unit tests of {@link SearchIndex}.
+ * </p>
+ */
+public class SearchIndexTest {
+
+    private SearchIndex index;
+
+    @Before
+    public void createIndex() {
+        index = new SearchIndex();
+        index.setMetadataKeys(Arrays.asList("title"));
+        index.put("docs/Report-2010.pdf", MediaTypes.DATA_OBJECT, null);
+        index.put("docs/summary-report.txt", MediaTypes.DATA_OBJECT, null);
+        index.put("docs/old/report.txt", MediaTypes.DATA_OBJECT, null);
+        index.put("pics/reports", MediaTypes.CONTAINER, null);
+        index.put("pics/cat.jpg",
+                  MediaTypes.DATA_OBJECT,
+                  Collections.singletonMap("title", "A Report on Cats"));
+    }
+
+    @Test
+    public void testSubstringSearch() {
+        Assert.assertEquals(Arrays.asList("docs/Report-2010.pdf",
+                                          "docs/old/report.txt",
+                                          "docs/summary-report.txt",
+                                          "pics/reports"),
+                            search("report", false, "", null, 100));
+        Assert.assertEquals(Arrays.asList("docs/summary-report.txt"),
+                            search("RY-REP", false, "", null, 100));
+        Assert.assertTrue(search("reportx", false, "", null, 100).isEmpty());
+    }
+
+    @Test
+    public void testPrefixSearch() {
+        Assert.assertEquals(Arrays.asList("docs/Report-2010.pdf",
+                                          "docs/old/report.txt",
+                                          "pics/reports"),
+                            search("rep", true, "", null, 100));
+        Assert.assertTrue(search("port", true, "", null, 100).isEmpty());
+        // Shorter than a trigram
+        Assert.assertEquals(Arrays.asList("docs/summary-report.txt"),
+                            search("s", true, "docs", null, 100));
+    }
+
+    @Test
+    public void testPaging() {
+        List<String> pages = new ArrayList<String>();
+        String after = null;
+        while (true) {
+            List<String> page = search("report", false, "", after, 2);
+            Assert.assertTrue(page.size() <= 2);
+            if (page.isEmpty()) {
+                break;
+            }
+            pages.addAll(page);
+            after = page.get(page.size() - 1);
+        }
+        Assert.assertEquals(search("report", false, "", null, 100), pages);
+    }
+
+    @Test
+    public void testScope() {
+        Assert.assertEquals(Arrays.asList("docs/old/report.txt"),
+                            search("report", false, "/docs/old/", null, 100));
+        Assert.assertEquals(Arrays.asList("pics/reports"),
+                            search("report", false, "pics", null, 100));
+    }
+
+    @Test
+    public void testMetadataSearch() {
+        Assert.assertEquals(Arrays.asList("pics/cat.jpg"),
+                            index.search("title", "report on", false, "", null, 100));
+        Assert.assertTrue(index.search("title", "cat.jpg", false, "", null, 100).isEmpty());
+    }
+
+    @Test
+    public void testChanges() {
+        Change move = new Change(Change.MOVE, MediaTypes.CONTAINER, "archive", "docs");
+        index.changed(move);
+        Assert.assertEquals(Arrays.asList("archive/Report-2010.pdf",
+                                          "archive/old/report.txt",
+                                          "archive/summary-report.txt"),
+                            search("report", false, "archive", null, 100));
+        Assert.assertTrue(search("report", false, "docs", null, 100).isEmpty());
+
+        index.changed(new Change(Change.DELETE, MediaTypes.CONTAINER, "archive/old", null));
+        Assert.assertEquals(Arrays.asList("archive/Report-2010.pdf",
+                                          "archive/summary-report.txt"),
+                            search("report", false, "archive", null, 100));
+        Assert.assertNull(index.getObjectType("archive/old/report.txt"));
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void testUnindexedField() {
+        index.search("owner", "bob", false, "", null, 10);
+    }
+
+    // --------------------------------------------------------- Private Methods
+
+    private List<String> search(String text, boolean prefix, String scope, String after, int limit) {
+        return index.search(SearchIndex.NAME, text, prefix, scope, after, limit);
+    }
+
+}
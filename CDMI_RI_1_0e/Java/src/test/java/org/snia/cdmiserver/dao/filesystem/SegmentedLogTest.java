@@ -0,0 +1,283 @@
+/*
+ * Copyright (c) 2010, Sun Microsystems, Inc.
+ * Copyright (c) 2010, The Storage Networking Industry Association.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ * Redistributions of source code must retain the above copyright notice, 
+ * this list of conditions and the following disclaimer.
+ *  
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ *  
+ * Neither the name of The Storage Networking Industry Association (SNIA) nor 
+ * the names of its contributors may be used to endorse or promote products 
+ * derived from this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF 
+ *  THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.snia.cdmiserver.dao.filesystem;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * <p>
+ * Unit tests of {@link SegmentedLog}.
+ * </p>
+ */
+public class SegmentedLogTest {
+
+    private File directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = File.createTempFile("segmented-log", "");
+        directory.delete();
+    }
+
+    @After
+    public void deleteDirectory() {
+        delete(directory);
+    }
+
+    @Test
+    public void testAppendAndRead() throws Exception {
+        SegmentedLog log = new SegmentedLog(directory, 4096);
+        long first = log.append(bytes("a"));
+        log.append(bytes(""));
+        log.append(bytes("ccc"));
+
+        List<byte[]> records = new ArrayList<byte[]>();
+        long end = log.read(first, records, 10);
+        Assert.assertEquals(Arrays.asList("a", "", "ccc"), strings(records));
+        Assert.assertEquals(log.getEndPosition(), end);
+        Assert.assertEquals(3, log.count(first));
+
+        // Nothing past the end: the position does not move
+        records.clear();
+        Assert.assertEquals(end, log.read(end, records, 10));
+        Assert.assertTrue(records.isEmpty());
+        Assert.assertEquals(end, log.skip(end, 10));
+    }
+
+    @Test
+    public void testConcurrentAppendAndRead() throws Exception {
+        final SegmentedLog log = new SegmentedLog(directory, 8192);
+        final int writers = 8;
+        final int perWriter = 2000;
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int w = 0; w < writers; w++) {
+            final int writer = w;
+            threads.add(new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < perWriter; i++) {
+                            log.append(bytes(writer + ":" + i));
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        start.countDown();
+
+        // Read while the writers append; every record seen must be complete and in order
+        List<String> seen = new ArrayList<String>();
+        long position = log.getStartPosition();
+        while (seen.size() < writers * perWriter && failure.get() == null) {
+            List<byte[]> records = new ArrayList<byte[]>();
+            position = log.read(position, records, 100);
+            seen.addAll(strings(records));
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertNull(failure.get());
+        Assert.assertEquals(writers * perWriter, seen.size());
+        int[] next = new int[writers];
+        for (String record : seen) {
+            int colon = record.indexOf(':');
+            int writer = Integer.parseInt(record.substring(0, colon));
+            Assert.assertEquals(next[writer]++, Integer.parseInt(record.substring(colon + 1)));
+        }
+        Assert.assertEquals(writers * perWriter, log.count(log.getStartPosition()));
+    }
+
+    @Test
+    public void testRollAcrossSegments() throws Exception {
+        SegmentedLog log = new SegmentedLog(directory, 64);
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 50; i++) {
+            expected.add("record-" + i);
+            log.append(bytes("record-" + i));
+        }
+        Assert.assertTrue(directory.list().length > 10);
+
+        List<byte[]> records = new ArrayList<byte[]>();
+        log.read(0, records, 1000);
+        Assert.assertEquals(expected, strings(records));
+
+        // Skipping crosses segment ends too
+        records.clear();
+        log.read(log.skip(0, 25), records, 1);
+        Assert.assertEquals("record-25", new String(records.get(0), "UTF-8"));
+        Assert.assertEquals(50, log.count(0));
+
+        // Reopening finds every segment again
+        log = new SegmentedLog(directory, 64);
+        records.clear();
+        log.read(0, records, 1000);
+        Assert.assertEquals(expected, strings(records));
+        log.append(bytes("after"));
+        Assert.assertEquals(51, log.count(0));
+    }
+
+    @Test
+    public void testRecoverAfterTornRecord() throws Exception {
+        SegmentedLog log = new SegmentedLog(directory, 4096);
+        log.append(bytes("one"));
+        log.append(bytes("two"));
+        long end = log.getEndPosition();
+
+        // A record whose bytes reached the file but whose header did not
+        RandomAccessFile file = new RandomAccessFile(directory.listFiles()[0], "rw");
+        try {
+            file.seek(end + 4);
+            file.write(new byte[] { 9, 9, 9, 9, 9, 9, 9, 9, 9, 9, 9, 9 });
+        } finally {
+            file.close();
+        }
+
+        log = new SegmentedLog(directory, 4096);
+        Assert.assertEquals(2, log.count(0));
+        Assert.assertEquals(end, log.getEndPosition());
+
+        // A shorter record in its place must not be followed by the leftover bytes
+        Assert.assertEquals(end, log.append(bytes("x")));
+        List<byte[]> records = new ArrayList<byte[]>();
+        log.read(0, records, 10);
+        Assert.assertEquals(Arrays.asList("one", "two", "x"), strings(records));
+    }
+
+    @Test
+    public void testRecoverSkipsUnfinishedRecord() throws Exception {
+        SegmentedLog log = new SegmentedLog(directory, 4096);
+        log.append(bytes("one"));
+        long unfinished = log.append(bytes("two"));
+        log.append(bytes("three"));
+
+        // A writer that reserved its slot and wrote its length, but died before committing,
+        // while a later writer finished
+        RandomAccessFile file = new RandomAccessFile(directory.listFiles()[0], "rw");
+        try {
+            file.seek(unfinished + 4);
+            file.writeInt(0);
+        } finally {
+            file.close();
+        }
+
+        log = new SegmentedLog(directory, 4096);
+        List<byte[]> records = new ArrayList<byte[]>();
+        long end = log.read(0, records, 10);
+        Assert.assertEquals(Arrays.asList("one", "three"), strings(records));
+        Assert.assertEquals(log.getEndPosition(), end);
+        Assert.assertEquals(2, log.count(0));
+
+        // The abandoned slot stays skipped once more records follow and the log is reopened
+        log.append(bytes("four"));
+        log = new SegmentedLog(directory, 4096);
+        records.clear();
+        log.read(0, records, 10);
+        Assert.assertEquals(Arrays.asList("one", "three", "four"), strings(records));
+        records.clear();
+        log.read(log.skip(0, 1), records, 1);
+        Assert.assertEquals("three", new String(records.get(0), "UTF-8"));
+    }
+
+    @Test
+    public void testTruncateBefore() throws Exception {
+        SegmentedLog log = new SegmentedLog(directory, 64);
+        List<Long> positions = new ArrayList<Long>();
+        for (int i = 0; i < 30; i++) {
+            positions.add(log.append(bytes("record-" + i)));
+        }
+        int segments = directory.list().length;
+
+        long keep = positions.get(20);
+        log.truncateBefore(keep);
+        Assert.assertTrue(directory.list().length < segments);
+        Assert.assertTrue(log.getStartPosition() > 0);
+        Assert.assertTrue(log.getStartPosition() <= keep);
+
+        // Reads from a truncated position start at the oldest remaining record
+        List<byte[]> records = new ArrayList<byte[]>();
+        log.read(0, records, 1000);
+        Assert.assertEquals("record-29", new String(records.get(records.size() - 1), "UTF-8"));
+        Assert.assertTrue(strings(records).contains("record-20"));
+        Assert.assertFalse(strings(records).contains("record-0"));
+
+        // The current segment is never deleted
+        log.truncateBefore(Long.MAX_VALUE);
+        Assert.assertEquals(1, directory.list().length);
+        log.append(bytes("more"));
+        records.clear();
+        log.read(log.getStartPosition(), records, 1000);
+        Assert.assertEquals("more", new String(records.get(records.size() - 1), "UTF-8"));
+    }
+
+    // --------------------------------------------------------- Private Methods
+
+    private static byte[] bytes(String value) throws IOException {
+        return value.getBytes("UTF-8");
+    }
+
+    private static List<String> strings(List<byte[]> records) throws IOException {
+        List<String> values = new ArrayList<String>(records.size());
+        for (byte[] record : records) {
+            values.add(new String(record, "UTF-8"));
+        }
+        return values;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+}
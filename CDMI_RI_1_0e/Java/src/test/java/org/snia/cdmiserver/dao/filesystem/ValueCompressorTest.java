@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2010, Sun Microsystems, Inc.
+ * Copyright (c) 2010, The Storage Networking Industry Association.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ * Redistributions of source code must retain the above copyright notice, 
+ * this list of conditions and the following disclaimer.
+ *  
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ *  
+ * Neither the name of The Storage Networking Industry Association (SNIA) nor 
+ * the names of its contributors may be used to endorse or promote products 
+ * derived from this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF 
+ *  THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.snia.cdmiserver.dao.filesystem;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * <p>
+ * Unit tests of {@link ValueCompressor}.
+ * </p>
+ */
+public class ValueCompressorTest {
+
+    private ValueCompressor compressor;
+
+    private File file;
+
+    @Before
+    public void createCompressor() throws IOException {
+        compressor = new ValueCompressor();
+        compressor.setBlockSize(1024);
+        compressor.setMinValueSize(2048);
+        file = File.createTempFile("value-compressor", "");
+    }
+
+    @After
+    public void deleteFile() {
+        file.delete();
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        byte[] value = text(10000);
+        byte[] compressed = compressor.compress(value, Deflater.DEFAULT_COMPRESSION);
+        Assert.assertNotNull(compressed);
+        Assert.assertTrue(compressed.length < value.length);
+        Assert.assertTrue(Arrays.equals(value, compressor.decompress(compressed)));
+
+        write(compressed);
+        ValueCompressor.validate(file);
+        Assert.assertTrue(Arrays.equals(value, compressor.decompress(file, 0, value.length)));
+    }
+
+    @Test
+    public void testRangeAcrossBlocks() throws Exception {
+        byte[] value = text(5000);
+        write(compressor.compress(value, Deflater.BEST_SPEED));
+
+        // Within one block, across one boundary, across several, and up to the end
+        assertRange(value, 10, 100);
+        assertRange(value, 1000, 48);
+        assertRange(value, 1023, 2050);
+        assertRange(value, 4096, 904);
+        assertRange(value, 0, value.length);
+
+        // A range past the end is cut short
+        byte[] tail = compressor.decompress(file, 4990, 100);
+        Assert.assertTrue(Arrays.equals(Arrays.copyOfRange(value, 4990, 5000), tail));
+    }
+
+    @Test
+    public void testSkipsIncompressibleValues() throws Exception {
+        byte[] value = new byte[8192];
+        new Random(42).nextBytes(value);
+        Assert.assertNull(compressor.compress(value, Deflater.BEST_COMPRESSION));
+
+        // Too small to be worth it, however well it compresses
+        Assert.assertNull(compressor.compress(text(2000), Deflater.BEST_COMPRESSION));
+    }
+
+    @Test
+    public void testSkipDecisionUsesSample() throws Exception {
+        // Compressible at the sampled blocks, random in between
+        byte[] value = text(5 * 1024);
+        byte[] noise = new byte[1024];
+        new Random(7).nextBytes(noise);
+        System.arraycopy(noise, 0, value, 1024, noise.length);
+        System.arraycopy(noise, 0, value, 3 * 1024, noise.length);
+        byte[] compressed = compressor.compress(value, Deflater.DEFAULT_COMPRESSION);
+        Assert.assertNotNull(compressed);
+        Assert.assertTrue(Arrays.equals(value, compressor.decompress(compressed)));
+
+        // A sample that barely compresses is not good enough
+        compressor.setMaxSampledRatio(0.01);
+        Assert.assertNull(compressor.compress(value, Deflater.DEFAULT_COMPRESSION));
+    }
+
+    @Test(expected = IOException.class)
+    public void testValidateRejectsTruncatedFile() throws Exception {
+        byte[] compressed = compressor.compress(text(10000), Deflater.DEFAULT_COMPRESSION);
+        write(Arrays.copyOf(compressed, compressed.length - 1));
+        ValueCompressor.validate(file);
+    }
+
+    @Test(expected = IOException.class)
+    public void testValidateRejectsBadHeader() throws Exception {
+        byte[] compressed = compressor.compress(text(10000), Deflater.DEFAULT_COMPRESSION);
+        compressed[0] = 'X';
+        write(compressed);
+        ValueCompressor.validate(file);
+    }
+
+    @Test(expected = IOException.class)
+    public void testValidateRejectsWrongBlockCount() throws Exception {
+        byte[] compressed = compressor.compress(text(10000), Deflater.DEFAULT_COMPRESSION);
+        write(compressed);
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            // The total length no longer matches the number of blocks
+            out.seek(ValueCompressor.HEADER.length() + 4);
+            out.writeLong(100000);
+        } finally {
+            out.close();
+        }
+        ValueCompressor.validate(file);
+    }
+
+    // --------------------------------------------------------- Private Methods
+
+    private void assertRange(byte[] value, int offset, int length) throws IOException {
+        byte[] range = compressor.decompress(file, offset, length);
+        Assert.assertTrue("range " + offset + "+" + length,
+                          Arrays.equals(Arrays.copyOfRange(value, offset, offset + length), range));
+    }
+
+    private void write(byte[] content) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static byte[] text(int length) {
+        byte[] value = new byte[length];
+        String words = "the quick brown fox jumps over the lazy dog ";
+        for (int i = 0; i < length; i++) {
+            value[i] = (byte) words.charAt((i * 7 + i / words.length()) % words.length());
+        }
+        return value;
+    }
+
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2010, Sun Microsystems, Inc.
+ * Copyright (c) 2010, The Storage Networking Industry Association.
+ *  
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ * Redistributions of source code must retain the above copyright notice, 
+ * this list of conditions and the following disclaimer.
+ *  
+ * Redistributions in binary form must reproduce the above copyright notice, 
+ * this list of conditions and the following disclaimer in the documentation 
+ * and/or other materials provided with the distribution.
+ *  
+ * Neither the name of The Storage Networking Industry Association (SNIA) nor 
+ * the names of its contributors may be used to endorse or promote products 
+ * derived from this software without specific prior written permission.
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ *  ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ *  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ *  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ *  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ *  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ *  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF 
+ *  THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.snia.cdmiserver.util;
+
+import java.io.File;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.snia.cdmiserver.exception.BadRequestException;
+
+/**
+ * <p>
+ * Unit tests of {@link CdmiPath}.
+ * </p>
+ */
+public class CdmiPathTest {
+
+    @Test
+    public void testRoot() {
+        Assert.assertSame(CdmiPath.ROOT, CdmiPath.parse(null));
+        Assert.assertSame(CdmiPath.ROOT, CdmiPath.parse(""));
+        Assert.assertSame(CdmiPath.ROOT, CdmiPath.parse("/"));
+        Assert.assertSame(CdmiPath.ROOT, CdmiPath.parse("///"));
+        Assert.assertTrue(CdmiPath.ROOT.isRoot());
+        Assert.assertEquals("", CdmiPath.ROOT.getName());
+        Assert.assertSame(CdmiPath.ROOT, CdmiPath.ROOT.getParent());
+        Assert.assertEquals("/", CdmiPath.ROOT.getParentURI());
+        File base = new File("/base");
+        Assert.assertEquals(base, CdmiPath.ROOT.toFile(base));
+    }
+
+    @Test
+    public void testNormalizesSlashes() {
+        Assert.assertEquals("a/b/c", CdmiPath.parse("a/b/c").toString());
+        Assert.assertEquals("a/b/c", CdmiPath.parse("/a/b/c").toString());
+        Assert.assertEquals("a/b/c", CdmiPath.parse("a/b/c/").toString());
+        Assert.assertEquals("a/b/c", CdmiPath.parse("//a//b///c//").toString());
+        Assert.assertEquals("a", CdmiPath.parse("/a/").toString());
+        Assert.assertEquals(CdmiPath.parse("a/b"), CdmiPath.parse("/a//b/"));
+        Assert.assertEquals(CdmiPath.parse("a/b").hashCode(), CdmiPath.parse("a//b").hashCode());
+        Assert.assertFalse(CdmiPath.parse("a/b").isRoot());
+    }
+
+    @Test
+    public void testDotSegments() {
+        String[] invalid = { ".", "..", "a/.", "a/..", "./a", "../a", "a/./b", "a/../b",
+                "/../", "a//..//b" };
+        for (String path : invalid) {
+            try {
+                CdmiPath.parse(path);
+                Assert.fail("Accepted <" + path + ">");
+            } catch (BadRequestException ex) {
+                // Expected
+            }
+        }
+        // Only the exact segments are rejected
+        Assert.assertEquals("...", CdmiPath.parse("...").toString());
+        Assert.assertEquals("a/.../b", CdmiPath.parse("a/.../b").toString());
+        Assert.assertEquals(".a/..b/b..", CdmiPath.parse(".a/..b/b..").toString());
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void testNul() {
+        CdmiPath.parse("a/b\0c");
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void testNulAfterSlashes() {
+        CdmiPath.parse("//a//\0");
+    }
+
+    @Test
+    public void testNameAndParent() {
+        CdmiPath path = CdmiPath.parse("/a//b/name/");
+        Assert.assertEquals("name", path.getName());
+        Assert.assertEquals(CdmiPath.parse("a/b"), path.getParent());
+        Assert.assertEquals("b", path.getParent().getName());
+        Assert.assertEquals(CdmiPath.parse("a"), path.getParent().getParent());
+        Assert.assertSame(CdmiPath.ROOT, path.getParent().getParent().getParent());
+        Assert.assertEquals("/a/b/", path.getParentURI());
+        Assert.assertEquals("/a/", path.getParent().getParentURI());
+
+        CdmiPath top = CdmiPath.parse("name");
+        Assert.assertEquals("name", top.getName());
+        Assert.assertSame(CdmiPath.ROOT, top.getParent());
+        Assert.assertEquals("/", top.getParentURI());
+
+        File base = new File("/base");
+        Assert.assertEquals(new File(base, "a/b/name"), path.toFile(base));
+        Assert.assertEquals(new File(base, "a/b"), path.getParentFile(base));
+        Assert.assertEquals(new File(base, "a/b/.name"), path.getFieldsFile(base));
+        Assert.assertEquals(base, top.getParentFile(base));
+        Assert.assertEquals(new File(base, ".name"), top.getFieldsFile(base));
+    }
+
+    @Test
+    public void testHasSegment() {
+        CdmiPath path = CdmiPath.parse("a/cdmi_snapshots/b");
+        Assert.assertTrue(path.hasSegment("cdmi_snapshots"));
+        Assert.assertTrue(path.hasSegment("a"));
+        Assert.assertTrue(path.hasSegment("b"));
+        Assert.assertFalse(path.hasSegment("cdmi"));
+        Assert.assertFalse(path.hasSegment("snapshots"));
+        Assert.assertFalse(CdmiPath.parse("xcdmi_snapshots/b").hasSegment("cdmi_snapshots"));
+        Assert.assertFalse(CdmiPath.parse("a/cdmi_snapshotsx").hasSegment("cdmi_snapshots"));
+        // A later occurrence is found after a partial match
+        Assert.assertTrue(CdmiPath.parse("xb/b").hasSegment("b"));
+        Assert.assertFalse(CdmiPath.ROOT.hasSegment("a"));
+    }
+
+}